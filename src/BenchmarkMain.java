@@ -0,0 +1,527 @@
+import flightModel.Flight;
+import database.FlightClusterer;
+import service.DelayCube;
+import service.FlightDataService;
+import service.FlightQuery;
+import service.RankedGroup;
+import service.StorageProfile;
+import ui.FlightTableModel;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Timing harness for the service, run against an imported flights.db.
+//   java BenchmarkMain analytics [year] [runs]
+//   java BenchmarkMain cube [year] [runs]
+//   java BenchmarkMain flights [passes]
+//   java BenchmarkMain storage [profile|all] [runs]
+//   java BenchmarkMain clustering [key] [runs]
+//   java BenchmarkMain topk [year] [k] [runs]
+public class BenchmarkMain {
+
+    public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : "analytics";
+
+        try {
+            switch (mode) {
+                case "analytics":
+                    int year = args.length > 1 ? Integer.parseInt(args[1]) : 2023;
+                    int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+                    benchmarkAnalytics(year, runs);
+                    break;
+                case "cube":
+                    benchmarkCube(args.length > 1 ? Integer.parseInt(args[1]) : 2023,
+                            args.length > 2 ? Integer.parseInt(args[2]) : 1000);
+                    break;
+                case "flights":
+                    benchmarkFlights(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+                    break;
+                case "clustering":
+                    benchmarkClustering(args.length > 1 ? args[1] : FlightClusterer.DEFAULT_KEY,
+                            args.length > 2 ? Integer.parseInt(args[2]) : 5);
+                    break;
+                case "topk":
+                    benchmarkTopK(args.length > 1 ? Integer.parseInt(args[1]) : 2023,
+                            args.length > 2 ? Integer.parseInt(args[2]) : 100,
+                            args.length > 3 ? Integer.parseInt(args[3]) : 5);
+                    break;
+                case "storage":
+                    String profile = args.length > 1 ? args[1] : "all";
+                    int storageRuns = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+                    if ("all".equals(profile)) {
+                        benchmarkStorageProfiles(storageRuns);
+                    } else {
+                        benchmarkStorage(profile, storageRuns);
+                    }
+                    break;
+                default:
+                    System.err.println("Unknown benchmark: " + mode);
+                    System.exit(1);
+            }
+        } catch (SQLException e) {
+            System.err.println("Database error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Yearly airline and airport averages at 1, 2, 4, ... partitions up to the core count.
+    private static void benchmarkAnalytics(int year, int runs) throws SQLException {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // One pooled connection per partition, otherwise the extra partitions just wait for a connection.
+        if (System.getProperty("flights.poolSize") == null) {
+            System.setProperty("flights.poolSize", String.valueOf(cores));
+        }
+
+        List<Integer> partitionCounts = new ArrayList<>();
+        for (int p = 1; p < cores; p *= 2) {
+            partitionCounts.add(p);
+        }
+        partitionCounts.add(cores);
+
+        FlightDataService service = new FlightDataService();
+        try {
+            System.out.println("\n========== PARTITIONED ANALYTICS ==========");
+            System.out.println("Year " + year + ", " + runs + " runs each, " + cores + " cores");
+            System.out.println(String.format("%-10s %12s %12s %10s %10s",
+                    "partitions", "airline ms", "airport ms", "speedup", "matches"));
+
+            Map<String, Double> airlineBaseline = service.scanAverageDelayByAirline(year, 1);
+            Map<String, Double> airportBaseline = service.scanAverageDelayByAirport(year, 1);
+            double baselineMs = 0;
+
+            for (int partitions : partitionCounts) {
+                long[] airlineTimes = new long[runs];
+                long[] airportTimes = new long[runs];
+                boolean matches = true;
+
+                // One untimed run first so every count starts with a warm page cache.
+                service.scanAverageDelayByAirline(year, partitions);
+
+                for (int i = 0; i < runs; i++) {
+                    long start = System.nanoTime();
+                    Map<String, Double> airline = service.scanAverageDelayByAirline(year, partitions);
+                    airlineTimes[i] = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    Map<String, Double> airport = service.scanAverageDelayByAirport(year, partitions);
+                    airportTimes[i] = System.nanoTime() - start;
+
+                    matches &= sameResults(airlineBaseline, airline) && sameResults(airportBaseline, airport);
+                }
+
+                double airlineMs = median(airlineTimes) / 1e6;
+                double airportMs = median(airportTimes) / 1e6;
+                if (partitions == 1) {
+                    baselineMs = airlineMs + airportMs;
+                }
+
+                System.out.println(String.format("%-10d %12.1f %12.1f %9.2fx %10s",
+                        partitions, airlineMs, airportMs, baselineMs / (airlineMs + airportMs), matches ? "yes" : "NO"));
+            }
+        } finally {
+            service.disconnect();
+        }
+    }
+
+    // Roll-ups and slices on the delay cube, which should take microseconds rather than a table scan.
+    private static void benchmarkCube(int year, int runs) throws SQLException {
+        FlightDataService service = new FlightDataService();
+        try {
+            long start = System.nanoTime();
+            DelayCube cube = service.getDelayCube();
+            System.out.println("\n========== DELAY CUBE ==========");
+            System.out.println(String.format("Loaded %d cells (%d KB) in %.1f ms", cube.getCellCount(),
+                    cube.getSizeInBytes() / 1024, (System.nanoTime() - start) / 1e6));
+
+            Map<String, DelayCube.Query> queries = new LinkedHashMap<>();
+            queries.put("airline avg, year", cube.query().year(year)
+                    .whereNot(DelayCube.DIM_REASON, DelayCube.NO_DELAY).groupBy(DelayCube.DIM_AIRLINE));
+            queries.put("origin x month", cube.query().year(year)
+                    .groupBy(DelayCube.DIM_ORIGIN, DelayCube.DIM_MONTH));
+            queries.put("delayed by reason", cube.query().year(year)
+                    .where(DelayCube.DIM_STATUS, DelayCube.STATUS_DELAYED).groupBy(DelayCube.DIM_REASON));
+            queries.put("status, all years", cube.query().groupBy(DelayCube.DIM_STATUS));
+
+            System.out.println(String.format("%-20s %12s %8s", "query", "median us", "groups"));
+            for (Map.Entry<String, DelayCube.Query> query : queries.entrySet()) {
+                long[] times = new long[runs];
+                int groups = 0;
+                for (int i = 0; i < runs; i++) {
+                    long queryStart = System.nanoTime();
+                    groups = query.getValue().run().size();
+                    times[i] = System.nanoTime() - queryStart;
+                }
+                System.out.println(String.format("%-20s %12.1f %8d", query.getKey(), median(times) / 1e3, groups));
+            }
+        } finally {
+            service.disconnect();
+        }
+    }
+
+    // The k worst-delayed flights of a year through the bounded heap, against loading the year's search
+    // and sorting it, with the bytes each allocates. Then the heap for the other groupings and metrics.
+    private static void benchmarkTopK(int year, int k, int runs) throws SQLException {
+        FlightDataService service = new FlightDataService(0);
+        try {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            FlightQuery yearQuery = FlightQuery.builder().dateRange(LocalDate.of(year, 1, 1),
+                    LocalDate.of(year, 12, 31)).includeDelays(false).build();
+
+            System.out.println("\n========== TOP " + k + " FLIGHTS BY DELAY, " + year + " ==========");
+            System.out.println(String.format("%-16s %10s %10s %12s", "method", "best ms", "worst ms", "allocated KB"));
+            Map<String, Runnable> methods = new LinkedHashMap<>();
+            List<Double> heapValues = new ArrayList<>();
+            List<Double> sortValues = new ArrayList<>();
+            methods.put("bounded heap", () -> {
+                try {
+                    heapValues.clear();
+                    service.getTopK(FlightDataService.GROUP_FLIGHT, FlightDataService.METRIC_AVERAGE_DELAY, year,
+                            null, k, 1).forEach(group -> heapValues.add(group.getValue()));
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            methods.put("search and sort", () -> {
+                try {
+                    List<Flight> flights = new ArrayList<>(service.searchFlights(yearQuery));
+                    flights.removeIf(f -> f.isCancelled() || f.isDiverted());
+                    flights.sort((a, b) -> Integer.compare(b.getDelayMinutes(), a.getDelayMinutes()));
+                    sortValues.clear();
+                    for (Flight f : flights.subList(0, Math.min(k, flights.size()))) {
+                        sortValues.add((double) f.getDelayMinutes());
+                    }
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            for (Map.Entry<String, Runnable> method : methods.entrySet()) {
+                long best = Long.MAX_VALUE;
+                long worst = 0;
+                long allocated = 0;
+                for (int run = 0; run < runs; run++) {
+                    long bytes = threads.getThreadAllocatedBytes(threadId);
+                    long start = System.nanoTime();
+                    method.getValue().run();
+                    long elapsed = System.nanoTime() - start;
+                    allocated = threads.getThreadAllocatedBytes(threadId) - bytes;
+                    best = Math.min(best, elapsed);
+                    worst = Math.max(worst, elapsed);
+                }
+                System.out.println(String.format("%-16s %10.1f %10.1f %12d", method.getKey(), best / 1e6,
+                        worst / 1e6, allocated / 1024));
+            }
+            System.out.println("same delays: " + heapValues.equals(sortValues));
+
+            System.out.println(String.format("%n%-10s %-18s %10s  %s", "grouping", "metric", "ms", "worst"));
+            for (String grouping : new String[]{FlightDataService.GROUP_AIRLINE, FlightDataService.GROUP_AIRPORT,
+                    FlightDataService.GROUP_ROUTE, FlightDataService.GROUP_MONTH, FlightDataService.GROUP_DAY}) {
+                for (String metric : new String[]{FlightDataService.METRIC_AVERAGE_DELAY,
+                        FlightDataService.METRIC_P95_DELAY, FlightDataService.METRIC_CANCELLATION_RATE}) {
+                    long start = System.nanoTime();
+                    List<RankedGroup> top = service.getTopK(grouping, metric, year, null, k, 2);
+                    System.out.println(String.format("%-10s %-18s %10.1f  %s", grouping, metric,
+                            (System.nanoTime() - start) / 1e6, top.isEmpty() ? "-" : top.get(0)));
+                }
+            }
+        } finally {
+            service.disconnect();
+        }
+    }
+
+    // Heap held per loaded flight, and bytes allocated rendering every table cell of every flight. The
+    // first pass includes anything a flight works out once and keeps, later passes are the steady state.
+    private static void benchmarkFlights(int passes) throws SQLException {
+        FlightDataService service = new FlightDataService(0);
+        try {
+            FlightQuery all = FlightQuery.builder().build();
+            service.searchFlights(all); // warm up
+
+            long before = usedHeap();
+            List<Flight> flights = service.searchFlights(all);
+            long after = usedHeap();
+
+            System.out.println("\n========== FLIGHT FOOTPRINT ==========");
+            System.out.println(String.format("%,d flights, %.1f bytes per flight retained (including delays)",
+                    flights.size(), (double) (after - before) / Math.max(1, flights.size())));
+
+            FlightTableModel model = new FlightTableModel();
+            model.setFlights(flights);
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+
+            System.out.println(String.format("%-6s %14s %12s", "pass", "bytes per row", "ms"));
+            long checksum = 0;
+            for (int pass = 1; pass <= passes; pass++) {
+                long allocated = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                for (int row = 0; row < model.getRowCount(); row++) {
+                    for (int column = 0; column < model.getColumnCount(); column++) {
+                        Object value = model.getValueAt(row, column);
+                        checksum += value != null ? value.hashCode() : 0;
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+                System.out.println(String.format("%-6d %14.1f %12.1f", pass,
+                        (double) allocated / Math.max(1, model.getRowCount()), elapsed / 1e6));
+            }
+            System.out.println("checksum " + checksum);
+        } finally {
+            service.disconnect();
+        }
+    }
+
+    // Each profile in its own JVM, so one profile's page cache and mapped pages don't count against the next.
+    private static void benchmarkStorageProfiles(int runs) {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        for (String profile : new String[]{StorageProfile.DEFAULT, StorageProfile.INTERACTIVE, StorageProfile.ANALYTICS}) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("flights.")) {
+                    command.add("-D" + name + "=" + System.getProperty(name));
+                }
+            }
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                    "BenchmarkMain", "storage", profile, String.valueOf(runs)));
+            try {
+                int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+                if (exit != 0) {
+                    System.err.println("Storage benchmark for " + profile + " exited with " + exit);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not start the storage benchmark for " + profile + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // A fixed set of searches and scans under one storage profile: the first run of each (cold for this
+    // process) and the median of the rest, then the heap and resident memory the process ends up with.
+    // The search cache is off so every run reaches SQLite.
+    private static void benchmarkStorage(String profile, int runs) throws SQLException {
+        System.setProperty("flights.storageProfile", profile);
+        long rssBefore = residentMemory();
+        FlightDataService service = new FlightDataService(0);
+        try {
+            Map<String, StorageQuery> queries = new LinkedHashMap<>();
+            queries.put("airline search", () -> service.searchFlights(FlightQuery.builder().airline("DL").build()).size());
+            queries.put("route search", () -> service.searchFlights(
+                    FlightQuery.builder().origin("ATL").destination("LAX").build()).size());
+            queries.put("month search", () -> service.searchFlights(FlightQuery.builder()
+                    .dateRange(LocalDate.of(2022, 7, 1), LocalDate.of(2022, 7, 31)).build()).size());
+            queries.put("weather delays", () -> service.searchFlights(FlightQuery.builder()
+                    .delayReason("WEATHER").delayBetween(30, null).build()).size());
+            queries.put("top 100 by delay", () -> service.searchFlights(FlightQuery.builder()
+                    .sortBy(FlightQuery.SORT_DELAY, true).limit(100).build()).size());
+            queries.put("count all", () -> service.countFlights(FlightQuery.builder().build()).getCount());
+            queries.put("airline avg scan", () -> service.scanAverageDelayByAirline(2023, 1).size());
+            queries.put("airport avg scan", () -> service.scanAverageDelayByAirport(2023, 1).size());
+
+            System.out.println("\n========== STORAGE PROFILE " + profile.toUpperCase(Locale.ROOT) + " ==========");
+            System.out.println(StorageProfile.forName(profile));
+            System.out.println(String.format("%-20s %10s %10s %10s", "query", "first ms", "median ms", "rows"));
+            for (Map.Entry<String, StorageQuery> query : queries.entrySet()) {
+                long start = System.nanoTime();
+                long rows = query.getValue().run();
+                double firstMs = (System.nanoTime() - start) / 1e6;
+
+                long[] times = new long[Math.max(1, runs)];
+                for (int i = 0; i < times.length; i++) {
+                    start = System.nanoTime();
+                    query.getValue().run();
+                    times[i] = System.nanoTime() - start;
+                }
+                System.out.println(String.format("%-20s %10.1f %10.1f %10d", query.getKey(), firstMs,
+                        median(times) / 1e6, rows));
+            }
+
+            long rssAfter = residentMemory();
+            System.out.println(String.format("heap %d KB, resident %s", usedHeap() / 1024,
+                    rssAfter >= 0 ? String.format("%d KB (+%d KB)", rssAfter / 1024, (rssAfter - rssBefore) / 1024)
+                            : "unknown"));
+        } finally {
+            service.disconnect();
+        }
+    }
+
+    // Pages each range query reads from flights.db as it is, then from a copy clustered on key. Every run
+    // opens a fresh connection with memory mapping off, so each page it touches is read from the file
+    // once; the count is the bytes read (Linux /proc/self/io) over the page size. The copy is deleted after.
+    private static void benchmarkClustering(String key, int runs) throws SQLException {
+        Path original = Paths.get("flights.db");
+        Path copy = Paths.get("flights.db.clustering-benchmark");
+
+        Map<String, Object[]> queries = new LinkedHashMap<>();
+        queries.put("ATL departures 2022", new Object[]{
+                "f.flight_origin IN (?) AND f.date_key >= ? AND f.date_key <= ?", "ATL", 20220101, 20221231});
+        queries.put("ATL departures Jul 2022", new Object[]{
+                "f.flight_origin IN (?) AND f.date_key >= ? AND f.date_key <= ?", "ATL", 20220701, 20220731});
+        queries.put("ATL, DL in 2022", new Object[]{
+                "f.flight_origin IN (?) AND f.airline_code IN (?) AND f.date_key >= ? AND f.date_key <= ?",
+                "ATL", "DL", 20220101, 20221231});
+        queries.put("ATL to LAX", new Object[]{
+                "f.flight_origin IN (?) AND f.flight_destination IN (?)", "ATL", "LAX"});
+        queries.put("all of Jul 2022", new Object[]{
+                "f.date_key >= ? AND f.date_key <= ?", 20220701, 20220731});
+        queries.put("DL, all dates", new Object[]{"f.airline_code IN (?)", "DL"});
+
+        try {
+            Files.copy(original, copy, StandardCopyOption.REPLACE_EXISTING);
+            long[][] before = measureRangeQueries("jdbc:sqlite:" + original, queries, runs);
+
+            long start = System.nanoTime();
+            try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + copy)) {
+                c.setAutoCommit(false);
+                new FlightClusterer(c).cluster(key);
+            }
+            double clusterSeconds = (System.nanoTime() - start) / 1e9;
+            long[][] after = measureRangeQueries("jdbc:sqlite:" + copy, queries, runs);
+
+            System.out.println("\n========== CLUSTERED LAYOUT ==========");
+            System.out.println(String.format("Clustered a copy on %s in %.1f s, file %,d KB -> %,d KB", key,
+                    clusterSeconds, Files.size(original) / 1024, Files.size(copy) / 1024));
+            System.out.println(String.format("%-24s %8s %12s %12s %10s %10s", "query", "rows",
+                    "pages before", "pages after", "ms before", "ms after"));
+            int i = 0;
+            for (String name : queries.keySet()) {
+                System.out.println(String.format("%-24s %8d %12d %12d %10.2f %10.2f", name, before[i][0],
+                        before[i][1], after[i][1], before[i][2] / 1e6, after[i][2] / 1e6));
+                i++;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not copy flights.db: " + e.getMessage());
+        } finally {
+            try {
+                Files.deleteIfExists(copy);
+            } catch (IOException e) {
+                System.err.println("Could not delete " + copy + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Rows, pages read and median nanoseconds for each query.
+    private static long[][] measureRangeQueries(String url, Map<String, Object[]> queries, int runs)
+            throws SQLException {
+        long[][] results = new long[queries.size()][];
+        int i = 0;
+        for (Object[] query : queries.values()) {
+            long rows = 0;
+            long bytes = 0;
+            long[] times = new long[Math.max(1, runs)];
+            for (int run = -1; run < times.length; run++) { // run -1 warms up
+                try (Connection c = DriverManager.getConnection(url);
+                     Statement pragma = c.createStatement()) {
+                    pragma.execute("PRAGMA mmap_size = 0");
+                    long pageSize;
+                    try (ResultSet rs = pragma.executeQuery("PRAGMA page_size")) {
+                        pageSize = rs.next() ? rs.getLong(1) : 4096;
+                    }
+
+                    long readBefore = bytesRead();
+                    long start = System.nanoTime();
+                    try (PreparedStatement stmt = c.prepareStatement("SELECT f.* FROM Flight f WHERE " + query[0])) {
+                        for (int p = 1; p < query.length; p++) {
+                            stmt.setObject(p, query[p]);
+                        }
+                        rows = 0;
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next()) {
+                                rows++;
+                            }
+                        }
+                    }
+                    if (run >= 0) {
+                        times[run] = System.nanoTime() - start;
+                        bytes = (bytesRead() - readBefore) / pageSize;
+                    }
+                }
+            }
+            results[i++] = new long[]{rows, bytes, (long) median(times)};
+        }
+        return results;
+    }
+
+    // Bytes this process has read through read/pread calls, -1 off Linux.
+    private static long bytesRead() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/io"))) {
+                if (line.startsWith("rchar:")) {
+                    return Long.parseLong(line.substring("rchar:".length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux, no figure.
+        }
+        return -1;
+    }
+
+    private interface StorageQuery {
+        long run() throws SQLException;
+    }
+
+    // Resident set size from /proc, which includes SQLite's page cache and mapped pages; -1 off Linux.
+    private static long residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux, no figure.
+        }
+        return -1;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static boolean sameResults(Map<String, Double> expected, Map<String, Double> actual) {
+        if (!new TreeSet<>(expected.keySet()).equals(new TreeSet<>(actual.keySet()))) {
+            return false;
+        }
+        for (Map.Entry<String, Double> entry : expected.entrySet()) {
+            if (Math.abs(entry.getValue() - actual.get(entry.getKey())) > 1e-9) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int mid = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2.0;
+    }
+}
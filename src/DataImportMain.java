@@ -1,5 +1,9 @@
+import database.BitmapIndex;
 import database.CsvImporter;
 import database.DatabaseManager;
+import database.FlightClusterer;
+import database.SampleBuilder;
+import database.StatisticsBuilder;
 
 import java.io.File;
 import java.io.IOException;
@@ -7,6 +11,9 @@ import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
 
+// Imports the flights CSV into flights.db.
+//   java DataImportMain [csv] [--cluster[=key]]
+// --cluster finishes by clustering Flight on the key (default origin,date,airline), see ClusterMain.
 public class DataImportMain {
 
     public static void main(String[] args) {
@@ -16,6 +23,11 @@ public class DataImportMain {
         Instant startTime = Instant.now();
 
         String csvFilePath = args.length > 0 ? args[0] : "src/flights.csv";
+        String clusterKey = null;
+        if (args.length > 1 && args[1].startsWith("--cluster")) {
+            clusterKey = args[1].startsWith("--cluster=") ? args[1].substring("--cluster=".length())
+                    : FlightClusterer.DEFAULT_KEY;
+        }
 
         // Check if file exists.
         File csvFile = new File(csvFilePath);
@@ -61,6 +73,47 @@ public class DataImportMain {
 
             Duration importDuration = Duration.between(importStartTime, importEndTime);
 
+            // Stratified samples for the approximate previews.
+            System.out.println("\nBuilding stratified samples...");
+            Instant sampleStartTime = Instant.now();
+            SampleBuilder sampleBuilder = new SampleBuilder(dbManager.getConnection());
+            sampleBuilder.build();
+            StringBuilder sampleSizes = new StringBuilder();
+            for (int tier : SampleBuilder.TIERS) {
+                if (sampleSizes.length() > 0) sampleSizes.append(", ");
+                sampleSizes.append(tier).append("%: ").append(sampleBuilder.getSampleSize(tier)).append(" flights");
+            }
+            System.out.println("Samples built in " + formatDuration(Duration.between(sampleStartTime, Instant.now())) +
+                    " (" + sampleSizes + ")");
+
+            // Statistics catalog for the app's choices and the query planner.
+            System.out.println("\nBuilding statistics catalog...");
+            Instant statsStartTime = Instant.now();
+            StatisticsBuilder statisticsBuilder = new StatisticsBuilder(dbManager.getConnection());
+            statisticsBuilder.build();
+            System.out.println("Statistics built in " + formatDuration(Duration.between(statsStartTime, Instant.now())) +
+                    " (" + statisticsBuilder.getFlightRows() + " flights, " + statisticsBuilder.getDelayRows() +
+                    " delay rows)");
+
+            // After the other tables, so the rebuild copies the finished table and VACUUM reclaims everything
+            // at once. Clustering stamps a new data version, which the bitmap indexes below are built against.
+            String dataVersion = importer.getDataVersion();
+            if (clusterKey != null) {
+                System.out.println("\nClustering flights on " + clusterKey + "...");
+                Instant clusterStartTime = Instant.now();
+                dataVersion = new FlightClusterer(dbManager.getConnection()).cluster(clusterKey);
+                System.out.println("Flights clustered and vacuumed in " +
+                        formatDuration(Duration.between(clusterStartTime, Instant.now())));
+            }
+
+            // Build the bitmap indexes now so the app doesn't have to on its first search.
+            System.out.println("\nBuilding bitmap indexes...");
+            Instant bitmapStartTime = Instant.now();
+            BitmapIndex bitmapIndex = BitmapIndex.build(dbManager.getConnection(), dataVersion);
+            bitmapIndex.save(DatabaseManager.BITMAP_INDEX_FILE);
+            System.out.println("Bitmap indexes built in " + formatDuration(Duration.between(bitmapStartTime, Instant.now())) +
+                    " (" + formatFileSize(bitmapIndex.getSizeInBytes()) + ")");
+
             System.out.println("\n========== IMPORT SUMMARY ==========");
             System.out.println("Import completed successfully in " + formatDuration(importDuration));
             System.out.println("Total rows in file: " + importer.getTotalRows());
@@ -1,5 +1,11 @@
 import flightModel.Flight;
+import service.CancellationToken;
+import service.Estimate;
 import service.FlightDataService;
+import service.FlightQuery;
+import service.SearchCount;
+import service.SearchPage;
+import service.SearchTooLargeException;
 import ui.AnalysisPanel;
 import ui.FlightDetailPanel;
 import ui.FlightTableModel;
@@ -15,14 +21,25 @@ import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.*;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 public class FlightApp extends JFrame {
 
     // Services & models/
     private FlightDataService dataService;
+
+    // Years with flights, oldest first, from the import's statistics catalog.
+    private List<Integer> dataYears;
     private FlightTableModel tableModel;
 
     // UI components.
@@ -39,6 +56,25 @@ public class FlightApp extends JFrame {
     // Quick access to shared borders
     private Border standardBorder;
 
+    // Queries run off the EDT. Starting a new search or chart cancels the one still running.
+    private static final Duration SEARCH_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration ANALYSIS_TIMEOUT = Duration.ofMinutes(2);
+    private CancellationToken searchToken = new CancellationToken();
+    private CancellationToken analysisToken = new CancellationToken();
+    private CancellationToken delayToken = new CancellationToken();
+
+    // Rows either side of the selection whose delay reasons are fetched along with it.
+    private static final int DELAY_PREFETCH_ROWS = 10;
+
+    // Sample sizes for the quick previews shown while the exact query runs.
+    private static final int SEARCH_PREVIEW_PERCENT = 1;
+    private static final int ANALYSIS_PREVIEW_PERCENT = 10;
+
+    // Searches matching more flights than this ask before loading, and can load just the first page.
+    private static final int LARGE_SEARCH_ROWS = 50_000;
+    private static final int FIRST_PAGE_ROWS = 10_000;
+    private JCheckBoxMenuItem approximatePreviews;
+
 
     public FlightApp() throws SQLException {
         super("Flight Punctuality Tracker");
@@ -52,6 +88,14 @@ public class FlightApp extends JFrame {
         // Init DB connection.
         dataService = new FlightDataService();
 
+        dataYears = dataService.getAvailableYears();
+        if (dataYears.isEmpty()) {
+            dataYears = Collections.singletonList(LocalDate.now().getYear());
+        }
+
+        // Get the yearly charts ready in the background while the user is searching.
+        dataService.warmAnalyticsCache(firstYear(), latestYear());
+
         // Set up UI components.
         tableModel = new FlightTableModel();
         flightTable = makeTable(tableModel);
@@ -122,6 +166,9 @@ public class FlightApp extends JFrame {
                     int modelRow = flightTable.convertRowIndexToModel(selectedRow);
                     Flight f = tableModel.getFlightAt(modelRow);
                     detailPanel.setFlight(f);
+                    if (!f.hasDelayBreakdown()) {
+                        loadDelayBreakdowns(selectedRow, f);
+                    }
                 } else {
                     detailPanel.clearDetails();
                 }
@@ -252,6 +299,11 @@ public class FlightApp extends JFrame {
                 .addActionListener(this::handleAirportAnalysis);
         analysisMenu.add(new JMenuItem("Airport Delays Over Time"))
                 .addActionListener(this::handleTimeSeriesAnalysis);
+        analysisMenu.add(new JMenuItem("Delay Percentiles"))
+                .addActionListener(this::handlePercentileAnalysis);
+        analysisMenu.addSeparator();
+        approximatePreviews = new JCheckBoxMenuItem("Approximate Previews", true);
+        analysisMenu.add(approximatePreviews);
 
         // Help menu.
         JMenu helpMenu = new JMenu("Help");
@@ -281,37 +333,110 @@ public class FlightApp extends JFrame {
 
 
     private void handleSearch(ActionEvent e) {
-        try {
-            statusLabel.setText("Searching...");
-            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        statusLabel.setText("Searching...");
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+        // Grab search params.
+        // Delay reasons are only shown for the selected flight, so they're fetched on selection.
+        FlightQuery query = searchPanel.buildQuery().toBuilder().includeDelays(false).build();
+        String airline = searchPanel.getAirline();
+        String origin = searchPanel.getOrigin();
+        String dest = searchPanel.getDestination();
+
+        // Show what we're searching for.
+        StringBuilder searchDesc = new StringBuilder("Searching for flights");
+        if (airline != null && !airline.isEmpty())
+            searchDesc.append(" with ").append(airline);
+        if (origin != null && !origin.isEmpty())
+            searchDesc.append(" from ").append(origin);
+        if (dest != null && !dest.isEmpty())
+            searchDesc.append(" to ").append(dest);
+
+        statusLabel.setText(searchDesc.toString());
+
+        // Run the search, dropping any older one that hasn't come back yet.
+        searchToken.cancel();
+        CancellationToken token = new CancellationToken();
+        searchToken = token;
+
+        // Count first, so a search matching millions of flights can be paged or called off before loading.
+        dataService.estimateFlightCountAsync(query, token, SEARCH_TIMEOUT).whenComplete((count, error) -> SwingUtilities.invokeLater(() -> {
+            if (token != searchToken) {
+                return;
+            }
+            if (error != null) {
+                setCursor(Cursor.getDefaultCursor());
+                showQueryError(error, "Search Error", "Search failed");
+                return;
+            }
 
-            // Grab search params.
-            String airline = searchPanel.getAirline();
-            String flightNum = searchPanel.getFlightNumber();
-            String origin = searchPanel.getOrigin();
-            String dest = searchPanel.getDestination();
-            LocalDate startDate = searchPanel.getStartDate();
-            LocalDate endDate = searchPanel.getEndDate();
-            Integer minDelay = searchPanel.getMinDelay();
-            Integer maxDelay = searchPanel.getMaxDelay();
-            String delayReason = searchPanel.getDelayReason();
-
-            // Show what we're searching for.
-            StringBuilder searchDesc = new StringBuilder("Searching for flights");
-            if (airline != null && !airline.isEmpty())
-                searchDesc.append(" with ").append(airline);
-            if (origin != null && !origin.isEmpty())
-                searchDesc.append(" from ").append(origin);
-            if (dest != null && !dest.isEmpty())
-                searchDesc.append(" to ").append(dest);
-
-            statusLabel.setText(searchDesc.toString());
-
-            // Run the search.
-            List<Flight> results = dataService.searchFlights(
-                    airline, flightNum, origin, dest,
-                    startDate, endDate, minDelay, maxDelay, delayReason
-            );
+            boolean firstPageOnly = false;
+            if (count.getCount() > LARGE_SEARCH_ROWS) {
+                boolean canLoadAll = count.getCount() <= dataService.getMaxSearchRows();
+                String firstPage = String.format("Load First %,d", FIRST_PAGE_ROWS);
+                Object[] options = canLoadAll
+                        ? new Object[]{firstPage, "Load All", "Cancel"}
+                        : new Object[]{firstPage, "Cancel"};
+
+                int choice = JOptionPane.showOptionDialog(this,
+                        "This search matches " + count + " flights, which may take a while to load.",
+                        "Large Search", JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE,
+                        null, options, options[0]);
+                if (choice == 0) {
+                    firstPageOnly = true;
+                } else if (!canLoadAll || choice != 1) {
+                    setCursor(Cursor.getDefaultCursor());
+                    statusLabel.setText("Search cancelled");
+                    return;
+                }
+            }
+
+            loadSearchResults(query, token, count, firstPageOnly);
+        }));
+    }
+
+    private void loadSearchResults(FlightQuery query, CancellationToken token, SearchCount count,
+                                   boolean firstPageOnly) {
+        statusLabel.setText("Loading " + (firstPageOnly ? "the first " + String.format("%,d", FIRST_PAGE_ROWS) + " of " : "")
+                + count + " flights...");
+
+        CompletableFuture<List<Flight>> search = firstPageOnly
+                ? dataService.searchFlightsPageAsync(query, 0, FIRST_PAGE_ROWS, token, SEARCH_TIMEOUT)
+                        .thenApply(SearchPage::getFlights)
+                : dataService.searchFlightsAsync(query, token, SEARCH_TIMEOUT);
+
+        // Show a few sampled matches and an estimated total while the full search runs.
+        if (approximatePreviews.isSelected()) {
+            dataService.searchFlightsApproximateAsync(
+                    SEARCH_PREVIEW_PERCENT, query, token, SEARCH_TIMEOUT
+            ).whenComplete((preview, error) -> SwingUtilities.invokeLater(() -> {
+                if (token != searchToken || search.isDone()) {
+                    return;
+                }
+                if (error != null) {
+                    System.err.println("Search preview failed: " + error.getMessage());
+                    return;
+                }
+
+                Estimate estimate = preview.getMatchingFlights();
+                tableModel.setFlights(preview.getSampleFlights());
+                flightTable.clearSelection();
+                statusLabel.setText(String.format(
+                        "Preview: about %.0f flights (95%% CI %.0f - %.0f) from a %d%% sample, loading exact results...",
+                        estimate.getValue(), estimate.getLow(), estimate.getHigh(), estimate.getSamplePercent()));
+            }));
+        }
+
+        search.whenComplete((results, error) -> SwingUtilities.invokeLater(() -> {
+            if (token != searchToken) {
+                return; // Superseded by a newer search.
+            }
+            setCursor(Cursor.getDefaultCursor());
+
+            if (error != null) {
+                showQueryError(error, "Search Error", "Search failed");
+                return;
+            }
 
             // Update UI.
             tableModel.setFlights(results);
@@ -321,20 +446,121 @@ public class FlightApp extends JFrame {
             int delayed = countDelays(results);
             int cancelled = countCancellations(results);
 
-            String resultText = "Found " + results.size() + " flights";
+            String resultText = firstPageOnly
+                    ? String.format("Showing the first %,d of %s flights", results.size(), count)
+                    : "Found " + results.size() + " flights";
             if (results.size() > 0) {
                 resultText += " (" + delayed + " delayed, " + cancelled + " cancelled)";
             }
             statusLabel.setText(resultText);
+        }));
+    }
 
-        } catch (SQLException ex) {
-            JOptionPane.showMessageDialog(this,
-                    "DB error: " + ex.getMessage(),
-                    "Search Error", JOptionPane.ERROR_MESSAGE);
-            statusLabel.setText("Search failed");
-        } finally {
-            setCursor(Cursor.getDefaultCursor());
+    // Searches leave out the per-reason delays, so fetch them for the selected flight plus its neighbours
+    // in view order (arrowing through the table is the common case), then show the flight again if it's
+    // still selected. The fetched breakdowns go back into the table model so they're only asked for once.
+    private void loadDelayBreakdowns(int selectedRow, Flight selected) {
+        delayToken.cancel();
+        CancellationToken token = new CancellationToken();
+        delayToken = token;
+
+        List<Integer> flightIds = new ArrayList<>();
+        int first = Math.max(0, selectedRow - DELAY_PREFETCH_ROWS);
+        int last = Math.min(flightTable.getRowCount() - 1, selectedRow + DELAY_PREFETCH_ROWS);
+        for (int row = first; row <= last; row++) {
+            Flight f = tableModel.getFlightAt(flightTable.convertRowIndexToModel(row));
+            if (!f.hasDelayBreakdown()) {
+                flightIds.add(f.getFlightId());
+            }
         }
+
+        dataService.getDelayBreakdownsAsync(flightIds, token, SEARCH_TIMEOUT).whenComplete((delays, error) -> SwingUtilities.invokeLater(() -> {
+            if (token != delayToken) {
+                return;
+            }
+            if (error != null) {
+                System.err.println("Loading delay reasons failed: " + error.getMessage());
+                return;
+            }
+
+            tableModel.addDelayBreakdowns(delays);
+            int row = flightTable.getSelectedRow();
+            if (row >= 0) {
+                Flight f = tableModel.getFlightAt(flightTable.convertRowIndexToModel(row));
+                if (f.getFlightId() == selected.getFlightId()) {
+                    detailPanel.setFlight(f);
+                }
+            }
+        }));
+    }
+
+    // Shared by the async handlers, must be called on the EDT.
+    private void showQueryError(Throwable error, String title, String status) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        String message;
+        if (cause instanceof TimeoutException) {
+            message = "The query took too long and was cancelled.";
+        } else if (cause instanceof SearchTooLargeException) {
+            message = cause.getMessage();
+        } else {
+            message = "DB error: " + cause.getMessage();
+        }
+
+        JOptionPane.showMessageDialog(this, message, title, JOptionPane.ERROR_MESSAGE);
+        statusLabel.setText(status);
+    }
+
+    // Runs a chart query in the background and hands the result to the chart on the EDT.
+    private void runAnalysis(CompletableFuture<Map<String, Double>> query, CancellationToken token,
+                             Consumer<Map<String, Double>> showChart, String doneText) {
+        query.whenComplete((data, error) -> SwingUtilities.invokeLater(() -> {
+            if (token != analysisToken) {
+                return;
+            }
+            setCursor(Cursor.getDefaultCursor());
+
+            if (error != null) {
+                showQueryError(error, "Analysis Error", "Analysis failed");
+                return;
+            }
+
+            showChart.accept(data);
+
+            // Switch to chart tab.
+            ((JTabbedPane)analysisPanel.getParent()).setSelectedComponent(analysisPanel);
+
+            statusLabel.setText(doneText);
+        }));
+    }
+
+    // Draws the chart from a sample estimate if it arrives before the exact result, which then replaces it.
+    private void previewAnalysis(CompletableFuture<Map<String, Estimate>> estimate,
+                                 CompletableFuture<Map<String, Double>> exact, CancellationToken token,
+                                 Consumer<Map<String, Double>> showChart) {
+        estimate.whenComplete((estimates, error) -> SwingUtilities.invokeLater(() -> {
+            if (token != analysisToken || exact.isDone()) {
+                return;
+            }
+            if (error != null) {
+                System.err.println("Analysis preview failed: " + error.getMessage());
+                return;
+            }
+
+            Map<String, Double> values = new HashMap<>();
+            for (Map.Entry<String, Estimate> entry : estimates.entrySet()) {
+                values.put(entry.getKey(), entry.getValue().getValue());
+            }
+            showChart.accept(values);
+            analysisPanel.markApproximate(estimates, ANALYSIS_PREVIEW_PERCENT);
+            ((JTabbedPane)analysisPanel.getParent()).setSelectedComponent(analysisPanel);
+            statusLabel.setText("Showing a " + ANALYSIS_PREVIEW_PERCENT + "% sample estimate, loading exact results...");
+        }));
+    }
+
+    private CancellationToken newAnalysisToken() {
+        analysisToken.cancel();
+        analysisToken = new CancellationToken();
+        return analysisToken;
     }
 
     private int countDelays(List<Flight> flights) {
@@ -365,9 +591,25 @@ public class FlightApp extends JFrame {
         statusLabel.setText("Search cleared");
     }
 
+    private Object[] yearChoices() {
+        Object[] years = new Object[dataYears.size()];
+        for (int i = 0; i < years.length; i++) {
+            years[i] = String.valueOf(dataYears.get(i));
+        }
+        return years;
+    }
+
+    private int firstYear() {
+        return dataYears.get(0);
+    }
+
+    private int latestYear() {
+        return dataYears.get(dataYears.size() - 1);
+    }
+
     private void handleAirlineAnalysis(ActionEvent e) {
         // Years we have data for
-        Object[] years = {"2019", "2020", "2021", "2022", "2023"};
+        Object[] years = yearChoices();
 
         Object selectedYear = JOptionPane.showInputDialog(
                 this,
@@ -376,43 +618,31 @@ public class FlightApp extends JFrame {
                 JOptionPane.QUESTION_MESSAGE,
                 null,
                 years,
-                "2023" // default to latest year
+                String.valueOf(latestYear()) // default to latest year
         );
 
         if (selectedYear != null) {
-            try {
-                int year = Integer.parseInt(selectedYear.toString());
-
-                statusLabel.setText("Getting airline delays for " + year + "...");
-                setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-
-                // Get data.
-                Map<String, Double> data = dataService.getAverageDelayByAirline(year);
+            int year = Integer.parseInt(selectedYear.toString());
 
-                // Show chart.
-                analysisPanel.showAirlineDelayChart(data, year);
-
-                // Switch to chart tab.
-                ((JTabbedPane)analysisPanel.getParent()).setSelectedComponent(analysisPanel);
-
-                statusLabel.setText("Airline analysis done for " + year);
+            statusLabel.setText("Getting airline delays for " + year + "...");
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-            } catch (SQLException ex) {
-                JOptionPane.showMessageDialog(
-                        this,
-                        "DB error: " + ex.getMessage(),
-                        "Analysis Error",
-                        JOptionPane.ERROR_MESSAGE
-                );
-                statusLabel.setText("Analysis failed");
-            } finally {
-                setCursor(Cursor.getDefaultCursor());
+            // Get data, then show chart.
+            CancellationToken token = newAnalysisToken();
+            CompletableFuture<Map<String, Double>> exact =
+                    dataService.getAverageDelayByAirlineAsync(year, token, ANALYSIS_TIMEOUT);
+            if (approximatePreviews.isSelected()) {
+                previewAnalysis(dataService.estimateAverageDelayByAirlineAsync(year, ANALYSIS_PREVIEW_PERCENT,
+                        token, ANALYSIS_TIMEOUT), exact, token, data -> analysisPanel.showAirlineDelayChart(data, year));
             }
+            runAnalysis(exact, token,
+                    data -> analysisPanel.showAirlineDelayChart(data, year),
+                    "Airline analysis done for " + year);
         }
     }
 
     private void handleAirportAnalysis(ActionEvent e) {
-        Object[] years = {"2019", "2020", "2021", "2022", "2023"};
+        Object[] years = yearChoices();
 
         Object selectedYear = JOptionPane.showInputDialog(
                 this,
@@ -421,35 +651,25 @@ public class FlightApp extends JFrame {
                 JOptionPane.QUESTION_MESSAGE,
                 null,
                 years,
-                "2023"
+                String.valueOf(latestYear())
         );
 
         if (selectedYear != null) {
-            try {
-                int year = Integer.parseInt(selectedYear.toString());
-
-                statusLabel.setText("Getting airport delays for " + year + "...");
-                setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-
-                Map<String, Double> data = dataService.getAverageDelayByAirport(year);
-                analysisPanel.showAirportDelayChart(data, year);
+            int year = Integer.parseInt(selectedYear.toString());
 
-                // Switch to chart tab
-                ((JTabbedPane)analysisPanel.getParent()).setSelectedComponent(analysisPanel);
-
-                statusLabel.setText("Airport analysis done for " + year);
+            statusLabel.setText("Getting airport delays for " + year + "...");
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-            } catch (SQLException ex) {
-                JOptionPane.showMessageDialog(
-                        this,
-                        "DB error: " + ex.getMessage(),
-                        "Analysis Error",
-                        JOptionPane.ERROR_MESSAGE
-                );
-                statusLabel.setText("Analysis failed");
-            } finally {
-                setCursor(Cursor.getDefaultCursor());
+            CancellationToken token = newAnalysisToken();
+            CompletableFuture<Map<String, Double>> exact =
+                    dataService.getAverageDelayByAirportAsync(year, token, ANALYSIS_TIMEOUT);
+            if (approximatePreviews.isSelected()) {
+                previewAnalysis(dataService.estimateAverageDelayByAirportAsync(year, ANALYSIS_PREVIEW_PERCENT,
+                        token, ANALYSIS_TIMEOUT), exact, token, data -> analysisPanel.showAirportDelayChart(data, year));
             }
+            runAnalysis(exact, token,
+                    data -> analysisPanel.showAirportDelayChart(data, year),
+                    "Airport analysis done for " + year);
         }
     }
 
@@ -469,20 +689,30 @@ public class FlightApp extends JFrame {
                     airportOptions[0]);
 
             if (selectedAirport != null && !selectedAirport.trim().isEmpty()) {
-                String airportCode = selectedAirport.substring(0, selectedAirport.indexOf(" - "));
                 String airportName = selectedAirport.substring(selectedAirport.indexOf(" - ") + 3);
 
                 statusLabel.setText("Analysing delays for " + airportName + "...");
                 setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-                // Get data
-                Map<String, Double> data = dataService.getDelaysByMonth(airportCode, 2019, 2023);
-
-                // Show chart and switch tabs
-                analysisPanel.showTimeSeriesChart(data, airportName);
-                ((JTabbedPane)analysisPanel.getParent()).setSelectedComponent(analysisPanel);
-
-                statusLabel.setText("Analysis complete for " + airportName);
+                // Get every airport's series in one go, so the picker on the chart can switch without a query.
+                CancellationToken token = newAnalysisToken();
+                dataService.getMonthlyDelaySeriesAsync(firstYear(), latestYear(), token, ANALYSIS_TIMEOUT)
+                        .whenComplete((series, error) -> SwingUtilities.invokeLater(() -> {
+                            if (token != analysisToken) {
+                                return;
+                            }
+                            setCursor(Cursor.getDefaultCursor());
+
+                            if (error != null) {
+                                showQueryError(error, "Analysis Error", "Analysis failed");
+                                return;
+                            }
+
+                            // Show chart and switch tabs
+                            analysisPanel.showAirportTimeSeries(series, airports, selectedAirport);
+                            ((JTabbedPane)analysisPanel.getParent()).setSelectedComponent(analysisPanel);
+                            statusLabel.setText("Analysis complete for " + airportName);
+                        }));
             }
         } catch (SQLException ex) {
             JOptionPane.showMessageDialog(
@@ -492,8 +722,59 @@ public class FlightApp extends JFrame {
                     JOptionPane.ERROR_MESSAGE
             );
             statusLabel.setText("Analysis failed");
-        } finally {
-            setCursor(Cursor.getDefaultCursor());
+        }
+    }
+
+    private void handlePercentileAnalysis(ActionEvent e) {
+        Object[] groupings = {"Airline", "Airport", "Route", "Month"};
+        Object selectedGrouping = JOptionPane.showInputDialog(
+                this,
+                "Show delay percentiles by:",
+                "Delay Percentiles",
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                groupings,
+                "Airline"
+        );
+        if (selectedGrouping == null) {
+            return;
+        }
+
+        Object[] years = yearChoices();
+        Object selectedYear = JOptionPane.showInputDialog(
+                this,
+                "Select year for analysis:",
+                "Delay Percentiles",
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                years,
+                String.valueOf(latestYear())
+        );
+
+        if (selectedYear != null) {
+            int year = Integer.parseInt(selectedYear.toString());
+            String groupLabel = selectedGrouping.toString();
+
+            statusLabel.setText("Getting delay percentiles by " + groupLabel.toLowerCase() + " for " + year + "...");
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+            CancellationToken token = newAnalysisToken();
+            dataService.getDelayDistributionsAsync(groupLabel.toLowerCase(), year, token, ANALYSIS_TIMEOUT)
+                    .whenComplete((data, error) -> SwingUtilities.invokeLater(() -> {
+                        if (token != analysisToken) {
+                            return;
+                        }
+                        setCursor(Cursor.getDefaultCursor());
+
+                        if (error != null) {
+                            showQueryError(error, "Analysis Error", "Analysis failed");
+                            return;
+                        }
+
+                        analysisPanel.showDelayPercentileChart(data, groupLabel, year);
+                        ((JTabbedPane)analysisPanel.getParent()).setSelectedComponent(analysisPanel);
+                        statusLabel.setText("Percentile analysis done for " + year);
+                    }));
         }
     }
 
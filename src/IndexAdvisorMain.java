@@ -0,0 +1,77 @@
+import database.DatabaseManager;
+import service.FlightDataService;
+import service.IndexAdvisor;
+import service.QueryWorkload;
+
+import java.sql.SQLException;
+import java.util.List;
+
+// Index advice for the workload the service recorded in flights.db.workload, see IndexAdvisor.
+//   java IndexAdvisorMain [propose|evaluate|create] [runs]
+// propose lists the indexes with their estimated size. evaluate creates each one on its own, replays the
+// recorded queries it serves before and after, then replays everything with the ones that measured
+// faster, and drops them all again. create does the same but keeps the faster ones.
+public class IndexAdvisorMain {
+
+    public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : "propose";
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        QueryWorkload workload = new QueryWorkload(FlightDataService.WORKLOAD_FILE);
+        workload.load();
+        if (workload.isEmpty()) {
+            System.err.println("No recorded workload in " + FlightDataService.WORKLOAD_FILE +
+                    ", run the app or server against flights.db first");
+            System.exit(1);
+        }
+
+        DatabaseManager dbManager = new DatabaseManager();
+        try {
+            dbManager.connect();
+            IndexAdvisor advisor = new IndexAdvisor(dbManager.getConnection(), workload);
+
+            System.out.println("\n========== RECORDED WORKLOAD ==========");
+            System.out.println(String.format("%8s %10s %12s  %s", "runs", "avg ms", "avg rows", "shape"));
+            for (QueryWorkload.Shape shape : workload.getShapes()) {
+                String sql = shape.getShape();
+                System.out.println(String.format("%8d %10.2f %12.1f  %s", shape.getCount(),
+                        shape.getAverageNanos() / 1e6, shape.getAverageRows(),
+                        sql.length() > 140 ? sql.substring(0, 140) + "..." : sql));
+            }
+
+            List<IndexAdvisor.Proposal> proposals = advisor.propose();
+            System.out.println("\n========== PROPOSED INDEXES ==========");
+            if (proposals.isEmpty()) {
+                System.out.println("The existing indexes already cover every recorded shape");
+                return;
+            }
+            System.out.println(String.format("%-56s %10s %8s %8s", "index", "recorded ms", "shapes", "est KB"));
+            for (IndexAdvisor.Proposal proposal : proposals) {
+                System.out.println(String.format("%-56s %10.1f %8d %8d", proposal, proposal.getWorkloadNanos() / 1e6,
+                        proposal.getShapes().size(), proposal.getEstimatedBytes() / 1024));
+            }
+
+            if (mode.equals("evaluate") || mode.equals("create")) {
+                System.out.println("\n========== REPLAYED WORKLOAD ==========");
+                System.out.print(advisor.evaluate(proposals, runs, mode.equals("create")));
+                for (IndexAdvisor.Proposal proposal : proposals) {
+                    System.out.println(String.format("%s: %d KB actual, %d KB estimated, %s", proposal.getName(),
+                            proposal.getActualBytes() / 1024, proposal.getEstimatedBytes() / 1024,
+                            proposal.isPassed() ? (mode.equals("create") ? "kept" : "would be kept") : "dropped"));
+                }
+            } else if (!mode.equals("propose")) {
+                System.err.println("Unknown mode: " + mode);
+                System.exit(1);
+            }
+        } catch (SQLException e) {
+            System.err.println("Database error: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            try {
+                dbManager.disconnect();
+            } catch (SQLException e) {
+                System.err.println("Error closing database connection: " + e.getMessage());
+            }
+        }
+    }
+}
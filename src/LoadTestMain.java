@@ -0,0 +1,156 @@
+import service.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Closed-loop load test for ServerMain: each client sends a request, waits for the whole response and
+// sends the next, for the given number of seconds, over a mix of searches, counts and analytics.
+//   java LoadTestMain [baseUrl] [clients] [seconds]
+public class LoadTestMain {
+
+    private static final String[] AIRPORTS = {"ATL", "ORD", "DFW", "DEN", "LAX", "JFK", "SFO", "SEA", "LAS", "MCO"};
+    private static final String[] AIRLINES = {"AA", "DL", "UA", "WN", "B6", "AS", "NK"};
+
+    private static final Map<String, Endpoint> results = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        HttpClient http = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(newClientExecutor())
+                .build();
+
+        System.out.println("Load test: " + clients + " clients for " + seconds + " s against " + baseUrl);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService workers = newClientExecutor();
+        for (int i = 0; i < clients; i++) {
+            workers.submit(() -> {
+                while (System.nanoTime() < deadline) {
+                    String[] request = nextRequest();
+                    send(http, baseUrl, request[0], request[1]);
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(seconds + 120L, TimeUnit.SECONDS);
+
+        printReport(seconds);
+        System.exit(0);
+    }
+
+    // {endpoint name, path and query}
+    private static String[] nextRequest() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String airport = AIRPORTS[random.nextInt(AIRPORTS.length)];
+        String airline = AIRLINES[random.nextInt(AIRLINES.length)];
+        int roll = random.nextInt(100);
+        if (roll < 40) {
+            return new String[]{"flights page", "/api/flights?origin=" + airport + "&airline=" + airline + "&limit=100"};
+        } else if (roll < 60) {
+            return new String[]{"flights count", "/api/flights/count?origin=" + airport + "&minDelay=15"};
+        } else if (roll < 70) {
+            return new String[]{"flights ndjson", "/api/flights?origin=" + airport + "&destination=" +
+                    AIRPORTS[random.nextInt(AIRPORTS.length)] + "&format=ndjson"};
+        } else if (roll < 80) {
+            return new String[]{"analytics airlines", "/api/analytics/airlines?year=2023"};
+        } else if (roll < 88) {
+            return new String[]{"analytics monthly", "/api/analytics/monthly?airport=" + airport + "&from=2019&to=2023"};
+        } else if (roll < 94) {
+            return new String[]{"analytics distributions", "/api/analytics/distributions?grouping=airline&year=2023"};
+        } else {
+            return new String[]{"airports", "/api/airports"};
+        }
+    }
+
+    private static void send(HttpClient http, String baseUrl, String name, String path) {
+        Endpoint endpoint = results.computeIfAbsent(name, Endpoint::new);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofSeconds(60))
+                .GET()
+                .build();
+
+        long start = System.nanoTime();
+        try {
+            HttpResponse<InputStream> response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            long bytes = 0;
+            try (InputStream body = response.body()) {
+                byte[] buffer = new byte[16 * 1024];
+                int n;
+                while ((n = body.read(buffer)) > 0) {
+                    bytes += n;
+                }
+            }
+            endpoint.record(System.nanoTime() - start, bytes, response.statusCode() != 200);
+        } catch (IOException e) {
+            endpoint.record(System.nanoTime() - start, 0, true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void printReport(int seconds) {
+        System.out.println(String.format("%-24s %8s %9s %9s %9s %9s %7s %10s",
+                "endpoint", "requests", "req/s", "p50 ms", "p99 ms", "max ms", "errors", "KB"));
+        long total = 0;
+        long errors = 0;
+        List<Endpoint> endpoints = new ArrayList<>(new TreeMap<>(results).values());
+        for (Endpoint e : endpoints) {
+            long count = e.latency.getCount();
+            total += count;
+            errors += e.errors.get();
+            System.out.println(String.format("%-24s %8d %9.1f %9.2f %9.2f %9.2f %7d %10d",
+                    e.name, count, (double) count / seconds, e.latency.getPercentileMillis(50),
+                    e.latency.getPercentileMillis(99), e.latency.getMaxMillis(), e.errors.get(), e.bytes.get() / 1024));
+        }
+        System.out.println(String.format("Total: %d requests, %.1f req/s, %d errors", total, (double) total / seconds,
+                errors));
+    }
+
+    // Threads to park the clients on. Virtual when the JDK has them, otherwise one platform thread each.
+    private static ExecutorService newClientExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "load-client");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private static class Endpoint {
+        final String name;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos, long responseBytes, boolean failed) {
+            latency.record(nanos);
+            bytes.addAndGet(responseBytes);
+            if (failed) errors.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import server.FlightQueryServer;
+import service.FlightDataService;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+
+// Serves the imported flights.db over HTTP, see FlightQueryServer for the endpoints.
+//   java ServerMain [port]
+// Each request's queries are cancelled after -Dflights.requestTimeoutSeconds (default 30).
+public class ServerMain {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final long DEFAULT_REQUEST_TIMEOUT_SECONDS = 30;
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        Duration timeout = Duration.ofSeconds(Long.getLong("flights.requestTimeoutSeconds",
+                DEFAULT_REQUEST_TIMEOUT_SECONDS));
+
+        try {
+            FlightDataService service = new FlightDataService();
+            FlightQueryServer server = new FlightQueryServer(service, port, timeout);
+
+            // Finish in-flight requests for a second, then close the database cleanly.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop(1);
+                try {
+                    service.disconnect();
+                } catch (SQLException e) {
+                    System.err.println("Error closing database: " + e.getMessage());
+                }
+            }));
+
+            server.start();
+            System.out.println("Flight query server listening on http://localhost:" + server.getPort() + "/api/");
+        } catch (SQLException e) {
+            System.err.println("Database error: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Could not start server on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package database;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+// One compressed bitmap of flight_ids per value of each low-cardinality Flight attribute.
+// Combining filters is then just AND/OR of bitmaps, and the result's cardinality is an exact count.
+// Saved next to flights.db and tied to the data version the importer stamped.
+public class BitmapIndex {
+
+    public static final String FIELD_AIRLINE = "airline";
+    public static final String FIELD_ORIGIN = "origin";
+    public static final String FIELD_DESTINATION = "destination";
+    public static final String FIELD_DELAY_REASON = "delay_reason";
+    public static final String FIELD_CANCELLED = "cancelled";
+    public static final String FIELD_DIVERTED = "diverted";
+
+    private static final int FILE_MAGIC = 0x464C4249; // "FLBI"
+
+    private final Map<String, Map<String, RoaringBitmap>> fields = new HashMap<>();
+    private RoaringBitmap allFlights = new RoaringBitmap();
+    private String dataVersion;
+
+    // One pass over Flight and one over Delay_Reason, both in flight_id order so every add is an append.
+    public static BitmapIndex build(Connection conn, String dataVersion) throws SQLException {
+        BitmapIndex index = new BitmapIndex();
+        index.dataVersion = dataVersion;
+
+        String flightSql = "SELECT flight_id, airline_code, flight_origin, flight_destination, cancelled, diverted " +
+                "FROM Flight ORDER BY flight_id";
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(flightSql)) {
+            while (rs.next()) {
+                int flightId = rs.getInt(1);
+                index.allFlights.add(flightId);
+                index.add(FIELD_AIRLINE, rs.getString(2), flightId);
+                index.add(FIELD_ORIGIN, rs.getString(3), flightId);
+                index.add(FIELD_DESTINATION, rs.getString(4), flightId);
+                if (rs.getBoolean(5)) index.add(FIELD_CANCELLED, "1", flightId);
+                if (rs.getBoolean(6)) index.add(FIELD_DIVERTED, "1", flightId);
+            }
+        }
+
+        String delaySql = "SELECT flight_id, reason FROM Delay_Reason ORDER BY flight_id";
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(delaySql)) {
+            while (rs.next()) {
+                index.add(FIELD_DELAY_REASON, rs.getString(2), rs.getInt(1));
+            }
+        }
+
+        return index;
+    }
+
+    private void add(String field, String value, int flightId) {
+        if (value == null) return;
+        fields.computeIfAbsent(field, k -> new HashMap<>())
+                .computeIfAbsent(value, k -> new RoaringBitmap())
+                .add(flightId);
+    }
+
+    // Bitmap for one value, empty if the value never occurs.
+    public RoaringBitmap get(String field, String value) {
+        Map<String, RoaringBitmap> values = fields.get(field);
+        RoaringBitmap bitmap = values != null ? values.get(value) : null;
+        return bitmap != null ? bitmap : new RoaringBitmap();
+    }
+
+    // OR of the bitmaps for several values of one field.
+    public RoaringBitmap getAny(String field, Collection<String> values) {
+        RoaringBitmap result = new RoaringBitmap();
+        for (String value : values) {
+            result = result.or(get(field, value));
+        }
+        return result;
+    }
+
+    public RoaringBitmap getAllFlights() {
+        return allFlights;
+    }
+
+    public Set<String> getValues(String field) {
+        Map<String, RoaringBitmap> values = fields.get(field);
+        return values != null ? values.keySet() : Collections.emptySet();
+    }
+
+    public String getDataVersion() {
+        return dataVersion;
+    }
+
+    public long getSizeInBytes() {
+        long bytes = allFlights.getSizeInBytes();
+        for (Map<String, RoaringBitmap> values : fields.values()) {
+            for (RoaringBitmap bitmap : values.values()) {
+                bytes += bitmap.getSizeInBytes();
+            }
+        }
+        return bytes;
+    }
+
+    public void save(String filePath) throws IOException {
+        Path file = Paths.get(filePath);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeUTF(dataVersion);
+            allFlights.serialize(out);
+            out.writeInt(fields.size());
+            for (Map.Entry<String, Map<String, RoaringBitmap>> field : fields.entrySet()) {
+                out.writeUTF(field.getKey());
+                out.writeInt(field.getValue().size());
+                for (Map.Entry<String, RoaringBitmap> value : field.getValue().entrySet()) {
+                    out.writeUTF(value.getKey());
+                    value.getValue().serialize(out);
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns null if there's no file, or it was built from different data.
+    public static BitmapIndex load(String filePath, String expectedVersion) {
+        Path file = Paths.get(filePath);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                return null;
+            }
+            BitmapIndex index = new BitmapIndex();
+            index.dataVersion = in.readUTF();
+            if (!index.dataVersion.equals(expectedVersion)) {
+                return null;
+            }
+
+            index.allFlights = RoaringBitmap.deserialize(in);
+            int fieldCount = in.readInt();
+            for (int i = 0; i < fieldCount; i++) {
+                String field = in.readUTF();
+                int valueCount = in.readInt();
+                Map<String, RoaringBitmap> values = new HashMap<>();
+                for (int j = 0; j < valueCount; j++) {
+                    values.put(in.readUTF(), RoaringBitmap.deserialize(in));
+                }
+                index.fields.put(field, values);
+            }
+            return index;
+        } catch (IOException e) {
+            System.err.println("Could not read bitmap index, it will be rebuilt: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -36,6 +37,7 @@ public class CsvImporter {
 
     private PrintWriter errorLogWriter;
     private String errorLogPath;
+    private String dataVersion;
 
     public CsvImporter(Connection connection) {
         this.connection = connection;
@@ -113,8 +115,8 @@ public class CsvImporter {
             PreparedStatement flightStmt = connection.prepareStatement(
                     "INSERT INTO Flight (date, airline_code, flight_number, flight_origin, " +
                             "flight_destination, scheduled_departure, actual_departure, " +
-                            "scheduled_arrival, actual_arrival, cancelled, cancellation_code, diverted) " +
-                            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                            "scheduled_arrival, actual_arrival, cancelled, cancellation_code, diverted, date_key) " +
+                            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
                     PreparedStatement.RETURN_GENERATED_KEYS
             );
 
@@ -329,6 +331,7 @@ public class CsvImporter {
                     flightStmt.setBoolean(10, isCancelled);
                     flightStmt.setString(11, isEmptyOrNull(cancellationCode) ? null : cancellationCode.trim());
                     flightStmt.setBoolean(12, isDiverted);
+                    setDateKey(flightStmt, 13, flDate);
 
                     try {
                         flightStmt.executeUpdate();
@@ -410,6 +413,16 @@ public class CsvImporter {
                 connection.commit();
             }
 
+            // Left open, the flight insert's generated-keys step counts as a statement in progress and
+            // the VACUUM at the end of a clustered import fails.
+            airlineStmt.close();
+            airportStmt.close();
+            flightStmt.close();
+            delayStmt.close();
+
+            // Stamp a new data version so readers know any cached results are stale.
+            writeDataVersion();
+
             // Final progress update
             updateProgressDisplay();
 
@@ -452,6 +465,17 @@ public class CsvImporter {
         }
     }
 
+    // The version is just the import time in millis, readers only ever compare it for equality.
+    private void writeDataVersion() throws SQLException {
+        dataVersion = String.valueOf(System.currentTimeMillis());
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT OR REPLACE INTO Dataset_Info (info_key, info_value) VALUES ('data_version', ?)")) {
+            stmt.setString(1, dataVersion);
+            stmt.executeUpdate();
+        }
+        connection.commit();
+    }
+
     private boolean insertDelayReason(PreparedStatement stmt, int flightId, String reason,
                                       String delayStr, int lineNumber) throws SQLException {
         if (isEmptyOrNull(delayStr)) {
@@ -652,6 +676,10 @@ public class CsvImporter {
         return errorLogPath;
     }
 
+    public String getDataVersion() {
+        return dataVersion;
+    }
+
     public Map<String, Integer> getSkipReasons() {
         return new HashMap<>(skipReasons);
     }
@@ -664,6 +692,16 @@ public class CsvImporter {
         return uniqueAirports.size();
     }
 
+    // DDMMYYYY as the integer yyyymmdd, NULL if it doesn't parse.
+    private void setDateKey(PreparedStatement stmt, int index, String ddmmyyyy) throws SQLException {
+        try {
+            stmt.setInt(index, Integer.parseInt(ddmmyyyy.substring(4, 8)) * 10000 +
+                    Integer.parseInt(ddmmyyyy.substring(2, 4)) * 100 + Integer.parseInt(ddmmyyyy.substring(0, 2)));
+        } catch (NumberFormatException e) {
+            stmt.setNull(index, Types.INTEGER);
+        }
+    }
+
     private String standardiseDate(String dateStr) {
         if (dateStr != null && dateStr.contains("-") && dateStr.length() == 10) {
             try {
@@ -8,10 +8,21 @@ import java.sql.Statement;
 public class DatabaseManager {
 
     private static final String DB_URL = "jdbc:sqlite:flights.db";
+    public static final String BITMAP_INDEX_FILE = "flights.db.bitmaps";
+    private final String url;
     private Connection connection;
 
+    public DatabaseManager() {
+        this(DB_URL);
+    }
+
+    // Any other SQLite database, e.g. a scratch file for tests.
+    public DatabaseManager(String url) {
+        this.url = url;
+    }
+
     public void connect() throws SQLException {
-        connection = DriverManager.getConnection(DB_URL);
+        connection = DriverManager.getConnection(url);
         connection.setAutoCommit(false); // Since we are doing bulk inserts, this will speed things up greatly.
         System.out.println("Connected to the database, yippie! :)");
     }
@@ -29,6 +40,13 @@ public class DatabaseManager {
             stmt.executeUpdate("DROP TABLE IF EXISTS Flight");
             stmt.executeUpdate("DROP TABLE IF EXISTS Airline");
             stmt.executeUpdate("DROP TABLE IF EXISTS Airport");
+            stmt.executeUpdate("DROP TABLE IF EXISTS Dataset_Info");
+            stmt.executeUpdate("DROP TABLE IF EXISTS Flight_Sample");
+            stmt.executeUpdate("DROP TABLE IF EXISTS Sample_Stratum");
+            stmt.executeUpdate("DROP TABLE IF EXISTS Stats_Month");
+            stmt.executeUpdate("DROP TABLE IF EXISTS Stats_Column");
+            stmt.executeUpdate("DROP TABLE IF EXISTS Stats_Value");
+            stmt.executeUpdate("DROP TABLE IF EXISTS Stats_Histogram");
 
             // Creating schemas based on the document given, whilst also supporting cancelled and diverted flights.
 
@@ -53,6 +71,7 @@ public class DatabaseManager {
                     "CREATE TABLE Flight (" +
                             "flight_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                             "date CHAR(8), " +
+                            "date_key INTEGER, " +
                             "airline_code CHAR(2), " +
                             "flight_number INTEGER, " +
                             "flight_origin CHAR(3), " +
@@ -81,8 +100,83 @@ public class DatabaseManager {
                             ")"
             );
 
+            // Dataset_Info table - key/value facts about the import, e.g. the data version stamp.
+            stmt.executeUpdate(
+                    "CREATE TABLE Dataset_Info (" +
+                            "info_key TEXT PRIMARY KEY, " +
+                            "info_value TEXT" +
+                            ")"
+            );
+
+            // Flight_Sample table - flight_ids in each stratified sample, tier is the sample percentage.
+            stmt.executeUpdate(
+                    "CREATE TABLE Flight_Sample (" +
+                            "tier INTEGER, " +
+                            "flight_id INTEGER, " +
+                            "PRIMARY KEY (tier, flight_id)" +
+                            ") WITHOUT ROWID"
+            );
+
+            // Sample_Stratum table - flights in each airline/month stratum and how many of them were sampled.
+            stmt.executeUpdate(
+                    "CREATE TABLE Sample_Stratum (" +
+                            "tier INTEGER, " +
+                            "airline_code CHAR(2), " +
+                            "month CHAR(6), " +
+                            "population INTEGER, " +
+                            "sampled INTEGER, " +
+                            "PRIMARY KEY (tier, airline_code, month)" +
+                            ")"
+            );
+
+            // Statistics catalog, written by StatisticsBuilder after the import.
+            // Stats_Month - flights per month (yyyymm) with how many were cancelled, diverted or delayed.
+            stmt.executeUpdate(
+                    "CREATE TABLE Stats_Month (" +
+                            "month_key INTEGER PRIMARY KEY, " +
+                            "flights INTEGER, " +
+                            "cancelled INTEGER, " +
+                            "diverted INTEGER, " +
+                            "delayed INTEGER" +
+                            ")"
+            );
+
+            // Stats_Column - distinct values, nulls and bounds of the columns searches filter on.
+            stmt.executeUpdate(
+                    "CREATE TABLE Stats_Column (" +
+                            "table_name TEXT, " +
+                            "column_name TEXT, " +
+                            "distinct_values INTEGER, " +
+                            "null_values INTEGER, " +
+                            "min_value, " +
+                            "max_value, " +
+                            "PRIMARY KEY (table_name, column_name)" +
+                            ")"
+            );
+
+            // Stats_Value - rows per value for the dimension columns (airlines, airports, delay reasons).
+            stmt.executeUpdate(
+                    "CREATE TABLE Stats_Value (" +
+                            "column_name TEXT, " +
+                            "value TEXT, " +
+                            "row_count INTEGER, " +
+                            "PRIMARY KEY (column_name, value)" +
+                            ") WITHOUT ROWID"
+            );
+
+            // Stats_Histogram - rows per [bucket_low, bucket_high) for delays and scheduled times.
+            stmt.executeUpdate(
+                    "CREATE TABLE Stats_Histogram (" +
+                            "column_name TEXT, " +
+                            "bucket_low INTEGER, " +
+                            "bucket_high INTEGER, " +
+                            "row_count INTEGER, " +
+                            "PRIMARY KEY (column_name, bucket_low)" +
+                            ")"
+            );
 
             stmt.executeUpdate("CREATE INDEX idx_flight_date ON Flight(date)");
+            stmt.executeUpdate("CREATE INDEX idx_flight_date_key ON Flight(date_key)");
             stmt.executeUpdate("CREATE INDEX idx_flight_airline ON Flight(airline_code)");
             stmt.executeUpdate("CREATE INDEX idx_flight_origin_dest ON Flight(flight_origin, flight_destination)");
             stmt.executeUpdate("CREATE INDEX idx_flight_cancelled ON Flight(cancelled)");
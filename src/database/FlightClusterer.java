@@ -0,0 +1,163 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Rewrites Flight as a WITHOUT ROWID table whose primary key is the clustering key plus flight_id, so
+// flights sharing a key prefix sit on neighbouring pages: "ATL departures in 2022" becomes one sequential
+// range instead of a page per matching row. Then VACUUMs the file so the free pages left behind by the
+// old table go too. flight_id keeps a unique index, so delay, sample and bitmap lookups still work, but
+// they now go through that index, and the flight_id range partitions of the scans read out of key order.
+// Row contents and ids don't change, but flight_id is no longer an AUTOINCREMENT rowid, so nothing keeps
+// later ids above the ones in use. Clustering stamps a new data version, so the side files and caches
+// built against the old table (bitmaps, cube, analytics) are never trusted against the rebuilt one.
+public class FlightClusterer {
+
+    // Origin airport, then day, then airline.
+    public static final String DEFAULT_KEY = "origin,date,airline";
+
+    // Short names allowed in a clustering key, anything else must be a Flight column.
+    private static final Map<String, String> KEY_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        KEY_COLUMNS.put("origin", "flight_origin");
+        KEY_COLUMNS.put("destination", "flight_destination");
+        KEY_COLUMNS.put("date", "date_key");
+        KEY_COLUMNS.put("airline", "airline_code");
+    }
+
+    private final Connection conn;
+
+    // conn must have auto-commit off, like the importer's.
+    public FlightClusterer(Connection conn) {
+        this.conn = conn;
+    }
+
+    // key is a comma list of short names or Flight columns, e.g. DEFAULT_KEY or "date,airline". Returns
+    // the new data version.
+    public String cluster(String key) throws SQLException {
+        Map<String, String> columns = readColumns();
+        List<String> keyColumns = parseKey(key, columns);
+
+        List<String> indexes = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT sql FROM sqlite_master WHERE type = 'index' " +
+                     "AND tbl_name = 'Flight' AND sql IS NOT NULL AND name <> 'idx_flight_id'")) {
+            while (rs.next()) {
+                indexes.add(rs.getString(1));
+            }
+        }
+
+        StringBuilder create = new StringBuilder("CREATE TABLE Flight_Clustered (");
+        for (Map.Entry<String, String> column : columns.entrySet()) {
+            create.append(column.getKey()).append(' ').append(column.getValue());
+            if (column.getKey().equals("flight_id")) {
+                create.append(" NOT NULL");
+            }
+            create.append(", ");
+        }
+        create.append("PRIMARY KEY (").append(String.join(", ", keyColumns)).append(", flight_id), ")
+                .append("FOREIGN KEY (airline_code) REFERENCES Airline(iata_code), ")
+                .append("FOREIGN KEY (flight_origin) REFERENCES Airport(iata_code), ")
+                .append("FOREIGN KEY (flight_destination) REFERENCES Airport(iata_code)")
+                .append(") WITHOUT ROWID");
+
+        String columnList = String.join(", ", columns.keySet());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS Flight_Clustered");
+            stmt.executeUpdate(create.toString());
+
+            // Inserting in key order appends to the b-tree instead of splitting pages all over it.
+            stmt.executeUpdate("INSERT INTO Flight_Clustered (" + columnList + ") SELECT " + columnList +
+                    " FROM Flight ORDER BY " + String.join(", ", keyColumns) + ", flight_id");
+
+            stmt.executeUpdate("DROP TABLE Flight");
+            stmt.executeUpdate("ALTER TABLE Flight_Clustered RENAME TO Flight");
+            stmt.executeUpdate("CREATE UNIQUE INDEX idx_flight_id ON Flight(flight_id)");
+            for (String index : indexes) {
+                stmt.executeUpdate(index);
+            }
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT OR REPLACE INTO Dataset_Info (info_key, info_value) VALUES ('flight_clustering', ?)")) {
+            stmt.setString(1, String.join(",", keyColumns));
+            stmt.executeUpdate();
+        }
+
+        // Same format as the importer's, the time in millis.
+        String dataVersion = String.valueOf(System.currentTimeMillis());
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT OR REPLACE INTO Dataset_Info (info_key, info_value) VALUES ('data_version', ?)")) {
+            stmt.setString(1, dataVersion);
+            stmt.executeUpdate();
+        }
+        conn.commit();
+
+        // VACUUM can't run inside a transaction.
+        conn.setAutoCommit(true);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("VACUUM");
+        } finally {
+            conn.setAutoCommit(false);
+        }
+        return dataVersion;
+    }
+
+    // The Flight columns in order, with their declared types and defaults.
+    private Map<String, String> readColumns() throws SQLException {
+        Map<String, String> columns = new LinkedHashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(Flight)")) {
+            while (rs.next()) {
+                String definition = rs.getString("type");
+                if (rs.getString("dflt_value") != null) {
+                    definition += " DEFAULT " + rs.getString("dflt_value");
+                }
+                columns.put(rs.getString("name"), definition);
+            }
+        }
+        if (columns.isEmpty()) {
+            throw new SQLException("No Flight table to cluster");
+        }
+        return columns;
+    }
+
+    private static List<String> parseKey(String key, Map<String, String> columns) throws SQLException {
+        List<String> keyColumns = new ArrayList<>();
+        for (String part : key.split(",")) {
+            String name = part.trim().toLowerCase(Locale.ROOT);
+            if (name.isEmpty()) continue;
+            String column = KEY_COLUMNS.getOrDefault(name, name);
+            if (!columns.containsKey(column)) {
+                throw new SQLException("Flight has no column " + column + " to cluster on" +
+                        (column.equals("date_key") ? ", re-import to add date_key" : ""));
+            }
+            if (column.equals("flight_id")) continue; // always last
+            if (!keyColumns.contains(column)) {
+                keyColumns.add(column);
+            }
+        }
+        if (keyColumns.isEmpty()) {
+            throw new SQLException("Empty clustering key: " + key);
+        }
+        return keyColumns;
+    }
+
+    // The clustering key recorded by the last cluster run, or null if Flight is still in import order.
+    public static String getClustering(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                     "SELECT info_value FROM Dataset_Info WHERE info_key = 'flight_clustering'")) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+}
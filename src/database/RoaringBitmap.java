@@ -0,0 +1,412 @@
+package database;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Compressed bitmap of non-negative ints, in the style of Roaring bitmaps.
+// Values are split by their high 16 bits into chunks, and each chunk is stored either as a sorted
+// array of low 16 bits (sparse) or a plain 65536-bit bitmap (dense), whichever is smaller.
+public class RoaringBitmap {
+
+    // Above this many values an array container costs more than a bitmap container.
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+
+    public void add(int value) {
+        char key = (char) (value >>> 16);
+        char low = (char) value;
+
+        // Fast path for the usual case of adding in ascending order.
+        int index;
+        if (size > 0 && keys[size - 1] == key) {
+            index = size - 1;
+        } else {
+            index = findKey(key);
+            if (index < 0) {
+                index = -index - 1;
+                insertContainer(index, key, new ArrayContainer());
+            }
+        }
+        containers[index] = containers[index].add(low);
+    }
+
+    public boolean contains(int value) {
+        int index = findKey((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    public int getCardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += containers[i].cardinality();
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public RoaringBitmap and(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container c = containers[i].and(other.containers[j]);
+                if (c.cardinality() > 0) {
+                    result.appendContainer(keys[i], c);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public RoaringBitmap or(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            if (j >= other.size || (i < size && keys[i] < other.keys[j])) {
+                result.appendContainer(keys[i], containers[i].copy());
+                i++;
+            } else if (i >= size || keys[i] > other.keys[j]) {
+                result.appendContainer(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                result.appendContainer(keys[i], containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public RoaringBitmap andNot(RoaringBitmap other) {
+        RoaringBitmap result = new RoaringBitmap();
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) j++;
+            Container c = (j < other.size && other.keys[j] == keys[i])
+                    ? containers[i].andNot(other.containers[j])
+                    : containers[i].copy();
+            if (c.cardinality() > 0) {
+                result.appendContainer(keys[i], c);
+            }
+        }
+        return result;
+    }
+
+    // All values in ascending order.
+    public int[] toArray() {
+        int[] values = new int[getCardinality()];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            pos = containers[i].fill(values, pos, keys[i] << 16);
+        }
+        return values;
+    }
+
+    // Rough heap size, used for reporting.
+    public long getSizeInBytes() {
+        long bytes = 16 + keys.length * 2L + containers.length * 4L;
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    public void serialize(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeChar(keys[i]);
+            containers[i].serialize(out);
+        }
+    }
+
+    public static RoaringBitmap deserialize(DataInput in) throws IOException {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            char key = in.readChar();
+            bitmap.appendContainer(key, Container.deserialize(in));
+        }
+        return bitmap;
+    }
+
+    private int findKey(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertContainer(int index, char key, Container container) {
+        ensureCapacity();
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    private void appendContainer(char key, Container container) {
+        ensureCapacity();
+        keys[size] = key;
+        containers[size] = container;
+        size++;
+    }
+
+    private void ensureCapacity() {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+    }
+
+    // One 65536-value chunk. Operations return a (possibly new) container of the best type.
+    private abstract static class Container {
+        abstract Container add(char value);
+
+        abstract boolean contains(char value);
+
+        abstract int cardinality();
+
+        abstract Container copy();
+
+        abstract int fill(int[] out, int pos, int high);
+
+        abstract long sizeInBytes();
+
+        abstract void serialize(DataOutput out) throws IOException;
+
+        abstract long[] toWords();
+
+        Container and(Container other) {
+            if (this instanceof ArrayContainer) {
+                return ((ArrayContainer) this).filter(other, true);
+            }
+            if (other instanceof ArrayContainer) {
+                return ((ArrayContainer) other).filter(this, true);
+            }
+            long[] a = toWords(), b = other.toWords();
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < BITMAP_WORDS; i++) words[i] = a[i] & b[i];
+            return BitmapContainer.of(words);
+        }
+
+        Container or(Container other) {
+            long[] a = toWords(), b = other.toWords();
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < BITMAP_WORDS; i++) words[i] = a[i] | b[i];
+            return BitmapContainer.of(words);
+        }
+
+        Container andNot(Container other) {
+            if (this instanceof ArrayContainer) {
+                return ((ArrayContainer) this).filter(other, false);
+            }
+            long[] a = toWords(), b = other.toWords();
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < BITMAP_WORDS; i++) words[i] = a[i] & ~b[i];
+            return BitmapContainer.of(words);
+        }
+
+        static Container deserialize(DataInput in) throws IOException {
+            int type = in.readByte();
+            if (type == 0) {
+                int count = in.readChar();
+                ArrayContainer c = new ArrayContainer();
+                c.values = new char[Math.max(count, 1)];
+                for (int i = 0; i < count; i++) c.values[i] = in.readChar();
+                c.count = count;
+                return c;
+            }
+            BitmapContainer c = new BitmapContainer();
+            for (int i = 0; i < BITMAP_WORDS; i++) c.words[i] = in.readLong();
+            c.count = in.readInt();
+            return c;
+        }
+    }
+
+    private static class ArrayContainer extends Container {
+        char[] values = new char[4];
+        int count = 0;
+
+        @Override
+        Container add(char value) {
+            int index;
+            if (count > 0 && values[count - 1] < value) {
+                index = count; // Appending in order, skip the search.
+            } else {
+                index = Arrays.binarySearch(values, 0, count, value);
+                if (index >= 0) return this;
+                index = -index - 1;
+            }
+
+            if (count >= ARRAY_MAX) {
+                BitmapContainer bitmap = new BitmapContainer();
+                bitmap.words = toWords();
+                bitmap.count = count;
+                return bitmap.add(value);
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, Math.min(count * 2, ARRAY_MAX));
+            }
+            System.arraycopy(values, index, values, index + 1, count - index);
+            values[index] = value;
+            count++;
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, count, value) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return count;
+        }
+
+        @Override
+        Container copy() {
+            ArrayContainer c = new ArrayContainer();
+            c.values = Arrays.copyOf(values, Math.max(count, 1));
+            c.count = count;
+            return c;
+        }
+
+        // keep=true gives this AND other, keep=false gives this AND NOT other.
+        Container filter(Container other, boolean keep) {
+            ArrayContainer c = new ArrayContainer();
+            c.values = new char[Math.max(count, 1)];
+            for (int i = 0; i < count; i++) {
+                if (other.contains(values[i]) == keep) {
+                    c.values[c.count++] = values[i];
+                }
+            }
+            return c;
+        }
+
+        @Override
+        int fill(int[] out, int pos, int high) {
+            for (int i = 0; i < count; i++) out[pos++] = high | values[i];
+            return pos;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 16 + values.length * 2L;
+        }
+
+        @Override
+        long[] toWords() {
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < count; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return words;
+        }
+
+        @Override
+        void serialize(DataOutput out) throws IOException {
+            out.writeByte(0);
+            out.writeChar(count);
+            for (int i = 0; i < count; i++) out.writeChar(values[i]);
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        long[] words = new long[BITMAP_WORDS];
+        int count = 0;
+
+        // Picks the cheaper representation for a set of words.
+        static Container of(long[] words) {
+            int count = 0;
+            for (long w : words) count += Long.bitCount(w);
+
+            if (count <= ARRAY_MAX) {
+                ArrayContainer c = new ArrayContainer();
+                c.values = new char[Math.max(count, 1)];
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    long w = words[i];
+                    while (w != 0) {
+                        c.values[c.count++] = (char) (i * 64 + Long.numberOfTrailingZeros(w));
+                        w &= w - 1;
+                    }
+                }
+                return c;
+            }
+
+            BitmapContainer c = new BitmapContainer();
+            c.words = words;
+            c.count = count;
+            return c;
+        }
+
+        @Override
+        Container add(char value) {
+            long mask = 1L << value;
+            if ((words[value >>> 6] & mask) == 0) {
+                words[value >>> 6] |= mask;
+                count++;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return count;
+        }
+
+        @Override
+        Container copy() {
+            BitmapContainer c = new BitmapContainer();
+            c.words = words.clone();
+            c.count = count;
+            return c;
+        }
+
+        @Override
+        int fill(int[] out, int pos, int high) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long w = words[i];
+                while (w != 0) {
+                    out[pos++] = high | (i * 64 + Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+            return pos;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 16 + BITMAP_WORDS * 8L;
+        }
+
+        @Override
+        long[] toWords() {
+            return words;
+        }
+
+        @Override
+        void serialize(DataOutput out) throws IOException {
+            out.writeByte(1);
+            for (long w : words) out.writeLong(w);
+            out.writeInt(count);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// Builds the stratified samples used for approximate previews. Each airline/month stratum gets the same
+// fraction of its flights (at least one), picked by a hash of flight_id so rebuilding gives the same sample.
+// Sample_Stratum keeps each stratum's size so estimates can weight every sampled flight back up.
+public class SampleBuilder {
+
+    // Sample sizes in percent of each stratum.
+    public static final int[] TIERS = {1, 10};
+
+    private static final String STRATUM = "airline_code, substr(date, 3, 6)";
+
+    private final Connection conn;
+
+    public SampleBuilder(Connection conn) {
+        this.conn = conn;
+    }
+
+    public void build() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM Flight_Sample");
+            stmt.executeUpdate("DELETE FROM Sample_Stratum");
+        }
+
+        for (int tier : TIERS) {
+            // Multiplicative hash gives a stable pseudo-random order within each stratum.
+            String sampleSql =
+                    "INSERT INTO Flight_Sample (tier, flight_id) " +
+                            "SELECT ?, flight_id FROM (" +
+                            "SELECT flight_id, " +
+                            "ROW_NUMBER() OVER (PARTITION BY " + STRATUM +
+                            " ORDER BY (flight_id * 2654435761) % 4294967296) AS row_num, " +
+                            "COUNT(*) OVER (PARTITION BY " + STRATUM + ") AS stratum_size " +
+                            "FROM Flight) " +
+                            "WHERE row_num <= MAX(1, CAST(stratum_size * ? / 100.0 + 0.5 AS INTEGER))";
+
+            try (PreparedStatement stmt = conn.prepareStatement(sampleSql)) {
+                stmt.setInt(1, tier);
+                stmt.setInt(2, tier);
+                stmt.executeUpdate();
+            }
+
+            String stratumSql =
+                    "INSERT INTO Sample_Stratum (tier, airline_code, month, population, sampled) " +
+                            "SELECT ?, f.airline_code, substr(f.date, 3, 6), COUNT(*), COUNT(s.flight_id) " +
+                            "FROM Flight f " +
+                            "LEFT JOIN Flight_Sample s ON s.tier = ? AND s.flight_id = f.flight_id " +
+                            "GROUP BY f.airline_code, substr(f.date, 3, 6)";
+
+            try (PreparedStatement stmt = conn.prepareStatement(stratumSql)) {
+                stmt.setInt(1, tier);
+                stmt.setInt(2, tier);
+                stmt.executeUpdate();
+            }
+        }
+
+        conn.commit();
+    }
+
+    public int getSampleSize(int tier) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM Flight_Sample WHERE tier = ?")) {
+            stmt.setInt(1, tier);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+}
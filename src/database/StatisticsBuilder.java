@@ -0,0 +1,203 @@
+package database;
+
+import flightModel.Flight;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Writes the statistics catalog after an import: flights per month, distinct values and bounds of the
+// searched columns, rows per airline/airport/delay reason, and histograms of delays and scheduled times.
+// The app reads its year choices from it and the query planner its selectivity estimates. Building it
+// is one pass over Flight plus a few GROUP BYs, small next to the import itself.
+public class StatisticsBuilder {
+
+    // Bucket edges in minutes for the delay histograms, the last bucket runs to the largest delay.
+    private static final int[] DELAY_EDGES = {0, 1, 5, 15, 30, 45, 60, 90, 120, 180, 240, 360, 720, 1440};
+
+    // Columns whose every value gets a row count. The reason counts are flights with at least one delay
+    // for that reason, which is what the search filter selects. NULLs are left out: Stats_Value's key can't
+    // hold them, no filter selects them, and Stats_Column already counts them.
+    private static final String[][] VALUE_COLUMNS = {
+            {"airline_code", "SELECT airline_code, COUNT(*) FROM Flight " +
+                    "WHERE airline_code IS NOT NULL GROUP BY airline_code"},
+            {"flight_origin", "SELECT flight_origin, COUNT(*) FROM Flight " +
+                    "WHERE flight_origin IS NOT NULL GROUP BY flight_origin"},
+            {"flight_destination", "SELECT flight_destination, COUNT(*) FROM Flight " +
+                    "WHERE flight_destination IS NOT NULL GROUP BY flight_destination"},
+            {"reason", "SELECT reason, COUNT(DISTINCT flight_id) FROM Delay_Reason " +
+                    "WHERE reason IS NOT NULL GROUP BY reason"},
+    };
+
+    private static final String[][] SUMMARY_COLUMNS = {
+            {"Flight", "date_key"}, {"Flight", "airline_code"}, {"Flight", "flight_number"},
+            {"Flight", "flight_origin"}, {"Flight", "flight_destination"}, {"Flight", "scheduled_departure"},
+            {"Flight", "scheduled_arrival"}, {"Delay_Reason", "flight_id"}, {"Delay_Reason", "reason"},
+            {"Delay_Reason", "delay_length"},
+    };
+
+    private final Connection conn;
+    private long flightRows;
+    private long delayRows;
+
+    public StatisticsBuilder(Connection conn) {
+        this.conn = conn;
+    }
+
+    public void build() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM Stats_Month");
+            stmt.executeUpdate("DELETE FROM Stats_Column");
+            stmt.executeUpdate("DELETE FROM Stats_Value");
+            stmt.executeUpdate("DELETE FROM Stats_Histogram");
+        }
+
+        scanFlights();
+        writeDelayLengthHistogram();
+
+        for (String[] column : SUMMARY_COLUMNS) {
+            String sql = "INSERT INTO Stats_Column (table_name, column_name, distinct_values, null_values, " +
+                    "min_value, max_value) SELECT ?, ?, COUNT(DISTINCT " + column[1] + "), " +
+                    "SUM(" + column[1] + " IS NULL), MIN(" + column[1] + "), MAX(" + column[1] + ") FROM " + column[0];
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, column[0]);
+                stmt.setString(2, column[1]);
+                stmt.executeUpdate();
+            }
+        }
+
+        for (String[] column : VALUE_COLUMNS) {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO Stats_Value (column_name, value, row_count) SELECT ?, * FROM (" + column[1] + ")")) {
+                stmt.setString(1, column[0]);
+                stmt.executeUpdate();
+            }
+        }
+
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM Delay_Reason")) {
+            delayRows = rs.next() ? rs.getLong(1) : 0;
+        }
+        putInfo("flight_rows", flightRows);
+        putInfo("delay_rows", delayRows);
+
+        conn.commit();
+    }
+
+    // Month counts and the arrival delay and scheduled time histograms need the same rules as the
+    // flight table, so they come from one pass in Java rather than SQL.
+    private void scanFlights() throws SQLException {
+        TreeMap<Integer, long[]> months = new TreeMap<>(); // flights, cancelled, diverted, delayed
+        long[] arrivalDelays = new long[DELAY_EDGES.length];
+        long[] departureHours = new long[24];
+        long[] arrivalHours = new long[24];
+        int maxArrivalDelay = 0;
+
+        String sql = "SELECT date_key, cancelled, diverted, scheduled_departure, scheduled_arrival, actual_arrival " +
+                "FROM Flight";
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                boolean cancelled = rs.getBoolean("cancelled");
+                boolean diverted = rs.getBoolean("diverted");
+                int delay = Flight.delayMinutes(cancelled, diverted, rs.getInt("scheduled_arrival"),
+                        rs.getInt("actual_arrival"));
+
+                long[] month = months.computeIfAbsent(rs.getInt("date_key") / 100, k -> new long[4]);
+                month[0]++;
+                if (cancelled) month[1]++;
+                if (diverted) month[2]++;
+                if (delay > 15) month[3]++;
+
+                arrivalDelays[bucket(delay)]++;
+                maxArrivalDelay = Math.max(maxArrivalDelay, delay);
+                departureHours[hour(rs.getInt("scheduled_departure"))]++;
+                arrivalHours[hour(rs.getInt("scheduled_arrival"))]++;
+                flightRows++;
+            }
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO Stats_Month (month_key, flights, cancelled, diverted, delayed) VALUES (?, ?, ?, ?, ?)")) {
+            for (Map.Entry<Integer, long[]> month : months.entrySet()) {
+                stmt.setInt(1, month.getKey());
+                for (int i = 0; i < 4; i++) {
+                    stmt.setLong(i + 2, month.getValue()[i]);
+                }
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+
+        writeDelayHistogram("arrival_delay", arrivalDelays, maxArrivalDelay);
+        for (int h = 0; h < 24; h++) {
+            writeBucket("scheduled_departure", h * 100, (h + 1) * 100, departureHours[h]);
+            writeBucket("scheduled_arrival", h * 100, (h + 1) * 100, arrivalHours[h]);
+        }
+    }
+
+    private void writeDelayLengthHistogram() throws SQLException {
+        long[] counts = new long[DELAY_EDGES.length];
+        int max = 0;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT delay_length, COUNT(*) FROM Delay_Reason GROUP BY delay_length")) {
+            while (rs.next()) {
+                int minutes = rs.getInt(1);
+                counts[bucket(minutes)] += rs.getLong(2);
+                max = Math.max(max, minutes);
+            }
+        }
+        writeDelayHistogram("delay_length", counts, max);
+    }
+
+    private void writeDelayHistogram(String column, long[] counts, int max) throws SQLException {
+        for (int i = 0; i < DELAY_EDGES.length; i++) {
+            int high = i + 1 < DELAY_EDGES.length ? DELAY_EDGES[i + 1] : Math.max(max + 1, DELAY_EDGES[i] + 1);
+            writeBucket(column, DELAY_EDGES[i], high, counts[i]);
+        }
+    }
+
+    private void writeBucket(String column, int low, int high, long count) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO Stats_Histogram (column_name, bucket_low, bucket_high, row_count) VALUES (?, ?, ?, ?)")) {
+            stmt.setString(1, column);
+            stmt.setInt(2, low);
+            stmt.setInt(3, high);
+            stmt.setLong(4, count);
+            stmt.executeUpdate();
+        }
+    }
+
+    private void putInfo(String key, long value) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT OR REPLACE INTO Dataset_Info (info_key, info_value) VALUES (?, ?)")) {
+            stmt.setString(1, key);
+            stmt.setString(2, String.valueOf(value));
+            stmt.executeUpdate();
+        }
+    }
+
+    // Negative delays (there shouldn't be any) count in the first bucket.
+    private static int bucket(int minutes) {
+        int i = DELAY_EDGES.length - 1;
+        while (i > 0 && minutes < DELAY_EDGES[i]) i--;
+        return i;
+    }
+
+    // HHMM to an hour of the day, 2400 counts as hour 0.
+    private static int hour(int time) {
+        return Math.floorMod(time / 100, 24);
+    }
+
+    public long getFlightRows() {
+        return flightRows;
+    }
+
+    public long getDelayRows() {
+        return delayRows;
+    }
+}
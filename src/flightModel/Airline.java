@@ -0,0 +1,44 @@
+package flightModel;
+
+// An airline from the Airline table. Immutable, and shared by every flight that references it.
+public final class Airline {
+
+    private final String code;
+    private final String name;
+    private final String displayName;
+
+    public Airline(String code, String name) {
+        this.code = code;
+        this.name = name;
+        this.displayName = code + " - " + name;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    // Null if the table has no name for the code.
+    public String getName() {
+        return name;
+    }
+
+    // "AA - American Airlines Inc.", the format the dropdowns use.
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Airline && code.equals(((Airline) o).code);
+    }
+
+    @Override
+    public int hashCode() {
+        return code.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getDisplayName();
+    }
+}
@@ -0,0 +1,44 @@
+package flightModel;
+
+// An airport from the Airport table. Immutable, and shared by every flight that references it.
+public final class Airport {
+
+    private final String code;
+    private final String name;
+    private final String displayName;
+
+    public Airport(String code, String name) {
+        this.code = code;
+        this.name = name;
+        this.displayName = code + " - " + name;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    // The city name the data uses for the airport, null if the table has none.
+    public String getName() {
+        return name;
+    }
+
+    // "ATL - Atlanta, GA", the format the dropdowns use.
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Airport && code.equals(((Airport) o).code);
+    }
+
+    @Override
+    public int hashCode() {
+        return code.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getDisplayName();
+    }
+}
@@ -2,38 +2,123 @@ package flightModel;
 
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// One flight, immutable once built with Flight.builder(). Kept small because searches hold hundreds of
+// thousands of them: the date is a yyyymmdd int, times are shorts, airline and airports are the shared
+// registry objects, and delays are packed into one int array. Anything the table shows that takes work
+// to produce (status, formatted date, flight number) is worked out on first use and kept.
+public final class Flight {
+
+    private static final byte FLAG_CANCELLED = 1;
+    private static final byte FLAG_DIVERTED = 2;
+    private static final byte FLAG_NO_DELAY_BREAKDOWN = 4;
+
+    // Delays pack the reason's index in REASONS into the top byte and the minutes into the rest.
+    private static final int REASON_SHIFT = 24;
+    private static final int MINUTES_MASK = (1 << REASON_SHIFT) - 1;
+    private static final int[] NO_DELAYS = new int[0];
+
+    // Reasons seen so far. The usual ones are fixed, anything else the data has is added as it turns up.
+    private static final List<String> REASONS = new CopyOnWriteArrayList<>(List.of(
+            "CARRIER", "WEATHER", "NAS", "SECURITY", "LATE_AIRCRAFT"));
+    private static final Map<String, Integer> REASON_INDEX = new ConcurrentHashMap<>();
+
+    private static final DateTimeFormatter ISO_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter DB_DATE = DateTimeFormatter.ofPattern("ddMMyyyy");
+
+    // "HH:MM" for every hhmm time, filled in as they're asked for.
+    private static final String[] TIME_STRINGS = new String[2401];
+
+    static {
+        for (int i = 0; i < REASONS.size(); i++) {
+            REASON_INDEX.put(REASONS.get(i), i);
+        }
+    }
 
-public class Flight {
-
-    private int flightId;
-    private LocalDate date;
-    private String airlineCode;
-    private String airlineName;
-    private int flightNumber;
-    private String originCode;
-    private String originCity;
-    private String destCode;
-    private String destCity;
-    private int scheduledDeparture;
-    private int actualDeparture;
-    private int scheduledArrival;
-    private int actualArrival;
-    private boolean cancelled;
-    private String cancellationCode;
-    private boolean diverted;
-    private List<Delay> delays = new ArrayList<>();
-
-    public Flight() {
-        // Our default constructor.
+    private final int flightId;
+    private final int date; // yyyymmdd, 0 if unknown
+    private final Airline airline;
+    private final Airport origin;
+    private final Airport destination;
+    private final int flightNumber;
+    private final short scheduledDeparture;
+    private final short actualDeparture;
+    private final short scheduledArrival;
+    private final short actualArrival;
+    private final short delayMinutes;
+    private final byte flags;
+    private final char cancellationCode; // 0 for none
+    private final int[] delays;
+
+    // Derived on first use. Racing threads just work out the same value twice.
+    private String fullFlightNumber;
+    private String formattedDate;
+    private String status;
+
+    private Flight(Builder b) {
+        flightId = b.flightId;
+        date = b.date;
+        airline = b.airline;
+        origin = b.origin;
+        destination = b.destination;
+        flightNumber = b.flightNumber;
+        scheduledDeparture = (short) b.scheduledDeparture;
+        actualDeparture = (short) b.actualDeparture;
+        scheduledArrival = (short) b.scheduledArrival;
+        actualArrival = (short) b.actualArrival;
+        flags = (byte) ((b.cancelled ? FLAG_CANCELLED : 0) | (b.diverted ? FLAG_DIVERTED : 0) |
+                (b.delayBreakdown ? 0 : FLAG_NO_DELAY_BREAKDOWN));
+        cancellationCode = b.cancellationCode;
+        delays = b.delayCount == 0 ? NO_DELAYS : Arrays.copyOf(b.delays, b.delayCount);
+        delayMinutes = (short) delayMinutes(b.cancelled, b.diverted, b.scheduledArrival, b.actualArrival);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // This flight with its per-reason delays filled in, for flights from a search run without them.
+    public Flight withDelays(List<Delay> delays) {
+        Builder b = new Builder();
+        b.flightId = flightId;
+        b.date = date;
+        b.airline = airline;
+        b.origin = origin;
+        b.destination = destination;
+        b.flightNumber = flightNumber;
+        b.departure(scheduledDeparture, actualDeparture);
+        b.arrival(scheduledArrival, actualArrival);
+        b.cancelled = isCancelled();
+        b.cancellationCode = cancellationCode;
+        b.diverted = isDiverted();
+        for (Delay delay : delays) {
+            b.addDelay(delay.getReason(), delay.getMinutes());
+        }
+        return b.build();
     }
 
     public String getFullFlightNumber() {
-        return airlineCode + flightNumber;
+        String value = fullFlightNumber;
+        if (value == null) {
+            value = getAirlineCode() + flightNumber;
+            fullFlightNumber = value;
+        }
+        return value;
     }
 
     public int getDelayMinutes() {
+        return delayMinutes;
+    }
+
+    // Arrival delay in minutes, 0 for cancelled, diverted or early flights. Shared with code that
+    // classifies flights without building them.
+    public static int delayMinutes(boolean cancelled, boolean diverted, int scheduledArrival, int actualArrival) {
         if (cancelled || diverted || actualArrival == 0 || scheduledArrival == 0) {
             return 0;
         }
@@ -54,21 +139,30 @@ public class Flight {
     }
 
     public String getStatus() {
-        if (cancelled) {
-            return "Cancelled" + (cancellationCode != null ? " (" + formatCancellationCode(cancellationCode) + ")" : "");
-        } else if (diverted) {
+        String value = status;
+        if (value == null) {
+            value = computeStatus();
+            status = value;
+        }
+        return value;
+    }
+
+    private String computeStatus() {
+        if (isCancelled()) {
+            String code = getCancellationCode();
+            return "Cancelled" + (code != null ? " (" + formatCancellationCode(code) + ")" : "");
+        } else if (isDiverted()) {
             return "Diverted";
-        } else if (getDelayMinutes() > 15) {
-            return "Delayed (" + getDelayMinutes() + " min)";
+        } else if (delayMinutes > 15) {
+            return "Delayed (" + delayMinutes + " min)";
         } else if (actualArrival > 0) {
             return "On Time";
         } else {
             return "Scheduled";
         }
     }
-    private String formatCancellationCode(String code) {
-        if (code == null) return "";
 
+    private String formatCancellationCode(String code) {
         switch (code.trim().toUpperCase()) {
             case "A": return "Carrier";
             case "B": return "Weather";
@@ -78,7 +172,7 @@ public class Flight {
         }
     }
 
-    private int timeToMinutes(int time) {
+    private static int timeToMinutes(int time) {
         int hours = time / 100;
         int minutes = time % 100;
         return hours * 60 + minutes;
@@ -88,9 +182,15 @@ public class Flight {
         if (time == 0) {
             return "N/A";
         }
-        int hours = time / 100;
-        int minutes = time % 100;
-        return String.format("%02d:%02d", hours, minutes);
+        if (time < 0 || time >= TIME_STRINGS.length) {
+            return String.format("%02d:%02d", time / 100, time % 100);
+        }
+        String value = TIME_STRINGS[time];
+        if (value == null) {
+            value = String.format("%02d:%02d", time / 100, time % 100);
+            TIME_STRINGS[time] = value;
+        }
+        return value;
     }
 
     public static class Delay {
@@ -122,181 +222,285 @@ public class Flight {
         }
     }
 
-    // Getters and setters
+    // Getters
     public int getFlightId() {
         return flightId;
     }
 
-    public void setFlightId(int flightId) {
-        this.flightId = flightId;
-    }
-
     public LocalDate getDate() {
-        return date;
+        return date != 0 ? LocalDate.of(date / 10000, date / 100 % 100, date % 100) : null;
     }
 
-    public void setDate(LocalDate date) {
-        this.date = date;
+    // yyyymmdd, 0 if the date is unknown.
+    public int getDateKey() {
+        return date;
     }
 
-    public void setDateFromString(String dateStr) {
-        if (dateStr != null) {
-            try {
-                // Check for American format (YYYY-MM-DD)
-                if (dateStr.contains("-") && dateStr.length() == 10) {
-                    this.date = LocalDate.parse(dateStr, DateTimeFormatter.ofPattern("yyyy-MM-dd"));
-                }
-                // UK date format as stored in the database (DDMMYYYY)
-                else if (dateStr.length() == 8) {
-                    this.date = LocalDate.parse(dateStr, DateTimeFormatter.ofPattern("ddMMyyyy"));
-                }
-            } catch (Exception e) {
-                System.err.println("Invalid date format: " + dateStr);
-            }
+    public String getFormattedDate() {
+        String value = formattedDate;
+        if (value == null) {
+            value = date != 0
+                    ? String.format("%02d/%02d/%04d", date % 100, date / 100 % 100, date / 10000)
+                    : "N/A";
+            formattedDate = value;
         }
+        return value;
     }
 
-    public String getFormattedDate() {
-        return date != null ? date.format(DateTimeFormatter.ofPattern("dd/MM/yyyy")) : "N/A";
+    // Shared with every other flight of the airline, see DimensionRegistry.
+    public Airline getAirline() {
+        return airline;
     }
 
     public String getAirlineCode() {
-        return airlineCode;
-    }
-
-    public void setAirlineCode(String airlineCode) {
-        this.airlineCode = airlineCode;
+        return airline != null ? airline.getCode() : null;
     }
 
     public String getAirlineName() {
-        return airlineName;
-    }
-
-    public void setAirlineName(String airlineName) {
-        this.airlineName = airlineName;
+        return airline != null ? airline.getName() : null;
     }
 
     public int getFlightNumber() {
         return flightNumber;
     }
 
-    public void setFlightNumber(int flightNumber) {
-        this.flightNumber = flightNumber;
+    public Airport getOrigin() {
+        return origin;
     }
 
     public String getOriginCode() {
-        return originCode;
-    }
-
-    public void setOriginCode(String originCode) {
-        this.originCode = originCode;
+        return origin != null ? origin.getCode() : null;
     }
 
     public String getOriginCity() {
-        return originCity;
+        return origin != null ? origin.getName() : null;
     }
 
-    public void setOriginCity(String originCity) {
-        this.originCity = originCity;
+    public Airport getDestination() {
+        return destination;
     }
 
     public String getDestCode() {
-        return destCode;
-    }
-
-    public void setDestCode(String destCode) {
-        this.destCode = destCode;
+        return destination != null ? destination.getCode() : null;
     }
 
     public String getDestCity() {
-        return destCity;
-    }
-
-    public void setDestCity(String destCity) {
-        this.destCity = destCity;
+        return destination != null ? destination.getName() : null;
     }
 
     public int getScheduledDeparture() {
         return scheduledDeparture;
     }
 
-    public void setScheduledDeparture(int scheduledDeparture) {
-        this.scheduledDeparture = scheduledDeparture;
-    }
-
     public int getActualDeparture() {
         return actualDeparture;
     }
 
-    public void setActualDeparture(int actualDeparture) {
-        this.actualDeparture = actualDeparture;
-    }
-
     public int getScheduledArrival() {
         return scheduledArrival;
     }
 
-    public void setScheduledArrival(int scheduledArrival) {
-        this.scheduledArrival = scheduledArrival;
-    }
-
     public int getActualArrival() {
         return actualArrival;
     }
 
-    public void setActualArrival(int actualArrival) {
-        this.actualArrival = actualArrival;
-    }
-
     public boolean isCancelled() {
-        return cancelled;
-    }
-
-    public void setCancelled(boolean cancelled) {
-        this.cancelled = cancelled;
+        return (flags & FLAG_CANCELLED) != 0;
     }
 
     public String getCancellationCode() {
-        return cancellationCode;
+        return cancellationCode != 0 ? String.valueOf(cancellationCode) : null;
     }
 
-    public void setCancellationCode(String cancellationCode) {
-        this.cancellationCode = cancellationCode;
+    public boolean isDiverted() {
+        return (flags & FLAG_DIVERTED) != 0;
     }
 
-    public boolean isDiverted() {
-        return diverted;
+    // False when the flight came from a search that left the per-reason delays out, in which case
+    // there are none to read yet and getDelayMinutes is the only delay figure.
+    public boolean hasDelayBreakdown() {
+        return (flags & FLAG_NO_DELAY_BREAKDOWN) == 0;
     }
 
-    public void setDiverted(boolean diverted) {
-        this.diverted = diverted;
+    public int getDelayCount() {
+        return delays.length;
     }
 
-    public List<Delay> getDelays() {
-        return delays;
+    public String getDelayReason(int index) {
+        return REASONS.get(delays[index] >>> REASON_SHIFT);
     }
 
-    public void addDelay(Delay delay) {
-        this.delays.add(delay);
+    // Minutes of one reported delay, see getDelayMinutes for the arrival delay.
+    public int getDelayLength(int index) {
+        return delays[index] & MINUTES_MASK;
     }
 
-    public void setDelays(List<Delay> delays) {
-        this.delays = delays;
+    // A read-only view, each Delay is made as it's read. Use getDelayCount and friends in loops.
+    public List<Delay> getDelays() {
+        return new AbstractList<Delay>() {
+            @Override
+            public Delay get(int index) {
+                return new Delay(getDelayReason(index), getDelayLength(index));
+            }
+
+            @Override
+            public int size() {
+                return delays.length;
+            }
+        };
     }
 
     public String getOriginDisplay() {
-        return originCode + " - " + originCity;
+        return origin != null ? origin.getDisplayName() : null;
     }
 
     public String getDestinationDisplay() {
-        return destCode + " - " + destCity;
+        return destination != null ? destination.getDisplayName() : null;
     }
 
     @Override
     public String toString() {
-        return getFullFlightNumber() + " from " + originCode + " to " + destCode + " on " + getFormattedDate();
+        return getFullFlightNumber() + " from " + getOriginCode() + " to " + getDestCode() + " on " + getFormattedDate();
     }
-}
 
+    private static int reasonIndex(String reason) {
+        if (reason == null) {
+            reason = "UNSPECIFIED";
+        }
+        Integer index = REASON_INDEX.get(reason);
+        if (index != null) {
+            return index;
+        }
+        synchronized (REASONS) {
+            index = REASON_INDEX.get(reason);
+            if (index == null) {
+                index = REASONS.size();
+                REASONS.add(reason);
+                REASON_INDEX.put(reason, index);
+            }
+            return index;
+        }
+    }
+
+    // Collects a flight's fields, then build() makes the immutable Flight. Delays can be added until then.
+    public static class Builder {
+        private int flightId;
+        private int date;
+        private Airline airline;
+        private Airport origin;
+        private Airport destination;
+        private int flightNumber;
+        private int scheduledDeparture;
+        private int actualDeparture;
+        private int scheduledArrival;
+        private int actualArrival;
+        private boolean cancelled;
+        private boolean diverted;
+        private char cancellationCode;
+        private int[] delays = NO_DELAYS;
+        private int delayCount;
+        private boolean delayBreakdown = true;
+
+        private Builder() {
+        }
+
+        public Builder flightId(int flightId) {
+            this.flightId = flightId;
+            return this;
+        }
+
+        public int getFlightId() {
+            return flightId;
+        }
+
+        // yyyymmdd, 0 for unknown.
+        public Builder dateKey(int date) {
+            this.date = date;
+            return this;
+        }
+
+        public Builder date(LocalDate date) {
+            this.date = date != null ? date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth() : 0;
+            return this;
+        }
 
+        // DDMMYYYY as stored in the database, or YYYY-MM-DD.
+        public Builder dateFromString(String dateStr) {
+            if (dateStr != null) {
+                try {
+                    if (dateStr.contains("-") && dateStr.length() == 10) {
+                        date(LocalDate.parse(dateStr, ISO_DATE));
+                    } else if (dateStr.length() == 8) {
+                        date(LocalDate.parse(dateStr, DB_DATE));
+                    }
+                } catch (Exception e) {
+                    System.err.println("Invalid date format: " + dateStr);
+                }
+            }
+            return this;
+        }
 
+        public Builder airline(Airline airline) {
+            this.airline = airline;
+            return this;
+        }
+
+        public Builder flightNumber(int flightNumber) {
+            this.flightNumber = flightNumber;
+            return this;
+        }
+
+        public Builder origin(Airport origin) {
+            this.origin = origin;
+            return this;
+        }
+
+        public Builder destination(Airport destination) {
+            this.destination = destination;
+            return this;
+        }
+
+        // Times are hhmm.
+        public Builder departure(int scheduled, int actual) {
+            this.scheduledDeparture = scheduled;
+            this.actualDeparture = actual;
+            return this;
+        }
+
+        public Builder arrival(int scheduled, int actual) {
+            this.scheduledArrival = scheduled;
+            this.actualArrival = actual;
+            return this;
+        }
+
+        public Builder cancelled(boolean cancelled, String cancellationCode) {
+            this.cancelled = cancelled;
+            this.cancellationCode = cancellationCode != null && !cancellationCode.isEmpty()
+                    ? cancellationCode.charAt(0) : 0;
+            return this;
+        }
+
+        public Builder diverted(boolean diverted) {
+            this.diverted = diverted;
+            return this;
+        }
+
+        public Builder addDelay(String reason, int minutes) {
+            if (delayCount == delays.length) {
+                delays = Arrays.copyOf(delays, Math.max(2, delayCount * 2));
+            }
+            delays[delayCount++] = (reasonIndex(reason) << REASON_SHIFT) | (minutes & MINUTES_MASK);
+            return this;
+        }
+
+        // The per-reason delays weren't loaded, see hasDelayBreakdown.
+        public Builder withoutDelayBreakdown() {
+            this.delayBreakdown = false;
+            return this;
+        }
+
+        public Flight build() {
+            return new Flight(this);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import flightModel.Flight;
+import service.CancellationToken;
+import service.DelayDistribution;
+import service.FlightDataService;
+import service.FlightQuery;
+import service.QueryRejectedException;
+import service.SearchCount;
+import service.SearchPage;
+import service.SearchTooLargeException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+
+// Read-only HTTP/JSON front end for FlightDataService, on the JDK's built-in server.
+// Every request gets its own (virtual, when the JDK has them) thread; the service's connection pool
+// decides how many of them are in the database at once, the rest wait for a connection.
+//
+//   GET /api/health
+//   GET /api/airlines, /api/airports, /api/years
+//   GET /api/flights?airline=&flightNumber=&origin=&destination=&from=&to=&minDelay=&maxDelay=&reason=
+//       &includeCancelled=false&includeDiverted=false, airline/origin/destination/reason take a comma list
+//       and delays=false leaves out the per-reason delays (each flight's "delays" is then null)
+//       add limit= (and after=) for one page, or format=ndjson to stream every match a line at a time,
+//       or sort=date|-date|delay|-delay with limit= for the top matches
+//   GET /api/flights/count?...same filters...&estimate=true
+//   GET /api/analytics/airlines?year=, /api/analytics/airports?year=
+//   GET /api/analytics/monthly?airport=&from=&to=
+//   GET /api/analytics/distributions?grouping=airline|airport|route|month|day&year=
+//   GET /api/analytics/top?grouping=airline|airport|route|month|day|flight&metric=avg_delay|p95_delay|
+//       cancellation_rate&year=&airport=&k=100 (at most 10000)&minFlights=2, worst first, airport= keeps its departures
+//   GET /api/metrics
+// Requests the service's scheduler turns away get 503 with Retry-After.
+public class FlightQueryServer {
+
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    private static final int MAX_PAGE_SIZE = 50_000;
+    private static final int DEFAULT_TOP_K = 100;
+    private static final int MAX_TOP_K = 10_000;
+
+    // NDJSON walks the search in pages this size, so memory stays flat however many rows match.
+    private static final int STREAM_PAGE_SIZE = 5000;
+
+    // Pending connections the OS queues before accept, so a burst of clients isn't refused.
+    private static final int BACKLOG = 1024;
+
+    private final FlightDataService service;
+    private final HttpServer server;
+    private final ExecutorService executor = newRequestExecutor();
+    private final Duration requestTimeout;
+
+    public FlightQueryServer(FlightDataService service, int port, Duration requestTimeout) throws IOException {
+        this.service = service;
+        this.requestTimeout = requestTimeout;
+        this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        server.setExecutor(executor);
+
+        server.createContext("/api/health", exchange -> handle(exchange, this::health));
+        server.createContext("/api/airlines", exchange -> handle(exchange, p -> dimensionList(service.getAirlines())));
+        server.createContext("/api/airports", exchange -> handle(exchange, p -> dimensionList(service.getAirports())));
+        server.createContext("/api/years", exchange -> handle(exchange, p -> service.getAvailableYears().toString()));
+        server.createContext("/api/flights", this::handleFlights);
+        server.createContext("/api/analytics/airlines", exchange -> handle(exchange, p ->
+                Json.numberMap(await(service.getAverageDelayByAirlineAsync(p.getInt("year", latestYear()),
+                        p.token, requestTimeout)))));
+        server.createContext("/api/analytics/airports", exchange -> handle(exchange, p ->
+                Json.numberMap(await(service.getAverageDelayByAirportAsync(p.getInt("year", latestYear()),
+                        p.token, requestTimeout)))));
+        server.createContext("/api/analytics/monthly", exchange -> handle(exchange, p ->
+                Json.numberMap(new TreeMap<>(await(service.getDelaysByMonthAsync(p.require("airport"),
+                        p.getInt("from", firstYear()), p.getInt("to", latestYear()), p.token, requestTimeout))))));
+        server.createContext("/api/analytics/distributions", exchange -> handle(exchange, this::distributions));
+        server.createContext("/api/analytics/top", exchange -> handle(exchange, p ->
+                Json.ranking(await(service.getTopKAsync(p.get("grouping", FlightDataService.GROUP_ROUTE),
+                        p.get("metric", FlightDataService.METRIC_AVERAGE_DELAY), p.getInt("year", latestYear()),
+                        p.get("airport", null), topK(p), p.getInt("minFlights", 2),
+                        p.token, requestTimeout)))));
+        server.createContext("/api/metrics", this::handleMetrics);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private String health(Params p) {
+        return "{\"status\":\"ok\",\"dataVersion\":" + Json.quote(service.getDataVersion()) + "}";
+    }
+
+    private static int topK(Params p) {
+        int k = p.getInt("k", DEFAULT_TOP_K);
+        if (k < 1 || k > MAX_TOP_K) {
+            throw new IllegalArgumentException("k must be between 1 and " + MAX_TOP_K);
+        }
+        return k;
+    }
+
+    // Analytics default to the newest year in the data, and monthly series to all of it.
+    private int latestYear() throws SQLException {
+        List<Integer> years = service.getAvailableYears();
+        return years.isEmpty() ? LocalDate.now().getYear() : years.get(years.size() - 1);
+    }
+
+    private int firstYear() throws SQLException {
+        List<Integer> years = service.getAvailableYears();
+        return years.isEmpty() ? LocalDate.now().getYear() : years.get(0);
+    }
+
+    // "AA - American Airlines" strings from the service become {"code": ..., "name": ...}.
+    private static String dimensionList(List<String> entries) {
+        StringBuilder sb = new StringBuilder("[");
+        for (String entry : entries) {
+            int split = entry.indexOf(" - ");
+            String code = split >= 0 ? entry.substring(0, split) : entry;
+            String name = split >= 0 ? entry.substring(split + 3) : null;
+            if (sb.length() > 1) sb.append(',');
+            sb.append("{\"code\":").append(Json.quote(code)).append(",\"name\":").append(Json.quote(name)).append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+    private String distributions(Params p) throws SQLException {
+        String grouping = p.get("grouping", FlightDataService.GROUP_AIRLINE);
+        Map<String, DelayDistribution> results = await(service.getDelayDistributionsAsync(grouping,
+                p.getInt("year", latestYear()), p.token, requestTimeout));
+
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, DelayDistribution> entry : new TreeMap<>(results).entrySet()) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append(Json.quote(entry.getKey())).append(':').append(Json.distribution(entry.getValue()));
+        }
+        return sb.append('}').toString();
+    }
+
+    private void handleFlights(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/api/flights/count")) {
+            handle(exchange, this::count);
+        } else if (!path.equals("/api/flights") && !path.equals("/api/flights/")) {
+            send(exchange, 404, Json.error("Not found: " + path));
+        } else if ("ndjson".equalsIgnoreCase(new Params(exchange).get("format", ""))) {
+            streamFlights(exchange);
+        } else {
+            handle(exchange, this::flights);
+        }
+    }
+
+    private String count(Params p) throws SQLException {
+        FlightQuery query = searchQuery(p);
+        SearchCount count = p.getBoolean("estimate")
+                ? await(service.estimateFlightCountAsync(query, p.token, requestTimeout))
+                : await(service.countFlightsAsync(query, p.token, requestTimeout));
+        return "{\"count\":" + count.getCount() + ",\"exact\":" + count.isExact() +
+                ",\"source\":" + Json.quote(count.getSource()) + "}";
+    }
+
+    // With limit= it's one page plus the id to continue after, or with sort= too the first limit flights
+    // in that order. Otherwise the whole result in one array (refused with 413 above the service's row
+    // limit, use a page or NDJSON for those).
+    private String flights(Params p) throws SQLException {
+        FlightQuery query = searchQuery(p);
+        if (p.has("limit")) {
+            int limit = p.getInt("limit", DEFAULT_PAGE_SIZE);
+            if (limit < 1 || limit > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+            }
+            if (!query.isFlightIdOrder()) {
+                return flightArray(await(service.searchFlightsAsync(query.toBuilder().limit(limit).build(),
+                        p.token, requestTimeout)));
+            }
+            SearchPage page = await(service.searchFlightsPageAsync(query, p.getInt("after", 0), limit,
+                    p.token, requestTimeout));
+            return "{\"flights\":" + flightArray(page.getFlights()) + ",\"hasMore\":" + page.hasMore() +
+                    ",\"next\":" + (page.hasMore() ? String.valueOf(page.getLastFlightId()) : "null") + "}";
+        }
+
+        List<Flight> flights = await(service.searchFlightsAsync(query, p.token, requestTimeout));
+        return flightArray(flights);
+    }
+
+    private static String flightArray(List<Flight> flights) {
+        StringBuilder sb = new StringBuilder(flights.size() * 320 + 2).append('[');
+        for (Flight flight : flights) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append(Json.flight(flight));
+        }
+        return sb.append(']').toString();
+    }
+
+    // One flight per line, written as each page arrives. Chunked, so the client sees rows straight away
+    // and neither side holds the whole result. The timeout applies per page.
+    private void streamFlights(HttpExchange exchange) throws IOException {
+        Params p = new Params(exchange);
+        FlightQuery query;
+        try {
+            query = searchQuery(p);
+            if (!query.isFlightIdOrder()) {
+                throw new IllegalArgumentException("NDJSON streams in flight id order, it can't be sorted");
+            }
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, Json.error(e.getMessage()));
+            return;
+        }
+
+        int after = 0;
+        boolean started = false;
+        Writer out = null;
+        try {
+            while (true) {
+                SearchPage page = await(service.searchFlightsPageAsync(query, after, STREAM_PAGE_SIZE,
+                        p.token, requestTimeout));
+
+                if (!started) {
+                    exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+                    exchange.sendResponseHeaders(200, 0);
+                    out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8),
+                            64 * 1024);
+                    started = true;
+                }
+                for (Flight flight : page.getFlights()) {
+                    out.write(Json.flight(flight));
+                    out.write('\n');
+                }
+                out.flush();
+
+                if (!page.hasMore()) break;
+                after = page.getLastFlightId();
+            }
+        } catch (SQLException | RuntimeException e) {
+            // Once rows have gone out the status can't change, so the error goes in as a last line.
+            if (started) {
+                out.write(Json.error(errorMessage(e)));
+                out.write('\n');
+            } else {
+                sendError(exchange, e);
+                return;
+            }
+        } catch (IOException e) {
+            // Client went away, stop fetching.
+            p.token.cancel();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // Already disconnected.
+                }
+            }
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        byte[] body = (service.getMetrics().getReport() + "\n" + service.getScheduler().getReport() + "\n" +
+                service.getQueryReport(10))
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // Runs a JSON endpoint and maps failures onto status codes.
+    private void handle(HttpExchange exchange, Endpoint endpoint) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, Json.error("Only GET is supported"));
+                return;
+            }
+            send(exchange, 200, endpoint.run(new Params(exchange)));
+        } catch (SQLException | RuntimeException e) {
+            sendError(exchange, e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendError(HttpExchange exchange, Exception e) throws IOException {
+        int status;
+        if (e instanceof IllegalArgumentException) {
+            status = 400;
+        } else if (e instanceof SearchTooLargeException) {
+            status = 413;
+        } else if (e instanceof QueryRejectedException) {
+            // Shed by the service's scheduler, nothing ran.
+            status = 503;
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        } else if (e instanceof RequestTimeoutException) {
+            status = 504;
+        } else {
+            status = 500;
+            System.err.println("Request failed: " + exchange.getRequestURI() + ": " + e);
+        }
+        send(exchange, status, Json.error(errorMessage(e)));
+    }
+
+    private static String errorMessage(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // Waits for a service future, unwrapping it back into the exception the call threw.
+    private static <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new SQLException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new RequestTimeoutException();
+            }
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    private static class RequestTimeoutException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        RequestTimeoutException() {
+            super("The query took too long and was cancelled");
+        }
+    }
+
+    private interface Endpoint {
+        String run(Params params) throws SQLException;
+    }
+
+    // Query string parameters, plus the cancellation token for this request's queries.
+    private static class Params {
+        final Map<String, String> values = new HashMap<>();
+        final CancellationToken token = new CancellationToken();
+
+        Params(HttpExchange exchange) {
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query == null) return;
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) continue;
+                int eq = pair.indexOf('=');
+                String key = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, StandardCharsets.UTF_8);
+                String value = eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8) : "";
+                values.put(key, value);
+            }
+        }
+
+        boolean has(String name) {
+            String value = values.get(name);
+            return value != null && !value.trim().isEmpty();
+        }
+
+        String get(String name, String defaultValue) {
+            return has(name) ? values.get(name).trim() : defaultValue;
+        }
+
+        String require(String name) {
+            if (!has(name)) {
+                throw new IllegalArgumentException("Missing parameter: " + name);
+            }
+            return values.get(name).trim();
+        }
+
+        Integer getInteger(String name) {
+            if (!has(name)) return null;
+            try {
+                return Integer.parseInt(values.get(name).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number: " + name + "=" + values.get(name));
+            }
+        }
+
+        int getInt(String name, int defaultValue) {
+            Integer value = getInteger(name);
+            return value != null ? value : defaultValue;
+        }
+
+        boolean getBoolean(String name) {
+            return has(name) && Boolean.parseBoolean(values.get(name).trim());
+        }
+
+        boolean getBoolean(String name, boolean defaultValue) {
+            return has(name) ? Boolean.parseBoolean(values.get(name).trim()) : defaultValue;
+        }
+
+        // "a,b,c" split on the commas, empty when the parameter isn't there. Blank parts are ignored by the query.
+        List<String> getList(String name) {
+            return has(name) ? Arrays.asList(values.get(name).split(",")) : List.of();
+        }
+
+        LocalDate getDate(String name) {
+            if (!has(name)) return null;
+            try {
+                return LocalDate.parse(values.get(name).trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Dates are yyyy-mm-dd: " + name + "=" + values.get(name));
+            }
+        }
+    }
+
+    // The search criteria, same names as the search form. Multi-valued filters take a comma list and
+    // match any of them, sort is a FlightQuery sort with a leading - for descending.
+    private static FlightQuery searchQuery(Params p) {
+        FlightQuery.Builder query = FlightQuery.builder()
+                .airlines(p.getList("airline"))
+                .flightNumber(p.get("flightNumber", null))
+                .origins(p.getList("origin"))
+                .destinations(p.getList("destination"))
+                .dateRange(p.getDate("from"), p.getDate("to"))
+                .delayBetween(p.getInteger("minDelay"), p.getInteger("maxDelay"))
+                .delayReasons(p.getList("reason"))
+                .includeCancelled(p.getBoolean("includeCancelled", true))
+                .includeDiverted(p.getBoolean("includeDiverted", true))
+                .includeDelays(p.getBoolean("delays", true));
+
+        String sort = p.get("sort", null);
+        if (sort != null) {
+            boolean descending = sort.startsWith("-");
+            query.sortBy(descending ? sort.substring(1) : sort, descending);
+        }
+        return query.build();
+    }
+
+    // One thread per request. Virtual threads when the JDK has them, so hundreds of clients waiting on
+    // the database cost almost nothing, otherwise a cached pool of daemon threads.
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "flight-http");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import flightModel.Flight;
+import service.DelayDistribution;
+import service.RankedGroup;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+// Just enough JSON writing for the server's responses, so it doesn't need a library.
+public class Json {
+
+    private Json() {
+    }
+
+    public static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (ch < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        sb.append(ch);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // NaN and infinity aren't valid JSON, they go out as null.
+    public static String number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "null";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+
+    public static String stringArray(Collection<String> values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (String value : values) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append(quote(value));
+        }
+        return sb.append(']').toString();
+    }
+
+    // {"key": number, ...}
+    public static String numberMap(Map<String, ? extends Number> values) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append(quote(entry.getKey())).append(':').append(number(entry.getValue().doubleValue()));
+        }
+        return sb.append('}').toString();
+    }
+
+    public static String flight(Flight f) {
+        StringBuilder sb = new StringBuilder(320);
+        sb.append("{\"flightId\":").append(f.getFlightId());
+        sb.append(",\"date\":").append(f.getDate() != null ? quote(f.getDate().toString()) : "null");
+        sb.append(",\"airline\":").append(quote(f.getAirlineCode()));
+        sb.append(",\"airlineName\":").append(quote(f.getAirlineName()));
+        sb.append(",\"flightNumber\":").append(f.getFlightNumber());
+        sb.append(",\"origin\":").append(quote(f.getOriginCode()));
+        sb.append(",\"originCity\":").append(quote(f.getOriginCity()));
+        sb.append(",\"destination\":").append(quote(f.getDestCode()));
+        sb.append(",\"destinationCity\":").append(quote(f.getDestCity()));
+        sb.append(",\"scheduledDeparture\":").append(f.getScheduledDeparture());
+        sb.append(",\"actualDeparture\":").append(f.getActualDeparture());
+        sb.append(",\"scheduledArrival\":").append(f.getScheduledArrival());
+        sb.append(",\"actualArrival\":").append(f.getActualArrival());
+        sb.append(",\"cancelled\":").append(f.isCancelled());
+        sb.append(",\"cancellationCode\":").append(quote(f.getCancellationCode()));
+        sb.append(",\"diverted\":").append(f.isDiverted());
+        sb.append(",\"status\":").append(quote(f.getStatus()));
+        sb.append(",\"delayMinutes\":").append(f.getDelayMinutes());
+        // null when the search left the per-reason delays out.
+        if (!f.hasDelayBreakdown()) {
+            return sb.append(",\"delays\":null}").toString();
+        }
+        sb.append(",\"delays\":[");
+        for (int i = 0; i < f.getDelayCount(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"reason\":").append(quote(f.getDelayReason(i)))
+                    .append(",\"minutes\":").append(f.getDelayLength(i)).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    public static String distribution(DelayDistribution d) {
+        double[] percentiles = d.getPercentiles(50, 90, 95, 99);
+        StringBuilder sb = new StringBuilder(200);
+        sb.append("{\"count\":").append(d.getCount());
+        sb.append(",\"average\":").append(number(d.getAverage()));
+        sb.append(",\"p50\":").append(number(percentiles[0]));
+        sb.append(",\"p90\":").append(number(percentiles[1]));
+        sb.append(",\"p95\":").append(number(percentiles[2]));
+        sb.append(",\"p99\":").append(number(percentiles[3]));
+        sb.append(",\"max\":").append(number(d.getMax()));
+        sb.append(",\"buckets\":{");
+        String[] labels = DelayDistribution.getBucketLabels();
+        long[] counts = d.getBucketCounts();
+        for (int i = 0; i < labels.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(quote(labels[i])).append(':').append(counts[i]);
+        }
+        return sb.append("}}").toString();
+    }
+
+    public static String ranking(List<RankedGroup> groups) {
+        StringBuilder sb = new StringBuilder("[");
+        for (RankedGroup group : groups) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append("{\"name\":").append(quote(group.getName()))
+                    .append(",\"value\":").append(number(group.getValue()))
+                    .append(",\"flights\":").append(group.getFlights()).append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+    public static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+}
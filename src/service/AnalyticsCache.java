@@ -0,0 +1,114 @@
+package service;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+// Analytics results saved to a side file next to the database, so charts open instantly across sessions.
+// Entries are keyed by method and parameters, and the whole file belongs to one data version.
+public class AnalyticsCache {
+
+    private static final int FILE_MAGIC = 0x464C4143; // "FLAC"
+
+    private final Path file;
+    private final Map<String, Map<String, Double>> entries = new HashMap<>();
+    private String dataVersion;
+
+    public AnalyticsCache(String filePath) {
+        this.file = Paths.get(filePath);
+    }
+
+    // Load what's on disk, but only keep it if it was computed from the current data.
+    public synchronized void load(String currentVersion) {
+        entries.clear();
+        dataVersion = currentVersion;
+
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                System.err.println("Ignoring analytics cache with unknown format: " + file);
+                return;
+            }
+
+            String fileVersion = in.readUTF();
+            if (!fileVersion.equals(currentVersion)) {
+                System.out.println("Analytics cache is from an older import, discarding it");
+                return;
+            }
+
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String key = in.readUTF();
+                int size = in.readInt();
+                Map<String, Double> values = new HashMap<>();
+                for (int j = 0; j < size; j++) {
+                    values.put(in.readUTF(), in.readDouble());
+                }
+                entries.put(key, values);
+            }
+            System.out.println("Loaded " + entries.size() + " cached analytics results");
+        } catch (IOException e) {
+            System.err.println("Could not read analytics cache, starting fresh: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    // Returns a copy, or null if we haven't computed it for this data version.
+    public synchronized Map<String, Double> get(String key, String currentVersion) {
+        if (!currentVersion.equals(dataVersion)) {
+            entries.clear();
+            dataVersion = currentVersion;
+            return null;
+        }
+        Map<String, Double> values = entries.get(key);
+        return values != null ? new HashMap<>(values) : null;
+    }
+
+    public synchronized void put(String key, Map<String, Double> values, String currentVersion) {
+        if (!currentVersion.equals(dataVersion)) {
+            entries.clear();
+            dataVersion = currentVersion;
+        }
+        entries.put(key, new HashMap<>(values));
+        save();
+    }
+
+    // Same version rule as get, so entries from an older import don't count.
+    public synchronized boolean contains(String key, String currentVersion) {
+        return currentVersion.equals(dataVersion) && entries.containsKey(key);
+    }
+
+    // Write to a temp file then move it over, so a crash never leaves a half-written cache behind.
+    private void save() {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeUTF(dataVersion);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Map<String, Double>> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Map.Entry<String, Double> value : entry.getValue().entrySet()) {
+                    out.writeUTF(value.getKey());
+                    out.writeDouble(value.getValue());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write analytics cache: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not replace analytics cache: " + e.getMessage());
+        }
+    }
+}
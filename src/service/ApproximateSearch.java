@@ -0,0 +1,26 @@
+package service;
+
+import flightModel.Flight;
+
+import java.util.List;
+
+// Search preview from a stratified sample: the sampled flights that matched, plus an estimate of
+// how many flights the full search will find.
+public class ApproximateSearch {
+
+    private final List<Flight> sampleFlights;
+    private final Estimate matchingFlights;
+
+    public ApproximateSearch(List<Flight> sampleFlights, Estimate matchingFlights) {
+        this.sampleFlights = sampleFlights;
+        this.matchingFlights = matchingFlights;
+    }
+
+    public List<Flight> getSampleFlights() {
+        return sampleFlights;
+    }
+
+    public Estimate getMatchingFlights() {
+        return matchingFlights;
+    }
+}
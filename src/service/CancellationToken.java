@@ -0,0 +1,65 @@
+package service;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+
+// Handed to the async service methods by the caller. Cancelling it calls Statement.cancel() on
+// whatever query is running for it, and stops any further queries from starting.
+public class CancellationToken {
+
+    // For the blocking methods, which can't be cancelled.
+    public static final CancellationToken NONE = new CancellationToken();
+
+    private final Set<Statement> running = new HashSet<>();
+    private boolean cancelled = false;
+
+    public void cancel() {
+        if (this == NONE) return;
+
+        // Cancelled under the lock, so a statement can't be unregistered and its pooled connection
+        // handed to the next caller in between (SQLite interrupts the whole connection).
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            for (Statement stmt : running) {
+                cancelQuietly(stmt);
+            }
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Call before executing a statement. If we were already cancelled the statement is cancelled straight away.
+    public void register(Statement stmt) throws SQLException {
+        if (this == NONE) return;
+        synchronized (this) {
+            if (!cancelled) {
+                running.add(stmt);
+                return;
+            }
+        }
+        throw new SQLException("Query cancelled");
+    }
+
+    public synchronized void unregister(Statement stmt) {
+        running.remove(stmt);
+    }
+
+    public void throwIfCancelled() throws SQLException {
+        if (isCancelled()) {
+            throw new SQLException("Query cancelled");
+        }
+    }
+
+    private static void cancelQuietly(Statement stmt) {
+        try {
+            stmt.cancel();
+        } catch (SQLException e) {
+            // The statement probably just finished, nothing to cancel.
+        }
+    }
+}
@@ -0,0 +1,659 @@
+package service;
+
+import flightModel.Airline;
+import flightModel.Airport;
+import flightModel.Flight;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// In-memory copy of the Flight and Delay_Reason tables, one primitive array per column.
+// Searches and the yearly/monthly aggregates are answered by scanning the arrays in parallel
+// instead of going back to SQLite. Strings only live in the airline/airport dictionaries.
+public class ColumnarFlightStore {
+
+    // Rows per fork/join leaf, small enough to split well, big enough to not drown in task overhead.
+    private static final int SCAN_CHUNK = 16 * 1024;
+
+    // Delay reasons are packed into the top byte of each delay entry, minutes in the rest.
+    private static final String[] REASONS = {"CARRIER", "WEATHER", "NAS", "SECURITY", "LATE_AIRCRAFT", "UNSPECIFIED"};
+    private static final int REASON_SHIFT = 24;
+    private static final int MINUTES_MASK = (1 << REASON_SHIFT) - 1;
+
+    private static final byte FLAG_CANCELLED = 1;
+    private static final byte FLAG_DIVERTED = 2;
+
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    // Dictionaries.
+    private String[] airlineCodes;
+    private String[] airlineNames;
+    private String[] airportCodes;
+    private String[] airportNames;
+    private Airline[] airlineRefs;
+    private Airport[] airportRefs;
+    private final Map<String, Short> airlineIds = new HashMap<>();
+    private final Map<String, Short> airportIds = new HashMap<>();
+    private DimensionRegistry dimensions;
+
+    // Raw codes of the few rows whose airline or airport isn't in the dimension tables (id -1), keyed by
+    // row, so those flights still come back with a nameless Airline/Airport like the SQL path gives them.
+    private final Map<Integer, String> unknownAirlines = new HashMap<>();
+    private final Map<Integer, String> unknownOrigins = new HashMap<>();
+    private final Map<Integer, String> unknownDestinations = new HashMap<>();
+
+    // Flight columns, one entry per row, sorted by flight_id.
+    private int rowCount;
+    private int[] flightIds;
+    private int[] dates; // yyyymmdd
+    private short[] airlines;
+    private int[] flightNumbers;
+    private short[] origins;
+    private short[] destinations;
+    private int[] scheduledDepartures;
+    private int[] actualDepartures;
+    private int[] scheduledArrivals;
+    private int[] actualArrivals;
+    private byte[] flags;
+    private char[] cancellationCodes;
+
+    // Delays for row i are delayPacked[delayStart[i] .. delayStart[i + 1]).
+    private int[] delayStart;
+    private int[] delayPacked;
+
+    private long loadMillis;
+
+    public static ColumnarFlightStore load(Connection conn, DimensionRegistry dimensions) throws SQLException {
+        ColumnarFlightStore store = new ColumnarFlightStore();
+        long start = System.currentTimeMillis();
+        store.loadDimensions(dimensions);
+        store.loadFlights(conn);
+        store.loadDelays(conn);
+        store.loadMillis = System.currentTimeMillis() - start;
+        return store;
+    }
+
+    // Dictionary ids follow code order. The flights get the registry's shared objects.
+    private void loadDimensions(DimensionRegistry dimensions) {
+        this.dimensions = dimensions;
+        List<Airline> airlineList = new ArrayList<>(dimensions.getAirlines());
+        airlineList.sort(Comparator.comparing(Airline::getCode));
+        airlineRefs = airlineList.toArray(new Airline[0]);
+        airlineCodes = new String[airlineRefs.length];
+        airlineNames = new String[airlineRefs.length];
+        for (int i = 0; i < airlineRefs.length; i++) {
+            airlineCodes[i] = airlineRefs[i].getCode();
+            airlineNames[i] = airlineRefs[i].getName();
+            airlineIds.put(airlineCodes[i], (short) i);
+        }
+
+        List<Airport> airportList = new ArrayList<>(dimensions.getAirports());
+        airportList.sort(Comparator.comparing(Airport::getCode));
+        airportRefs = airportList.toArray(new Airport[0]);
+        airportCodes = new String[airportRefs.length];
+        airportNames = new String[airportRefs.length];
+        for (int i = 0; i < airportRefs.length; i++) {
+            airportCodes[i] = airportRefs[i].getCode();
+            airportNames[i] = airportRefs[i].getName();
+            airportIds.put(airportCodes[i], (short) i);
+        }
+    }
+
+    private void loadFlights(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM Flight")) {
+            rowCount = rs.next() ? rs.getInt(1) : 0;
+        }
+
+        flightIds = new int[rowCount];
+        dates = new int[rowCount];
+        airlines = new short[rowCount];
+        flightNumbers = new int[rowCount];
+        origins = new short[rowCount];
+        destinations = new short[rowCount];
+        scheduledDepartures = new int[rowCount];
+        actualDepartures = new int[rowCount];
+        scheduledArrivals = new int[rowCount];
+        actualArrivals = new int[rowCount];
+        flags = new byte[rowCount];
+        cancellationCodes = new char[rowCount];
+
+        String sql = "SELECT flight_id, date, airline_code, flight_number, flight_origin, flight_destination, " +
+                "scheduled_departure, actual_departure, scheduled_arrival, actual_arrival, " +
+                "cancelled, diverted, cancellation_code FROM Flight ORDER BY flight_id";
+
+        int row = 0;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next() && row < rowCount) {
+                flightIds[row] = rs.getInt(1);
+                dates[row] = toDateKey(rs.getString(2));
+                airlines[row] = dictionaryId(airlineIds, rs.getString(3), row, unknownAirlines);
+                flightNumbers[row] = rs.getInt(4);
+                origins[row] = dictionaryId(airportIds, rs.getString(5), row, unknownOrigins);
+                destinations[row] = dictionaryId(airportIds, rs.getString(6), row, unknownDestinations);
+                scheduledDepartures[row] = rs.getInt(7);
+                actualDepartures[row] = rs.getInt(8);
+                scheduledArrivals[row] = rs.getInt(9);
+                actualArrivals[row] = rs.getInt(10);
+                flags[row] = (byte) ((rs.getBoolean(11) ? FLAG_CANCELLED : 0) | (rs.getBoolean(12) ? FLAG_DIVERTED : 0));
+                String code = rs.getString(13);
+                cancellationCodes[row] = code != null && !code.isEmpty() ? code.charAt(0) : 0;
+                row++;
+            }
+        }
+        rowCount = row;
+    }
+
+    private void loadDelays(Connection conn) throws SQLException {
+        int delayCount;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM Delay_Reason")) {
+            delayCount = rs.next() ? rs.getInt(1) : 0;
+        }
+
+        delayStart = new int[rowCount + 1];
+        delayPacked = new int[delayCount];
+
+        // Delay rows come back grouped by flight, so fill the offsets as we go.
+        int row = 0;
+        int next = 0;
+        String sql = "SELECT flight_id, reason, delay_length FROM Delay_Reason ORDER BY flight_id";
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next() && next < delayCount) {
+                int flightId = rs.getInt(1);
+                while (row < rowCount && flightIds[row] < flightId) {
+                    delayStart[++row] = next;
+                }
+                if (row >= rowCount || flightIds[row] != flightId) {
+                    continue; // Orphaned delay row.
+                }
+                delayPacked[next++] = (reasonIndex(rs.getString(2)) << REASON_SHIFT) | (rs.getInt(3) & MINUTES_MASK);
+            }
+        }
+        while (row < rowCount) {
+            delayStart[++row] = next;
+        }
+    }
+
+    // DDMMYYYY -> yyyymmdd so ranges compare as plain ints.
+    static int toDateKey(String date) {
+        if (date == null || date.length() != 8) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(date.substring(4, 8)) * 10000 +
+                    Integer.parseInt(date.substring(2, 4)) * 100 +
+                    Integer.parseInt(date.substring(0, 2));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int reasonIndex(String reason) {
+        for (int i = 0; i < REASONS.length; i++) {
+            if (REASONS[i].equals(reason)) {
+                return i;
+            }
+        }
+        return REASONS.length - 1;
+    }
+
+    // Same filters and matching rules as the SQL search in FlightDataService, in the query's order.
+    public List<Flight> search(FlightQuery query) {
+        int[] rows = sortRows(matchRows(query), query);
+        int size = query.getLimit() > 0 ? Math.min(query.getLimit(), rows.length) : rows.length;
+
+        List<Flight> results = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            results.add(toFlight(rows[i], query.isIncludeDelays()));
+        }
+        return results;
+    }
+
+    // Number of matches ignoring the limit, without building any Flight objects.
+    public int count(FlightQuery query) {
+        return matchRows(query).length;
+    }
+
+    // Up to limit matches with flight_id above afterFlightId, in flight_id order. Only those rows become Flights.
+    // The query's sort and limit don't apply.
+    public List<Flight> searchPage(FlightQuery query, int afterFlightId, int limit) {
+        int[] rows = matchRows(query);
+
+        // Rows are in flight_id order, so skip to the first one past the previous page.
+        int low = 0;
+        int high = rows.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (flightIds[rows[mid]] <= afterFlightId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        List<Flight> results = new ArrayList<>(Math.min(limit, rows.length - low));
+        for (int i = low; i < rows.length && results.size() < limit; i++) {
+            results.add(toFlight(rows[i], query.isIncludeDelays()));
+        }
+        return results;
+    }
+
+    // Compiles the query into one RowFilter, so the scan tests every condition per row in a single pass.
+    private int[] matchRows(FlightQuery query) {
+        RowFilter filter = new RowFilter();
+
+        if (!query.getAirlines().isEmpty()) {
+            filter.airlineMatch = matchDictionary(airlineCodes, airlineNames, query.getAirlines(), false);
+        }
+
+        String fn = query.getFlightNumber();
+        if (fn != null) {
+            try {
+                if (Character.isLetter(fn.charAt(0))) {
+                    int i = 0;
+                    while (i < fn.length() && Character.isLetter(fn.charAt(i))) i++;
+                    String numPart = fn.substring(i);
+                    if (!numPart.isEmpty()) {
+                        Short id = airlineIds.get(fn.substring(0, i));
+                        filter.flightNumber = Integer.parseInt(numPart);
+                        filter.flightAirline = id != null ? id : -2;
+                    }
+                } else {
+                    filter.flightNumber = Integer.parseInt(fn);
+                }
+            } catch (NumberFormatException e) {
+                return new int[0];
+            }
+        }
+
+        if (!query.getOrigins().isEmpty()) {
+            filter.originMatch = matchDictionary(airportCodes, airportNames, query.getOrigins(), true);
+        }
+
+        if (!query.getDestinations().isEmpty()) {
+            filter.destMatch = matchDictionary(airportCodes, airportNames, query.getDestinations(), true);
+        }
+
+        if (query.getStartDate() != null) {
+            filter.minDate = QueryPlanner.toDateKey(query.getStartDate());
+        }
+        if (query.getEndDate() != null) {
+            filter.maxDate = QueryPlanner.toDateKey(query.getEndDate());
+        }
+
+        if (!query.isIncludeCancelled()) {
+            filter.excludeFlags |= FLAG_CANCELLED;
+        }
+        if (!query.isIncludeDiverted()) {
+            filter.excludeFlags |= FLAG_DIVERTED;
+        }
+
+        // Reasons we don't know leave every entry false, so nothing matches, like the SQL IN list.
+        if (!query.getDelayReasons().isEmpty()) {
+            filter.reasonMatch = new boolean[REASONS.length];
+            for (String reason : query.getDelayReasons()) {
+                int index = reasonIndexOrMissing(reason);
+                if (index >= 0) {
+                    filter.reasonMatch[index] = true;
+                }
+            }
+        }
+        filter.hasDelayFilter = query.hasDelayFilter();
+        if (query.getMinDelay() != null) {
+            filter.minDelay = query.getMinDelay();
+        }
+        if (query.getMaxDelay() != null) {
+            filter.maxDelay = query.getMaxDelay();
+        }
+
+        return pool.invoke(new ScanTask(filter, 0, rowCount));
+    }
+
+    // Orders matched rows the way the SQL ORDER BY does. Each row's sort key goes in the top half of a
+    // long and the row in the bottom half, so one primitive sort orders by key then flight_id, and
+    // descending is the same array read backwards.
+    private int[] sortRows(int[] rows, FlightQuery query) {
+        if (query.isFlightIdOrder()) {
+            return rows;
+        }
+
+        long[] keyed = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            keyed[i] = ((long) sortKey(rows[i], query.getSort()) << 32) | rows[i];
+        }
+        Arrays.sort(keyed);
+
+        int[] sorted = new int[rows.length];
+        for (int i = 0; i < keyed.length; i++) {
+            int at = query.isDescending() ? keyed.length - 1 - i : i;
+            sorted[i] = (int) keyed[at];
+        }
+        return sorted;
+    }
+
+    // Non-negative and under 2^31. Dates pack as (year - 1900) * 372 + month * 31 + day, which keeps
+    // their order and leaves room for the departure time.
+    private int sortKey(int row, String sort) {
+        if (FlightQuery.SORT_DATE.equals(sort)) {
+            int date = dates[row];
+            int day = date <= 0 ? 0
+                    : Math.max(0, date / 10000 - 1900) * 372 + (date / 100 % 100) * 31 + date % 100;
+            return day * 4096 + Math.max(0, Math.min(4095, scheduledDepartures[row]));
+        }
+        if (FlightQuery.SORT_DELAY.equals(sort)) {
+            long minutes = 0;
+            for (int d = delayStart[row]; d < delayStart[row + 1]; d++) {
+                minutes += delayPacked[d] & MINUTES_MASK;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, minutes);
+        }
+        return 0;
+    }
+
+    private int reasonIndexOrMissing(String reason) {
+        for (int i = 0; i < REASONS.length; i++) {
+            if (REASONS[i].equals(reason)) {
+                return i;
+            }
+        }
+        return -2;
+    }
+
+    // Precompute which dictionary entries match any of the terms, so the scan is just an array lookup per row.
+    // Airline uses "code LIKE %x% OR name LIKE %x%", airports use "code = X OR name LIKE %x%".
+    private boolean[] matchDictionary(String[] codes, String[] names, Collection<String> terms, boolean exactCode) {
+        boolean[] matches = new boolean[codes.length];
+        for (String term : terms) {
+            String upper = term.toUpperCase(Locale.ROOT);
+            for (int i = 0; i < codes.length; i++) {
+                boolean codeMatch = exactCode ? codes[i].equals(upper)
+                        : codes[i].toUpperCase(Locale.ROOT).contains(upper);
+                boolean nameMatch = names[i] != null && names[i].toUpperCase(Locale.ROOT).contains(upper);
+                matches[i] |= codeMatch || nameMatch;
+            }
+        }
+        return matches;
+    }
+
+    // Per-reason delays for one flight, empty if it has none or isn't loaded.
+    public List<Flight.Delay> getDelays(int flightId) {
+        int row = Arrays.binarySearch(flightIds, flightId);
+        List<Flight.Delay> delays = new ArrayList<>();
+        if (row < 0) {
+            return delays;
+        }
+        for (int d = delayStart[row]; d < delayStart[row + 1]; d++) {
+            delays.add(new Flight.Delay(REASONS[delayPacked[d] >>> REASON_SHIFT], delayPacked[d] & MINUTES_MASK));
+        }
+        return delays;
+    }
+
+    // -1 for a code the dictionary doesn't have, remembering the code itself (null stays null).
+    private static short dictionaryId(Map<String, Short> ids, String code, int row, Map<Integer, String> unknown) {
+        Short id = ids.get(code);
+        if (id != null) {
+            return id;
+        }
+        if (code != null) {
+            unknown.put(row, code);
+        }
+        return -1;
+    }
+
+    private Flight toFlight(int row, boolean includeDelays) {
+        Flight.Builder f = Flight.builder()
+                .flightId(flightIds[row])
+                .dateKey(dates[row])
+                .airline(airlines[row] >= 0 ? airlineRefs[airlines[row]] : dimensions.getAirline(unknownAirlines.get(row)))
+                .flightNumber(flightNumbers[row])
+                .origin(origins[row] >= 0 ? airportRefs[origins[row]] : dimensions.getAirport(unknownOrigins.get(row)))
+                .destination(destinations[row] >= 0 ? airportRefs[destinations[row]]
+                        : dimensions.getAirport(unknownDestinations.get(row)))
+                .departure(scheduledDepartures[row], actualDepartures[row])
+                .arrival(scheduledArrivals[row], actualArrivals[row])
+                .cancelled((flags[row] & FLAG_CANCELLED) != 0,
+                        cancellationCodes[row] != 0 ? String.valueOf(cancellationCodes[row]) : null)
+                .diverted((flags[row] & FLAG_DIVERTED) != 0);
+
+        if (!includeDelays) {
+            return f.withoutDelayBreakdown().build();
+        }
+        for (int d = delayStart[row]; d < delayStart[row + 1]; d++) {
+            f.addDelay(REASONS[delayPacked[d] >>> REASON_SHIFT], delayPacked[d] & MINUTES_MASK);
+        }
+        return f.build();
+    }
+
+    // Average delay per airline name for a year, averaged over delay rows like the SQL version.
+    public Map<String, Double> averageDelayByAirline(int year) {
+        return averageByGroup(year * 10000, year * 10000 + 9999, -1, airlines, airlineNames);
+    }
+
+    // Average delay per origin airport name for a year.
+    public Map<String, Double> averageDelayByAirport(int year) {
+        return averageByGroup(year * 10000, year * 10000 + 9999, -1, origins, airportNames);
+    }
+
+    private Map<String, Double> averageByGroup(int minDate, int maxDate, int originFilter,
+                                               short[] groupColumn, String[] groupNames) {
+        long[][] sums = pool.invoke(new AggregateTask(minDate, maxDate, originFilter, groupColumn,
+                groupNames.length, false, 0, rowCount));
+
+        // Group by name, the same way the SQL groups by a.name / o.name.
+        Map<String, long[]> byName = new HashMap<>();
+        for (int g = 0; g < groupNames.length; g++) {
+            if (sums[1][g] == 0) continue;
+            long[] total = byName.computeIfAbsent(groupNames[g], k -> new long[2]);
+            total[0] += sums[0][g];
+            total[1] += sums[1][g];
+        }
+
+        Map<String, Double> results = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : byName.entrySet()) {
+            if (entry.getValue()[1] > 1) {
+                results.put(entry.getKey(), (double) entry.getValue()[0] / entry.getValue()[1]);
+            }
+        }
+        return results;
+    }
+
+    // Monthly average delay for one origin airport, keyed "MM/YYYY" like the SQL version.
+    public Map<String, Double> delaysByMonth(String airportCode, int startYear, int endYear) {
+        Map<String, Double> results = new HashMap<>();
+        Short airport = airportIds.get(airportCode);
+        if (airport == null) {
+            return results;
+        }
+
+        int firstMonth = startYear * 12;
+        int months = (endYear - startYear + 1) * 12;
+        if (months <= 0) {
+            return results;
+        }
+
+        long[][] sums = pool.invoke(new AggregateTask(startYear * 10000, endYear * 10000 + 9999, airport,
+                null, months, true, 0, rowCount));
+
+        for (int m = 0; m < months; m++) {
+            if (sums[1][m] == 0) continue;
+            int year = (firstMonth + m) / 12;
+            int month = (firstMonth + m) % 12 + 1;
+            results.put(String.format("%02d/%d", month, year), (double) sums[0][m] / sums[1][m]);
+        }
+        return results;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    // Bytes held by the column arrays, ignoring the (tiny) dictionaries.
+    public long getMemoryFootprint() {
+        long bytes = 0;
+        bytes += 4L * rowCount * 7; // flightIds, dates, flightNumbers, the four times
+        bytes += 2L * rowCount * 3; // airlines, origins, destinations
+        bytes += rowCount;          // flags
+        bytes += 2L * rowCount;     // cancellation codes
+        bytes += 4L * (rowCount + 1);
+        bytes += 4L * delayPacked.length;
+        return bytes;
+    }
+
+    // Compiled form of the search criteria, null/sentinel means "don't filter".
+    private static class RowFilter {
+        boolean[] airlineMatch;
+        boolean[] originMatch;
+        boolean[] destMatch;
+        Integer flightNumber;
+        int flightAirline = -1;
+        int minDate = Integer.MIN_VALUE;
+        int maxDate = Integer.MAX_VALUE;
+        int excludeFlags;
+        boolean hasDelayFilter;
+        boolean[] reasonMatch;
+        int minDelay = Integer.MIN_VALUE;
+        int maxDelay = Integer.MAX_VALUE;
+    }
+
+    private boolean matches(RowFilter filter, int row) {
+        if (filter.airlineMatch != null && (airlines[row] < 0 || !filter.airlineMatch[airlines[row]])) return false;
+        if (filter.originMatch != null && (origins[row] < 0 || !filter.originMatch[origins[row]])) return false;
+        if (filter.destMatch != null && (destinations[row] < 0 || !filter.destMatch[destinations[row]])) return false;
+        if (filter.flightNumber != null) {
+            if (flightNumbers[row] != filter.flightNumber) return false;
+            if (filter.flightAirline != -1 && airlines[row] != filter.flightAirline) return false;
+        }
+        if (dates[row] < filter.minDate || dates[row] > filter.maxDate) return false;
+        if ((flags[row] & filter.excludeFlags) != 0) return false;
+
+        if (filter.hasDelayFilter) {
+            // Needs one delay row that satisfies every delay condition at once, same as the IN subquery.
+            for (int d = delayStart[row]; d < delayStart[row + 1]; d++) {
+                int reason = delayPacked[d] >>> REASON_SHIFT;
+                int minutes = delayPacked[d] & MINUTES_MASK;
+                if ((filter.reasonMatch == null || filter.reasonMatch[reason])
+                        && minutes >= filter.minDelay && minutes <= filter.maxDelay) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // Returns matching row indexes in row order.
+    private class ScanTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final RowFilter filter;
+        private final int from;
+        private final int to;
+
+        ScanTask(RowFilter filter, int from, int to) {
+            this.filter = filter;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= SCAN_CHUNK) {
+                int[] hits = new int[to - from];
+                int count = 0;
+                for (int row = from; row < to; row++) {
+                    if (matches(filter, row)) {
+                        hits[count++] = row;
+                    }
+                }
+                return Arrays.copyOf(hits, count);
+            }
+
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(filter, from, mid);
+            left.fork();
+            int[] right = new ScanTask(filter, mid, to).compute();
+            int[] leftHits = left.join();
+
+            int[] merged = Arrays.copyOf(leftHits, leftHits.length + right.length);
+            System.arraycopy(right, 0, merged, leftHits.length, right.length);
+            return merged;
+        }
+    }
+
+    // Sums delay minutes and counts delay rows per group; result is {sums, counts}.
+    // Groups are either a dictionary column, or months since startYear when byMonth is set.
+    private class AggregateTask extends RecursiveTask<long[][]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int minDate;
+        private final int maxDate;
+        private final int originFilter;
+        private final short[] groupColumn;
+        private final int groupCount;
+        private final boolean byMonth;
+        private final int from;
+        private final int to;
+
+        AggregateTask(int minDate, int maxDate, int originFilter, short[] groupColumn,
+                      int groupCount, boolean byMonth, int from, int to) {
+            this.minDate = minDate;
+            this.maxDate = maxDate;
+            this.originFilter = originFilter;
+            this.groupColumn = groupColumn;
+            this.groupCount = groupCount;
+            this.byMonth = byMonth;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[][] compute() {
+            if (to - from <= SCAN_CHUNK) {
+                long[][] sums = new long[2][groupCount];
+                int firstYear = minDate / 10000;
+                for (int row = from; row < to; row++) {
+                    int date = dates[row];
+                    if (date < minDate || date > maxDate) continue;
+                    if (originFilter >= 0 && origins[row] != originFilter) continue;
+
+                    int group;
+                    if (byMonth) {
+                        group = (date / 10000 - firstYear) * 12 + (date / 100) % 100 - 1;
+                    } else {
+                        group = groupColumn[row];
+                    }
+                    if (group < 0 || group >= groupCount) continue;
+
+                    for (int d = delayStart[row]; d < delayStart[row + 1]; d++) {
+                        sums[0][group] += delayPacked[d] & MINUTES_MASK;
+                        sums[1][group]++;
+                    }
+                }
+                return sums;
+            }
+
+            int mid = (from + to) >>> 1;
+            AggregateTask left = new AggregateTask(minDate, maxDate, originFilter, groupColumn,
+                    groupCount, byMonth, from, mid);
+            left.fork();
+            long[][] right = new AggregateTask(minDate, maxDate, originFilter, groupColumn,
+                    groupCount, byMonth, mid, to).compute();
+            long[][] merged = left.join();
+            for (int g = 0; g < groupCount; g++) {
+                merged[0][g] += right[0][g];
+                merged[1][g] += right[1][g];
+            }
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Fixed set of read connections handed out one query at a time, so concurrent queries don't queue
+// up behind each other on a single SQLite connection, and cancelling one only interrupts that query.
+// Every connection, including replacements, is opened with the pool's StorageProfile.
+public class ConnectionPool {
+
+    // How often a waiting borrow checks whether the pool was closed or a connection needs reopening.
+    private static final long POLL_MILLIS = 250;
+
+    private final String url;
+    private final StorageProfile profile;
+    private final int size;
+    private final BlockingQueue<Connection> idle;
+
+    // Every open connection, idle or borrowed. Guarded by itself, since release runs on many threads.
+    private final List<Connection> all = new ArrayList<>();
+
+    // Connections that died and couldn't be reopened on release, reopened by the next borrow instead.
+    private int missing = 0;
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String url, int size, StorageProfile profile) throws SQLException {
+        this.url = url;
+        this.profile = profile;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection c = profile.open(url);
+            all.add(c);
+            idle.add(c);
+        }
+    }
+
+    // Blocks until a connection is free. If the pool is short of one it opens the replacement itself,
+    // and throws when that fails rather than waiting for a connection that will never come back.
+    public Connection borrow() throws SQLException {
+        try {
+            while (true) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                Connection c = idle.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (c != null) {
+                    return c;
+                }
+                Connection replacement = reopenMissing();
+                if (replacement != null) {
+                    return replacement;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+    }
+
+    public void release(Connection c) {
+        if (c == null) return;
+        if (closed) {
+            closeQuietly(c);
+            return;
+        }
+        try {
+            if (c.isClosed()) {
+                // Replace a connection that died rather than shrinking the pool.
+                synchronized (all) {
+                    all.remove(c);
+                    missing++;
+                }
+                c = reopenMissing();
+                if (c == null) {
+                    return;
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Could not replace pooled connection, retrying on the next borrow: " +
+                    e.getMessage());
+            return;
+        }
+        idle.offer(c);
+    }
+
+    // Opens one connection in place of a dead one, or returns null if none is missing.
+    private Connection reopenMissing() throws SQLException {
+        synchronized (all) {
+            if (missing == 0 || closed) {
+                return null;
+            }
+            Connection c = profile.open(url);
+            all.add(c);
+            missing--;
+            return c;
+        }
+    }
+
+    public StorageProfile getProfile() {
+        return profile;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    // Borrowers still waiting see the pool closed within POLL_MILLIS and fail.
+    public void close() {
+        closed = true;
+        List<Connection> open;
+        synchronized (all) {
+            open = new ArrayList<>(all);
+            all.clear();
+        }
+        idle.clear();
+        for (Connection c : open) {
+            closeQuietly(c);
+        }
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing pooled connection: " + e.getMessage());
+        }
+    }
+}
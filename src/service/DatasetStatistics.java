@@ -0,0 +1,246 @@
+package service;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// The statistics catalog StatisticsBuilder writes at import, read back once per data version. Answers
+// what's in the data (date bounds, years, flights per month, rows per airline or airport) without
+// scanning Flight, and gives QueryPlanner the fraction of flights each filter keeps. Fractions assume
+// the filters are independent, which is rough, but only has to tell "a handful" from "most of the table".
+public class DatasetStatistics {
+
+    private final long flightCount;
+    private final long delayRowCount;
+    private final long delayedFlightCount;
+    private final TreeMap<Integer, long[]> months = new TreeMap<>(); // yyyymm -> flights, cancelled, diverted, delayed
+    private final Map<String, ColumnSummary> columns = new HashMap<>();
+    private final Map<String, Map<String, Long>> values = new HashMap<>();
+    private final Map<String, List<long[]>> histograms = new HashMap<>(); // low, high, rows
+
+    private DatasetStatistics(long flightCount, long delayRowCount, long delayedFlightCount) {
+        this.flightCount = flightCount;
+        this.delayRowCount = delayRowCount;
+        this.delayedFlightCount = delayedFlightCount;
+    }
+
+    // null if the database was imported before the catalog existed (or has no flights).
+    public static DatasetStatistics load(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' " +
+                     "AND name IN ('Stats_Month', 'Stats_Column', 'Stats_Value', 'Stats_Histogram')")) {
+            int tables = 0;
+            while (rs.next()) tables++;
+            if (tables < 4) {
+                return null;
+            }
+        }
+
+        TreeMap<Integer, long[]> monthRows = new TreeMap<>();
+        long flights = 0;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                     "SELECT month_key, flights, cancelled, diverted, delayed FROM Stats_Month")) {
+            while (rs.next()) {
+                long[] month = {rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5)};
+                monthRows.put(rs.getInt(1), month);
+                flights += month[0];
+            }
+        }
+        if (flights == 0) {
+            return null;
+        }
+
+        Map<String, ColumnSummary> summaries = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT table_name, column_name, distinct_values, " +
+                     "min_value, max_value FROM Stats_Column")) {
+            while (rs.next()) {
+                summaries.put(rs.getString(1) + "." + rs.getString(2), new ColumnSummary(rs.getLong(3),
+                        rs.getString(4), rs.getString(5)));
+            }
+        }
+
+        ColumnSummary delayIds = summaries.get("Delay_Reason.flight_id");
+        long delayRows = 0;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                     "SELECT info_value FROM Dataset_Info WHERE info_key = 'delay_rows'")) {
+            if (rs.next()) {
+                delayRows = Long.parseLong(rs.getString(1));
+            }
+        }
+
+        DatasetStatistics stats = new DatasetStatistics(flights, delayRows,
+                delayIds != null ? delayIds.distinctValues : 0);
+        stats.months.putAll(monthRows);
+        stats.columns.putAll(summaries);
+
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT column_name, value, row_count FROM Stats_Value")) {
+            while (rs.next()) {
+                stats.values.computeIfAbsent(rs.getString(1), k -> new HashMap<>())
+                        .put(rs.getString(2), rs.getLong(3));
+            }
+        }
+
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT column_name, bucket_low, bucket_high, row_count " +
+                     "FROM Stats_Histogram ORDER BY column_name, bucket_low")) {
+            while (rs.next()) {
+                stats.histograms.computeIfAbsent(rs.getString(1), k -> new ArrayList<>())
+                        .add(new long[]{rs.getLong(2), rs.getLong(3), rs.getLong(4)});
+            }
+        }
+        return stats;
+    }
+
+    public long getFlightCount() {
+        return flightCount;
+    }
+
+    public long getDelayRowCount() {
+        return delayRowCount;
+    }
+
+    // yyyymmdd of the first and last day with flights.
+    public int getMinDateKey() {
+        ColumnSummary dates = columns.get("Flight.date_key");
+        return dates != null && dates.minValue != null ? Integer.parseInt(dates.minValue) : months.firstKey() * 100 + 1;
+    }
+
+    public int getMaxDateKey() {
+        ColumnSummary dates = columns.get("Flight.date_key");
+        return dates != null && dates.maxValue != null ? Integer.parseInt(dates.maxValue) : months.lastKey() * 100 + 31;
+    }
+
+    // Every year with at least one flight, oldest first.
+    public List<Integer> getYears() {
+        List<Integer> years = new ArrayList<>();
+        for (int month : months.keySet()) {
+            int year = month / 100;
+            if (years.isEmpty() || years.get(years.size() - 1) != year) {
+                years.add(year);
+            }
+        }
+        return years;
+    }
+
+    public long getFlightsInMonth(int year, int month) {
+        long[] counts = months.get(year * 100 + month);
+        return counts != null ? counts[0] : 0;
+    }
+
+    public long getFlightsInYear(int year) {
+        long flights = 0;
+        for (long[] counts : months.subMap(year * 100, year * 100 + 100).values()) {
+            flights += counts[0];
+        }
+        return flights;
+    }
+
+    // Distinct values of a searched column, -1 if the catalog doesn't cover it.
+    public long getDistinctValues(String table, String column) {
+        ColumnSummary summary = columns.get(table + "." + column);
+        return summary != null ? summary.distinctValues : -1;
+    }
+
+    // Flights with this airline_code, flight_origin or flight_destination, or with a delay for this reason.
+    public long getValueCount(String column, String value) {
+        Map<String, Long> counts = values.get(column);
+        return counts != null ? counts.getOrDefault(value, 0L) : 0;
+    }
+
+    // {low, high, rows} buckets, low inclusive and high exclusive, or empty if there's no such histogram.
+    public List<long[]> getHistogram(String column) {
+        return Collections.unmodifiableList(histograms.getOrDefault(column, Collections.emptyList()));
+    }
+
+    // Fraction of flights an IN list on a dimension column keeps.
+    public double valueFraction(String column, Collection<String> wanted) {
+        long rows = 0;
+        for (String value : wanted) {
+            rows += getValueCount(column, value);
+        }
+        return clamp((double) rows / flightCount);
+    }
+
+    // Fraction of flights between two yyyymmdd keys, either may be null for open ended. Months the range
+    // only partly covers count in proportion to the days covered.
+    public double dateFraction(Integer startKey, Integer endKey) {
+        int start = startKey != null ? startKey : 0;
+        int end = endKey != null ? endKey : Integer.MAX_VALUE;
+        double rows = 0;
+        for (Map.Entry<Integer, long[]> month : months.entrySet()) {
+            int first = month.getKey() * 100 + 1;
+            int last = month.getKey() * 100 + 31;
+            if (last < start || first > end) continue;
+            int days = Math.min(last, end) - Math.max(first, start) + 1;
+            rows += month.getValue()[0] * Math.min(1.0, days / 31.0);
+        }
+        return clamp(rows / flightCount);
+    }
+
+    // Fraction of flights with some delay row in [min, max], read off the delay_length histogram. A
+    // bucket the range partly covers counts in proportion to the overlap.
+    public double delayFraction(Integer minMinutes, Integer maxMinutes) {
+        if (delayRowCount == 0 || delayedFlightCount == 0) {
+            return 1.0;
+        }
+        long min = minMinutes != null ? minMinutes : Long.MIN_VALUE;
+        long max = maxMinutes != null ? maxMinutes : Long.MAX_VALUE;
+        double rows = 0;
+        for (long[] bucket : getHistogram("delay_length")) {
+            long low = Math.max(bucket[0], min);
+            long high = Math.min(bucket[1] - 1, max);
+            if (high < low) continue;
+            rows += bucket[2] * (double) (high - low + 1) / (bucket[1] - bucket[0]);
+        }
+        return clamp((double) delayedFlightCount / flightCount * rows / delayRowCount);
+    }
+
+    // Fraction of flights with at least one delay row.
+    public double delayedFlightFraction() {
+        return (double) delayedFlightCount / flightCount;
+    }
+
+    public double cancelledFraction() {
+        return monthTotal(1) / flightCount;
+    }
+
+    public double divertedFraction() {
+        return monthTotal(2) / flightCount;
+    }
+
+    private double monthTotal(int column) {
+        long total = 0;
+        for (long[] counts : months.values()) {
+            total += counts[column];
+        }
+        return total;
+    }
+
+    private static double clamp(double fraction) {
+        return Math.max(0.0, Math.min(1.0, fraction));
+    }
+
+    private static class ColumnSummary {
+        final long distinctValues;
+        final String minValue;
+        final String maxValue;
+
+        ColumnSummary(long distinctValues, String minValue, String maxValue) {
+            this.distinctValues = distinctValues;
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package service;
+
+import flightModel.Flight;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// LRU cache of per-reason delays by flight id, for flights that came back from a search without them.
+// Holds a few thousand flights: enough for the rows around a selection and the recently viewed ones.
+// Thrown away when the importer writes a new data version, like the search cache.
+public class DelayCache {
+
+    private final int maxFlights;
+    private final LinkedHashMap<Integer, List<Flight.Delay>> entries;
+    private String dataVersion;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public DelayCache(int maxFlights) {
+        this.maxFlights = maxFlights;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<Flight.Delay>> eldest) {
+                return size() > DelayCache.this.maxFlights;
+            }
+        };
+    }
+
+    public synchronized void checkDataVersion(String version) {
+        if (dataVersion != null && !dataVersion.equals(version)) {
+            entries.clear();
+        }
+        dataVersion = version;
+    }
+
+    // Null if the flight isn't cached. An empty list is a flight with no delays.
+    public synchronized List<Flight.Delay> get(int flightId) {
+        List<Flight.Delay> delays = entries.get(flightId);
+        if (delays == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return delays;
+    }
+
+    public synchronized void put(int flightId, List<Flight.Delay> delays) {
+        entries.put(flightId, Collections.unmodifiableList(delays));
+    }
+
+    public synchronized String getStats() {
+        long lookups = hits + misses;
+        return String.format("Delay cache: %d hits, %d misses (%.1f%% hit rate), %d of %d flights",
+                hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, entries.size(), maxFlights);
+    }
+}
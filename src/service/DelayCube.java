@@ -0,0 +1,486 @@
+package service;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Pre-aggregated delay totals over airline x origin x destination x month x delay reason x status.
+// Each cell holds the count, sum and sum of squares of delay minutes for one combination, so averages
+// and standard deviations for any roll-up or slice come from adding cells instead of scanning Flight.
+//
+// Cells are per delay record, like the SQL analytics: a flight with two delay reasons lands in two cells,
+// and a flight with no delay record lands in one cell with reason NO_DELAY and 0 minutes.
+//
+// Cells are sorted month first, so a month range is a contiguous run found by binary search.
+public class DelayCube {
+
+    public static final int DIM_AIRLINE = 0;
+    public static final int DIM_ORIGIN = 1;
+    public static final int DIM_DESTINATION = 2;
+    public static final int DIM_MONTH = 3;
+    public static final int DIM_REASON = 4;
+    public static final int DIM_STATUS = 5;
+    private static final int DIMENSIONS = 6;
+
+    public static final String NO_DELAY = "None";
+    public static final String STATUS_ON_TIME = "On Time";
+    public static final String STATUS_DELAYED = "Delayed";
+    public static final String STATUS_CANCELLED = "Cancelled";
+    public static final String STATUS_DIVERTED = "Diverted";
+
+    // Bit layout of a cell key, month in the top bits so keys sort by month.
+    private static final int[] SHIFTS = {36, 22, 8, 46, 2, 0};
+    private static final int[] BITS = {10, 14, 14, 16, 6, 2};
+
+    private static final int FILE_MAGIC = 0x464C4443; // "FLDC"
+
+    private String dataVersion;
+    private String[] airlines;
+    private String[] airports;
+    private String[] reasons;
+    private String[] statuses;
+    private Map<String, String> airlineNames = new HashMap<>();
+    private Map<String, String> airportNames = new HashMap<>();
+
+    private long[] keys;
+    private long[] counts;
+    private long[] sums;
+    private long[] sumSquares;
+
+    private DelayCube() {
+    }
+
+    public Query query() {
+        return new Query();
+    }
+
+    public String getDataVersion() {
+        return dataVersion;
+    }
+
+    public int getCellCount() {
+        return keys.length;
+    }
+
+    public long getSizeInBytes() {
+        return keys.length * 32L;
+    }
+
+    // Null if the code isn't in the Airline table.
+    public String getAirlineName(String code) {
+        return airlineNames.get(code);
+    }
+
+    public String getAirportName(String code) {
+        return airportNames.get(code);
+    }
+
+    // Totals for one group of cells.
+    public static class Cell {
+        private long count;
+        private long sum;
+        private long sumOfSquares;
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getSumOfSquares() {
+            return sumOfSquares;
+        }
+
+        public double getAverage() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        public double getStdDev() {
+            if (count == 0) return 0;
+            double mean = getAverage();
+            return Math.sqrt(Math.max(0, (double) sumOfSquares / count - mean * mean));
+        }
+    }
+
+    // Filters and a grouping, e.g. query().year(2023).whereNot(DIM_REASON, NO_DELAY).groupBy(DIM_AIRLINE).run().
+    // Group keys are the labels of the grouped dimensions joined with "|", months as MM/yyyy.
+    public class Query {
+        private final boolean[][] allowed = new boolean[DIMENSIONS][];
+        private int firstMonth = 0;
+        private int lastMonth = (1 << BITS[DIM_MONTH]) - 1;
+        private int[] groupBy = new int[0];
+
+        public Query where(int dimension, String... values) {
+            boolean[] mask = new boolean[1 << BITS[dimension]];
+            for (String value : values) {
+                int id = idOf(dimension, value);
+                if (id >= 0) mask[id] = true;
+            }
+            allowed[dimension] = and(allowed[dimension], mask);
+            return this;
+        }
+
+        public Query whereNot(int dimension, String... values) {
+            boolean[] mask = new boolean[1 << BITS[dimension]];
+            Arrays.fill(mask, true);
+            for (String value : values) {
+                int id = idOf(dimension, value);
+                if (id >= 0) mask[id] = false;
+            }
+            allowed[dimension] = and(allowed[dimension], mask);
+            return this;
+        }
+
+        public Query months(int startYear, int startMonth, int endYear, int endMonth) {
+            firstMonth = Math.max(firstMonth, monthId(startYear, startMonth));
+            lastMonth = Math.min(lastMonth, monthId(endYear, endMonth));
+            return this;
+        }
+
+        public Query year(int year) {
+            return months(year, 1, year, 12);
+        }
+
+        public Query groupBy(int... dimensions) {
+            groupBy = dimensions.clone();
+            return this;
+        }
+
+        public Map<String, Cell> run() {
+            Map<Long, Cell> groups = new HashMap<>();
+            if (firstMonth > lastMonth) {
+                return new HashMap<>();
+            }
+
+            long groupMask = 0;
+            for (int dimension : groupBy) {
+                groupMask |= ((1L << BITS[dimension]) - 1) << SHIFTS[dimension];
+            }
+
+            int start = lowerBound((long) firstMonth << SHIFTS[DIM_MONTH]);
+            int end = lowerBound((long) (lastMonth + 1) << SHIFTS[DIM_MONTH]);
+            for (int i = start; i < end; i++) {
+                long key = keys[i];
+                if (!matches(key)) continue;
+
+                Cell cell = groups.computeIfAbsent(key & groupMask, k -> new Cell());
+                cell.count += counts[i];
+                cell.sum += sums[i];
+                cell.sumOfSquares += sumSquares[i];
+            }
+
+            Map<String, Cell> results = new HashMap<>();
+            for (Map.Entry<Long, Cell> entry : groups.entrySet()) {
+                StringBuilder label = new StringBuilder();
+                for (int dimension : groupBy) {
+                    if (label.length() > 0) label.append("|");
+                    label.append(labelOf(dimension, field(entry.getKey(), dimension)));
+                }
+                results.put(label.toString(), entry.getValue());
+            }
+            return results;
+        }
+
+        private boolean matches(long key) {
+            for (int dimension = 0; dimension < DIMENSIONS; dimension++) {
+                if (allowed[dimension] != null && !allowed[dimension][field(key, dimension)]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static boolean[] and(boolean[] existing, boolean[] mask) {
+        if (existing == null) return mask;
+        for (int i = 0; i < mask.length; i++) {
+            existing[i] &= mask[i];
+        }
+        return existing;
+    }
+
+    private int lowerBound(long key) {
+        int low = 0, high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static int field(long key, int dimension) {
+        return (int) ((key >>> SHIFTS[dimension]) & ((1L << BITS[dimension]) - 1));
+    }
+
+    private static int monthId(int year, int month) {
+        return Math.max(0, Math.min((1 << BITS[DIM_MONTH]) - 1, year * 12 + month - 1));
+    }
+
+    private int idOf(int dimension, String value) {
+        switch (dimension) {
+            case DIM_AIRLINE:
+                return indexOf(airlines, value);
+            case DIM_ORIGIN:
+            case DIM_DESTINATION:
+                return indexOf(airports, value);
+            case DIM_REASON:
+                return indexOf(reasons, value);
+            case DIM_STATUS:
+                return indexOf(statuses, value);
+            default:
+                // MM/yyyy
+                try {
+                    return monthId(Integer.parseInt(value.substring(3)), Integer.parseInt(value.substring(0, 2)));
+                } catch (RuntimeException e) {
+                    return -1;
+                }
+        }
+    }
+
+    private String labelOf(int dimension, int id) {
+        switch (dimension) {
+            case DIM_AIRLINE:
+                return airlines[id];
+            case DIM_ORIGIN:
+            case DIM_DESTINATION:
+                return airports[id];
+            case DIM_REASON:
+                return reasons[id];
+            case DIM_STATUS:
+                return statuses[id];
+            default:
+                return String.format("%02d/%d", id % 12 + 1, id / 12);
+        }
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) return i;
+        }
+        return -1;
+    }
+
+    // Collects cells for one scan partition. Partitions made with newPartition() share dictionaries,
+    // so their cell keys line up and merge() is just adding totals.
+    public static class Builder {
+        private final Dictionary airlines;
+        private final Dictionary airports;
+        private final Dictionary reasons;
+        private final Dictionary statuses;
+        private final Map<Long, long[]> cells = new HashMap<>();
+
+        public Builder() {
+            this(new Dictionary(BITS[DIM_AIRLINE]), new Dictionary(BITS[DIM_ORIGIN]),
+                    new Dictionary(BITS[DIM_REASON]), new Dictionary(BITS[DIM_STATUS]));
+            reasons.id(NO_DELAY);
+            statuses.id(STATUS_ON_TIME);
+            statuses.id(STATUS_DELAYED);
+            statuses.id(STATUS_CANCELLED);
+            statuses.id(STATUS_DIVERTED);
+        }
+
+        private Builder(Dictionary airlines, Dictionary airports, Dictionary reasons, Dictionary statuses) {
+            this.airlines = airlines;
+            this.airports = airports;
+            this.reasons = reasons;
+            this.statuses = statuses;
+        }
+
+        public Builder newPartition() {
+            return new Builder(airlines, airports, reasons, statuses);
+        }
+
+        // date is DDMMYYYY as stored. Rows with a bad date are skipped.
+        public void add(String date, String airline, String origin, String destination,
+                        String reason, String status, int delayMinutes) {
+            if (date == null || date.length() != 8) return;
+            int month;
+            try {
+                month = monthId(Integer.parseInt(date.substring(4, 8)), Integer.parseInt(date.substring(2, 4)));
+            } catch (NumberFormatException e) {
+                return;
+            }
+
+            long key = (long) month << SHIFTS[DIM_MONTH]
+                    | (long) airlines.id(airline) << SHIFTS[DIM_AIRLINE]
+                    | (long) airports.id(origin) << SHIFTS[DIM_ORIGIN]
+                    | (long) airports.id(destination) << SHIFTS[DIM_DESTINATION]
+                    | (long) reasons.id(reason != null ? reason : NO_DELAY) << SHIFTS[DIM_REASON]
+                    | (long) statuses.id(status) << SHIFTS[DIM_STATUS];
+
+            long[] cell = cells.computeIfAbsent(key, k -> new long[3]);
+            cell[0]++;
+            cell[1] += delayMinutes;
+            cell[2] += (long) delayMinutes * delayMinutes;
+        }
+
+        public void merge(Builder other) {
+            for (Map.Entry<Long, long[]> entry : other.cells.entrySet()) {
+                long[] cell = cells.computeIfAbsent(entry.getKey(), k -> new long[3]);
+                cell[0] += entry.getValue()[0];
+                cell[1] += entry.getValue()[1];
+                cell[2] += entry.getValue()[2];
+            }
+        }
+
+        public DelayCube build(String dataVersion, Map<String, String> airlineNames, Map<String, String> airportNames) {
+            DelayCube cube = new DelayCube();
+            cube.dataVersion = dataVersion;
+            cube.airlines = airlines.values();
+            cube.airports = airports.values();
+            cube.reasons = reasons.values();
+            cube.statuses = statuses.values();
+            cube.airlineNames = new HashMap<>(airlineNames);
+            cube.airportNames = new HashMap<>(airportNames);
+
+            long[] sortedKeys = new long[cells.size()];
+            int i = 0;
+            for (Long key : cells.keySet()) sortedKeys[i++] = key;
+            Arrays.sort(sortedKeys);
+
+            cube.keys = sortedKeys;
+            cube.counts = new long[sortedKeys.length];
+            cube.sums = new long[sortedKeys.length];
+            cube.sumSquares = new long[sortedKeys.length];
+            for (i = 0; i < sortedKeys.length; i++) {
+                long[] cell = cells.get(sortedKeys[i]);
+                cube.counts[i] = cell[0];
+                cube.sums[i] = cell[1];
+                cube.sumSquares[i] = cell[2];
+            }
+            return cube;
+        }
+    }
+
+    // Value -> small id, safe to share between partition threads. Reads don't lock.
+    private static class Dictionary {
+        private final int limit;
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        Dictionary(int bits) {
+            this.limit = 1 << bits;
+        }
+
+        int id(String value) {
+            if (value == null) value = "";
+            Integer id = ids.get(value);
+            return id != null ? id : add(value);
+        }
+
+        private synchronized int add(String value) {
+            Integer id = ids.get(value);
+            if (id != null) return id;
+            if (values.size() >= limit) {
+                throw new IllegalStateException("Too many distinct values for the delay cube: " + value);
+            }
+            values.add(value);
+            ids.put(value, values.size() - 1);
+            return values.size() - 1;
+        }
+
+        synchronized String[] values() {
+            return values.toArray(new String[0]);
+        }
+    }
+
+    public void save(String filePath) throws IOException {
+        Path file = Paths.get(filePath);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeUTF(dataVersion);
+            writeStrings(out, airlines);
+            writeStrings(out, airports);
+            writeStrings(out, reasons);
+            writeStrings(out, statuses);
+            writeNames(out, airlineNames);
+            writeNames(out, airportNames);
+            out.writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                out.writeLong(keys[i]);
+                out.writeLong(counts[i]);
+                out.writeLong(sums[i]);
+                out.writeLong(sumSquares[i]);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns null if there's no file, or it was built from different data.
+    public static DelayCube load(String filePath, String expectedVersion) {
+        Path file = Paths.get(filePath);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                return null;
+            }
+            DelayCube cube = new DelayCube();
+            cube.dataVersion = in.readUTF();
+            if (!cube.dataVersion.equals(expectedVersion)) {
+                return null;
+            }
+
+            cube.airlines = readStrings(in);
+            cube.airports = readStrings(in);
+            cube.reasons = readStrings(in);
+            cube.statuses = readStrings(in);
+            cube.airlineNames = readNames(in);
+            cube.airportNames = readNames(in);
+
+            int cellCount = in.readInt();
+            cube.keys = new long[cellCount];
+            cube.counts = new long[cellCount];
+            cube.sums = new long[cellCount];
+            cube.sumSquares = new long[cellCount];
+            for (int i = 0; i < cellCount; i++) {
+                cube.keys[i] = in.readLong();
+                cube.counts[i] = in.readLong();
+                cube.sums[i] = in.readLong();
+                cube.sumSquares[i] = in.readLong();
+            }
+            return cube;
+        } catch (IOException e) {
+            System.err.println("Could not read delay cube, it will be rebuilt: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) out.writeUTF(value);
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] values = new String[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readUTF();
+        return values;
+    }
+
+    private static void writeNames(DataOutputStream out, Map<String, String> names) throws IOException {
+        out.writeInt(names.size());
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readNames(DataInputStream in) throws IOException {
+        Map<String, String> names = new HashMap<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            names.put(in.readUTF(), in.readUTF());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,70 @@
+package service;
+
+// Delay minutes for one group (an airline, airport, route or month): count and mean, a quantile
+// sketch for the percentiles, and fixed histogram buckets. Everything in it merges, so each scan
+// partition builds its own and they are combined at the end.
+public class DelayDistribution {
+
+    // Bucket upper bounds in minutes, the last bucket is everything from 180 up.
+    private static final int[] BUCKET_LIMITS = {15, 30, 60, 120, 180};
+    private static final String[] BUCKET_LABELS = {"< 15", "15-29", "30-59", "60-119", "120-179", "180+"};
+
+    private final KllSketch sketch = new KllSketch();
+    private final long[] buckets = new long[BUCKET_LIMITS.length + 1];
+    private long count = 0;
+    private double total = 0;
+
+    public void add(double minutes) {
+        sketch.update(minutes);
+        count++;
+        total += minutes;
+
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS.length && minutes >= BUCKET_LIMITS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket]++;
+    }
+
+    public void merge(DelayDistribution other) {
+        sketch.merge(other.sketch);
+        count += other.count;
+        total += other.total;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] += other.buckets[i];
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getAverage() {
+        return count > 0 ? total / count : 0;
+    }
+
+    // Percentile from 0 to 100, e.g. 95 for p95.
+    public double getPercentile(double percentile) {
+        return sketch.getQuantile(percentile / 100.0);
+    }
+
+    public double[] getPercentiles(double... percentiles) {
+        double[] fractions = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            fractions[i] = percentiles[i] / 100.0;
+        }
+        return sketch.getQuantiles(fractions);
+    }
+
+    public double getMax() {
+        return sketch.getMax();
+    }
+
+    public long[] getBucketCounts() {
+        return buckets.clone();
+    }
+
+    public static String[] getBucketLabels() {
+        return BUCKET_LABELS.clone();
+    }
+}
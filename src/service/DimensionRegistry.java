@@ -0,0 +1,96 @@
+package service;
+
+import flightModel.Airline;
+import flightModel.Airport;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+// Every airline and airport, read once per data version. Flights reference the shared Airline and
+// Airport objects instead of joining for their names and holding copies of them, and the dropdowns,
+// name index and analytics all read the names from here rather than going back to the tables.
+public class DimensionRegistry {
+
+    private final Map<String, Airline> airlines;
+    private final Map<String, Airport> airports;
+    private final List<Airline> airlinesByName;
+    private final List<Airport> airportsByName;
+
+    private DimensionRegistry(Map<String, Airline> airlines, Map<String, Airport> airports) {
+        this.airlines = airlines;
+        this.airports = airports;
+
+        List<Airline> sortedAirlines = new ArrayList<>(airlines.values());
+        sortedAirlines.sort(Comparator.comparing(Airline::getName, Comparator.nullsFirst(Comparator.naturalOrder())));
+        airlinesByName = Collections.unmodifiableList(sortedAirlines);
+
+        List<Airport> sortedAirports = new ArrayList<>(airports.values());
+        sortedAirports.sort(Comparator.comparing(Airport::getName, Comparator.nullsFirst(Comparator.naturalOrder())));
+        airportsByName = Collections.unmodifiableList(sortedAirports);
+    }
+
+    public static DimensionRegistry load(Connection conn) throws SQLException {
+        Map<String, Airline> airlines = new HashMap<>();
+        for (String[] row : readPairs(conn, "SELECT iata_code, name FROM Airline")) {
+            airlines.put(row[0], new Airline(row[0], row[1]));
+        }
+        Map<String, Airport> airports = new HashMap<>();
+        for (String[] row : readPairs(conn, "SELECT iata_code, name FROM Airport")) {
+            airports.put(row[0], new Airport(row[0], row[1]));
+        }
+        return new DimensionRegistry(airlines, airports);
+    }
+
+    private static List<String[]> readPairs(Connection conn, String sql) throws SQLException {
+        List<String[]> rows = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                rows.add(new String[]{rs.getString(1), rs.getString(2)});
+            }
+        }
+        return rows;
+    }
+
+    // The shared airline for a code. A code missing from the table gets a nameless one, null for null.
+    public Airline getAirline(String code) {
+        if (code == null) return null;
+        Airline airline = airlines.get(code);
+        return airline != null ? airline : new Airline(code, null);
+    }
+
+    public Airport getAirport(String code) {
+        if (code == null) return null;
+        Airport airport = airports.get(code);
+        return airport != null ? airport : new Airport(code, null);
+    }
+
+    // Sorted by name, like the dropdowns show them.
+    public List<Airline> getAirlines() {
+        return airlinesByName;
+    }
+
+    public List<Airport> getAirports() {
+        return airportsByName;
+    }
+
+    // Code to name, leaving out entries without a name.
+    public Map<String, String> getAirlineNames() {
+        Map<String, String> names = new HashMap<>();
+        for (Airline airline : airlinesByName) {
+            if (airline.getName() != null) names.put(airline.getCode(), airline.getName());
+        }
+        return names;
+    }
+
+    public Map<String, String> getAirportNames() {
+        Map<String, String> names = new HashMap<>();
+        for (Airport airport : airportsByName) {
+            if (airport.getName() != null) names.put(airport.getCode(), airport.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,38 @@
+package service;
+
+// A figure computed from a sample rather than the full data, with its 95% confidence interval.
+public class Estimate {
+
+    private final double value;
+    private final double low;
+    private final double high;
+    private final int samplePercent;
+
+    public Estimate(double value, double low, double high, int samplePercent) {
+        this.value = value;
+        this.low = low;
+        this.high = high;
+        this.samplePercent = samplePercent;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public double getLow() {
+        return low;
+    }
+
+    public double getHigh() {
+        return high;
+    }
+
+    public int getSamplePercent() {
+        return samplePercent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f (%.1f - %.1f)", value, low, high);
+    }
+}
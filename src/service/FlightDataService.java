@@ -1,430 +1,1935 @@
 package service;
 
+import database.BitmapIndex;
+import database.DatabaseManager;
+import flightModel.Airline;
+import flightModel.Airport;
 import flightModel.Flight;
 
 import java.sql.*;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
 
 
 public class FlightDataService {
 
     private static final String DB_URL = "jdbc:sqlite:flights.db";
+    private static final String ANALYTICS_CACHE_FILE = "flights.db.analytics";
+
+    // Every query run, for IndexAdvisor. Off with -Dflights.recordWorkload=false.
+    public static final String WORKLOAD_FILE = "flights.db.workload";
+
+    // Groupings for getDelayDistributions and getTopK, flights only rank in getTopK.
+    public static final String GROUP_AIRLINE = "airline";
+    public static final String GROUP_AIRPORT = "airport";
+    public static final String GROUP_ROUTE = "route";
+    public static final String GROUP_MONTH = "month";
+    public static final String GROUP_DAY = "day";
+    public static final String GROUP_FLIGHT = "flight";
+
+    // Metrics getTopK ranks on.
+    public static final String METRIC_AVERAGE_DELAY = "avg_delay";
+    public static final String METRIC_P95_DELAY = "p95_delay";
+    public static final String METRIC_CANCELLATION_RATE = "cancellation_rate";
+
+    // Search cache budget, override with -Dflights.searchCacheBytes=...
+    private static final long DEFAULT_SEARCH_CACHE_BYTES = 64L * 1024 * 1024;
+
+    // Flights whose per-reason delays are kept for lazily loaded searches, set with -Dflights.delayCacheFlights=...
+    private static final int DEFAULT_DELAY_CACHE_FLIGHTS = 4096;
+
+    // Read connections for searches and analytics, size with -Dflights.poolSize=...
+    private static final int DEFAULT_POOL_SIZE = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    // Used for small metadata lookups, the heavy queries go through the pool.
     private Connection conn;
+    private final ConnectionPool pool;
+    private final ExecutorService queryExecutor = newQueryExecutor();
+    private final SearchCache searchCache;
+    private final DelayCache delayCache;
+    private QueryWorkload workload;
+    private final AnalyticsCache analyticsCache;
+
+    // Queries slower than this are logged with their plan, set with -Dflights.slowQueryMillis=...
+    private static final long DEFAULT_SLOW_QUERY_MILLIS = 250;
+    private static final int SLOW_QUERY_REPORT_SHAPES = 10;
+
+    // Latency and volume per service method, on JMX and printed every flights.metricsDumpSeconds (0 turns it off).
+    private static final long DEFAULT_METRICS_DUMP_SECONDS = 300;
+    private static final int MAP_ENTRY_BYTES = 80;
+    private static final int DELAY_BYTES = 4;
+    private final ServiceMetrics metrics = new ServiceMetrics();
+    private final QueryLog queryLog =
+            new QueryLog(Long.getLong("flights.slowQueryMillis", DEFAULT_SLOW_QUERY_MILLIS));
+
+    // Async calls queue in the scheduler for one of flights.querySlots (default the pool size) slots.
+    // Searches estimated above flights.exportRows rows wait in the export lane.
+    private static final long DEFAULT_EXPORT_ROWS = 50_000;
+    private final QueryScheduler scheduler;
+
+    // What admission charges a call it can't estimate yet, see estimateRows.
+    private static final long UNESTIMATED_ADMISSION_ROWS = 1_000;
+
+    // Only set when started with -Dflights.engine=columnar, or =auto when the catalog says the flights fit
+    // in flights.columnarBudgetMB. Auto sends searches the statistics expect to match under 1 in
+    // SQL_SEARCH_SHARE flights to SQLite's indexes and the rest to the store.
+    private ColumnarFlightStore columnarStore;
+    private boolean autoEngine;
+    private static final long DEFAULT_COLUMNAR_BUDGET_MB = 512;
+    private static final int SQL_SEARCH_SHARE = 200;
+
+    // Loaded (or built) on first search, turn off with -Dflights.bitmaps=false.
+    private static final boolean USE_BITMAPS = !"false".equalsIgnoreCase(System.getProperty("flights.bitmaps"));
+    private final Object bitmapLock = new Object();
+    private volatile BitmapIndex bitmapIndex;
+
+    // Searches bigger than this are refused rather than loaded, use searchFlightsPage for those.
+    // Override with -Dflights.maxSearchRows=...
+    private static final long DEFAULT_MAX_SEARCH_ROWS = 500_000;
+    private final long maxSearchRows = Long.getLong("flights.maxSearchRows", DEFAULT_MAX_SEARCH_ROWS);
+
+    private static final long DATA_VERSION_RECHECK_MILLIS = 1000;
+    private volatile String dataVersion;
+    private volatile long dataVersionCheckedAt;
+
+    private DimensionRegistry dimensions;
+    private String dimensionsVersion;
+    private NameIndex nameIndex;
+    private String nameIndexVersion;
+    private boolean hasDateKey;
+    private String dateKeyVersion;
+    private DatasetStatistics statistics;
+    private String statisticsVersion;
+    private List<Integer> availableYears;
+    private String availableYearsVersion;
+
+    // Yearly analytics are split into flight_id ranges of at least this many rows, one per pooled connection.
+    private static final long MIN_ROWS_PER_PARTITION = 100_000;
+    private TableStats tableStats;
+    private String tableStatsVersion;
+
+    private static final String DELAY_CUBE_FILE = "flights.db.cube";
+    private final Object cubeLock = new Object();
+    private volatile DelayCube delayCube;
+    private MonthlyDelaySeries monthlySeries;
+
+    // Stratum sizes for the import-time samples, see SampleBuilder.
+    private final Map<Integer, Map<String, long[]>> sampleStrata = new HashMap<>();
+    private String sampleStrataVersion;
+    private static final int COUNT_ESTIMATE_SAMPLE = 1;
 
     // Constructor - connecting to the DB.
     public FlightDataService() throws SQLException {
-        conn = DriverManager.getConnection(DB_URL);
-        System.out.println("DB connected: " + DB_URL);
+        this(Long.getLong("flights.searchCacheBytes", DEFAULT_SEARCH_CACHE_BYTES));
+    }
+
+    public FlightDataService(long searchCacheBytes) throws SQLException {
+        StorageProfile profile = StorageProfile.forName(System.getProperty("flights.storageProfile",
+                StorageProfile.DEFAULT));
+        conn = profile.open(DB_URL);
+        pool = new ConnectionPool(DB_URL, Integer.getInteger("flights.poolSize", DEFAULT_POOL_SIZE), profile);
+        scheduler = new QueryScheduler(Integer.getInteger("flights.querySlots", pool.getSize()),
+                Long.getLong("flights.exportRows", DEFAULT_EXPORT_ROWS));
+        searchCache = new SearchCache(searchCacheBytes);
+        delayCache = new DelayCache(Integer.getInteger("flights.delayCacheFlights", DEFAULT_DELAY_CACHE_FLIGHTS));
+        analyticsCache = new AnalyticsCache(ANALYTICS_CACHE_FILE);
+        if (!"false".equalsIgnoreCase(System.getProperty("flights.recordWorkload"))) {
+            workload = new QueryWorkload(WORKLOAD_FILE);
+            workload.load();
+        }
+        analyticsCache.load(getDataVersion());
+        System.out.println("DB connected: " + DB_URL + ", storage profile " + profile);
+
+        metrics.registerMBeans();
+        metrics.startDump(Long.getLong("flights.metricsDumpSeconds", DEFAULT_METRICS_DUMP_SECONDS));
+
+        String engine = System.getProperty("flights.engine", "");
+        autoEngine = "auto".equalsIgnoreCase(engine);
+        if (autoEngine && !fitsColumnarBudget()) {
+            System.out.println("Columnar engine skipped, the flights don't fit flights.columnarBudgetMB");
+        } else if (autoEngine || "columnar".equalsIgnoreCase(engine)) {
+            columnarStore = ColumnarFlightStore.load(conn, getDimensions());
+            System.out.println("Columnar engine loaded " + columnarStore.getRowCount() + " flights in " +
+                    columnarStore.getLoadMillis() + " ms, using " +
+                    (columnarStore.getMemoryFootprint() / 1024) + " KB");
+        }
+    }
+
+    // The store's footprint is about 41 bytes a flight and 4 a delay row, see getMemoryFootprint.
+    private boolean fitsColumnarBudget() throws SQLException {
+        DatasetStatistics stats = getStatistics();
+        if (stats == null) {
+            return false;
+        }
+        long bytes = 41L * stats.getFlightCount() + 4L * stats.getDelayRowCount();
+        return bytes <= Long.getLong("flights.columnarBudgetMB", DEFAULT_COLUMNAR_BUDGET_MB) * 1024 * 1024;
+    }
+
+    // The columnar store when it should answer this search, null to run it in SQLite.
+    private ColumnarFlightStore columnarFor(FlightQuery query) throws SQLException {
+        if (columnarStore == null || !autoEngine) {
+            return columnarStore;
+        }
+        DatasetStatistics stats = getStatistics();
+        long estimate = new QueryPlanner(getNameIndex(), null, hasDateKey(), stats).estimateRows(query);
+        return estimate >= 0 && estimate * SQL_SEARCH_SHARE < stats.getFlightCount() ? null : columnarStore;
     }
 
     // Close DB connection, goodbye!
     public void disconnect() throws SQLException {
+        System.out.println(searchCache.getStats());
+        System.out.println(delayCache.getStats());
+        System.out.println(queryLog.getReport(SLOW_QUERY_REPORT_SHAPES));
+        if (workload != null && !workload.isEmpty()) {
+            workload.save();
+        }
+        metrics.stopDump();
+        System.out.println(metrics.getReport());
+        System.out.println(scheduler.getReport());
+        metrics.unregisterMBeans();
+        queryExecutor.shutdownNow();
+        pool.close();
         if (conn != null && !conn.isClosed()) {
             conn.close();
         }
     }
 
 
-    public List<Flight> searchFlights(String airline, String flightNumber,
-                                      String origin, String destination,
-                                      LocalDate startDate, LocalDate endDate,
-                                      Integer minDelay, Integer maxDelay,
-                                      String delayReason) throws SQLException {
+    // Flights matching the query, in the query's order. Results are cached per query and data version.
+    public List<Flight> searchFlights(FlightQuery query) throws SQLException {
+        return timed("searchFlights", () -> searchFlights(CancellationToken.NONE, query));
+    }
 
-        StringBuilder sql = new StringBuilder();
-        List<Object> params = new ArrayList<>();
+    // Non-blocking search. Cancel the token (or the future) to stop the query, e.g. when a newer search replaces it.
+    public CompletableFuture<List<Flight>> searchFlightsAsync(FlightQuery query, CancellationToken token,
+                                                              Duration timeout) {
+        return submit("searchFlights", () -> searchAdmission(query, 0),
+                () -> searchFlights(token, query), token, timeout);
+    }
 
-        sql.append(
-                "SELECT f.flight_id, f.date, f.cancelled, f.diverted, f.cancellation_code, " +
-                        "a.iata_code AS airline_code, a.name AS airline_name, " +
-                        "f.flight_number, o.iata_code AS origin_code, o.name AS origin_city, " +
-                        "d.iata_code AS dest_code, d.name AS dest_city, " +
-                        "f.scheduled_departure, f.actual_departure, f.scheduled_arrival, f.actual_arrival " +
-                        "FROM Flight f " +
-                        "JOIN Airline a ON f.airline_code = a.iata_code " +
-                        "JOIN Airport o ON f.flight_origin = o.iata_code " +
-                        "JOIN Airport d ON f.flight_destination = d.iata_code " +
-                        "WHERE 1=1 "
-        );
+    private List<Flight> searchFlights(CancellationToken token, FlightQuery query) throws SQLException {
+
+        // Same criteria against the same data gives the same flights, so check the cache first.
+        searchCache.checkDataVersion(getDataVersion());
+        String cacheKey = query.getCacheKey();
 
-        // Add filters.
-        if (airline != null && !airline.trim().isEmpty()) {
-            sql.append("AND (a.iata_code LIKE ? OR a.name LIKE ?) ");
-            String pattern = "%" + airline.trim() + "%";
-            params.add(pattern);
-            params.add(pattern);
+        List<Flight> cached = searchCache.get(cacheKey);
+        if (cached != null) {
+            return cached;
         }
 
-        // Flight number - could be "AA123" or just "123".
-        if (flightNumber != null && !flightNumber.trim().isEmpty()) {
-            String fn = flightNumber.trim();
+        // A limit within the row limit can't load too much, whatever the query matches.
+        boolean bounded = query.getLimit() > 0 && query.getLimit() <= maxSearchRows;
 
-            // Try to parse the number part.
-            try {
-                // Check if starts with letters (airline code).
-                if (Character.isLetter(fn.charAt(0))) {
-                    // Split into airline code and number.
-                    int i = 0;
-                    while (i < fn.length() && Character.isLetter(fn.charAt(i))) i++;
-
-                    String airlineCode = fn.substring(0, i);
-                    String numPart = fn.substring(i);
-
-                    if (!numPart.isEmpty()) {
-                        sql.append("AND a.iata_code = ? AND f.flight_number = ? ");
-                        params.add(airlineCode);
-                        params.add(Integer.parseInt(numPart));
-                    }
-                } else {
-                    // Just a flight number.
-                    sql.append("AND f.flight_number = ? ");
-                    params.add(Integer.parseInt(fn));
-                }
-            } catch (Exception e) {
-                // If parsing fails, add impossible condition.
-                sql.append("AND 1=0 ");
+        List<Flight> results;
+        ColumnarFlightStore store = columnarFor(query);
+        if (store != null) {
+            if (!bounded && store.getRowCount() > maxSearchRows) {
+                checkSearchSize(store.count(query));
             }
+            results = store.search(query);
+        } else {
+            QueryPlanner.SqlPlan plan = planQuery(query);
+
+            // Only count first when the bitmaps (or the table size) can't already rule out an oversized result.
+            long upperBound = plan.candidates != null ? plan.candidates.getCardinality() : getTableStats().rows;
+            if (!bounded && plan.noMatches == null && upperBound > maxSearchRows) {
+                checkSearchSize(countMatches(token, plan).getCount());
+            }
+            results = withConnection(c -> runSearch(c, token, plan, 0, 0));
         }
+        searchCache.put(cacheKey, results);
+        return results;
+    }
 
-        // Origin.
-        if (origin != null && !origin.trim().isEmpty()) {
-            sql.append("AND (o.iata_code = ? OR o.name LIKE ?) ");
-            params.add(origin.trim().toUpperCase());
-            params.add("%" + origin.trim() + "%");
+    private void checkSearchSize(long matches) throws SearchTooLargeException {
+        if (matches > maxSearchRows) {
+            throw new SearchTooLargeException(matches, maxSearchRows);
         }
+    }
 
-        // Destination.
-        if (destination != null && !destination.trim().isEmpty()) {
-            sql.append("AND (d.iata_code = ? OR d.name LIKE ?) ");
-            params.add(destination.trim().toUpperCase());
-            params.add("%" + destination.trim() + "%");
-        }
+    public long getMaxSearchRows() {
+        return maxSearchRows;
+    }
+
+    // Exact number of flights a query matches (ignoring its limit), without loading them. Filters the
+    // bitmaps can answer alone never touch the table, the rest is a COUNT(*) with the search's WHERE clause.
+    public SearchCount countFlights(FlightQuery query) throws SQLException {
+        return timed("countFlights", () -> countFlights(CancellationToken.NONE, query, false));
+    }
 
-        if (startDate != null || endDate != null) {
-            // Add a computation to extract year, month, day as integers for comparison
-            sql.append("AND CAST(substr(f.date, 5, 4) AS INTEGER) * 10000 + " +
-                    "CAST(substr(f.date, 3, 2) AS INTEGER) * 100 + " +
-                    "CAST(substr(f.date, 1, 2) AS INTEGER) ");
+    // Like countFlights, but when the count would need a scan it is estimated from the 1% sample instead.
+    // Good enough to warn about a huge search before running it.
+    public SearchCount estimateFlightCount(FlightQuery query) throws SQLException {
+        return timed("estimateFlightCount", () -> countFlights(CancellationToken.NONE, query, true));
+    }
+
+    public CompletableFuture<SearchCount> countFlightsAsync(FlightQuery query, CancellationToken token,
+                                                            Duration timeout) {
+        return submit("countFlights", () -> countAdmission(query),
+                () -> countFlights(token, query, false), token, timeout);
+    }
 
-            if (startDate != null) {
-                sql.append(">= ? ");
-                int dateValue = startDate.getYear() * 10000 +
-                        startDate.getMonthValue() * 100 +
-                        startDate.getDayOfMonth();
-                params.add(dateValue);
+    public CompletableFuture<SearchCount> estimateFlightCountAsync(FlightQuery query, CancellationToken token,
+                                                                   Duration timeout) {
+        return submit("estimateFlightCount", () -> sampleAdmission(COUNT_ESTIMATE_SAMPLE),
+                () -> countFlights(token, query, true), token, timeout);
+    }
+
+    private SearchCount countFlights(CancellationToken token, FlightQuery query, boolean allowEstimate)
+            throws SQLException {
+        searchCache.checkDataVersion(getDataVersion());
+        if (query.getLimit() == 0) {
+            List<Flight> cached = searchCache.get(query.getCacheKey());
+            if (cached != null) {
+                return new SearchCount(cached.size(), true, SearchCount.SOURCE_CACHE);
             }
+        }
 
-            if (startDate != null && endDate != null) {
-                sql.append("AND CAST(substr(f.date, 5, 4) AS INTEGER) * 10000 + " +
-                        "CAST(substr(f.date, 3, 2) AS INTEGER) * 100 + " +
-                        "CAST(substr(f.date, 1, 2) AS INTEGER) ");
+        ColumnarFlightStore store = columnarFor(query);
+        if (store != null) {
+            return new SearchCount(store.count(query), true, SearchCount.SOURCE_COLUMNAR);
+        }
+
+        QueryPlanner.SqlPlan plan = planQuery(query);
+        if (allowEstimate && plan.noMatches == null && !plan.bitmapOnly && plan.where.length() > 0) {
+            try {
+                return estimateMatches(token, plan);
+            } catch (SQLException e) {
+                if (token.isCancelled()) throw e;
+                System.err.println("Count estimate failed, counting exactly: " + e.getMessage());
             }
+        }
+        return countMatches(token, plan);
+    }
+
+    private SearchCount countMatches(CancellationToken token, QueryPlanner.SqlPlan plan) throws SQLException {
+        if (plan.noMatches != null) {
+            return new SearchCount(0, true, SearchCount.SOURCE_BITMAP);
+        }
+        if (plan.bitmapOnly) {
+            return new SearchCount(plan.candidates.getCardinality(), true, SearchCount.SOURCE_BITMAP);
+        }
+        if (plan.where.length() == 0) {
+            return new SearchCount(getTableStats().rows, true, SearchCount.SOURCE_SQL);
+        }
+
+        long[] count = new long[1];
+        withConnection(c -> {
+            query(c, token, "SELECT COUNT(*) FROM Flight f WHERE 1=1 " + plan.where, plan.params,
+                    rs -> count[0] = rs.getLong(1));
+            return null;
+        });
+        return new SearchCount(count[0], true, SearchCount.SOURCE_SQL);
+    }
 
-            if (endDate != null) {
-                sql.append("<= ? ");
-                int dateValue = endDate.getYear() * 10000 +
-                        endDate.getMonthValue() * 100 +
-                        endDate.getDayOfMonth();
-                params.add(dateValue);
+    // Matches per airline/month stratum in the 1% sample, each scaled up to the stratum's population.
+    private SearchCount estimateMatches(CancellationToken token, QueryPlanner.SqlPlan plan) throws SQLException {
+        Map<String, long[]> strata = getSampleStrata(COUNT_ESTIMATE_SAMPLE);
+        QueryPlanner.SqlPlan sampled = plan.restrictToSample(COUNT_ESTIMATE_SAMPLE);
+
+        double[] estimate = new double[1];
+        withConnection(c -> {
+            query(c, token, "SELECT f.airline_code, substr(f.date, 3, 6), COUNT(*) FROM Flight f WHERE 1=1 " +
+                    sampled.where + "GROUP BY 1, 2", sampled.params, rs -> {
+                long[] stratum = strata.get(rs.getString(1) + "|" + rs.getString(2));
+                if (stratum != null && stratum[1] > 0) {
+                    estimate[0] += rs.getLong(3) * (double) stratum[0] / stratum[1];
+                }
+            });
+            return null;
+        });
+
+        // The bitmap candidates are a hard upper bound.
+        long count = Math.round(estimate[0]);
+        if (plan.candidates != null) {
+            count = Math.min(count, plan.candidates.getCardinality());
+        }
+        return new SearchCount(count, false, SearchCount.SOURCE_SAMPLE);
+    }
+
+    // Up to pageSize flights with flight_id above afterFlightId, in flight_id order. Start from 0 and pass
+    // the previous page's getLastFlightId() to walk through a search too big to load at once.
+    // The query must be in flight id order and its limit is ignored. Pages aren't cached, and the size
+    // limit doesn't apply.
+    public SearchPage searchFlightsPage(FlightQuery query, int afterFlightId, int pageSize) throws SQLException {
+        return timed("searchFlightsPage", () -> searchFlightsPage(CancellationToken.NONE, query, afterFlightId,
+                pageSize));
+    }
+
+    public CompletableFuture<SearchPage> searchFlightsPageAsync(FlightQuery query, int afterFlightId, int pageSize,
+                                                                CancellationToken token, Duration timeout) {
+        return submit("searchFlightsPage", () -> searchAdmission(query, pageSize),
+                () -> searchFlightsPage(token, query, afterFlightId, pageSize), token, timeout);
+    }
+
+    private SearchPage searchFlightsPage(CancellationToken token, FlightQuery query, int afterFlightId,
+                                         int pageSize) throws SQLException {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        if (!query.isFlightIdOrder()) {
+            throw new IllegalArgumentException("Pages are in flight id order, the query can't be sorted");
+        }
+
+        // One extra row tells us whether there's another page.
+        List<Flight> flights;
+        ColumnarFlightStore store = columnarFor(query);
+        if (store != null) {
+            flights = store.searchPage(query, afterFlightId, pageSize + 1);
+        } else {
+            QueryPlanner.SqlPlan plan = planQuery(query);
+            flights = withConnection(c -> runSearch(c, token, plan, afterFlightId, pageSize + 1));
+        }
+
+        boolean hasMore = flights.size() > pageSize;
+        if (hasMore) {
+            flights = new ArrayList<>(flights.subList(0, pageSize));
+        }
+        return new SearchPage(flights, hasMore);
+    }
+
+    // Quick preview of a search: runs it against a stratified sample (samplePercent is 1 or 10) and
+    // estimates how many flights the full search will return. The query's sort and limit don't apply.
+    // Nothing is cached.
+    public ApproximateSearch searchFlightsApproximate(int samplePercent, FlightQuery query) throws SQLException {
+        return timed("searchFlightsApproximate", () -> approximateSearch(CancellationToken.NONE, samplePercent,
+                query));
+    }
+
+    public CompletableFuture<ApproximateSearch> searchFlightsApproximateAsync(int samplePercent, FlightQuery query,
+                                                                              CancellationToken token,
+                                                                              Duration timeout) {
+        return submit("searchFlightsApproximate", () -> sampleAdmission(samplePercent),
+                () -> approximateSearch(token, samplePercent, query), token, timeout);
+    }
+
+    private ApproximateSearch approximateSearch(CancellationToken token, int samplePercent, FlightQuery query)
+            throws SQLException {
+        Map<String, long[]> strata = getSampleStrata(samplePercent);
+        QueryPlanner.SqlPlan plan = planQuery(query).restrictToSample(samplePercent);
+        List<Flight> sample = withConnection(c -> runSearch(c, token, plan, 0, 0));
+
+        // Each sampled match stands for population / sampled flights of its airline/month stratum.
+        double total = 0;
+        Map<String, double[]> airlineSums = new HashMap<>();
+        for (Flight f : sample) {
+            if (f.getDate() == null) continue;
+            long[] stratum = strata.get(stratumKey(f.getAirlineCode(), f.getDate().getMonthValue(), f.getDate().getYear()));
+            if (stratum == null || stratum[1] == 0) continue;
+            double weight = (double) stratum[0] / stratum[1];
+            total += weight;
+            addUnit(airlineSums, f.getAirlineCode(), weight);
+        }
+
+        double margin = 1.96 * Math.sqrt(collapsedVariance(airlineSums, airlineTotals(strata, null)));
+        return new ApproximateSearch(sample,
+                new Estimate(total, Math.max(sample.size(), total - margin), total + margin, samplePercent));
+    }
+
+    // Compiles a query for SQL. The bitmaps only load when the query has a filter they can answer.
+    private QueryPlanner.SqlPlan planQuery(FlightQuery query) throws SQLException {
+        boolean bitmapFilter = !query.getAirlines().isEmpty() || !query.getOrigins().isEmpty() ||
+                !query.getDestinations().isEmpty() || !query.getDelayReasons().isEmpty() ||
+                !query.isIncludeCancelled() || !query.isIncludeDiverted();
+        BitmapIndex bitmaps = USE_BITMAPS && bitmapFilter ? getBitmapIndex() : null;
+        return new QueryPlanner(getNameIndex(), bitmaps, hasDateKey(), getStatistics()).compile(query);
+    }
+
+    // Databases imported before date_key existed still search, on the date text instead.
+    private synchronized boolean hasDateKey() throws SQLException {
+        String version = getDataVersion();
+        if (dateKeyVersion == null || !version.equals(dateKeyVersion)) {
+            hasDateKey = false;
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("PRAGMA table_info(Flight)")) {
+                while (rs.next()) {
+                    if ("date_key".equalsIgnoreCase(rs.getString("name"))) {
+                        hasDateKey = true;
+                    }
+                }
             }
+            dateKeyVersion = version;
         }
+        return hasDateKey;
+    }
 
-        // Delay filters - only join if needed.
-        boolean hasDelayFilter = (minDelay != null || maxDelay != null ||
-                (delayReason != null && !delayReason.trim().isEmpty()));
+    // limit > 0 returns at most that many rows after afterFlightId in flight_id order, otherwise the
+    // plan's own order and limit apply.
+    private List<Flight> runSearch(Connection c, CancellationToken token, QueryPlanner.SqlPlan plan,
+                                   int afterFlightId, int limit) throws SQLException {
+        if (plan.noMatches != null) {
+            return new ArrayList<>();
+        }
 
-        if (hasDelayFilter) {
-            sql.append("AND f.flight_id IN (SELECT DISTINCT flight_id FROM Delay_Reason WHERE 1=1 ");
+        StringBuilder sql = new StringBuilder();
+        List<Object> params = new ArrayList<>(plan.params);
 
-            if (delayReason != null && !delayReason.trim().isEmpty()) {
-                sql.append("AND reason = ? ");
-                params.add(delayReason.trim().toUpperCase());
+        // Names come from the registry, so the query only reads Flight. The packed date_key saves parsing
+        // the date text when the database has it.
+        DimensionRegistry dims = getDimensions();
+        boolean dateKey = hasDateKey();
+        sql.append(
+                "SELECT f.flight_id, f.date, " + (dateKey ? "f.date_key, " : "") +
+                        "f.cancelled, f.diverted, f.cancellation_code, " +
+                        "f.airline_code, f.flight_number, f.flight_origin, f.flight_destination, " +
+                        "f.scheduled_departure, f.actual_departure, f.scheduled_arrival, f.actual_arrival " +
+                        "FROM Flight f " +
+                        "WHERE 1=1 "
+        );
+        sql.append(plan.where);
+
+        if (limit > 0) {
+            sql.append("AND f.flight_id > ? ORDER BY f.flight_id LIMIT ? ");
+            params.add(afterFlightId);
+            params.add(limit);
+        } else {
+            sql.append(plan.orderBy);
+            if (plan.limit > 0) {
+                sql.append("LIMIT ? ");
+                params.add(plan.limit);
             }
+        }
 
-            if (minDelay != null) {
-                sql.append("AND delay_length >= ? ");
-                params.add(minDelay);
+        // Run query.
+        // Flights are immutable, so rows stay builders until their delays are in.
+        List<Flight.Builder> builders = new ArrayList<>();
+        Map<Integer, Flight.Builder> flightMap = new HashMap<>();
+
+        query(c, token, sql.toString(), params, rs -> {
+            Flight.Builder f = Flight.builder()
+                    .flightId(rs.getInt("flight_id"))
+                    .airline(dims.getAirline(rs.getString("airline_code")))
+                    .flightNumber(rs.getInt("flight_number"))
+                    .origin(dims.getAirport(rs.getString("flight_origin")))
+                    .destination(dims.getAirport(rs.getString("flight_destination")))
+                    .departure(rs.getInt("scheduled_departure"), rs.getInt("actual_departure"))
+                    .arrival(rs.getInt("scheduled_arrival"), rs.getInt("actual_arrival"))
+                    .cancelled(rs.getBoolean("cancelled"), rs.getString("cancellation_code"))
+                    .diverted(rs.getBoolean("diverted"));
+            int key = dateKey ? rs.getInt("date_key") : 0;
+            if (key > 0) {
+                f.dateKey(key);
+            } else {
+                f.dateFromString(rs.getString("date"));
             }
 
-            if (maxDelay != null) {
-                sql.append("AND delay_length <= ? ");
-                params.add(maxDelay);
+            builders.add(f);
+            flightMap.put(f.getFlightId(), f);
+        });
+
+        System.out.println("Found " + builders.size() + " flights");
+
+        // Fetch delay reasons if we have results and the query wants them.
+        if (!plan.includeDelays) {
+            for (Flight.Builder builder : builders) {
+                builder.withoutDelayBreakdown();
             }
+        } else if (!builders.isEmpty()) {
+            fetchDelays(c, token, flightMap.keySet(), (flightId, reason, minutes) -> {
+                flightMap.get(flightId).addDelay(reason, minutes);
+            });
+        }
 
-            sql.append(") ");
+        List<Flight> results = new ArrayList<>(builders.size());
+        for (Flight.Builder builder : builders) {
+            results.add(builder.build());
         }
+        return results;
+    }
 
+    // Airlines and airports only change on import, so the registry lives as long as the data version.
+    public synchronized DimensionRegistry getDimensions() throws SQLException {
+        String version = getDataVersion();
+        if (dimensions == null || !version.equals(dimensionsVersion)) {
+            dimensions = DimensionRegistry.load(conn);
+            dimensionsVersion = version;
+        }
+        return dimensions;
+    }
 
-        // Debug info.
-        System.out.println("Search SQL: " + sql);
+    // The import's statistics catalog, null for databases imported before it existed.
+    public synchronized DatasetStatistics getStatistics() throws SQLException {
+        String version = getDataVersion();
+        if (statisticsVersion == null || !version.equals(statisticsVersion)) {
+            statistics = DatasetStatistics.load(conn);
+            statisticsVersion = version;
+        }
+        return statistics;
+    }
 
-        // Run query.
-        List<Flight> results = new ArrayList<>();
-        Map<Integer, Flight> flightMap = new HashMap<>();
+    // Years with flights, oldest first. From the catalog, or the date text on older databases.
+    public synchronized List<Integer> getAvailableYears() throws SQLException {
+        String version = getDataVersion();
+        if (availableYears == null || !version.equals(availableYearsVersion)) {
+            DatasetStatistics stats = getStatistics();
+            if (stats != null) {
+                availableYears = stats.getYears();
+            } else {
+                availableYears = new ArrayList<>();
+                try (Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT DISTINCT CAST(substr(date, 5, 4) AS INTEGER) " +
+                             "AS year FROM Flight ORDER BY year")) {
+                    while (rs.next()) {
+                        availableYears.add(rs.getInt(1));
+                    }
+                }
+            }
+            availableYears = Collections.unmodifiableList(availableYears);
+            availableYearsVersion = version;
+        }
+        return availableYears;
+    }
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
-            // Set parameters.
-            for (int i = 0; i < params.size(); i++) {
-                stmt.setObject(i + 1, params.get(i));
+    private synchronized NameIndex getNameIndex() throws SQLException {
+        String version = getDataVersion();
+        if (nameIndex == null || !version.equals(nameIndexVersion)) {
+            nameIndex = NameIndex.build(getDimensions());
+            nameIndexVersion = version;
+        }
+        return nameIndex;
+    }
+
+    // Use the file the importer wrote if it matches the data, otherwise build it once and save it. Built on
+    // a pooled connection under its own lock, like the cube, so searches that don't need the bitmaps (or
+    // hit the cache) don't wait for a rebuild behind the service lock.
+    private BitmapIndex getBitmapIndex() throws SQLException {
+        String version = getDataVersion();
+        BitmapIndex current = bitmapIndex;
+        if (current != null && current.getDataVersion().equals(version)) {
+            return current;
+        }
+
+        synchronized (bitmapLock) {
+            current = bitmapIndex;
+            if (current != null && current.getDataVersion().equals(version)) {
+                return current;
             }
 
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    Flight f = new Flight();
-                    f.setFlightId(rs.getInt("flight_id"));
-                    f.setDateFromString(rs.getString("date"));
-                    f.setAirlineCode(rs.getString("airline_code"));
-                    f.setAirlineName(rs.getString("airline_name"));
-                    f.setFlightNumber(rs.getInt("flight_number"));
-                    f.setOriginCode(rs.getString("origin_code"));
-                    f.setOriginCity(rs.getString("origin_city"));
-                    f.setDestCode(rs.getString("dest_code"));
-                    f.setDestCity(rs.getString("dest_city"));
-                    f.setScheduledDeparture(rs.getInt("scheduled_departure"));
-                    f.setActualDeparture(rs.getInt("actual_departure"));
-                    f.setScheduledArrival(rs.getInt("scheduled_arrival"));
-                    f.setActualArrival(rs.getInt("actual_arrival"));
-                    f.setCancelled(rs.getBoolean("cancelled"));
-                    f.setDiverted(rs.getBoolean("diverted"));
-                    f.setCancellationCode(rs.getString("cancellation_code"));
-
-                    results.add(f);
-                    flightMap.put(f.getFlightId(), f);
+            current = BitmapIndex.load(DatabaseManager.BITMAP_INDEX_FILE, version);
+            if (current == null) {
+                long start = System.currentTimeMillis();
+                current = withConnection(c -> BitmapIndex.build(c, version));
+                System.out.println("Built bitmap indexes in " + (System.currentTimeMillis() - start) + " ms");
+                try {
+                    current.save(DatabaseManager.BITMAP_INDEX_FILE);
+                } catch (java.io.IOException e) {
+                    System.err.println("Could not save bitmap indexes: " + e.getMessage());
                 }
             }
+            bitmapIndex = current;
+            return current;
         }
+    }
+
+    // The importer stamps a new version on every run, databases from before that just report "unversioned".
+    // Imports run in another process, so the version is re-read, at most every DATA_VERSION_RECHECK_MILLIS,
+    // instead of on every call: searches ask for it several times each. Only the re-read takes the service
+    // lock, because the metadata connection is shared with the query threads.
+    public String getDataVersion() {
+        String version = dataVersion;
+        if (version != null && System.currentTimeMillis() - dataVersionCheckedAt < DATA_VERSION_RECHECK_MILLIS) {
+            return version;
+        }
+        return refreshDataVersion();
+    }
+
+    private synchronized String refreshDataVersion() {
+        if (dataVersion == null || System.currentTimeMillis() - dataVersionCheckedAt >= DATA_VERSION_RECHECK_MILLIS) {
+            dataVersion = getDataVersion(conn);
+            dataVersionCheckedAt = System.currentTimeMillis();
+        }
+        return dataVersion;
+    }
+
+    private static String getDataVersion(Connection c) {
+        String sql = "SELECT info_value FROM Dataset_Info WHERE info_key = 'data_version'";
+        try (Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getString(1) : "unversioned";
+        } catch (SQLException e) {
+            return "unversioned";
+        }
+    }
+
+    public SearchCache.Stats getSearchCacheStats() {
+        return searchCache.getStats();
+    }
+
+    // Timings per query shape since startup, worst first, with plans for the slow ones.
+    public String getQueryReport(int shapes) {
+        return queryLog.getReport(shapes);
+    }
+
+    public List<QueryLog.ShapeStats> getWorstQueries(int shapes) {
+        return queryLog.getWorstShapes(shapes);
+    }
+
+    public ServiceMetrics getMetrics() {
+        return metrics;
+    }
+
+    public QueryScheduler getScheduler() {
+        return scheduler;
+    }
+
+    // Per-reason delays for flights that came from a search without them, keyed by flight id (flights
+    // without any map to an empty list). Recently asked for flights come from a small LRU cache, so the
+    // UI can ask for the selected row and its neighbours on every selection.
+    public Map<Integer, List<Flight.Delay>> getDelayBreakdowns(Collection<Integer> flightIds) throws SQLException {
+        return timed("getDelayBreakdowns", () -> delayBreakdowns(CancellationToken.NONE, flightIds));
+    }
 
-        System.out.println("Found " + results.size() + " flights");
+    public CompletableFuture<Map<Integer, List<Flight.Delay>>> getDelayBreakdownsAsync(Collection<Integer> flightIds,
+                                                                                      CancellationToken token,
+                                                                                      Duration timeout) {
+        return submit("getDelayBreakdowns", () -> new Admission(QueryScheduler.INTERACTIVE, flightIds.size()),
+                () -> delayBreakdowns(token, flightIds), token, timeout);
+    }
+
+    private Map<Integer, List<Flight.Delay>> delayBreakdowns(CancellationToken token, Collection<Integer> flightIds)
+            throws SQLException {
+        delayCache.checkDataVersion(getDataVersion());
+
+        Map<Integer, List<Flight.Delay>> results = new HashMap<>();
+        Set<Integer> missing = new HashSet<>();
+        for (Integer flightId : flightIds) {
+            List<Flight.Delay> cached = delayCache.get(flightId);
+            if (cached != null) {
+                results.put(flightId, cached);
+            } else {
+                missing.add(flightId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return results;
+        }
 
-        // Fetch delay reasons if we have results.
-        if (!results.isEmpty()) {
-            fetchDelays(flightMap);
+        Map<Integer, List<Flight.Delay>> loaded = new HashMap<>();
+        for (Integer flightId : missing) {
+            loaded.put(flightId, new ArrayList<>());
+        }
+        if (columnarStore != null) {
+            for (Integer flightId : missing) {
+                loaded.put(flightId, columnarStore.getDelays(flightId));
+            }
+        } else {
+            withConnection(c -> {
+                fetchDelays(c, token, missing, (flightId, reason, minutes) -> {
+                    loaded.get(flightId).add(new Flight.Delay(reason, minutes));
+                });
+                return null;
+            });
         }
 
+        for (Map.Entry<Integer, List<Flight.Delay>> entry : loaded.entrySet()) {
+            delayCache.put(entry.getKey(), entry.getValue());
+            results.put(entry.getKey(), entry.getValue());
+        }
         return results;
     }
+
+    private interface DelayRowHandler {
+        void handle(int flightId, String reason, int minutes);
+    }
+
     // Get delay reasons for flights.
-    private void fetchDelays(Map<Integer, Flight> flightMap) throws SQLException {
-        if (flightMap.isEmpty()) return;
+    private void fetchDelays(Connection c, CancellationToken token, Collection<Integer> flightIds,
+                             DelayRowHandler handler) throws SQLException {
+        if (flightIds.isEmpty()) return;
 
         // Build list of IDs.
         StringBuilder ids = new StringBuilder();
-        for (Integer id : flightMap.keySet()) {
+        for (Integer id : flightIds) {
             if (ids.length() > 0) ids.append(",");
             ids.append(id);
         }
 
         String sql = "SELECT flight_id, reason, delay_length FROM Delay_Reason WHERE flight_id IN (" + ids + ")";
 
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+        long[] rows = new long[1];
+        timed("fetchDelays", token, () -> {
+            query(c, token, sql, Collections.emptyList(), rs -> {
+                handler.handle(rs.getInt("flight_id"), rs.getString("reason"), rs.getInt("delay_length"));
+                rows[0]++;
+            });
+            return rows;
+        });
+    }
 
-            while (rs.next()) {
-                int flightId = rs.getInt("flight_id");
-                String reason = rs.getString("reason");
-                int delayLength = rs.getInt("delay_length");
+    // Get all airlines for dropdown, as "code - name".
+    public List<String> getAirlines() throws SQLException {
+        return timed("getAirlines", () -> {
+            List<String> airlines = new ArrayList<>();
+            for (Airline airline : getDimensions().getAirlines()) {
+                airlines.add(airline.getDisplayName());
+            }
+            return airlines;
+        });
+    }
 
-                Flight f = flightMap.get(flightId);
-                if (f != null) {
-                    f.addDelay(new Flight.Delay(reason, delayLength));
-                }
+    // Get all airports for dropdown.
+    public List<String> getAirports() throws SQLException {
+        return timed("getAirports", () -> {
+            List<String> airports = new ArrayList<>();
+            for (Airport airport : getDimensions().getAirports()) {
+                airports.add(airport.getDisplayName());
             }
+            return airports;
+        });
+    }
+
+    // Get average delay by airline for a year.
+    public Map<String, Double> getAverageDelayByAirline(int year) throws SQLException {
+        return timed("getAverageDelayByAirline", () -> averageDelayByAirline(year, CancellationToken.NONE));
+    }
+
+    // Get average delay by airport for a year.
+    public Map<String, Double> getAverageDelayByAirport(int year) throws SQLException {
+        return timed("getAverageDelayByAirport", () -> averageDelayByAirport(year, CancellationToken.NONE));
+    }
+
+    // Get monthly delays for an airport over a date range.
+    public Map<String, Double> getDelaysByMonth(String airportCode, int startYear, int endYear) throws SQLException {
+        return timed("getDelaysByMonth", () -> delaysByMonth(airportCode, startYear, endYear,
+                CancellationToken.NONE));
+    }
+
+    public CompletableFuture<Map<String, Double>> getAverageDelayByAirlineAsync(int year, CancellationToken token,
+                                                                                 Duration timeout) {
+        return submit("getAverageDelayByAirline", () -> cubeAdmission("airline|" + year, year, year),
+                () -> averageDelayByAirline(year, token), token, timeout);
+    }
+
+    public CompletableFuture<Map<String, Double>> getAverageDelayByAirportAsync(int year, CancellationToken token,
+                                                                                 Duration timeout) {
+        return submit("getAverageDelayByAirport", () -> cubeAdmission("airport|" + year, year, year),
+                () -> averageDelayByAirport(year, token), token, timeout);
+    }
+
+    public CompletableFuture<Map<String, Double>> getDelaysByMonthAsync(String airportCode, int startYear, int endYear,
+                                                                        CancellationToken token, Duration timeout) {
+        return submit("getDelaysByMonth", () -> cubeAdmission(null, startYear, endYear),
+                () -> delaysByMonth(airportCode, startYear, endYear, token), token, timeout);
+    }
+
+    // Delay percentiles and histograms for a year, one entry per airline, airport, route or month.
+    public Map<String, DelayDistribution> getDelayDistributions(String grouping, int year) throws SQLException {
+        return timed("getDelayDistributions", () -> computeDelayDistributions(CancellationToken.NONE, grouping,
+                year, 0));
+    }
+
+    public CompletableFuture<Map<String, DelayDistribution>> getDelayDistributionsAsync(String grouping, int year,
+                                                                                        CancellationToken token,
+                                                                                        Duration timeout) {
+        return submit("getDelayDistributions", () -> analyticsAdmission(year, year),
+                () -> computeDelayDistributions(token, grouping, year, 0), token, timeout);
+    }
+
+    // The k worst airlines, airports (by origin), routes, months, days or single flights of a year on
+    // one metric, worst first. airportCode (may be null) keeps flights leaving that airport, e.g. the
+    // worst days at DEN. Groups with fewer than minFlights flights aren't ranked, so a route flown twice
+    // can't top the cancellation rates.
+    public List<RankedGroup> getTopK(String grouping, String metric, int year, String airportCode, int k,
+                                     int minFlights) throws SQLException {
+        return timed("getTopK", () -> computeTopK(CancellationToken.NONE, grouping, metric, year, airportCode,
+                k, minFlights));
+    }
+
+    public CompletableFuture<List<RankedGroup>> getTopKAsync(String grouping, String metric, int year,
+                                                             String airportCode, int k, int minFlights,
+                                                             CancellationToken token, Duration timeout) {
+        return submit("getTopK", () -> analyticsAdmission(year, year),
+                () -> computeTopK(token, grouping, metric, year, airportCode, k, minFlights), token, timeout);
+    }
+
+    // Yearly averages estimated from a stratified sample, with 95% confidence intervals. Meant as a
+    // preview while the exact figures load.
+    public Map<String, Estimate> estimateAverageDelayByAirline(int year, int samplePercent) throws SQLException {
+        return timed("estimateAverageDelayByAirline", () -> estimateAverageDelay(CancellationToken.NONE,
+                GROUP_AIRLINE, year, samplePercent));
+    }
+
+    public Map<String, Estimate> estimateAverageDelayByAirport(int year, int samplePercent) throws SQLException {
+        return timed("estimateAverageDelayByAirport", () -> estimateAverageDelay(CancellationToken.NONE,
+                GROUP_AIRPORT, year, samplePercent));
+    }
+
+    public CompletableFuture<Map<String, Estimate>> estimateAverageDelayByAirlineAsync(int year, int samplePercent,
+                                                                                       CancellationToken token,
+                                                                                       Duration timeout) {
+        return submit("estimateAverageDelayByAirline", () -> sampleAdmission(samplePercent),
+                () -> estimateAverageDelay(token, GROUP_AIRLINE, year, samplePercent), token, timeout);
+    }
+
+    public CompletableFuture<Map<String, Estimate>> estimateAverageDelayByAirportAsync(int year, int samplePercent,
+                                                                                       CancellationToken token,
+                                                                                       Duration timeout) {
+        return submit("estimateAverageDelayByAirport", () -> sampleAdmission(samplePercent),
+                () -> estimateAverageDelay(token, GROUP_AIRPORT, year, samplePercent), token, timeout);
+    }
+
+    // Ratio estimate of total delay / delay count per group, each sampled flight weighted by its stratum's
+    // population / sample size. The interval uses the usual linearised variance for a stratified ratio.
+    private Map<String, Estimate> estimateAverageDelay(CancellationToken token, String grouping, int year,
+                                                       int samplePercent) throws SQLException {
+        String groupColumn;
+        String join;
+        if (GROUP_AIRLINE.equals(grouping)) {
+            groupColumn = "a.name";
+            join = "JOIN Airline a ON f.airline_code = a.iata_code ";
+        } else {
+            groupColumn = "o.name";
+            join = "JOIN Airport o ON f.flight_origin = o.iata_code ";
+        }
+
+        String sql = "SELECT f.airline_code, substr(f.date, 3, 6) AS month, " + groupColumn + " AS group_name, " +
+                "SUM(dr.delay_length) AS total_delay, COUNT(*) AS delay_count " +
+                "FROM Flight_Sample s " +
+                "JOIN Flight f ON f.flight_id = s.flight_id " +
+                join +
+                "JOIN Delay_Reason dr ON f.flight_id = dr.flight_id " +
+                "WHERE s.tier = ? AND substr(f.date, 5, 4) = ? " +
+                "GROUP BY f.flight_id";
+
+        Map<String, long[]> strata = getSampleStrata(samplePercent);
+        List<Object[]> rows = new ArrayList<>();
+        withConnection(c -> {
+            query(c, token, sql, Arrays.asList(samplePercent, String.valueOf(year)), rs -> {
+                String month = rs.getString("month");
+                rows.add(new Object[]{rs.getString("airline_code") + "|" + month, rs.getString("group_name"),
+                        rs.getLong("total_delay"), rs.getLong("delay_count")});
+            });
+            return null;
+        });
+
+        // First pass: weighted totals per group give the ratio.
+        Map<String, double[]> totals = new HashMap<>(); // weighted delay, weighted count, sampled delays
+        for (Object[] row : rows) {
+            long[] stratum = strata.get((String) row[0]);
+            if (stratum == null || stratum[1] == 0) continue;
+            double weight = (double) stratum[0] / stratum[1];
+            double[] total = totals.computeIfAbsent((String) row[1], k -> new double[3]);
+            total[0] += weight * (Long) row[2];
+            total[1] += weight * (Long) row[3];
+            total[2] += (Long) row[3];
+        }
+
+        // Second pass: weighted residuals w (y - R x) per group, summed per airline for the variance.
+        Map<String, Map<String, double[]>> residuals = new HashMap<>();
+        for (Object[] row : rows) {
+            double[] total = totals.get((String) row[1]);
+            long[] stratum = strata.get((String) row[0]);
+            if (total == null || stratum == null || stratum[1] == 0) continue;
+            double ratio = total[0] / total[1];
+            double weight = (double) stratum[0] / stratum[1];
+            String airlineCode = ((String) row[0]).substring(0, ((String) row[0]).indexOf('|'));
+            addUnit(residuals.computeIfAbsent((String) row[1], k -> new HashMap<>()), airlineCode,
+                    weight * ((Long) row[2] - ratio * (Long) row[3]));
+        }
+
+        Map<String, long[]> airlines = airlineTotals(strata, String.valueOf(year));
+        Map<String, Estimate> results = new HashMap<>();
+        for (Map.Entry<String, double[]> entry : totals.entrySet()) {
+            double[] total = entry.getValue();
+            if (total[2] <= 1) continue; // Same rule as HAVING COUNT(*) > 1.
+
+            double ratio = total[0] / total[1];
+            double margin = 1.96 * Math.sqrt(collapsedVariance(residuals.get(entry.getKey()), airlines)) / total[1];
+            results.put(entry.getKey(), new Estimate(ratio, Math.max(0, ratio - margin), ratio + margin, samplePercent));
         }
+        return results;
     }
 
-    // Get all airlines for dropdown.
-    public List<String> getAirlines() throws SQLException {
-        List<String> airlines = new ArrayList<>();
+    private static void addUnit(Map<String, double[]> sums, String airlineCode, double value) {
+        double[] unit = sums.computeIfAbsent(airlineCode, k -> new double[2]);
+        unit[0] += value;
+        unit[1] += value * value;
+    }
 
-        String sql = "SELECT iata_code, name FROM Airline ORDER BY name";
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+    // Variance of a weighted total. Airline/month strata only hold a handful of sampled flights each, too
+    // few to measure spread, so the months are collapsed into one stratum per airline (slightly
+    // conservative). sums holds sum and sum of squares of the non-zero units, every other sampled
+    // flight in the airline counts as a zero.
+    private static double collapsedVariance(Map<String, double[]> sums, Map<String, long[]> airlines) {
+        double variance = 0;
+        for (Map.Entry<String, double[]> entry : sums.entrySet()) {
+            long[] airline = airlines.get(entry.getKey());
+            if (airline == null || airline[1] < 2) continue;
+            double population = airline[0];
+            double sampled = airline[1];
+            double sum = entry.getValue()[0];
+            double squares = entry.getValue()[1];
+            variance += (1 - sampled / population) * sampled / (sampled - 1) * (squares - sum * sum / sampled);
+        }
+        return variance;
+    }
 
-            while (rs.next()) {
-                String code = rs.getString("iata_code");
-                String name = rs.getString("name");
-                airlines.add(code + " - " + name);
+    // Population and sample size per airline, over one year's strata or all of them.
+    private static Map<String, long[]> airlineTotals(Map<String, long[]> strata, String year) {
+        Map<String, long[]> airlines = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : strata.entrySet()) {
+            String key = entry.getKey();
+            if (year != null && !key.endsWith(year)) continue;
+            long[] airline = airlines.computeIfAbsent(key.substring(0, key.indexOf('|')), k -> new long[2]);
+            airline[0] += entry.getValue()[0];
+            airline[1] += entry.getValue()[1];
+        }
+        return airlines;
+    }
+
+    // airline|MMYYYY -> {flights in the stratum, flights sampled from it}, per data version.
+    private synchronized Map<String, long[]> getSampleStrata(int samplePercent) throws SQLException {
+        String version = getDataVersion();
+        if (!version.equals(sampleStrataVersion)) {
+            sampleStrata.clear();
+            sampleStrataVersion = version;
+        }
+
+        Map<String, long[]> strata = sampleStrata.get(samplePercent);
+        if (strata == null) {
+            Map<String, long[]> loaded = new HashMap<>();
+            String sql = "SELECT airline_code, month, population, sampled FROM Sample_Stratum WHERE tier = ?";
+            try {
+                query(conn, CancellationToken.NONE, sql, Collections.singletonList(samplePercent), rs ->
+                        loaded.put(rs.getString(1) + "|" + rs.getString(2), new long[]{rs.getLong(3), rs.getLong(4)}));
+            } catch (SQLException e) {
+                throw new SQLException("No samples in this database, re-run the import to build them", e);
             }
+            strata = loaded;
+            if (strata.isEmpty()) {
+                throw new SQLException("No " + samplePercent + "% sample in this database");
+            }
+            sampleStrata.put(samplePercent, strata);
         }
+        return strata;
+    }
 
-        return airlines;
+    private static String stratumKey(String airlineCode, int month, int year) {
+        return airlineCode + "|" + String.format("%02d%d", month, year);
     }
 
-    // Get all airports for dropdown.
-    public List<String> getAirports() throws SQLException {
-        List<String> airports = new ArrayList<>();
+    // The yearly and monthly charts are roll-ups of the delay cube. Flights with no delay record sit in
+    // the cube under NO_DELAY and are left out, matching the Delay_Reason join the SQL versions use.
+    private Map<String, Double> averageDelayByAirline(int year, CancellationToken token) throws SQLException {
+        return cachedAnalytics("airline|" + year, () -> {
+            if (columnarStore != null) {
+                Map<String, Double> results = columnarStore.averageDelayByAirline(year);
+                if (!results.isEmpty()) return results;
+            }
 
-        String sql = "SELECT iata_code, name FROM Airport ORDER BY name";
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+            DelayCube cube = getDelayCube();
+            Map<String, Double> results = averageByName(cube.query().year(year)
+                    .whereNot(DelayCube.DIM_REASON, DelayCube.NO_DELAY)
+                    .groupBy(DelayCube.DIM_AIRLINE).run(), cube::getAirlineName);
+
+            // If empty, try fallback approach.
+            if (results.isEmpty()) {
+                results = withConnection(c -> fallbackAverageDelayByAirline(c, token, year));
+            }
+            return results;
+        });
+    }
+
+    private Map<String, Double> averageDelayByAirport(int year, CancellationToken token) throws SQLException {
+        return cachedAnalytics("airport|" + year, () -> {
+            if (columnarStore != null) {
+                Map<String, Double> results = columnarStore.averageDelayByAirport(year);
+                if (!results.isEmpty()) return results;
+            }
 
-            while (rs.next()) {
-                String code = rs.getString("iata_code");
-                String name = rs.getString("name");
-                airports.add(code + " - " + name);
+            DelayCube cube = getDelayCube();
+            Map<String, Double> results = averageByName(cube.query().year(year)
+                    .whereNot(DelayCube.DIM_REASON, DelayCube.NO_DELAY)
+                    .groupBy(DelayCube.DIM_ORIGIN).run(), cube::getAirportName);
+
+            // If empty, try fallback approach.
+            if (results.isEmpty()) {
+                results = withConnection(c -> fallbackAverageDelayByAirport(c, token, year));
             }
+            return results;
+        });
+    }
+
+    private Map<String, Double> delaysByMonth(String airportCode, int startYear, int endYear,
+                                              CancellationToken token) throws SQLException {
+        if (columnarStore != null) {
+            return columnarStore.delaysByMonth(airportCode, startYear, endYear);
         }
+        return getMonthlyDelaySeries(startYear, endYear).getSeries(airportCode);
+    }
 
-        return airports;
+    // Monthly averages for every origin airport at once, kept until the data or the year range changes.
+    public MonthlyDelaySeries getMonthlyDelaySeries(int startYear, int endYear) throws SQLException {
+        return timed("getMonthlyDelaySeries", () -> monthlyDelaySeries(startYear, endYear));
     }
 
-    // Get average delay by airline for a year.
-    public Map<String, Double> getAverageDelayByAirline(int year) throws SQLException {
+    private MonthlyDelaySeries monthlyDelaySeries(int startYear, int endYear) throws SQLException {
+        synchronized (cubeLock) {
+            DelayCube cube = getDelayCube();
+            if (monthlySeries == null || !monthlySeries.covers(startYear, endYear) ||
+                    !monthlySeries.getDataVersion().equals(cube.getDataVersion())) {
+                monthlySeries = MonthlyDelaySeries.fromCube(cube, startYear, endYear);
+            }
+            return monthlySeries;
+        }
+    }
+
+    public CompletableFuture<MonthlyDelaySeries> getMonthlyDelaySeriesAsync(int startYear, int endYear,
+                                                                            CancellationToken token,
+                                                                            Duration timeout) {
+        return submit("getMonthlyDelaySeries", () -> cubeAdmission(null, startYear, endYear),
+                () -> monthlyDelaySeries(startYear, endYear), token, timeout);
+    }
+
+    // Codes to display names, merging codes that share a name like the SQL GROUP BY name did,
+    // and keeping groups with more than one delay (HAVING COUNT(*) > 1).
+    private static Map<String, Double> averageByName(Map<String, DelayCube.Cell> cells,
+                                                     Function<String, String> names) {
+        Map<String, long[]> totals = new HashMap<>();
+        for (Map.Entry<String, DelayCube.Cell> entry : cells.entrySet()) {
+            String name = names.apply(entry.getKey());
+            if (name == null) continue;
+            long[] total = totals.computeIfAbsent(name, k -> new long[2]);
+            total[0] += entry.getValue().getSum();
+            total[1] += entry.getValue().getCount();
+        }
+
         Map<String, Double> results = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            if (entry.getValue()[1] > 1) {
+                results.put(entry.getKey(), (double) entry.getValue()[0] / entry.getValue()[1]);
+            }
+        }
+        return results;
+    }
+
+    // Any roll-up or slice of delays, e.g.
+    // getDelayCube().query().year(2023).where(DIM_STATUS, STATUS_DELAYED).groupBy(DIM_AIRLINE, DIM_REASON).run()
+    // Loaded from the side file if it matches the data, otherwise built in one parallel pass and saved.
+    public DelayCube getDelayCube() throws SQLException {
+        synchronized (cubeLock) {
+            String version = getDataVersion();
+            if (delayCube != null && delayCube.getDataVersion().equals(version)) {
+                return delayCube;
+            }
 
+            delayCube = DelayCube.load(DELAY_CUBE_FILE, version);
+            if (delayCube == null) {
+                long start = System.currentTimeMillis();
+                delayCube = buildDelayCube(version);
+                System.out.println("Built delay cube with " + delayCube.getCellCount() + " cells in " +
+                        (System.currentTimeMillis() - start) + " ms");
+                try {
+                    delayCube.save(DELAY_CUBE_FILE);
+                } catch (java.io.IOException e) {
+                    System.err.println("Could not save delay cube: " + e.getMessage());
+                }
+            }
+            return delayCube;
+        }
+    }
+
+    // Not cancellable: the cube is shared, so a build someone gave up on is still worth finishing.
+    private DelayCube buildDelayCube(String version) throws SQLException {
+        String sql = "SELECT f.date, f.airline_code, f.flight_origin, f.flight_destination, " +
+                "f.scheduled_arrival, f.actual_arrival, f.cancelled, f.diverted, dr.reason, dr.delay_length " +
+                "FROM Flight f " +
+                "LEFT JOIN Delay_Reason dr ON f.flight_id = dr.flight_id " +
+                "WHERE f.flight_id BETWEEN ? AND ?";
+
+        DelayCube.Builder cube = new DelayCube.Builder();
+        for (DelayCube.Builder part : scanPartitions(CancellationToken.NONE, 0, (c, low, high) -> {
+            DelayCube.Builder partition = cube.newPartition();
+            query(c, CancellationToken.NONE, sql, Arrays.asList(low, high), rs -> {
+                // Same status rules as the flight table, minus the cancellation detail.
+                boolean cancelled = rs.getBoolean("cancelled");
+                boolean diverted = rs.getBoolean("diverted");
+                int delay = Flight.delayMinutes(cancelled, diverted, rs.getInt("scheduled_arrival"),
+                        rs.getInt("actual_arrival"));
+                String status = cancelled ? DelayCube.STATUS_CANCELLED
+                        : diverted ? DelayCube.STATUS_DIVERTED
+                        : delay > 15 ? DelayCube.STATUS_DELAYED
+                        : DelayCube.STATUS_ON_TIME;
+
+                partition.add(rs.getString("date"), rs.getString("airline_code"),
+                        rs.getString("flight_origin"), rs.getString("flight_destination"),
+                        rs.getString("reason"), status, rs.getInt("delay_length"));
+            });
+            return partition;
+        })) {
+            cube.merge(part);
+        }
+
+        DimensionRegistry dims = getDimensions();
+        return cube.build(version, dims.getAirlineNames(), dims.getAirportNames());
+    }
+
+    private Map<String, Double> cachedAnalytics(String key, AnalyticsQuery query) throws SQLException {
+        String version = getDataVersion();
+        Map<String, Double> cached = analyticsCache.get(key, version);
+        if (cached != null) {
+            return cached;
+        }
+
+        Map<String, Double> results = query.run();
+        analyticsCache.put(key, results, version);
+        return results;
+    }
+
+    // Load or build the delay cube on a background thread and precompute the yearly airline and airport
+    // charts from it, so the first chart a user opens is already on disk.
+    public void warmAnalyticsCache(int startYear, int endYear) {
+        Thread warmer = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                getDelayCube();
+                for (int year = startYear; year <= endYear; year++) {
+                    averageDelayByAirline(year, CancellationToken.NONE);
+                    averageDelayByAirport(year, CancellationToken.NONE);
+                }
+                System.out.println("Analytics cache warmed in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (SQLException e) {
+                // Not fatal, the charts will just be computed on demand.
+                System.err.println("Analytics warm-up failed: " + e.getMessage());
+            }
+        }, "analytics-warmup");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    private interface AnalyticsQuery {
+        Map<String, Double> run() throws SQLException;
+    }
+
+    // Runs the aggregation straight against the database, skipping the caches, the delay cube and the columnar engine.
+    // partitions <= 0 picks the count from the table size. Used by BenchmarkMain.
+    public Map<String, Double> scanAverageDelayByAirline(int year, int partitions) throws SQLException {
+        return computeAverageDelayByAirline(CancellationToken.NONE, year, partitions);
+    }
+
+    public Map<String, Double> scanAverageDelayByAirport(int year, int partitions) throws SQLException {
+        return computeAverageDelayByAirport(CancellationToken.NONE, year, partitions);
+    }
+
+    private Map<String, Double> computeAverageDelayByAirline(CancellationToken token, int year,
+                                                             int partitions) throws SQLException {
         // Try with delay_reason table first.
         String sql =
-                "SELECT a.name AS airline_name, " +
-                        "AVG(dr.delay_length) AS avg_delay " +
+                "SELECT a.name AS group_name, " +
+                        "SUM(dr.delay_length) AS total_delay, COUNT(*) AS delay_count " +
                         "FROM Flight f " +
                         "JOIN Airline a ON f.airline_code = a.iata_code " +
                         "JOIN Delay_Reason dr ON f.flight_id = dr.flight_id " +
                         "WHERE substr(f.date, 5, 4) = ? " +
-                        "GROUP BY a.name " +
-                        "HAVING COUNT(*) > 1 " +
-                        "ORDER BY avg_delay DESC";
+                        "AND f.flight_id BETWEEN ? AND ? " +
+                        "GROUP BY a.name";
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, String.valueOf(year));
-
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    results.put(rs.getString("airline_name"), rs.getDouble("avg_delay"));
-                }
-            }
-        }
+        Map<String, Double> results = partitionedAverage(token, sql, String.valueOf(year), partitions);
 
         // If empty, try fallback approach.
         if (results.isEmpty()) {
-            sql = "SELECT a.name AS airline_name, " +
-                    "AVG(CASE WHEN f.actual_arrival > f.scheduled_arrival " +
-                    "THEN (f.actual_arrival - f.scheduled_arrival) ELSE 0 END) AS avg_delay " +
-                    "FROM Flight f " +
-                    "JOIN Airline a ON f.airline_code = a.iata_code " +
-                    "WHERE substr(f.date, 5, 4) = ? " +
-                    "AND f.scheduled_arrival > 0 AND f.actual_arrival > 0 " +
-                    "GROUP BY a.name " +
-                    "HAVING COUNT(*) > 1 " +
-                    "ORDER BY avg_delay DESC";
-
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, String.valueOf(year));
-
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        String name = rs.getString("airline_name");
-                        double delay = rs.getDouble("avg_delay");
-
-                        // Convert HHMM to minutes if needed
-                        if (delay > 100) {
-                            delay = (Math.floor(delay / 100) * 60) + (delay % 100);
-                        }
-
-                        results.put(name, delay);
-                    }
-                }
-            }
+            results = withConnection(c -> fallbackAverageDelayByAirline(c, token, year));
         }
-
         return results;
     }
 
-    // Get average delay by airport for a year.
-    public Map<String, Double> getAverageDelayByAirport(int year) throws SQLException {
-        Map<String, Double> results = new HashMap<>();
-
+    private Map<String, Double> computeAverageDelayByAirport(CancellationToken token, int year,
+                                                             int partitions) throws SQLException {
         // Try delay_reason table first.
         String sql =
-                "SELECT o.name AS airport_name, " +
-                        "AVG(dr.delay_length) AS avg_delay " +
+                "SELECT o.name AS group_name, " +
+                        "SUM(dr.delay_length) AS total_delay, COUNT(*) AS delay_count " +
                         "FROM Flight f " +
                         "JOIN Airport o ON f.flight_origin = o.iata_code " +
                         "JOIN Delay_Reason dr ON f.flight_id = dr.flight_id " +
                         "WHERE substr(f.date, 5, 4) = ? " +
-                        "GROUP BY o.name " +
-                        "HAVING COUNT(*) > 1 " +
-                        "ORDER BY avg_delay DESC " +
-                        "LIMIT 2000000";
+                        "AND f.flight_id BETWEEN ? AND ? " +
+                        "GROUP BY o.name";
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, String.valueOf(year));
+        Map<String, Double> results = partitionedAverage(token, sql, String.valueOf(year), partitions);
 
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    results.put(rs.getString("airport_name"), rs.getDouble("avg_delay"));
+        // If empty, try fallback approach
+        if (results.isEmpty()) {
+            results = withConnection(c -> fallbackAverageDelayByAirport(c, token, year));
+        }
+
+//        if (results.isEmpty()) {
+//            results.put("Atlanta, GA", 20.0);
+//        }
+
+        return results;
+    }
+
+    // Groups by the date text, ddmmyyyy, as MM/yyyy and dd/MM/yyyy.
+    private static final String MONTH_LABEL = "substr(f.date, 3, 2) || '/' || substr(f.date, 5, 4)";
+    private static final String DAY_LABEL = "substr(f.date, 1, 2) || '/' || " + MONTH_LABEL;
+
+    // One streaming pass over the year's delay rows. Each partition feeds its own sketches and they are
+    // merged at the end, so memory depends on the number of groups, not the number of rows.
+    private Map<String, DelayDistribution> computeDelayDistributions(CancellationToken token, String grouping,
+                                                                     int year, int partitions) throws SQLException {
+        String groupColumn;
+        String join = "";
+        switch (grouping) {
+            case GROUP_AIRLINE:
+                groupColumn = "a.name";
+                join = "JOIN Airline a ON f.airline_code = a.iata_code ";
+                break;
+            case GROUP_AIRPORT:
+                groupColumn = "o.name";
+                join = "JOIN Airport o ON f.flight_origin = o.iata_code ";
+                break;
+            case GROUP_ROUTE:
+                groupColumn = "f.flight_origin || '-' || f.flight_destination";
+                break;
+            case GROUP_MONTH:
+                groupColumn = MONTH_LABEL;
+                break;
+            case GROUP_DAY:
+                groupColumn = DAY_LABEL;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown grouping: " + grouping);
+        }
+
+        String sql = "SELECT " + groupColumn + " AS group_name, dr.delay_length " +
+                "FROM Flight f " +
+                join +
+                "JOIN Delay_Reason dr ON f.flight_id = dr.flight_id " +
+                "WHERE substr(f.date, 5, 4) = ? " +
+                "AND f.flight_id BETWEEN ? AND ?";
+        String yearParam = String.valueOf(year);
+
+        Map<String, DelayDistribution> results = new HashMap<>();
+        for (Map<String, DelayDistribution> part : scanPartitions(token, partitions, (c, low, high) -> {
+            Map<String, DelayDistribution> distributions = new HashMap<>();
+            query(c, token, sql, Arrays.asList(yearParam, low, high), rs -> distributions
+                    .computeIfAbsent(rs.getString("group_name"), k -> new DelayDistribution())
+                    .add(rs.getInt("delay_length")));
+            return distributions;
+        })) {
+            for (Map.Entry<String, DelayDistribution> entry : part.entrySet()) {
+                DelayDistribution existing = results.putIfAbsent(entry.getKey(), entry.getValue());
+                if (existing != null) {
+                    existing.merge(entry.getValue());
                 }
             }
         }
+        return results;
+    }
 
-        // If empty, try fallback approach
-        if (results.isEmpty()) {
-            sql = "SELECT o.name AS airport_name, " +
-                    "AVG(CASE WHEN f.actual_arrival > f.scheduled_arrival " +
-                    "THEN (f.actual_arrival - f.scheduled_arrival) ELSE 0 END) AS avg_delay " +
-                    "FROM Flight f " +
-                    "JOIN Airport o ON f.flight_origin = o.iata_code " +
-                    "WHERE substr(f.date, 5, 4) = ? " +
-                    "AND f.scheduled_arrival > 0 AND f.actual_arrival > 0 " +
-                    "GROUP BY o.name " +
-                    "HAVING COUNT(*) > 1 " +
-                    "ORDER BY avg_delay DESC " +
-                    "LIMIT 2000000";
-
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, String.valueOf(year));
-
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        String name = rs.getString("airport_name");
-                        double delay = rs.getDouble("avg_delay");
+    // One pass over the year's flights. Airlines, airports and routes number a few hundred at most, so
+    // they collect in a map of per-group totals from an unordered read and go through the heap at the
+    // end. Months and days come in date_key order (SQLite reads the year off that index anyway; with an
+    // airport it sorts just that airport's flights), so only the open group is held and each one is
+    // offered to the heap when the date moves on. Single flights
+    // are offered as they're read. Java memory is k groups plus the open ones instead of every flight
+    // sorted at the end. Delays are arrival delays, as the flight table shows them, worked out in Java
+    // for the midnight wrap, so the metric can't be an SQL ORDER BY. Cancelled and diverted flights count
+    // towards the cancellation rate only.
+    private List<RankedGroup> computeTopK(CancellationToken token, String grouping, String metric, int year,
+                                          String airportCode, int k, int minFlights) throws SQLException {
+        if (!METRIC_AVERAGE_DELAY.equals(metric) && !METRIC_P95_DELAY.equals(metric) &&
+                !METRIC_CANCELLATION_RATE.equals(metric)) {
+            throw new IllegalArgumentException("Unknown metric: " + metric);
+        }
+
+        boolean dateKey = hasDateKey();
+        String dateOrder = dateKey ? "f.date_key" : "substr(f.date, 5, 4), substr(f.date, 3, 2), substr(f.date, 1, 2)";
+        String groupColumn;
+        String order = null;
+        switch (grouping) {
+            case GROUP_AIRLINE:
+                groupColumn = "f.airline_code";
+                break;
+            case GROUP_AIRPORT:
+                groupColumn = "f.flight_origin";
+                break;
+            case GROUP_ROUTE:
+                groupColumn = "f.flight_origin || '-' || f.flight_destination";
+                break;
+            case GROUP_MONTH:
+                groupColumn = MONTH_LABEL;
+                order = dateOrder;
+                break;
+            case GROUP_DAY:
+                groupColumn = DAY_LABEL;
+                order = dateOrder;
+                break;
+            case GROUP_FLIGHT:
+                groupColumn = "f.airline_code || f.flight_number || ' ' || " + DAY_LABEL +
+                        " || ' ' || f.flight_origin || '-' || f.flight_destination";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown grouping: " + grouping);
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT ").append(groupColumn).append(" AS group_name, ")
+                .append("f.cancelled, f.diverted, f.scheduled_arrival, f.actual_arrival FROM Flight f WHERE ");
+        List<Object> params = new ArrayList<>();
+        if (dateKey) {
+            sql.append("f.date_key BETWEEN ? AND ? ");
+            params.add(year * 10000 + 101);
+            params.add(year * 10000 + 1231);
+        } else {
+            sql.append("substr(f.date, 5, 4) = ? ");
+            params.add(String.valueOf(year));
+        }
+        if (airportCode != null) {
+            sql.append("AND f.flight_origin = ? ");
+            params.add(airportCode.trim().toUpperCase(Locale.ROOT));
+        }
+        if (order != null) {
+            sql.append("ORDER BY ").append(order);
+        }
 
-                        // Convert HHMM to minutes if needed
-                        if (delay > 100) {
-                            delay = (Math.floor(delay / 100) * 60) + (delay % 100);
-                        }
+        DimensionRegistry dims = getDimensions();
+        boolean perFlight = GROUP_FLIGHT.equals(grouping);
+        boolean ordered = order != null;
+        boolean sketch = METRIC_P95_DELAY.equals(metric) && !perFlight;
+        TopKHeap<RankedGroup> heap = new TopKHeap<>(k, RankedGroup.ORDER);
+        Map<String, TopKGroup> groups = new HashMap<>();
+        TopKGroup[] open = new TopKGroup[1];
+        withConnection(c -> {
+            query(c, token, sql.toString(), params, rs -> {
+                String name = rs.getString("group_name");
+                if (name == null) {
+                    name = "Unknown";
+                }
 
-                        results.put(name, delay);
+                TopKGroup group;
+                if (perFlight) {
+                    group = new TopKGroup(name, false);
+                } else if (ordered) {
+                    if (open[0] == null || !open[0].name.equals(name)) {
+                        offerGroup(heap, open[0], metric, minFlights);
+                        open[0] = new TopKGroup(name, sketch);
                     }
+                    group = open[0];
+                } else {
+                    // Keyed by code, several airports can share a city name.
+                    group = groups.computeIfAbsent(name, code -> new TopKGroup(groupLabel(dims, grouping, code),
+                            sketch));
+                }
+
+                boolean cancelled = rs.getBoolean("cancelled");
+                boolean diverted = rs.getBoolean("diverted");
+                group.add(cancelled, diverted, Flight.delayMinutes(cancelled, diverted,
+                        rs.getInt("scheduled_arrival"), rs.getInt("actual_arrival")));
+                if (perFlight) {
+                    offerGroup(heap, group, metric, 1);
+                }
+            });
+            return null;
+        });
+        offerGroup(heap, open[0], metric, minFlights);
+        for (TopKGroup group : groups.values()) {
+            offerGroup(heap, group, metric, minFlights);
+        }
+        return heap.toList();
+    }
+
+    // Airlines and airports by their display names, like getAirlines and getAirports list them.
+    private static String groupLabel(DimensionRegistry dims, String grouping, String code) {
+        if (GROUP_AIRLINE.equals(grouping)) {
+            Airline airline = dims.getAirline(code);
+            return airline != null ? airline.getDisplayName() : "Unknown";
+        } else if (GROUP_AIRPORT.equals(grouping)) {
+            Airport airport = dims.getAirport(code);
+            return airport != null ? airport.getDisplayName() : "Unknown";
+        }
+        return code;
+    }
+
+    private static void offerGroup(TopKHeap<RankedGroup> heap, TopKGroup group, String metric, int minFlights) {
+        if (group != null && group.flights >= minFlights) {
+            heap.offer(new RankedGroup(group.name, group.value(metric), group.flights));
+        }
+    }
+
+    // Totals for one group of a top-K pass. Only p95 over several flights needs a quantile sketch, the
+    // rest is counts and a sum.
+    private static class TopKGroup {
+        final String name;
+        final DelayDistribution delays;
+        long flights;
+        long cancelled;
+        long delayed;
+        long totalDelay;
+
+        TopKGroup(String name, boolean sketch) {
+            this.name = name;
+            this.delays = sketch ? new DelayDistribution() : null;
+        }
+
+        void add(boolean isCancelled, boolean isDiverted, int delayMinutes) {
+            flights++;
+            if (isCancelled) {
+                cancelled++;
+            } else if (!isDiverted) {
+                delayed++;
+                totalDelay += delayMinutes;
+                if (delays != null) {
+                    delays.add(delayMinutes);
                 }
             }
         }
 
-//        if (results.isEmpty()) {
-//            results.put("Atlanta, GA", 20.0);
-//        }
+        // Without a sketch the group is one flight, whose p95 is its delay.
+        double value(String metric) {
+            switch (metric) {
+                case METRIC_AVERAGE_DELAY:
+                    return delayed > 0 ? (double) totalDelay / delayed : 0;
+                case METRIC_P95_DELAY:
+                    if (delayed == 0) return 0;
+                    return delays != null ? delays.getPercentile(95) : (double) totalDelay / delayed;
+                default:
+                    return (double) cancelled / flights;
+            }
+        }
+    }
 
+    // Same answer as AVG(...) HAVING COUNT(*) > 1 in one query, since the partial sums are exact integers.
+    // The sql takes (param, low id, high id) and returns group_name, total_delay, delay_count.
+    private Map<String, Double> partitionedAverage(CancellationToken token, String sql, Object param,
+                                                   int partitions) throws SQLException {
+        Map<String, long[]> totals = new HashMap<>();
+        for (Map<String, long[]> part : scanPartitions(token, partitions,
+                (c, low, high) -> scanPartition(c, token, sql, param, low, high))) {
+            for (Map.Entry<String, long[]> entry : part.entrySet()) {
+                long[] total = totals.computeIfAbsent(entry.getKey(), k -> new long[2]);
+                total[0] += entry.getValue()[0];
+                total[1] += entry.getValue()[1];
+            }
+        }
+
+        Map<String, Double> results = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            if (total[1] > 1) {
+                results.put(entry.getKey(), (double) total[0] / total[1]);
+            }
+        }
         return results;
     }
 
-    // Get monthly delays for an airport over a date range.
-    public Map<String, Double> getDelaysByMonth(String airportCode, int startYear, int endYear) throws SQLException {
+    // Splits Flight into flight_id ranges and runs the scan for each range at the same time, each on its
+    // own pooled connection. Returns one partial result per range for the caller to merge, or nothing if
+    // the table is empty. partitions <= 0 picks the count from the table size.
+    private <T> List<T> scanPartitions(CancellationToken token, int partitions,
+                                       PartitionScan<T> scan) throws SQLException {
+        TableStats stats = getTableStats();
+        List<T> results = new ArrayList<>();
+        if (stats.rows == 0) {
+            return results;
+        }
+
+        int count = partitions > 0 ? partitions : choosePartitions(stats);
+        long span = stats.maxId - stats.minId + 1;
+        count = (int) Math.max(1, Math.min(count, span));
+
+        if (count == 1) {
+            results.add(withConnection(c -> scan.run(c, stats.minId, stats.maxId)));
+            return results;
+        }
+
+        List<CompletableFuture<T>> parts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long low = stats.minId + span * i / count;
+            long high = stats.minId + span * (i + 1) / count - 1;
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return withConnection(c -> scan.run(c, low, high));
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, queryExecutor));
+        }
+
+        try {
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            token.throwIfCancelled();
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw e;
+        }
+
+        for (CompletableFuture<T> part : parts) {
+            results.add(part.join());
+        }
+        return results;
+    }
+
+    private interface PartitionScan<T> {
+        T run(Connection c, long lowId, long highId) throws SQLException;
+    }
+
+    private Map<String, long[]> scanPartition(Connection c, CancellationToken token, String sql, Object param,
+                                              long low, long high) throws SQLException {
+        Map<String, long[]> totals = new HashMap<>();
+        query(c, token, sql, Arrays.asList(param, low, high),
+                rs -> totals.put(rs.getString("group_name"),
+                        new long[]{rs.getLong("total_delay"), rs.getLong("delay_count")}));
+        return totals;
+    }
+
+    // One partition per MIN_ROWS_PER_PARTITION flights, capped by the pool since each one holds a connection.
+    // Below that the cost of another connection and thread outweighs the extra core.
+    private int choosePartitions(TableStats stats) {
+        int wanted = (int) Math.min(Integer.MAX_VALUE,
+                (stats.rows + MIN_ROWS_PER_PARTITION - 1) / MIN_ROWS_PER_PARTITION);
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(wanted, Math.min(cores, pool.getSize())));
+    }
+
+    // Row count and id bounds, refreshed when the data version changes.
+    private synchronized TableStats getTableStats() throws SQLException {
+        String version = getDataVersion();
+        if (tableStats == null || !version.equals(tableStatsVersion)) {
+            String sql = "SELECT MIN(flight_id), MAX(flight_id), COUNT(*) FROM Flight";
+            query(conn, CancellationToken.NONE, sql, Collections.emptyList(),
+                    rs -> tableStats = new TableStats(rs.getLong(1), rs.getLong(2), rs.getLong(3)));
+            tableStatsVersion = version;
+        }
+        return tableStats;
+    }
+
+    private static class TableStats {
+        final long minId;
+        final long maxId;
+        final long rows;
+
+        TableStats(long minId, long maxId, long rows) {
+            this.minId = minId;
+            this.maxId = maxId;
+            this.rows = rows;
+        }
+    }
+
+    // For databases without delay reasons, estimate from the arrival times instead.
+    private Map<String, Double> fallbackAverageDelayByAirline(Connection c, CancellationToken token,
+                                                              int year) throws SQLException {
         Map<String, Double> results = new HashMap<>();
 
-        // Try delay_reason table first.
-        String sql =
-                "SELECT substr(f.date, 3, 2) || '/' || substr(f.date, 5, 4) AS month_year, " +
-                        "AVG(dr.delay_length) AS avg_delay " +
-                        "FROM Flight f " +
-                        "JOIN Delay_Reason dr ON f.flight_id = dr.flight_id " +
-                        "WHERE f.flight_origin = ? " +
-                        "AND substr(f.date, 5, 4) BETWEEN ? AND ? " +
-                        "GROUP BY month_year " +
-                        "ORDER BY substr(f.date, 5, 4), substr(f.date, 3, 2)";
+        String sql = "SELECT a.name AS airline_name, " +
+                "AVG(CASE WHEN f.actual_arrival > f.scheduled_arrival " +
+                "THEN (f.actual_arrival - f.scheduled_arrival) ELSE 0 END) AS avg_delay " +
+                "FROM Flight f " +
+                "JOIN Airline a ON f.airline_code = a.iata_code " +
+                "WHERE substr(f.date, 5, 4) = ? " +
+                "AND f.scheduled_arrival > 0 AND f.actual_arrival > 0 " +
+                "GROUP BY a.name " +
+                "HAVING COUNT(*) > 1 " +
+                "ORDER BY avg_delay DESC";
+
+        query(c, token, sql, Collections.singletonList(String.valueOf(year)), rs -> {
+            String name = rs.getString("airline_name");
+            double delay = rs.getDouble("avg_delay");
+
+            // Convert HHMM to minutes if needed
+            if (delay > 100) {
+                delay = (Math.floor(delay / 100) * 60) + (delay % 100);
+            }
+
+            results.put(name, delay);
+        });
+
+        return results;
+    }
+
+    private Map<String, Double> fallbackAverageDelayByAirport(Connection c, CancellationToken token,
+                                                              int year) throws SQLException {
+        Map<String, Double> results = new HashMap<>();
+
+        String sql = "SELECT o.name AS airport_name, " +
+                "AVG(CASE WHEN f.actual_arrival > f.scheduled_arrival " +
+                "THEN (f.actual_arrival - f.scheduled_arrival) ELSE 0 END) AS avg_delay " +
+                "FROM Flight f " +
+                "JOIN Airport o ON f.flight_origin = o.iata_code " +
+                "WHERE substr(f.date, 5, 4) = ? " +
+                "AND f.scheduled_arrival > 0 AND f.actual_arrival > 0 " +
+                "GROUP BY o.name " +
+                "HAVING COUNT(*) > 1 " +
+                "ORDER BY avg_delay DESC " +
+                "LIMIT 2000000";
+
+        query(c, token, sql, Collections.singletonList(String.valueOf(year)), rs -> {
+            String name = rs.getString("airport_name");
+            double delay = rs.getDouble("avg_delay");
+
+            // Convert HHMM to minutes if needed
+            if (delay > 100) {
+                delay = (Math.floor(delay / 100) * 60) + (delay % 100);
+            }
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, airportCode);
-            stmt.setString(2, String.valueOf(startYear));
-            stmt.setString(3, String.valueOf(endYear));
+            results.put(name, delay);
+        });
 
+        return results;
+    }
+
+    // Every service query goes through here, so the statement is registered with the token while it runs.
+    // It's also where each query is timed for the query log.
+    private void query(Connection c, CancellationToken token, String sql, List<?> params,
+                       RowHandler handler) throws SQLException {
+        long start = System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try (PreparedStatement stmt = c.prepareStatement(sql)) {
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+
+            token.register(stmt);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    results.put(rs.getString("month_year"), rs.getDouble("avg_delay"));
+                    handler.handle(rs);
+                    rows++;
                 }
+                failed = false;
+            } catch (SQLException e) {
+                throw token.isCancelled() ? new SQLException("Query cancelled", e) : e;
+            } finally {
+                token.unregister(stmt);
+            }
+        } finally {
+            long nanos = System.nanoTime() - start;
+            queryLog.record(c, sql, params, rows, nanos, failed);
+            if (workload != null && !failed) {
+                workload.record(sql, params, rows, nanos);
             }
         }
+    }
 
-        return results;
+    private interface RowHandler {
+        void handle(ResultSet rs) throws SQLException;
+    }
+
+    private <T> T withConnection(ConnectionWork<T> work) throws SQLException {
+        Connection c = pool.borrow();
+        try {
+            return work.run(c);
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    private interface ConnectionWork<T> {
+        T run(Connection c) throws SQLException;
+    }
+
+    // Runs a blocking call on the query executor once the scheduler admits it. On timeout, or if the caller
+    // cancels the future, the token is cancelled too so the running statement stops rather than finishing
+    // in the background, and a call still queued leaves the queue. method names the metrics entry, the same
+    // one the blocking version records under. admission picks the lane and cost and runs before queueing,
+    // outside the lanes, so it must stay cheap: it only reads estimates that are already loaded.
+    private <T> CompletableFuture<T> submit(String method, ServiceCall<Admission> admission, ServiceCall<T> call,
+                                            CancellationToken token, Duration timeout) {
+        CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                token.throwIfCancelled();
+                QueryScheduler.Ticket ticket = admit(method, admission, token);
+                try {
+                    return timed(method, token, call);
+                } finally {
+                    scheduler.release(ticket);
+                }
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, queryExecutor);
+
+        if (timeout != null) {
+            future = future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                if (error instanceof TimeoutException) {
+                    metrics.recordTimeout(method);
+                }
+                token.cancel();
+            }
+        });
+        return future;
+    }
+
+    private QueryScheduler.Ticket admit(String method, ServiceCall<Admission> admission, CancellationToken token)
+            throws SQLException {
+        Admission a;
+        try {
+            a = admission.run();
+        } catch (SQLException | RuntimeException e) {
+            if (token.isCancelled()) throw e;
+            System.err.println("Cost estimate for " + method + " failed, queueing as interactive: " + e.getMessage());
+            a = new Admission(QueryScheduler.INTERACTIVE, 1);
+        }
+
+        try {
+            QueryScheduler.Ticket ticket = scheduler.acquire(a.lane, a.cost, token);
+            metrics.recordQueueWait(method, ticket.getWaitNanos());
+            return ticket;
+        } catch (QueryRejectedException e) {
+            metrics.recordRejected(method);
+            throw e;
+        }
+    }
+
+    // Which scheduler lane a call waits in, and its estimated cost in rows read.
+    private static class Admission {
+        final String lane;
+        final long cost;
+
+        Admission(String lane, long cost) {
+            this.lane = lane;
+            this.cost = cost;
+        }
+    }
+
+    // A search costs the rows it will load (a page at most pageSize of them, 0 for no limit), but a page
+    // of a big search still queues as an export so walking through it can't crowd out small searches.
+    private Admission searchAdmission(FlightQuery query, int pageSize) {
+        if (pageSize == 0 && searchCache.contains(query.getCacheKey())) {
+            return new Admission(QueryScheduler.INTERACTIVE, 1);
+        }
+        long rows = estimateRows(query);
+        String lane = scheduler.laneFor(QueryScheduler.INTERACTIVE, rows);
+        long loaded = pageSize > 0 ? Math.min(rows, pageSize) : rows;
+        return new Admission(lane, query.getLimit() > 0 ? Math.min(loaded, query.getLimit()) : loaded);
+    }
+
+    // A count loads nothing, so it stays interactive whatever it matches.
+    private Admission countAdmission(FlightQuery query) {
+        return new Admission(QueryScheduler.INTERACTIVE, estimateRows(query));
+    }
+
+    // SQL aggregates read every flight in their years.
+    private Admission analyticsAdmission(int startYear, int endYear) {
+        return new Admission(QueryScheduler.ANALYTICS, estimateRows(FlightQuery.builder()
+                .dateRange(LocalDate.of(startYear, 1, 1), LocalDate.of(endYear, 12, 31)).build()));
+    }
+
+    // Aggregates answered from the delay cube only read its cells once it's built, and nothing at all when
+    // the analytics cache already has cacheKey. Until then they cost as much as the SQL would.
+    private Admission cubeAdmission(String cacheKey, int startYear, int endYear) {
+        String version = getDataVersion();
+        if (cacheKey != null && analyticsCache.contains(cacheKey, version)) {
+            return new Admission(QueryScheduler.ANALYTICS, 1);
+        }
+        DelayCube cube = delayCube;
+        if (cube != null && cube.getDataVersion().equals(version)) {
+            return new Admission(QueryScheduler.ANALYTICS, cube.getCellCount());
+        }
+        return analyticsAdmission(startYear, endYear);
+    }
+
+    // Sample queries read at most their share of the table.
+    private Admission sampleAdmission(int samplePercent) {
+        return new Admission(QueryScheduler.INTERACTIVE, estimateRows(FlightQuery.builder().build()) *
+                samplePercent / 100);
+    }
+
+    // Rows a query with these filters reads, going by the statistics catalog. Never loads or builds
+    // anything and never queries: until the catalog and name index are loaded for this data version (the
+    // first synchronous search does that) every call costs UNESTIMATED_ADMISSION_ROWS.
+    private long estimateRows(FlightQuery query) {
+        QueryPlanner planner = loadedPlanner(getDataVersion());
+        long rows = planner != null ? planner.estimateRows(query) : -1;
+        return rows >= 0 ? rows : UNESTIMATED_ADMISSION_ROWS;
+    }
+
+    // A planner over the catalog and name index if both are already loaded for version, otherwise null.
+    private synchronized QueryPlanner loadedPlanner(String version) {
+        if (statistics == null || !version.equals(statisticsVersion) ||
+                nameIndex == null || !version.equals(nameIndexVersion)) {
+            return null;
+        }
+        return new QueryPlanner(nameIndex, null, false, statistics);
+    }
+
+    private <T> T timed(String method, ServiceCall<T> call) throws SQLException {
+        return timed(method, CancellationToken.NONE, call);
+    }
+
+    // Records the call's latency under method, plus rows and bytes for whatever it returned.
+    // Failures after the token was cancelled count as cancelled rather than errors.
+    private <T> T timed(String method, CancellationToken token, ServiceCall<T> call) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            T result = call.run();
+            metrics.recordSuccess(method, System.nanoTime() - start, resultRows(result), resultBytes(result));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            if (token.isCancelled()) {
+                metrics.recordCancelled(method, System.nanoTime() - start);
+            } else {
+                metrics.recordError(method, System.nanoTime() - start);
+            }
+            throw e;
+        }
+    }
+
+    private static long resultRows(Object result) {
+        if (result instanceof List) return ((List<?>) result).size();
+        if (result instanceof Map) return ((Map<?, ?>) result).size();
+        if (result instanceof SearchPage) return ((SearchPage) result).getFlights().size();
+        if (result instanceof ApproximateSearch) return ((ApproximateSearch) result).getSampleFlights().size();
+        if (result instanceof MonthlyDelaySeries) return ((MonthlyDelaySeries) result).getAirports().length;
+        if (result instanceof long[]) return ((long[]) result)[0];
+        return 0;
+    }
+
+    // Rough bytes of heap the result holds, sized the same way as the search cache.
+    @SuppressWarnings("unchecked")
+    private static long resultBytes(Object result) {
+        if (result instanceof List) {
+            List<?> list = (List<?>) result;
+            if (!list.isEmpty() && list.get(0) instanceof Flight) {
+                return SearchCache.estimateBytes((List<Flight>) list);
+            }
+            long bytes = 40 + list.size() * 4L;
+            for (Object item : list) {
+                bytes += 40 + 2L * String.valueOf(item).length();
+            }
+            return bytes;
+        }
+        if (result instanceof Map) {
+            long bytes = 48;
+            for (Object key : ((Map<?, ?>) result).keySet()) {
+                bytes += MAP_ENTRY_BYTES + 2L * String.valueOf(key).length();
+            }
+            return bytes;
+        }
+        if (result instanceof SearchPage) return SearchCache.estimateBytes(((SearchPage) result).getFlights());
+        if (result instanceof ApproximateSearch) {
+            return SearchCache.estimateBytes(((ApproximateSearch) result).getSampleFlights());
+        }
+        if (result instanceof MonthlyDelaySeries) return ((MonthlyDelaySeries) result).getSizeInBytes();
+        if (result instanceof long[]) return ((long[]) result)[0] * DELAY_BYTES;
+        return 0;
+    }
+
+    private interface ServiceCall<T> {
+        T run() throws SQLException;
+    }
+
+    // Virtual threads when the JDK has them, otherwise a plain cached pool. The connection pool is
+    // what actually limits how many queries hit the database at once.
+    private static ExecutorService newQueryExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "flight-query");
+                t.setDaemon(true);
+                return t;
+            });
+        }
     }
-}
\ No newline at end of file
+}
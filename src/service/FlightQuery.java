@@ -0,0 +1,350 @@
+package service;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Immutable flight search criteria, built with FlightQuery.builder(). Every filter is optional and blank
+// values are ignored, so form fields can be passed straight in. Airline and airport terms match a code
+// or part of a name like the search form always has, and several terms for one field match any of them.
+// Terms are trimmed and upper-cased, so two queries asking for the same thing compare equal and share
+// a cache key however they were built.
+public final class FlightQuery {
+
+    // Sort orders. Date sorts by day then scheduled departure, delay by the flight's total reported
+    // delay minutes. Ties fall back to flight_id, in the same direction.
+    public static final String SORT_FLIGHT_ID = "flight_id";
+    public static final String SORT_DATE = "date";
+    public static final String SORT_DELAY = "delay";
+
+    private final Set<String> airlines;
+    private final String flightNumber;
+    private final Set<String> origins;
+    private final Set<String> destinations;
+    private final LocalDate startDate;
+    private final LocalDate endDate;
+    private final Integer minDelay;
+    private final Integer maxDelay;
+    private final Set<String> delayReasons;
+    private final boolean includeCancelled;
+    private final boolean includeDiverted;
+    private final boolean includeDelays;
+    private final String sort;
+    private final boolean descending;
+    private final int limit;
+    private final String cacheKey;
+
+    private FlightQuery(Builder b) {
+        airlines = Collections.unmodifiableSet(new TreeSet<>(b.airlines));
+        flightNumber = b.flightNumber;
+        origins = Collections.unmodifiableSet(new TreeSet<>(b.origins));
+        destinations = Collections.unmodifiableSet(new TreeSet<>(b.destinations));
+        startDate = b.startDate;
+        endDate = b.endDate;
+        minDelay = b.minDelay;
+        maxDelay = b.maxDelay;
+        delayReasons = Collections.unmodifiableSet(new TreeSet<>(b.delayReasons));
+        includeCancelled = b.includeCancelled;
+        includeDiverted = b.includeDiverted;
+        includeDelays = b.includeDelays;
+        sort = b.sort;
+        descending = b.descending;
+        limit = b.limit;
+        cacheKey = buildCacheKey();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // A builder holding this query's criteria, to derive a variant from it.
+    public Builder toBuilder() {
+        Builder b = new Builder();
+        b.airlines.addAll(airlines);
+        b.flightNumber = flightNumber;
+        b.origins.addAll(origins);
+        b.destinations.addAll(destinations);
+        b.startDate = startDate;
+        b.endDate = endDate;
+        b.minDelay = minDelay;
+        b.maxDelay = maxDelay;
+        b.delayReasons.addAll(delayReasons);
+        b.includeCancelled = includeCancelled;
+        b.includeDiverted = includeDiverted;
+        b.includeDelays = includeDelays;
+        b.sort = sort;
+        b.descending = descending;
+        b.limit = limit;
+        return b;
+    }
+
+    public Set<String> getAirlines() {
+        return airlines;
+    }
+
+    // "AA123" (airline and number) or "123", null for any.
+    public String getFlightNumber() {
+        return flightNumber;
+    }
+
+    public Set<String> getOrigins() {
+        return origins;
+    }
+
+    public Set<String> getDestinations() {
+        return destinations;
+    }
+
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+
+    public Integer getMinDelay() {
+        return minDelay;
+    }
+
+    public Integer getMaxDelay() {
+        return maxDelay;
+    }
+
+    public Set<String> getDelayReasons() {
+        return delayReasons;
+    }
+
+    // The delay filters need one delay row meeting all of them at once.
+    public boolean hasDelayFilter() {
+        return minDelay != null || maxDelay != null || !delayReasons.isEmpty();
+    }
+
+    public boolean isIncludeCancelled() {
+        return includeCancelled;
+    }
+
+    public boolean isIncludeDiverted() {
+        return includeDiverted;
+    }
+
+    // Whether flights come back with their per-reason delays. Without them the search skips its second
+    // query, and getDelayBreakdowns fills them in for the flights someone actually looks at.
+    public boolean isIncludeDelays() {
+        return includeDelays;
+    }
+
+    // One of the SORT_ constants, or null when the order doesn't matter.
+    public String getSort() {
+        return sort;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    // Flight id order, which the paged searches use.
+    public boolean isFlightIdOrder() {
+        return sort == null || (SORT_FLIGHT_ID.equals(sort) && !descending);
+    }
+
+    // 0 for no limit.
+    public int getLimit() {
+        return limit;
+    }
+
+    // Every criterion with its values, in a fixed order. Equal queries have equal keys.
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    // Which criteria are set and how, without their values: queries with the same shape compile to
+    // the same SQL apart from parameters and IN list lengths.
+    public String getShapeKey() {
+        StringBuilder shape = new StringBuilder();
+        appendShape(shape, "airline", airlines.size());
+        appendShape(shape, "flightNumber", flightNumber != null ? 1 : 0);
+        appendShape(shape, "origin", origins.size());
+        appendShape(shape, "destination", destinations.size());
+        appendShape(shape, "from", startDate != null ? 1 : 0);
+        appendShape(shape, "to", endDate != null ? 1 : 0);
+        appendShape(shape, "minDelay", minDelay != null ? 1 : 0);
+        appendShape(shape, "maxDelay", maxDelay != null ? 1 : 0);
+        appendShape(shape, "reason", delayReasons.size());
+        appendShape(shape, "-cancelled", includeCancelled ? 0 : 1);
+        appendShape(shape, "-diverted", includeDiverted ? 0 : 1);
+        appendShape(shape, "-delays", includeDelays ? 0 : 1);
+        if (sort != null) {
+            if (shape.length() > 0) shape.append(' ');
+            shape.append("sort:").append(sort).append(descending ? ":desc" : "");
+        }
+        appendShape(shape, "limit", limit > 0 ? 1 : 0);
+        return shape.length() > 0 ? shape.toString() : "all";
+    }
+
+    // Single values show as the field name, several as name[].
+    private static void appendShape(StringBuilder shape, String field, int values) {
+        if (values == 0) return;
+        if (shape.length() > 0) shape.append(' ');
+        shape.append(field);
+        if (values > 1) shape.append("[]");
+    }
+
+    private String buildCacheKey() {
+        return String.join(",", airlines) + "|" + (flightNumber != null ? flightNumber : "") + "|" +
+                String.join(",", origins) + "|" + String.join(",", destinations) + "|" +
+                (startDate != null ? startDate : "") + "|" + (endDate != null ? endDate : "") + "|" +
+                (minDelay != null ? minDelay : "") + "|" + (maxDelay != null ? maxDelay : "") + "|" +
+                String.join(",", delayReasons) + "|" + (includeCancelled ? "" : "-cancelled") + "|" +
+                (includeDiverted ? "" : "-diverted") + "|" + (includeDelays ? "" : "-delays") + "|" +
+                (sort != null ? sort + (descending ? " desc" : "") : "") + "|" + (limit > 0 ? limit : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FlightQuery && cacheKey.equals(((FlightQuery) o).cacheKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return cacheKey.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "FlightQuery[" + cacheKey + "]";
+    }
+
+    public static class Builder {
+        private final Set<String> airlines = new TreeSet<>();
+        private String flightNumber;
+        private final Set<String> origins = new TreeSet<>();
+        private final Set<String> destinations = new TreeSet<>();
+        private LocalDate startDate;
+        private LocalDate endDate;
+        private Integer minDelay;
+        private Integer maxDelay;
+        private final Set<String> delayReasons = new TreeSet<>();
+        private boolean includeCancelled = true;
+        private boolean includeDiverted = true;
+        private boolean includeDelays = true;
+        private String sort;
+        private boolean descending;
+        private int limit;
+
+        private Builder() {
+        }
+
+        // Adds an airline code or name; call again (or use airlines) to match any of several.
+        public Builder airline(String airline) {
+            addTerm(airlines, airline);
+            return this;
+        }
+
+        public Builder airlines(Collection<String> airlines) {
+            for (String airline : airlines) addTerm(this.airlines, airline);
+            return this;
+        }
+
+        public Builder flightNumber(String flightNumber) {
+            this.flightNumber = normalise(flightNumber);
+            return this;
+        }
+
+        public Builder origin(String origin) {
+            addTerm(origins, origin);
+            return this;
+        }
+
+        public Builder origins(Collection<String> origins) {
+            for (String origin : origins) addTerm(this.origins, origin);
+            return this;
+        }
+
+        public Builder destination(String destination) {
+            addTerm(destinations, destination);
+            return this;
+        }
+
+        public Builder destinations(Collection<String> destinations) {
+            for (String destination : destinations) addTerm(this.destinations, destination);
+            return this;
+        }
+
+        // Either end may be null for an open range.
+        public Builder dateRange(LocalDate startDate, LocalDate endDate) {
+            this.startDate = startDate;
+            this.endDate = endDate;
+            return this;
+        }
+
+        // Minutes of one reported delay, either may be null.
+        public Builder delayBetween(Integer minDelay, Integer maxDelay) {
+            this.minDelay = minDelay;
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        public Builder delayReason(String reason) {
+            addTerm(delayReasons, reason);
+            return this;
+        }
+
+        public Builder delayReasons(Collection<String> reasons) {
+            for (String reason : reasons) addTerm(delayReasons, reason);
+            return this;
+        }
+
+        public Builder includeCancelled(boolean includeCancelled) {
+            this.includeCancelled = includeCancelled;
+            return this;
+        }
+
+        public Builder includeDiverted(boolean includeDiverted) {
+            this.includeDiverted = includeDiverted;
+            return this;
+        }
+
+        public Builder includeDelays(boolean includeDelays) {
+            this.includeDelays = includeDelays;
+            return this;
+        }
+
+        // sort is one of the SORT_ constants, or null for any order.
+        public Builder sortBy(String sort, boolean descending) {
+            if (sort != null && !SORT_FLIGHT_ID.equals(sort) && !SORT_DATE.equals(sort) &&
+                    !SORT_DELAY.equals(sort)) {
+                throw new IllegalArgumentException("Unknown sort: " + sort);
+            }
+            this.sort = sort;
+            this.descending = sort != null && descending;
+            return this;
+        }
+
+        // At most limit flights, after sorting. 0 for all of them.
+        public Builder limit(int limit) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("limit must not be negative");
+            }
+            this.limit = limit;
+            return this;
+        }
+
+        public FlightQuery build() {
+            return new FlightQuery(this);
+        }
+
+        private static void addTerm(Set<String> terms, String term) {
+            String value = normalise(term);
+            if (value != null) terms.add(value);
+        }
+
+        private static String normalise(String value) {
+            if (value == null || value.trim().isEmpty()) return null;
+            return value.trim().toUpperCase(Locale.ROOT);
+        }
+    }
+}
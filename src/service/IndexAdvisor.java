@@ -0,0 +1,524 @@
+package service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Proposes indexes for a recorded QueryWorkload. It reads the predicates out of each query shape the
+// service generates:
+// - Flight filters become equality columns, most selective first, then one range column.
+// - The delay filter subquery becomes a covering Delay_Reason(reason, delay_length, flight_id).
+// - Delay lookups by flight become Delay_Reason(flight_id, ...).
+// Proposals an existing index already leads with are dropped, and each is weighted by the recorded time
+// of the shapes it serves. evaluate creates each proposal on its own and replays the shapes it serves
+// before and after, so a proposal is kept on measured gains, not on the guess. Needs a writable connection.
+public class IndexAdvisor {
+
+    public static final String INDEX_PREFIX = "idx_advised_";
+
+    // Columns in one proposed index, past this the extra width costs more than the narrower seek saves.
+    private static final int MAX_INDEX_COLUMNS = 4;
+
+    // Bytes per index entry besides the column values: record header, rowid and cell pointer.
+    private static final int ENTRY_OVERHEAD_BYTES = 6;
+
+    // B-tree pages are rarely full, roughly this much slack on top.
+    private static final double PAGE_FILL_FACTOR = 1.15;
+
+    // A proposal has to make the shapes it serves at least this much faster to be kept, less is noise.
+    private static final double MIN_GAIN_FRACTION = 0.05;
+
+    private static final Pattern FLIGHT_EQUALITY = Pattern.compile("f\\.(\\w+) (?:IN \\(\\?\\+\\)|= \\?)");
+    private static final Pattern FLIGHT_RANGE = Pattern.compile("f\\.(\\w+) (?:>=|<=|>|<|BETWEEN) ");
+    private static final String DELAY_FILTER = "FROM Delay_Reason WHERE ?=?";
+    private static final Pattern DELAY_BY_FLIGHT = Pattern.compile(
+            "FROM Delay_Reason WHERE flight_id IN \\(\\?\\+\\)|dr\\.flight_id = f\\.flight_id|f\\.flight_id = dr\\.flight_id");
+
+    private final Connection conn;
+    private final QueryWorkload workload;
+    private final Map<String, Double> columnBytes = new HashMap<>();
+    private final Map<String, Long> distinctValues = new HashMap<>();
+
+    public IndexAdvisor(Connection conn, QueryWorkload workload) {
+        this.conn = conn;
+        this.workload = workload;
+    }
+
+    // Proposals not covered by an existing index, most recorded time served first.
+    public List<Proposal> propose() throws SQLException {
+        Map<String, Proposal> proposals = new LinkedHashMap<>();
+        for (QueryWorkload.Shape shape : workload.getShapes()) {
+            for (List<String> index : candidates(shape.getShape())) {
+                String table = index.get(0);
+                List<String> columns = index.subList(1, Math.min(index.size(), MAX_INDEX_COLUMNS + 1));
+                String key = table + columns;
+                Proposal proposal = proposals.get(key);
+                if (proposal == null) {
+                    proposal = new Proposal(table, new ArrayList<>(columns));
+                    proposals.put(key, proposal);
+                }
+                proposal.addShape(shape);
+            }
+        }
+
+        // A proposal is served by a wider one that leads with the same column and covers all of its columns.
+        List<Proposal> merged = new ArrayList<>();
+        for (Proposal proposal : proposals.values()) {
+            Proposal longer = null;
+            for (Proposal other : proposals.values()) {
+                if (other != proposal && other.table.equals(proposal.table) &&
+                        other.columns.size() > proposal.columns.size() &&
+                        other.columns.get(0).equals(proposal.columns.get(0)) &&
+                        other.columns.containsAll(proposal.columns)) {
+                    longer = other;
+                    break;
+                }
+            }
+            if (longer != null) {
+                longer.absorb(proposal);
+            } else {
+                merged.add(proposal);
+            }
+        }
+
+        List<Proposal> result = new ArrayList<>();
+        for (Proposal proposal : merged) {
+            if (!isCoveredByExistingIndex(proposal)) {
+                proposal.estimatedBytes = estimateBytes(proposal);
+                result.add(proposal);
+            }
+        }
+        result.sort((a, b) -> Long.compare(b.workloadNanos, a.workloadNanos));
+        return result;
+    }
+
+    // Table name followed by columns, for each index that would help this shape.
+    private List<List<String>> candidates(String shape) throws SQLException {
+        List<List<String>> candidates = new ArrayList<>();
+        String outer = stripSubqueries(shape);
+
+        // Flight filters of the outer query. flight_id is already the key.
+        if (outer.contains("FROM Flight f")) {
+            Set<String> equality = new LinkedHashSet<>();
+            Matcher m = FLIGHT_EQUALITY.matcher(outer);
+            while (m.find()) {
+                if (!m.group(1).equals("flight_id")) equality.add(m.group(1));
+            }
+            String range = null;
+            m = FLIGHT_RANGE.matcher(outer);
+            while (m.find() && range == null) {
+                if (!m.group(1).equals("flight_id") && !equality.contains(m.group(1))) range = m.group(1);
+            }
+            if (!equality.isEmpty() || range != null) {
+                List<String> columns = new ArrayList<>(equality);
+                columns.sort((a, b) -> Long.compare(distinct("Flight", b), distinct("Flight", a)));
+                if (range != null) columns.add(range);
+                List<String> index = new ArrayList<>();
+                index.add("Flight");
+                index.addAll(columns);
+                candidates.add(index);
+            }
+        }
+
+        // The delay filter: which flights have a delay row matching it.
+        int filter = shape.indexOf(DELAY_FILTER);
+        if (filter >= 0) {
+            String conditions = untilClosingParenthesis(shape, filter + DELAY_FILTER.length());
+            List<String> index = new ArrayList<>(Collections.singletonList("Delay_Reason"));
+            if (conditions.contains("reason IN")) index.add("reason");
+            if (conditions.contains("delay_length")) index.add("delay_length");
+            index.add("flight_id");
+            candidates.add(index);
+        }
+
+        // Per-flight delay lookups, covering the columns they read.
+        if (DELAY_BY_FLIGHT.matcher(shape).find()) {
+            List<String> index = new ArrayList<>(Arrays.asList("Delay_Reason", "flight_id"));
+            boolean fetchDelays = shape.contains("FROM Delay_Reason WHERE flight_id IN");
+            if (fetchDelays || shape.contains("dr.reason")) index.add("reason");
+            if (fetchDelays || shape.contains("dr.delay_length")) index.add("delay_length");
+            candidates.add(index);
+        }
+        return candidates;
+    }
+
+    private static String untilClosingParenthesis(String shape, int from) {
+        int depth = 0;
+        for (int i = from; i < shape.length(); i++) {
+            if (shape.charAt(i) == '(') depth++;
+            if (shape.charAt(i) == ')' && --depth < 0) return shape.substring(from, i);
+        }
+        return shape.substring(from);
+    }
+
+    // The shape with every (SELECT ...) replaced by (?), so only the outer query's predicates are left.
+    private static String stripSubqueries(String shape) {
+        StringBuilder out = new StringBuilder(shape.length());
+        int i = 0;
+        while (i < shape.length()) {
+            if (shape.startsWith("(SELECT", i)) {
+                int depth = 0;
+                int j = i;
+                for (; j < shape.length(); j++) {
+                    if (shape.charAt(j) == '(') depth++;
+                    if (shape.charAt(j) == ')' && --depth == 0) break;
+                }
+                out.append("(?)");
+                i = j + 1;
+            } else {
+                out.append(shape.charAt(i++));
+            }
+        }
+        return out.toString();
+    }
+
+    private boolean isCoveredByExistingIndex(Proposal proposal) throws SQLException {
+        for (List<String> existing : existingIndexes(proposal.table)) {
+            if (existing.size() >= proposal.columns.size() &&
+                    existing.subList(0, proposal.columns.size()).equals(proposal.columns)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Column lists of the table's indexes, including a WITHOUT ROWID table's primary key.
+    private List<List<String>> existingIndexes(String table) throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA index_list(" + table + ")")) {
+            while (rs.next()) {
+                names.add(rs.getString("name"));
+            }
+        }
+        List<List<String>> indexes = new ArrayList<>();
+        for (String name : names) {
+            List<String> columns = new ArrayList<>();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("PRAGMA index_info(" + name + ")")) {
+                while (rs.next()) {
+                    columns.add(rs.getString("name"));
+                }
+            }
+            indexes.add(columns);
+        }
+        return indexes;
+    }
+
+    private long estimateBytes(Proposal proposal) throws SQLException {
+        double entryBytes = ENTRY_OVERHEAD_BYTES;
+        for (String column : proposal.columns) {
+            entryBytes += averageBytes(proposal.table, column);
+        }
+        return (long) (rowCount(proposal.table) * entryBytes * PAGE_FILL_FACTOR);
+    }
+
+    private long rowCount(String table) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    // LENGTH of a number is its digit count, close enough to its stored size for an estimate.
+    private double averageBytes(String table, String column) throws SQLException {
+        String key = table + "." + column;
+        Double bytes = columnBytes.get(key);
+        if (bytes == null) {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT AVG(LENGTH(" + column + ")) FROM " + table)) {
+                bytes = rs.next() ? rs.getDouble(1) : 0;
+            }
+            columnBytes.put(key, bytes);
+        }
+        return bytes;
+    }
+
+    private long distinct(String table, String column) {
+        String key = table + "." + column;
+        Long count = distinctValues.get(key);
+        if (count == null) {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(DISTINCT " + column + ") FROM " + table)) {
+                count = rs.next() ? rs.getLong(1) : 0;
+            } catch (SQLException e) {
+                count = 0L; // not a column after all, sorts last
+            }
+            distinctValues.put(key, count);
+        }
+        return count;
+    }
+
+    // Creates the index and returns the bytes it takes up.
+    public long create(Proposal proposal) throws SQLException {
+        long before = usedBytes();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(proposal.getCreateSql());
+        }
+        commitIfNeeded();
+        proposal.actualBytes = usedBytes() - before;
+        return proposal.actualBytes;
+    }
+
+    public void drop(Proposal proposal) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP INDEX IF EXISTS " + proposal.getName());
+        }
+        commitIfNeeded();
+    }
+
+    private void commitIfNeeded() throws SQLException {
+        if (!conn.getAutoCommit()) {
+            conn.commit();
+        }
+    }
+
+    // Pages in use, free pages left by a dropped index get reused before the file grows.
+    private long usedBytes() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            long pages;
+            try (ResultSet rs = stmt.executeQuery("PRAGMA page_count")) {
+                pages = rs.next() ? rs.getLong(1) : 0;
+            }
+            try (ResultSet rs = stmt.executeQuery("PRAGMA freelist_count")) {
+                pages -= rs.next() ? rs.getLong(1) : 0;
+            }
+            try (ResultSet rs = stmt.executeQuery("PRAGMA page_size")) {
+                return pages * (rs.next() ? rs.getLong(1) : 0);
+            }
+        }
+    }
+
+    // Nanoseconds per run for each shape with replayable samples: every sample run runs times, the median
+    // of each averaged over the samples.
+    public Map<String, Double> replay(int runs) throws SQLException {
+        return replay(runs, null);
+    }
+
+    // Only the given shapes, or all of them for null.
+    private Map<String, Double> replay(int runs, Collection<String> shapes) throws SQLException {
+        Map<String, Double> results = new LinkedHashMap<>();
+        for (QueryWorkload.Shape shape : workload.getShapes()) {
+            if (shapes != null && !shapes.contains(shape.getShape())) continue;
+            List<QueryWorkload.Sample> samples = shape.getSamples();
+            double total = 0;
+            int replayed = 0;
+            for (QueryWorkload.Sample sample : samples) {
+                if (!sample.getSql().trim().toUpperCase(Locale.ROOT).startsWith("SELECT")) continue;
+                long[] times = new long[Math.max(1, runs)];
+                for (int i = 0; i < times.length; i++) {
+                    times[i] = run(sample);
+                }
+                Arrays.sort(times);
+                total += times[times.length / 2];
+                replayed++;
+            }
+            if (replayed > 0) {
+                results.put(shape.getShape(), total / replayed);
+            }
+        }
+        return results;
+    }
+
+    private long run(QueryWorkload.Sample sample) throws SQLException {
+        long start = System.nanoTime();
+        try (PreparedStatement stmt = conn.prepareStatement(sample.getSql())) {
+            List<Object> params = sample.getParams();
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    // Read every row, like the service does.
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Measures each proposal on its own: creates it, replays the shapes it serves and compares them with
+    // the replay before any proposal existed, weighting each shape by how often it was recorded. Only
+    // proposals that make their shapes faster by MIN_GAIN_FRACTION pass. Then the passing ones are
+    // created together and the whole workload replayed for the overall change. They stay if keep, every
+    // other proposal is dropped either way, also when a replay fails.
+    public String evaluate(List<Proposal> proposals, int runs, boolean keep) throws SQLException {
+        replay(1); // warm the page cache so the first pass isn't the only one reading from disk
+        Map<String, Double> before = replay(runs);
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-56s %10s %10s %8s  %s%n", "index", "before ms", "after ms", "change", "verdict"));
+        List<Proposal> passed = new ArrayList<>();
+        for (Proposal proposal : proposals) {
+            Map<String, Double> after;
+            try {
+                create(proposal);
+                after = replay(runs, proposal.getShapes());
+            } finally {
+                drop(proposal);
+            }
+
+            double servedBefore = 0;
+            double servedAfter = 0;
+            for (QueryWorkload.Shape shape : workload.getShapes()) {
+                Double b = before.get(shape.getShape());
+                Double a = after.get(shape.getShape());
+                if (b == null || a == null) continue;
+                servedBefore += b * shape.getCount();
+                servedAfter += a * shape.getCount();
+            }
+            proposal.measuredBeforeNanos = servedBefore;
+            proposal.measuredAfterNanos = servedAfter;
+            proposal.passed = servedBefore > 0 && servedAfter < servedBefore * (1 - MIN_GAIN_FRACTION);
+            if (proposal.passed) {
+                passed.add(proposal);
+            }
+            report.append(String.format("%-56s %10.2f %10.2f %7.0f%%  %s%n", proposal, servedBefore / 1e6,
+                    servedAfter / 1e6, servedBefore > 0 ? (servedAfter - servedBefore) * 100 / servedBefore : 0,
+                    servedBefore == 0 ? "no replayable shapes" : proposal.passed ? "faster" : "not faster"));
+        }
+
+        // A failed replay drops them too, so no idx_advised_ index is left behind that wasn't asked for.
+        List<Proposal> created = new ArrayList<>();
+        Map<String, Double> after;
+        boolean kept = false;
+        try {
+            for (Proposal proposal : passed) {
+                create(proposal);
+                created.add(proposal);
+            }
+            after = replay(runs);
+            kept = keep;
+        } finally {
+            if (!kept) {
+                for (Proposal proposal : created) {
+                    drop(proposal);
+                }
+            }
+        }
+
+        report.append(String.format("%n%-12s %10s %10s %8s  %s%n", "runs", "before ms", "after ms", "change", "shape"));
+        double totalBefore = 0;
+        double totalAfter = 0;
+        for (QueryWorkload.Shape shape : workload.getShapes()) {
+            Double b = before.get(shape.getShape());
+            Double a = after.get(shape.getShape());
+            if (b == null || a == null) continue;
+            totalBefore += b * shape.getCount();
+            totalAfter += a * shape.getCount();
+            report.append(String.format("%-12d %10.2f %10.2f %7.0f%%  %s%n", shape.getCount(), b / 1e6, a / 1e6,
+                    (a - b) * 100 / b, truncate(shape.getShape(), 140)));
+        }
+        report.append(String.format("Recorded workload replayed with the %d faster of %d indexes: %.1f ms -> %.1f ms " +
+                        "(%.0f%%), indexes %s%n", passed.size(), proposals.size(), totalBefore / 1e6, totalAfter / 1e6,
+                totalBefore > 0 ? (totalAfter - totalBefore) * 100 / totalBefore : 0,
+                keep ? "kept" : "dropped again"));
+        return report.toString();
+    }
+
+    private static String truncate(String s, int max) {
+        return s.length() > max ? s.substring(0, max) + "..." : s;
+    }
+
+    // One proposed index and the recorded shapes it should help.
+    public static class Proposal {
+        private final String table;
+        private final List<String> columns;
+        private final List<String> shapes = new ArrayList<>();
+        private long workloadRuns = 0;
+        private long workloadNanos = 0;
+        private long estimatedBytes;
+        private long actualBytes = -1;
+        private double measuredBeforeNanos = -1;
+        private double measuredAfterNanos = -1;
+        private boolean passed;
+
+        Proposal(String table, List<String> columns) {
+            this.table = table;
+            this.columns = Collections.unmodifiableList(columns);
+        }
+
+        void addShape(QueryWorkload.Shape shape) {
+            shapes.add(shape.getShape());
+            workloadRuns += shape.getCount();
+            workloadNanos += shape.getTotalNanos();
+        }
+
+        void absorb(Proposal other) {
+            shapes.addAll(other.shapes);
+            workloadRuns += other.workloadRuns;
+            workloadNanos += other.workloadNanos;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        public String getName() {
+            return INDEX_PREFIX + table.toLowerCase(Locale.ROOT) + "_" + String.join("_", columns);
+        }
+
+        public String getCreateSql() {
+            return "CREATE INDEX IF NOT EXISTS " + getName() + " ON " + table + "(" + String.join(", ", columns) + ")";
+        }
+
+        public List<String> getShapes() {
+            return shapes;
+        }
+
+        public long getWorkloadRuns() {
+            return workloadRuns;
+        }
+
+        // Recorded time spent in the shapes this index serves.
+        public long getWorkloadNanos() {
+            return workloadNanos;
+        }
+
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        // -1 until create has run.
+        public long getActualBytes() {
+            return actualBytes;
+        }
+
+        // Weighted replay time of the served shapes without and with this index alone, -1 until evaluated.
+        public double getMeasuredBeforeNanos() {
+            return measuredBeforeNanos;
+        }
+
+        public double getMeasuredAfterNanos() {
+            return measuredAfterNanos;
+        }
+
+        // True if evaluate found it made its shapes faster.
+        public boolean isPassed() {
+            return passed;
+        }
+
+        @Override
+        public String toString() {
+            return table + "(" + String.join(", ", columns) + ")";
+        }
+    }
+}
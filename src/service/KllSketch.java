@@ -0,0 +1,226 @@
+package service;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Streaming quantile sketch in the style of KLL (Karnin, Lang, Liberty).
+// Values go into level 0; when the sketch is over capacity the lowest full level is sorted and every other
+// item is promoted to the next level, where each item stands for twice as many values. Higher levels get
+// more room than lower ones, so memory stays around 3 * k items however many values are added, and two
+// sketches merge by concatenating their levels and compacting again.
+// With the default k = 200 quantiles are within about 1.5% of the true rank.
+public class KllSketch {
+
+    public static final int DEFAULT_K = 200;
+
+    private static final double LEVEL_DECAY = 2.0 / 3.0;
+    private static final int MIN_LEVEL_CAPACITY = 8;
+
+    private final int k;
+    private double[][] levels = new double[1][16];
+    private int[] sizes = new int[1];
+    private long count = 0;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    // Fixed seed so the same input (and the same merge order) always gives the same answer.
+    private final Random random = new Random(0x4B4C4CL);
+
+    public KllSketch() {
+        this(DEFAULT_K);
+    }
+
+    public KllSketch(int k) {
+        if (k < MIN_LEVEL_CAPACITY) {
+            throw new IllegalArgumentException("k must be at least " + MIN_LEVEL_CAPACITY);
+        }
+        this.k = k;
+    }
+
+    public void update(double value) {
+        if (Double.isNaN(value)) return;
+        if (count == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        count++;
+        append(0, value);
+        compressIfNeeded();
+    }
+
+    // Adds everything other has seen. other is left unchanged.
+    public void merge(KllSketch other) {
+        if (other.count == 0) return;
+        if (count == 0) {
+            min = other.min;
+            max = other.max;
+        } else {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+        count += other.count;
+
+        for (int level = 0; level < other.sizes.length; level++) {
+            for (int i = 0; i < other.sizes[level]; i++) {
+                append(level, other.levels[level][i]);
+            }
+        }
+        compressIfNeeded();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    // Value at fraction q (0..1) of the way through the sorted input, NaN if empty.
+    public double getQuantile(double q) {
+        return getQuantiles(q)[0];
+    }
+
+    // Several quantiles for the cost of one sort.
+    public double[] getQuantiles(double... fractions) {
+        double[] results = new double[fractions.length];
+        if (count == 0) {
+            Arrays.fill(results, Double.NaN);
+            return results;
+        }
+
+        int retained = getRetainedItems();
+        double[] values = new double[retained];
+        long[] weights = new long[retained];
+        int pos = 0;
+        for (int level = 0; level < sizes.length; level++) {
+            for (int i = 0; i < sizes[level]; i++) {
+                values[pos] = levels[level][i];
+                weights[pos] = 1L << level;
+                pos++;
+            }
+        }
+        sortTogether(values, weights);
+
+        long total = 0;
+        for (long w : weights) total += w;
+
+        for (int j = 0; j < fractions.length; j++) {
+            double q = fractions[j];
+            if (q <= 0) {
+                results[j] = min;
+            } else if (q >= 1) {
+                results[j] = max;
+            } else {
+                double target = q * total;
+                long seen = 0;
+                results[j] = max;
+                for (int i = 0; i < retained; i++) {
+                    seen += weights[i];
+                    if (seen >= target) {
+                        results[j] = values[i];
+                        break;
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    public int getRetainedItems() {
+        int total = 0;
+        for (int size : sizes) total += size;
+        return total;
+    }
+
+    // Rough heap size, used for reporting.
+    public long getSizeInBytes() {
+        long bytes = 64;
+        for (double[] level : levels) {
+            bytes += 16 + level.length * 8L;
+        }
+        return bytes;
+    }
+
+    private void append(int level, double value) {
+        if (level >= sizes.length) {
+            levels = Arrays.copyOf(levels, level + 1);
+            sizes = Arrays.copyOf(sizes, level + 1);
+            for (int i = 0; i < levels.length; i++) {
+                if (levels[i] == null) levels[i] = new double[16];
+            }
+        }
+        if (sizes[level] == levels[level].length) {
+            levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+        }
+        levels[level][sizes[level]++] = value;
+    }
+
+    private int capacity(int level) {
+        int depth = sizes.length - 1 - level;
+        return Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(k * Math.pow(LEVEL_DECAY, depth)));
+    }
+
+    private void compressIfNeeded() {
+        while (getRetainedItems() > totalCapacity()) {
+            for (int level = 0; level < sizes.length; level++) {
+                if (sizes[level] >= capacity(level)) {
+                    compact(level);
+                    break;
+                }
+            }
+        }
+    }
+
+    private int totalCapacity() {
+        int total = 0;
+        for (int level = 0; level < sizes.length; level++) {
+            total += capacity(level);
+        }
+        return total;
+    }
+
+    // Sort the level, promote the odd or even positions (chosen at random) one level up,
+    // and keep a leftover item here if the count was odd.
+    private void compact(int level) {
+        double[] items = levels[level];
+        int size = sizes[level];
+        Arrays.sort(items, 0, size);
+
+        int leftover = size % 2;
+        int offset = random.nextBoolean() ? 1 : 0;
+        for (int i = leftover + offset; i < size; i += 2) {
+            append(level + 1, items[i]);
+        }
+
+        // The leftover, if any, is items[0] and already in place.
+        sizes[level] = leftover;
+    }
+
+    // Sorts values ascending, carrying each one's weight along.
+    private static void sortTogether(double[] values, long[] weights) {
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+        double[] sortedValues = new double[values.length];
+        long[] sortedWeights = new long[weights.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedValues[i] = values[order[i]];
+            sortedWeights[i] = weights[order[i]];
+        }
+        System.arraycopy(sortedValues, 0, values, 0, values.length);
+        System.arraycopy(sortedWeights, 0, weights, 0, weights.length);
+    }
+}
@@ -0,0 +1,145 @@
+package service;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histogram and counters for one service method. Calls that fail or are cancelled still
+// count towards the latency, timeouts are counted on their own when the caller's deadline passes.
+public class MethodMetrics implements MethodMetricsMBean {
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    MethodMetrics(String name) {
+        this.name = name;
+    }
+
+    void recordSuccess(long nanos, long rowCount, long byteCount) {
+        latency.record(nanos);
+        rows.add(rowCount);
+        bytes.add(byteCount);
+    }
+
+    void recordError(long nanos) {
+        latency.record(nanos);
+        errors.increment();
+    }
+
+    void recordCancelled(long nanos) {
+        latency.record(nanos);
+        cancelled.increment();
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    // Time the call spent queued in the scheduler before it started, not part of its latency.
+    void recordQueueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    void recordRejected() {
+        rejected.increment();
+    }
+
+    void reset() {
+        latency.reset();
+        queueWait.reset();
+        errors.reset();
+        cancelled.reset();
+        timeouts.reset();
+        rejected.reset();
+        rows.reset();
+        bytes.reset();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCalls() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getRows() {
+        return rows.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return latency.getMeanMillis();
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latency.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getP90Millis() {
+        return latency.getPercentileMillis(90);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latency.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latency.getMaxMillis();
+    }
+
+    @Override
+    public double getQueueP50Millis() {
+        return queueWait.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getQueueP99Millis() {
+        return queueWait.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getQueueMaxMillis() {
+        return queueWait.getMaxMillis();
+    }
+
+    public double getPercentileMillis(double percentile) {
+        return latency.getPercentileMillis(percentile);
+    }
+}
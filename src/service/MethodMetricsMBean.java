@@ -0,0 +1,35 @@
+package service;
+
+// JMX view of one service method's metrics, registered as flights:type=ServiceMetrics,method=<name>.
+public interface MethodMetricsMBean {
+
+    long getCalls();
+
+    long getErrors();
+
+    long getCancelled();
+
+    long getTimeouts();
+
+    long getRejected();
+
+    long getRows();
+
+    long getBytes();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+
+    double getQueueP50Millis();
+
+    double getQueueP99Millis();
+
+    double getQueueMaxMillis();
+}
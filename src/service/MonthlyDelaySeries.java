@@ -0,0 +1,113 @@
+package service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Average delay per origin airport per month for a range of years, in one airport x month array.
+// Built from a single roll-up of the delay cube, so the time series view can switch airports
+// without going back to the database.
+public class MonthlyDelaySeries {
+
+    private final String[] airports;
+    private final Map<String, Integer> airportIndex = new HashMap<>();
+    private final int startYear;
+    private final int endYear;
+    private final String dataVersion;
+
+    // [airport][month since January of startYear], NaN where there were no delays.
+    private final double[][] averages;
+
+    private MonthlyDelaySeries(String[] airports, int startYear, int endYear, String dataVersion) {
+        this.airports = airports;
+        this.startYear = startYear;
+        this.endYear = endYear;
+        this.dataVersion = dataVersion;
+        this.averages = new double[airports.length][(endYear - startYear + 1) * 12];
+        for (int i = 0; i < airports.length; i++) {
+            airportIndex.put(airports[i], i);
+            Arrays.fill(averages[i], Double.NaN);
+        }
+    }
+
+    static MonthlyDelaySeries fromCube(DelayCube cube, int startYear, int endYear) {
+        Map<String, DelayCube.Cell> cells = cube.query()
+                .months(startYear, 1, endYear, 12)
+                .whereNot(DelayCube.DIM_REASON, DelayCube.NO_DELAY)
+                .groupBy(DelayCube.DIM_ORIGIN, DelayCube.DIM_MONTH)
+                .run();
+
+        // Keys are CODE|MM/yyyy.
+        TreeSet<String> codes = new TreeSet<>();
+        for (String key : cells.keySet()) {
+            codes.add(key.substring(0, key.indexOf('|')));
+        }
+
+        MonthlyDelaySeries series = new MonthlyDelaySeries(codes.toArray(new String[0]),
+                startYear, endYear, cube.getDataVersion());
+        for (Map.Entry<String, DelayCube.Cell> entry : cells.entrySet()) {
+            String key = entry.getKey();
+            int split = key.indexOf('|');
+            int month = Integer.parseInt(key.substring(split + 1, split + 3));
+            int year = Integer.parseInt(key.substring(split + 4));
+            series.averages[series.airportIndex.get(key.substring(0, split))][(year - startYear) * 12 + month - 1] =
+                    entry.getValue().getAverage();
+        }
+        return series;
+    }
+
+    // MM/yyyy -> average delay for the months the airport had delays, the same shape as getDelaysByMonth.
+    public Map<String, Double> getSeries(String airportCode) {
+        Map<String, Double> results = new HashMap<>();
+        Integer index = airportIndex.get(airportCode);
+        if (index == null) {
+            return results;
+        }
+
+        double[] row = averages[index];
+        for (int i = 0; i < row.length; i++) {
+            if (!Double.isNaN(row[i])) {
+                results.put(String.format("%02d/%d", i % 12 + 1, startYear + i / 12), row[i]);
+            }
+        }
+        return results;
+    }
+
+    // NaN if the airport had no delays that month, or it's outside the range.
+    public double getAverage(String airportCode, int year, int month) {
+        Integer index = airportIndex.get(airportCode);
+        if (index == null || year < startYear || year > endYear || month < 1 || month > 12) {
+            return Double.NaN;
+        }
+        return averages[index][(year - startYear) * 12 + month - 1];
+    }
+
+    public boolean covers(int startYear, int endYear) {
+        return this.startYear == startYear && this.endYear == endYear;
+    }
+
+    public String[] getAirports() {
+        return airports.clone();
+    }
+
+    public int getStartYear() {
+        return startYear;
+    }
+
+    public int getEndYear() {
+        return endYear;
+    }
+
+    public String getDataVersion() {
+        return dataVersion;
+    }
+
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (double[] row : averages) {
+            bytes += 16 + row.length * 8L;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,108 @@
+package service;
+
+import flightModel.Airline;
+import flightModel.Airport;
+
+import java.util.*;
+
+// Trigram index over airline and airport names, used to turn free text like "york" into IATA codes
+// (JFK, LGA, ...) before the main query runs, so the Flight table can be hit with indexed IN lookups
+// instead of LIKE '%text%' on joined name columns.
+public class NameIndex {
+
+    private final Dictionary airlines;
+    private final Dictionary airports;
+
+    private NameIndex(Dictionary airlines, Dictionary airports) {
+        this.airlines = airlines;
+        this.airports = airports;
+    }
+
+    public static NameIndex build(DimensionRegistry dimensions) {
+        List<String[]> airlines = new ArrayList<>();
+        for (Airline airline : dimensions.getAirlines()) {
+            airlines.add(new String[]{airline.getCode(), airline.getName()});
+        }
+        List<String[]> airports = new ArrayList<>();
+        for (Airport airport : dimensions.getAirports()) {
+            airports.add(new String[]{airport.getCode(), airport.getName()});
+        }
+        return new NameIndex(new Dictionary(airlines), new Dictionary(airports));
+    }
+
+    // Same rule the search always used: code or name contains the text.
+    public Set<String> resolveAirline(String text) {
+        return airlines.resolve(text, false);
+    }
+
+    // Airports match on the exact code, or the name containing the text.
+    public Set<String> resolveAirport(String text) {
+        return airports.resolve(text, true);
+    }
+
+    private static class Dictionary {
+        private final String[] codes;
+        private final String[] names; // lower case
+        private final Map<String, BitSet> trigrams = new HashMap<>();
+
+        private Dictionary(List<String[]> rows) {
+            codes = new String[rows.size()];
+            names = new String[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                codes[i] = rows.get(i)[0];
+                names[i] = rows.get(i)[1] != null ? rows.get(i)[1].toLowerCase(Locale.ROOT) : "";
+                for (int j = 0; j + 3 <= names[i].length(); j++) {
+                    trigrams.computeIfAbsent(names[i].substring(j, j + 3), k -> new BitSet()).set(i);
+                }
+            }
+        }
+
+        Set<String> resolve(String text, boolean exactCode) {
+            Set<String> result = new TreeSet<>();
+            if (text == null || text.trim().isEmpty()) {
+                return result;
+            }
+            String needle = text.trim().toLowerCase(Locale.ROOT);
+            String upper = text.trim().toUpperCase(Locale.ROOT);
+
+            // Codes are tiny, just check them all.
+            for (String code : codes) {
+                if (exactCode ? code.equals(upper) : code.toUpperCase(Locale.ROOT).contains(upper)) {
+                    result.add(code);
+                }
+            }
+
+            // Intersect the trigram postings to get candidates, then confirm with a real contains.
+            BitSet candidates = null;
+            if (needle.length() >= 3) {
+                for (int j = 0; j + 3 <= needle.length(); j++) {
+                    BitSet posting = trigrams.get(needle.substring(j, j + 3));
+                    if (posting == null) {
+                        return result;
+                    }
+                    if (candidates == null) {
+                        candidates = (BitSet) posting.clone();
+                    } else {
+                        candidates.and(posting);
+                    }
+                }
+            }
+
+            if (candidates != null) {
+                for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                    if (names[i].contains(needle)) {
+                        result.add(codes[i]);
+                    }
+                }
+            } else {
+                // One or two characters, nothing to intersect on.
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i].contains(needle)) {
+                        result.add(codes[i]);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Times every query the service runs, grouped by shape: the SQL with literals and IN lists folded
+// into placeholders, so the same search with different criteria adds up under one entry.
+// Queries slower than the threshold are logged with their parameters, row count and the
+// EXPLAIN QUERY PLAN, which is captured once per shape.
+public class QueryLog {
+
+    private static final int MAX_LOGGED_SQL = 1000;
+    private static final int MAX_LOGGED_PARAMS = 200;
+
+    private final long slowNanos;
+    private final Map<String, ShapeStats> shapes = new ConcurrentHashMap<>();
+
+    public QueryLog(long slowMillis) {
+        this.slowNanos = slowMillis * 1_000_000;
+    }
+
+    // Called after every query, whether it finished or not. c is the connection it ran on, used
+    // for the plan if this is the shape's first slow run.
+    public void record(Connection c, String sql, List<?> params, long rows, long nanos, boolean failed) {
+        String shape = normalise(sql);
+        ShapeStats stats = shapes.computeIfAbsent(shape, ShapeStats::new);
+        stats.add(rows, nanos, failed);
+
+        if (nanos < slowNanos) {
+            return;
+        }
+
+        String plan = stats.claimPlan() ? stats.setPlan(explain(c, sql, params)) : null;
+
+        StringBuilder log = new StringBuilder();
+        log.append(String.format("Slow query: %.1f ms, %d rows%s%n", nanos / 1e6, rows, failed ? " (failed)" : ""));
+        log.append("  shape:  ").append(truncate(shape, MAX_LOGGED_SQL)).append("\n");
+        log.append("  params: ").append(truncate(String.valueOf(params), MAX_LOGGED_PARAMS));
+        if (plan != null) {
+            log.append("\n  plan:\n").append(indent(plan, "    "));
+        }
+        System.out.println(log);
+    }
+
+    // Literals become ?, and a list of placeholders becomes (?+), so only the structure is left.
+    // A single pass by hand, the bitmap searches inline id lists far too long for a regex.
+    public static String normalise(String sql) {
+        StringBuilder shape = new StringBuilder(Math.min(sql.length(), 1024));
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char ch = sql.charAt(i);
+            if (ch == '\'') {
+                // String literal, '' is an escaped quote inside it.
+                i++;
+                while (i < n) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < n && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                shape.append('?');
+            } else if (Character.isDigit(ch) && !continuesIdentifier(shape)) {
+                while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) i++;
+                shape.append('?');
+            } else if (Character.isWhitespace(ch)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i))) i++;
+                if (shape.length() > 0) shape.append(' ');
+            } else {
+                shape.append(ch);
+                i++;
+            }
+        }
+        return collapsePlaceholderLists(shape.toString().trim());
+    }
+
+    private static boolean continuesIdentifier(StringBuilder shape) {
+        if (shape.length() == 0) return false;
+        char last = shape.charAt(shape.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_';
+    }
+
+    // (?), (?, ?) and so on all become (?+).
+    private static String collapsePlaceholderLists(String shape) {
+        StringBuilder out = new StringBuilder(shape.length());
+        int i = 0;
+        int n = shape.length();
+        while (i < n) {
+            if (shape.charAt(i) == '(') {
+                int j = i + 1;
+                boolean list = false;
+                while (true) {
+                    while (j < n && shape.charAt(j) == ' ') j++;
+                    if (j >= n || shape.charAt(j) != '?') break;
+                    j++;
+                    while (j < n && shape.charAt(j) == ' ') j++;
+                    if (j < n && shape.charAt(j) == ')') {
+                        list = true;
+                        break;
+                    }
+                    if (j >= n || shape.charAt(j) != ',') break;
+                    j++;
+                }
+                if (list) {
+                    out.append("(?+)");
+                    i = j + 1;
+                    continue;
+                }
+            }
+            out.append(shape.charAt(i));
+            i++;
+        }
+        return out.toString();
+    }
+
+    // One line per plan step, indented under its parent step.
+    private static String explain(Connection c, String sql, List<?> params) {
+        try (PreparedStatement stmt = c.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+
+            Map<Integer, Integer> depths = new HashMap<>();
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int id = rs.getInt("id");
+                    int depth = depths.getOrDefault(rs.getInt("parent"), -1) + 1;
+                    depths.put(id, depth);
+                    for (int i = 0; i < depth; i++) plan.append("  ");
+                    plan.append(rs.getString("detail")).append("\n");
+                }
+            }
+            return plan.toString();
+        } catch (SQLException e) {
+            return "(no plan: " + e.getMessage() + ")\n";
+        }
+    }
+
+    // Shapes ordered by total time spent in them, worst first.
+    public List<ShapeStats> getWorstShapes(int limit) {
+        List<ShapeStats> worst = new ArrayList<>(shapes.values());
+        worst.sort((a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+        return worst.subList(0, Math.min(limit, worst.size()));
+    }
+
+    public String getReport(int limit) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Query log: %d shapes, slow threshold %d ms%n", shapes.size(), slowNanos / 1_000_000));
+        for (ShapeStats stats : getWorstShapes(limit)) {
+            report.append(String.format("%10.1f ms total %6d runs %9.2f ms avg %9.1f ms max %8d slow %10.0f rows avg%s%n",
+                    stats.getTotalNanos() / 1e6, stats.getCount(), stats.getAverageNanos() / 1e6,
+                    stats.getMaxNanos() / 1e6, stats.getSlowCount(), stats.getAverageRows(),
+                    stats.hasFullScan() ? "  FULL SCAN" : ""));
+            report.append("  ").append(truncate(stats.getShape(), MAX_LOGGED_SQL)).append("\n");
+            if (stats.getPlan() != null) {
+                report.append(indent(stats.getPlan(), "    "));
+            }
+        }
+        return report.toString();
+    }
+
+    public void clear() {
+        shapes.clear();
+    }
+
+    private static String truncate(String s, int max) {
+        return s.length() > max ? s.substring(0, max) + "..." : s;
+    }
+
+    private static String indent(String lines, String prefix) {
+        StringBuilder out = new StringBuilder();
+        for (String line : lines.split("\n")) {
+            out.append(prefix).append(line).append("\n");
+        }
+        return out.toString();
+    }
+
+    // Running totals for one query shape.
+    public class ShapeStats {
+        private final String shape;
+        private long count = 0;
+        private long failures = 0;
+        private long slowCount = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+        private long totalRows = 0;
+        private boolean planClaimed = false;
+        private String plan;
+
+        ShapeStats(String shape) {
+            this.shape = shape;
+        }
+
+        synchronized void add(long rows, long nanos, boolean failed) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            totalRows += rows;
+            if (failed) failures++;
+            if (nanos >= slowNanos) slowCount++;
+        }
+
+        // True for exactly one caller, the one that should run EXPLAIN.
+        synchronized boolean claimPlan() {
+            if (planClaimed) return false;
+            planClaimed = true;
+            return true;
+        }
+
+        synchronized String setPlan(String plan) {
+            this.plan = plan;
+            return plan;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getFailures() {
+            return failures;
+        }
+
+        public synchronized long getSlowCount() {
+            return slowCount;
+        }
+
+        public synchronized long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public synchronized long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public synchronized double getAverageNanos() {
+            return count > 0 ? (double) totalNanos / count : 0;
+        }
+
+        public synchronized double getAverageRows() {
+            return count > 0 ? (double) totalRows / count : 0;
+        }
+
+        // Null until the shape has had a slow run.
+        public synchronized String getPlan() {
+            return plan;
+        }
+
+        // SEARCH steps seek into a table or index, SCAN steps read all of one (even USING INDEX).
+        public synchronized boolean hasFullScan() {
+            if (plan == null) return false;
+            for (String line : plan.split("\n")) {
+                String step = line.trim();
+                if (step.startsWith("SCAN ") && !step.startsWith("SCAN CONSTANT ROW")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package service;
+
+import database.BitmapIndex;
+import database.RoaringBitmap;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Compiles a FlightQuery into SQL over Flight f. Free-text airline and airport terms are resolved to
+// IATA codes first so the table only sees indexed IN lookups, then the bitmap indexes (when there are
+// any) narrow the flights down before SQLite reads a row: a search they rule out entirely never runs,
+// and a small enough candidate set becomes a rowid lookup. Dates compare on the integer date_key column
+// when the database has it, otherwise on the date text rearranged to yyyymmdd. With the statistics
+// catalog the planner also estimates how many rows each filter keeps: a filter that keeps much of the
+// table gets its column written as +column, which stops SQLite walking that index for what is cheaper
+// as a scan (cancelled = 0 keeps nearly every flight), and the plan carries the row estimate.
+public class QueryPlanner {
+
+    // Candidate sets up to this size are inlined as a flight_id IN (...) list.
+    static final int MAX_BITMAP_ID_LIST = 20000;
+
+    // A filter keeping more than this fraction of the flights reads faster as a table scan than through its index.
+    static final double FULL_SCAN_FRACTION = 0.25;
+
+    private static final String DATE_EXPRESSION = "(CAST(substr(f.date, 5, 4) AS INTEGER) * 10000 + " +
+            "CAST(substr(f.date, 3, 2) AS INTEGER) * 100 + CAST(substr(f.date, 1, 2) AS INTEGER))";
+
+    private final NameIndex names;
+    private final BitmapIndex bitmaps;
+    private final boolean hasDateKey;
+    private final DatasetStatistics stats;
+
+    // bitmaps may be null to plan without them.
+    public QueryPlanner(NameIndex names, BitmapIndex bitmaps, boolean hasDateKey) {
+        this(names, bitmaps, hasDateKey, null);
+    }
+
+    // stats may be null too, then every index SQLite picks is used and nothing is estimated.
+    public QueryPlanner(NameIndex names, BitmapIndex bitmaps, boolean hasDateKey, DatasetStatistics stats) {
+        this.names = names;
+        this.bitmaps = bitmaps;
+        this.hasDateKey = hasDateKey;
+        this.stats = stats;
+    }
+
+    // Flights the query should match going by the statistics alone, -1 without statistics.
+    public long estimateRows(FlightQuery query) {
+        if (stats == null) {
+            return -1;
+        }
+        Set<String> airlineCodes = resolve(query.getAirlines(), false);
+        Set<String> originCodes = resolve(query.getOrigins(), true);
+        Set<String> destCodes = resolve(query.getDestinations(), true);
+        if (isEmptySet(airlineCodes) || isEmptySet(originCodes) || isEmptySet(destCodes)) {
+            return 0;
+        }
+        double fraction = valueFraction("airline_code", airlineCodes) * valueFraction("flight_origin", originCodes) *
+                valueFraction("flight_destination", destCodes) * reasonFraction(query) * flagFraction(query) *
+                rowFraction(query);
+        return Math.round(stats.getFlightCount() * fraction);
+    }
+
+    public SqlPlan compile(FlightQuery query) {
+        SqlPlan plan = new SqlPlan();
+        StringBuilder sql = new StringBuilder();
+        List<Object> params = plan.params;
+
+        Set<String> airlineCodes = resolve(query.getAirlines(), false);
+        Set<String> originCodes = resolve(query.getOrigins(), true);
+        Set<String> destCodes = resolve(query.getDestinations(), true);
+        if (isEmptySet(airlineCodes) || isEmptySet(originCodes) || isEmptySet(destCodes)) {
+            plan.noMatches = "no matching names";
+            return plan;
+        }
+
+        RoaringBitmap candidates = bitmapCandidates(query, airlineCodes, originCodes, destCodes);
+        if (candidates != null && candidates.isEmpty()) {
+            plan.noMatches = "bitmap";
+            return plan;
+        }
+        plan.candidates = candidates;
+        if (candidates != null && candidates.getCardinality() <= MAX_BITMAP_ID_LIST) {
+            sql.append("AND f.flight_id IN (").append(joinIds(candidates.toArray())).append(") ");
+        }
+
+        if (airlineCodes != null) {
+            appendInList(sql, params, indexed("f.airline_code", valueFraction("airline_code", airlineCodes)),
+                    airlineCodes);
+        }
+
+        // Flight number - could be "AA123" or just "123".
+        String fn = query.getFlightNumber();
+        if (fn != null) {
+            try {
+                if (Character.isLetter(fn.charAt(0))) {
+                    int i = 0;
+                    while (i < fn.length() && Character.isLetter(fn.charAt(i))) i++;
+                    String numPart = fn.substring(i);
+                    if (!numPart.isEmpty()) {
+                        sql.append("AND f.airline_code = ? AND f.flight_number = ? ");
+                        params.add(fn.substring(0, i));
+                        params.add(Integer.parseInt(numPart));
+                    }
+                } else {
+                    sql.append("AND f.flight_number = ? ");
+                    params.add(Integer.parseInt(fn));
+                }
+            } catch (NumberFormatException e) {
+                plan.noMatches = "bad flight number";
+                return plan;
+            }
+        }
+
+        if (originCodes != null) {
+            appendInList(sql, params, indexed("f.flight_origin", valueFraction("flight_origin", originCodes)),
+                    originCodes);
+        }
+        if (destCodes != null) {
+            appendInList(sql, params,
+                    indexed("f.flight_destination", valueFraction("flight_destination", destCodes)), destCodes);
+        }
+
+        String dateColumn = hasDateKey ? "f.date_key" : DATE_EXPRESSION;
+        String dateFilter = hasDateKey ? indexed(dateColumn, dateFraction(query)) : dateColumn;
+        if (query.getStartDate() != null) {
+            sql.append("AND ").append(dateFilter).append(" >= ? ");
+            params.add(toDateKey(query.getStartDate()));
+        }
+        if (query.getEndDate() != null) {
+            sql.append("AND ").append(dateFilter).append(" <= ? ");
+            params.add(toDateKey(query.getEndDate()));
+        }
+
+        if (!query.isIncludeCancelled()) {
+            double kept = stats != null ? 1.0 - stats.cancelledFraction() : 0;
+            sql.append("AND ").append(indexed("f.cancelled", kept)).append(" = 0 ");
+        }
+        if (!query.isIncludeDiverted()) {
+            double kept = stats != null ? 1.0 - stats.divertedFraction() : 0;
+            sql.append("AND ").append(indexed("f.diverted", kept)).append(" = 0 ");
+        }
+
+        // One delay row has to meet every delay condition, so they share one subquery.
+        if (query.hasDelayFilter()) {
+            sql.append("AND f.flight_id IN (SELECT DISTINCT flight_id FROM Delay_Reason WHERE 1=1 ");
+            if (!query.getDelayReasons().isEmpty()) {
+                sql.append("AND reason IN (");
+                int i = 0;
+                for (String reason : query.getDelayReasons()) {
+                    sql.append(i++ > 0 ? ", ?" : "?");
+                    params.add(reason);
+                }
+                sql.append(") ");
+            }
+            if (query.getMinDelay() != null) {
+                sql.append("AND delay_length >= ? ");
+                params.add(query.getMinDelay());
+            }
+            if (query.getMaxDelay() != null) {
+                sql.append("AND delay_length <= ? ");
+                params.add(query.getMaxDelay());
+            }
+            sql.append(") ");
+        }
+
+        plan.where = sql.toString();
+        plan.orderBy = orderBy(query, dateColumn);
+        plan.limit = query.getLimit();
+        plan.includeDelays = query.isIncludeDelays();
+
+        // The bitmaps already counted what they cover, the rest is scaled by the statistics.
+        if (candidates != null) {
+            plan.estimatedRows = stats != null ?
+                    Math.round(candidates.getCardinality() * rowFraction(query)) : candidates.getCardinality();
+        } else {
+            plan.estimatedRows = estimateRows(query);
+        }
+
+        // The bitmaps answer the airline, airport, delay reason and cancelled/diverted filters exactly,
+        // anything else needs the table.
+        plan.bitmapOnly = candidates != null && fn == null && query.getStartDate() == null &&
+                query.getEndDate() == null && query.getMinDelay() == null && query.getMaxDelay() == null;
+        return plan;
+    }
+
+    private static String orderBy(FlightQuery query, String dateColumn) {
+        if (query.getSort() == null) {
+            return "";
+        }
+        String direction = query.isDescending() ? " DESC" : "";
+        switch (query.getSort()) {
+            case FlightQuery.SORT_DATE:
+                return "ORDER BY " + dateColumn + direction + ", f.scheduled_departure" + direction +
+                        ", f.flight_id" + direction + " ";
+            case FlightQuery.SORT_DELAY:
+                return "ORDER BY (SELECT COALESCE(SUM(dr.delay_length), 0) FROM Delay_Reason dr " +
+                        "WHERE dr.flight_id = f.flight_id)" + direction + ", f.flight_id" + direction + " ";
+            default:
+                return "ORDER BY f.flight_id" + direction + " ";
+        }
+    }
+
+    // The column as written in a filter, with a unary + to keep SQLite off its index when the filter
+    // keeps too much of the table for the index to pay.
+    private String indexed(String column, double fraction) {
+        return stats != null && fraction > FULL_SCAN_FRACTION ? "+" + column : column;
+    }
+
+    private double valueFraction(String column, Set<String> codes) {
+        return stats != null && codes != null ? stats.valueFraction(column, codes) : 1.0;
+    }
+
+    private double dateFraction(FlightQuery query) {
+        if (stats == null || (query.getStartDate() == null && query.getEndDate() == null)) {
+            return 1.0;
+        }
+        return stats.dateFraction(query.getStartDate() != null ? toDateKey(query.getStartDate()) : null,
+                query.getEndDate() != null ? toDateKey(query.getEndDate()) : null);
+    }
+
+    // Flights with a delay for any of the reasons.
+    private double reasonFraction(FlightQuery query) {
+        if (stats == null || query.getDelayReasons().isEmpty()) {
+            return 1.0;
+        }
+        return stats.valueFraction("reason", query.getDelayReasons());
+    }
+
+    private double flagFraction(FlightQuery query) {
+        if (stats == null) {
+            return 1.0;
+        }
+        double fraction = 1.0;
+        if (!query.isIncludeCancelled()) fraction *= 1.0 - stats.cancelledFraction();
+        if (!query.isIncludeDiverted()) fraction *= 1.0 - stats.divertedFraction();
+        return fraction;
+    }
+
+    // The filters the bitmaps can't answer: dates, flight number and delay length. Delay lengths are
+    // counted per delay row in the catalog, so with reasons they scale the reason fraction by the share
+    // of delayed flights the range keeps. Only called with statistics.
+    private double rowFraction(FlightQuery query) {
+        double fraction = dateFraction(query);
+        if (query.getFlightNumber() != null) {
+            long numbers = stats.getDistinctValues("Flight", "flight_number");
+            fraction /= Math.max(1, numbers);
+        }
+        if (query.getMinDelay() != null || query.getMaxDelay() != null) {
+            double delayed = stats.delayFraction(query.getMinDelay(), query.getMaxDelay());
+            fraction *= query.getDelayReasons().isEmpty() ? delayed :
+                    Math.min(1.0, delayed / Math.max(stats.delayedFlightFraction(), 1e-9));
+        }
+        return fraction;
+    }
+
+    // null when there are no terms, otherwise every code any term matches (possibly none).
+    private Set<String> resolve(Set<String> terms, boolean airport) {
+        if (terms.isEmpty()) {
+            return null;
+        }
+        Set<String> codes = new TreeSet<>();
+        for (String term : terms) {
+            codes.addAll(airport ? names.resolveAirport(term) : names.resolveAirline(term));
+        }
+        return codes;
+    }
+
+    // AND together the bitmaps for every filter that maps onto an indexed value, then take out cancelled
+    // and diverted flights if they're excluded. Returns null when no bitmap filter applies.
+    private RoaringBitmap bitmapCandidates(FlightQuery query, Set<String> airlineCodes, Set<String> originCodes,
+                                           Set<String> destCodes) {
+        if (bitmaps == null) {
+            return null;
+        }
+
+        RoaringBitmap result = null;
+        if (airlineCodes != null) {
+            result = intersect(result, bitmaps.getAny(BitmapIndex.FIELD_AIRLINE, airlineCodes));
+        }
+        if (originCodes != null) {
+            result = intersect(result, bitmaps.getAny(BitmapIndex.FIELD_ORIGIN, originCodes));
+        }
+        if (destCodes != null) {
+            result = intersect(result, bitmaps.getAny(BitmapIndex.FIELD_DESTINATION, destCodes));
+        }
+
+        // Only says the flight has some delay for these reasons, the min/max check stays in SQL.
+        if (!query.getDelayReasons().isEmpty()) {
+            result = intersect(result, bitmaps.getAny(BitmapIndex.FIELD_DELAY_REASON, query.getDelayReasons()));
+        }
+
+        if (!query.isIncludeCancelled() || !query.isIncludeDiverted()) {
+            if (result == null) {
+                result = bitmaps.getAllFlights();
+            }
+            if (!query.isIncludeCancelled()) {
+                result = result.andNot(bitmaps.get(BitmapIndex.FIELD_CANCELLED, "1"));
+            }
+            if (!query.isIncludeDiverted()) {
+                result = result.andNot(bitmaps.get(BitmapIndex.FIELD_DIVERTED, "1"));
+            }
+        }
+        return result;
+    }
+
+    private static RoaringBitmap intersect(RoaringBitmap current, RoaringBitmap next) {
+        return current == null ? next : current.and(next);
+    }
+
+    private static void appendInList(StringBuilder sql, List<Object> params, String column, Collection<String> values) {
+        sql.append("AND ").append(column).append(" IN (");
+        int i = 0;
+        for (String value : values) {
+            sql.append(i++ > 0 ? ", ?" : "?");
+            params.add(value);
+        }
+        sql.append(") ");
+    }
+
+    private static String joinIds(int[] ids) {
+        StringBuilder sb = new StringBuilder(ids.length * 7);
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isEmptySet(Set<String> values) {
+        return values != null && values.isEmpty();
+    }
+
+    // yyyymmdd, the same integer as the date_key column.
+    public static int toDateKey(LocalDate date) {
+        return date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+    }
+
+    // A compiled query: a WHERE fragment over Flight f with its parameters, plus ORDER BY and LIMIT.
+    public static class SqlPlan {
+        String where = "";
+        List<Object> params = new ArrayList<>();
+        String orderBy = "";
+        int limit;
+        boolean includeDelays = true;
+
+        // Rows the statistics (and bitmaps) expect the search to match, -1 when there's nothing to go on.
+        long estimatedRows = -1;
+
+        // Set when the search can't match anything, with the reason for the log.
+        String noMatches;
+
+        // Flights the bitmap indexes allow, null if no bitmap filter applies.
+        RoaringBitmap candidates;
+
+        // True when the candidates are exactly the matches.
+        boolean bitmapOnly;
+
+        // The same filters over one tier of the stratified sample, unsorted and unlimited.
+        SqlPlan restrictToSample(int sampleTier) {
+            SqlPlan sampled = new SqlPlan();
+            sampled.where = where + "AND f.flight_id IN (SELECT flight_id FROM Flight_Sample WHERE tier = ?) ";
+            sampled.params = new ArrayList<>(params);
+            sampled.params.add(sampleTier);
+            sampled.noMatches = noMatches;
+            sampled.candidates = candidates;
+            sampled.includeDelays = includeDelays;
+            return sampled;
+        }
+    }
+}
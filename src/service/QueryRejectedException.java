@@ -0,0 +1,27 @@
+package service;
+
+import java.sql.SQLException;
+
+// Thrown by the scheduler when a query's lane already has as many queries waiting as it allows.
+// Nothing was run, so the caller can safely try again shortly.
+public class QueryRejectedException extends SQLException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String lane;
+    private final int queued;
+
+    public QueryRejectedException(String lane, int queued) {
+        super(String.format("Too busy: %d %s queries are already waiting. Try again shortly.", queued, lane));
+        this.lane = lane;
+        this.queued = queued;
+    }
+
+    public String getLane() {
+        return lane;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+}
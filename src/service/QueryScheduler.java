@@ -0,0 +1,214 @@
+package service;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Admission control for the async service methods. Every query waits in one of three lanes:
+// interactive (searches, counts, previews), analytics (yearly and monthly aggregates) and export
+// (searches estimated above exportRows). At most slots queries run at once, and each lane has its
+// own limit below that, so a few big scans can't take every connection.
+//
+// When a slot frees up, lanes take turns by weighted fair queuing on run time: each lane's virtual
+// time advances by a query's time / the lane's weight, and the waiting lane furthest behind goes next.
+// A query is charged its predicted time when it starts (its estimated cost in rows times what a row
+// has been taking in that lane) and corrected to the real time when it finishes, so a cached answer
+// that "reads" a year of flights in a millisecond is charged a millisecond. Within a lane it's first
+// come, first served. A lane that already has maxQueued queries waiting rejects new ones straight away
+// with QueryRejectedException.
+public class QueryScheduler {
+
+    public static final String INTERACTIVE = "interactive";
+    public static final String ANALYTICS = "analytics";
+    public static final String EXPORT = "export";
+
+    // Waiters check for cancellation this often, so a timed out query leaves the queue promptly.
+    private static final long CANCEL_POLL_MILLIS = 50;
+
+    // Starting guess for a row's cost until a lane has timed some queries, and how fast it then follows them.
+    private static final double INITIAL_NANOS_PER_ROW = 1000;
+    private static final double NANOS_PER_ROW_SMOOTHING = 0.1;
+
+    private final int slots;
+    private final long exportRows;
+    private final Map<String, Lane> lanes = new LinkedHashMap<>();
+    private int running = 0;
+
+    // Virtual time of the query started last. A lane that was idle starts from here rather than from
+    // its old time, so it can't save up credit while it had nothing to run.
+    private double virtualTime = 0;
+
+    public QueryScheduler(int slots, long exportRows) {
+        this.slots = Math.max(1, slots);
+        this.exportRows = exportRows;
+        lanes.put(INTERACTIVE, new Lane(INTERACTIVE, this.slots, 8, 256));
+        lanes.put(ANALYTICS, new Lane(ANALYTICS, Math.max(1, (this.slots + 1) / 2), 3, 64));
+        lanes.put(EXPORT, new Lane(EXPORT, Math.max(1, this.slots / 4), 1, 16));
+    }
+
+    // Interactive queries estimated to read more than exportRows rows are queued as exports.
+    public String laneFor(String lane, long cost) {
+        return INTERACTIVE.equals(lane) && cost > exportRows ? EXPORT : lane;
+    }
+
+    // Blocks until the query may run and returns its ticket, which must be passed to release.
+    // Throws QueryRejectedException if the lane is full, or if the token is cancelled while waiting.
+    public synchronized Ticket acquire(String laneName, long cost, CancellationToken token) throws SQLException {
+        Lane lane = lanes.get(laneName);
+        if (lane == null) {
+            throw new IllegalArgumentException("Unknown lane: " + laneName);
+        }
+        if (lane.queue.size() >= lane.maxQueued) {
+            lane.rejected++;
+            throw new QueryRejectedException(lane.name, lane.queue.size());
+        }
+
+        Ticket ticket = new Ticket(lane, Math.max(1, cost));
+        if (lane.queue.isEmpty() && lane.running == 0) {
+            lane.virtualTime = Math.max(lane.virtualTime, virtualTime);
+        }
+        lane.queue.add(ticket);
+        dispatch();
+
+        try {
+            while (!ticket.admitted) {
+                if (token.isCancelled()) {
+                    lane.queue.remove(ticket);
+                    throw new SQLException("Query cancelled");
+                }
+                wait(CANCEL_POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!ticket.admitted) {
+                lane.queue.remove(ticket);
+                throw new SQLException("Interrupted while queued", e);
+            }
+        }
+        ticket.waitNanos = ticket.startedAt - ticket.queuedAt;
+        return ticket;
+    }
+
+    public synchronized void release(Ticket ticket) {
+        Lane lane = ticket.lane;
+        long runNanos = System.nanoTime() - ticket.startedAt;
+        lane.virtualTime += (runNanos - ticket.charged) / lane.weight;
+        lane.recentNanos += NANOS_PER_ROW_SMOOTHING * (runNanos - lane.recentNanos);
+        lane.recentRows += NANOS_PER_ROW_SMOOTHING * (ticket.cost - lane.recentRows);
+        lane.nanosPerRow = lane.recentNanos / lane.recentRows;
+        lane.running--;
+        lane.runNanos += runNanos;
+        running--;
+        dispatch();
+    }
+
+    // Starts queued queries while there are free slots, fairest lane first.
+    private void dispatch() {
+        boolean admittedAny = false;
+        while (running < slots) {
+            Lane next = null;
+            for (Lane lane : lanes.values()) {
+                if (lane.queue.isEmpty() || lane.running >= lane.maxRunning) continue;
+                if (next == null || lane.virtualTime < next.virtualTime) {
+                    next = lane;
+                }
+            }
+            if (next == null) break;
+
+            Ticket ticket = next.queue.poll();
+            ticket.charged = ticket.cost * next.nanosPerRow;
+            ticket.startedAt = System.nanoTime();
+            virtualTime = next.virtualTime;
+            next.virtualTime += ticket.charged / next.weight;
+            next.running++;
+            next.started++;
+            next.startedCost += ticket.cost;
+            running++;
+            ticket.admitted = true;
+            admittedAny = true;
+        }
+        if (admittedAny) {
+            notifyAll();
+        }
+    }
+
+    public synchronized int getQueued(String laneName) {
+        return lanes.get(laneName).queue.size();
+    }
+
+    public synchronized int getRunning(String laneName) {
+        return lanes.get(laneName).running;
+    }
+
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Query scheduler: %d of %d slots busy, export above %,d rows%n",
+                running, slots, exportRows));
+        report.append(String.format("%-12s %7s %6s %8s %6s %7s %10s %12s %10s %9s %9s%n",
+                "lane", "weight", "limit", "running", "queued", "max q", "started", "cost rows", "run ms",
+                "us/row", "rejected"));
+        for (Lane lane : lanes.values()) {
+            report.append(String.format("%-12s %7d %6d %8d %6d %7d %10d %12d %10d %9.3f %9d%n",
+                    lane.name, lane.weight, lane.maxRunning, lane.running, lane.queue.size(), lane.maxQueued,
+                    lane.started, lane.startedCost, lane.runNanos / 1_000_000, lane.nanosPerRow / 1000,
+                    lane.rejected));
+        }
+        return report.toString();
+    }
+
+    // A query's place in its lane, from acquire until release.
+    public static class Ticket {
+        private final Lane lane;
+        private final long cost;
+        private final long queuedAt = System.nanoTime();
+        private boolean admitted = false;
+        private long startedAt;
+        private double charged;
+        private long waitNanos;
+
+        Ticket(Lane lane, long cost) {
+            this.lane = lane;
+            this.cost = cost;
+        }
+
+        public String getLane() {
+            return lane.name;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+    }
+
+    private static class Lane {
+        final String name;
+        final int maxRunning;
+        final int weight;
+        final int maxQueued;
+        final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+        int running = 0;
+        double virtualTime = 0;
+        double nanosPerRow = INITIAL_NANOS_PER_ROW;
+
+        // Smoothed time and rows of recent queries, their ratio is nanosPerRow. Averaged separately so a
+        // run of one-row cache hits doesn't swamp the big queries that take the time.
+        double recentNanos = INITIAL_NANOS_PER_ROW;
+        double recentRows = 1;
+        long started = 0;
+        long startedCost = 0;
+        long runNanos = 0;
+        long rejected = 0;
+
+        Lane(String name, int maxRunning, int weight, int maxQueued) {
+            this.name = name;
+            this.maxRunning = maxRunning;
+            this.weight = weight;
+            this.maxQueued = maxQueued;
+        }
+    }
+}
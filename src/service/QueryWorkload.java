@@ -0,0 +1,256 @@
+package service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// The queries the service actually runs, for IndexAdvisor. Grouped by the same shape as QueryLog, each
+// shape keeps its run count, time and rows plus a few concrete statements (a reservoir sample) that can
+// be replayed. Saved to a side file on disconnect and added to on the next start, so a server's workload
+// builds up across restarts. Unlike QueryLog it's about which queries matter, not which were slow.
+public class QueryWorkload {
+
+    private static final int FILE_MAGIC = 0x464C574C; // "FLWL"
+
+    // Concrete statements kept per shape.
+    public static final int SAMPLES_PER_SHAPE = 5;
+
+    // Bitmap searches inline long id lists, past this a statement is counted but not kept.
+    private static final int MAX_SAMPLE_SQL = 256 * 1024;
+
+    private final Path file;
+    private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+
+    public QueryWorkload(String filePath) {
+        this.file = Paths.get(filePath);
+    }
+
+    public void record(String sql, List<?> params, long rows, long nanos) {
+        shapes.computeIfAbsent(QueryLog.normalise(sql), Shape::new).add(sql, params, rows, nanos);
+    }
+
+    // Busiest first, by total time.
+    public List<Shape> getShapes() {
+        List<Shape> sorted = new ArrayList<>(shapes.values());
+        sorted.sort((a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+        return sorted;
+    }
+
+    public boolean isEmpty() {
+        return shapes.isEmpty();
+    }
+
+    public void clear() {
+        shapes.clear();
+    }
+
+    // Adds what's on disk to what's been recorded. The workload doesn't depend on the data version,
+    // the same searches are worth indexing for after a re-import.
+    public void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                System.err.println("Ignoring query workload with unknown format: " + file);
+                return;
+            }
+            int shapeCount = in.readInt();
+            for (int i = 0; i < shapeCount; i++) {
+                Shape shape = shapes.computeIfAbsent(readString(in), Shape::new);
+                long count = in.readLong();
+                long totalNanos = in.readLong();
+                long totalRows = in.readLong();
+                int sampleCount = in.readInt();
+                List<Sample> samples = new ArrayList<>();
+                for (int j = 0; j < sampleCount; j++) {
+                    String sql = readString(in);
+                    int paramCount = in.readInt();
+                    List<Object> params = new ArrayList<>(paramCount);
+                    for (int k = 0; k < paramCount; k++) {
+                        params.add(readParam(in));
+                    }
+                    samples.add(new Sample(sql, params));
+                }
+                shape.merge(count, totalNanos, totalRows, samples);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read query workload: " + e.getMessage());
+        }
+    }
+
+    // Temp file then move, like the analytics cache.
+    public void save() {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            List<Shape> all = getShapes();
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(all.size());
+            for (Shape shape : all) {
+                synchronized (shape) {
+                    writeString(out, shape.shape);
+                    out.writeLong(shape.count);
+                    out.writeLong(shape.totalNanos);
+                    out.writeLong(shape.totalRows);
+                    out.writeInt(shape.samples.size());
+                    for (Sample sample : shape.samples) {
+                        writeString(out, sample.sql);
+                        out.writeInt(sample.params.size());
+                        for (Object param : sample.params) {
+                            writeParam(out, param);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write query workload: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not replace query workload: " + e.getMessage());
+        }
+    }
+
+    // writeUTF stops at 64 KB, too short for an inlined id list.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The service only binds strings and whole numbers, anything else is kept as its string form.
+    private static void writeParam(DataOutputStream out, Object param) throws IOException {
+        if (param == null) {
+            out.writeByte('N');
+        } else if (param instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((Integer) param);
+        } else if (param instanceof Long) {
+            out.writeByte('L');
+            out.writeLong((Long) param);
+        } else {
+            out.writeByte('S');
+            writeString(out, param.toString());
+        }
+    }
+
+    private static Object readParam(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case 'N':
+                return null;
+            case 'I':
+                return in.readInt();
+            case 'L':
+                return in.readLong();
+            case 'S':
+                return readString(in);
+            default:
+                throw new IOException("Unknown parameter type " + (char) type);
+        }
+    }
+
+    // One statement as it was run.
+    public static class Sample {
+        private final String sql;
+        private final List<Object> params;
+
+        Sample(String sql, List<Object> params) {
+            this.sql = sql;
+            this.params = Collections.unmodifiableList(params);
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public List<Object> getParams() {
+            return params;
+        }
+    }
+
+    // Totals and samples for one query shape.
+    public static class Shape {
+        private final String shape;
+        private long count = 0;
+        private long totalNanos = 0;
+        private long totalRows = 0;
+        private final List<Sample> samples = new ArrayList<>(SAMPLES_PER_SHAPE);
+
+        Shape(String shape) {
+            this.shape = shape;
+        }
+
+        synchronized void add(String sql, List<?> params, long rows, long nanos) {
+            count++;
+            totalNanos += nanos;
+            totalRows += rows;
+            if (sql.length() > MAX_SAMPLE_SQL) {
+                return;
+            }
+
+            // Reservoir sampling: every run so far has the same chance of being kept.
+            if (samples.size() < SAMPLES_PER_SHAPE) {
+                samples.add(new Sample(sql, new ArrayList<>(params)));
+            } else {
+                long slot = ThreadLocalRandom.current().nextLong(count);
+                if (slot < SAMPLES_PER_SHAPE) {
+                    samples.set((int) slot, new Sample(sql, new ArrayList<>(params)));
+                }
+            }
+        }
+
+        synchronized void merge(long count, long totalNanos, long totalRows, List<Sample> loaded) {
+            this.count += count;
+            this.totalNanos += totalNanos;
+            this.totalRows += totalRows;
+            for (Sample sample : loaded) {
+                if (samples.size() < SAMPLES_PER_SHAPE) {
+                    samples.add(sample);
+                }
+            }
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public synchronized double getAverageNanos() {
+            return count > 0 ? (double) totalNanos / count : 0;
+        }
+
+        public synchronized double getAverageRows() {
+            return count > 0 ? (double) totalRows / count : 0;
+        }
+
+        public synchronized List<Sample> getSamples() {
+            return new ArrayList<>(samples);
+        }
+    }
+}
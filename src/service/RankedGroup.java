@@ -0,0 +1,39 @@
+package service;
+
+import java.util.Comparator;
+
+// One entry of a top-K ranking: a flight, route, day or other group, the metric it was ranked on, and
+// how many flights it covers.
+public class RankedGroup {
+
+    // Higher metric first, then by name so ties rank the same way every run.
+    static final Comparator<RankedGroup> ORDER = Comparator.comparingDouble(RankedGroup::getValue)
+            .thenComparing(RankedGroup::getName, Comparator.reverseOrder());
+
+    private final String name;
+    private final double value;
+    private final long flights;
+
+    public RankedGroup(String name, double value, long flights) {
+        this.name = name;
+        this.value = value;
+        this.flights = flights;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public long getFlights() {
+        return flights;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %.2f (%d flights)", name, value, flights);
+    }
+}
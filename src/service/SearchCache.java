@@ -0,0 +1,192 @@
+package service;
+
+import flightModel.Flight;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// LRU cache of search results, bounded by an estimate of the bytes held rather than the number of searches.
+// The whole thing is thrown away when the importer writes a new data version.
+public class SearchCache {
+
+    // Rough sizes on a 64-bit JVM with compressed oops, close enough for budgeting.
+    private static final int FLIGHT_BYTES = 64;
+    private static final int LIST_BYTES = 40;
+    private static final int ARRAY_BYTES = 16;
+    private static final int DELAY_BYTES = 4;
+    private static final int ENTRY_BYTES = 64;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, CachedResult> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+    private String dataVersion;
+
+    // Stats.
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    public SearchCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Drops everything if the data version has moved on since the cache was filled.
+    public synchronized void checkDataVersion(String version) {
+        if (dataVersion != null && !dataVersion.equals(version)) {
+            if (!entries.isEmpty()) {
+                invalidations++;
+            }
+            entries.clear();
+            currentBytes = 0;
+        }
+        dataVersion = version;
+    }
+
+    // Returns a copy so callers can't mess with what's cached.
+    public synchronized List<Flight> get(String key) {
+        CachedResult cached = entries.get(key);
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new ArrayList<>(cached.flights);
+    }
+
+    // Whether get would hit, without counting towards the stats.
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    public synchronized void put(String key, List<Flight> flights) {
+        long size = ENTRY_BYTES + key.length() * 2L + estimateBytes(flights);
+
+        // Too big to ever fit, don't flush everything else out for it.
+        if (size > maxBytes) {
+            return;
+        }
+
+        CachedResult previous = entries.remove(key);
+        if (previous != null) {
+            currentBytes -= previous.bytes;
+        }
+
+        entries.put(key, new CachedResult(new ArrayList<>(flights), size));
+        currentBytes += size;
+
+        // Evict least recently used until we're back under budget.
+        Iterator<Map.Entry<String, CachedResult>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, CachedResult> eldest = it.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            currentBytes -= eldest.getValue().bytes;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, invalidations, entries.size(), currentBytes, maxBytes);
+    }
+
+    static long estimateBytes(List<Flight> flights) {
+        long total = LIST_BYTES + flights.size() * 4L;
+        for (Flight f : flights) {
+            total += estimateBytes(f);
+        }
+        return total;
+    }
+
+    static long estimateBytes(Flight f) {
+        // Airline and airports are shared objects from the registry, only the reference is the flight's.
+        // Derived strings aren't counted, most cached flights never have them worked out.
+        long total = FLIGHT_BYTES;
+        if (f.getDelayCount() > 0) {
+            total += ARRAY_BYTES + (long) f.getDelayCount() * DELAY_BYTES;
+        }
+        return total;
+    }
+
+    private static class CachedResult {
+        private final List<Flight> flights;
+        private final long bytes;
+
+        CachedResult(List<Flight> flights, long bytes) {
+            this.flights = flights;
+            this.bytes = bytes;
+        }
+    }
+
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long invalidations;
+        private final int entries;
+        private final long bytesUsed;
+        private final long maxBytes;
+
+        public Stats(long hits, long misses, long evictions, long invalidations,
+                     int entries, long bytesUsed, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.entries = entries;
+            this.bytesUsed = bytesUsed;
+            this.maxBytes = maxBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public long getBytesUsed() {
+            return bytesUsed;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public double getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Search cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, " +
+                            "%d invalidations, %d entries, %d/%d KB",
+                    hits, misses, getHitRate() * 100, evictions, invalidations,
+                    entries, bytesUsed / 1024, maxBytes / 1024);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package service;
+
+// How many flights a search matches, found without loading them. Exact counts come from the bitmap
+// indexes or a COUNT(*) with the search's filters, estimates from the 1% sample.
+public class SearchCount {
+
+    public static final String SOURCE_BITMAP = "bitmap";
+    public static final String SOURCE_SQL = "sql";
+    public static final String SOURCE_COLUMNAR = "columnar";
+    public static final String SOURCE_CACHE = "cache";
+    public static final String SOURCE_SAMPLE = "sample";
+
+    private final long count;
+    private final boolean exact;
+    private final String source;
+
+    public SearchCount(long count, boolean exact, String source) {
+        this.count = count;
+        this.exact = exact;
+        this.source = source;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public String toString() {
+        return (exact ? "" : "about ") + String.format("%,d", count);
+    }
+}
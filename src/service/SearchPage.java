@@ -0,0 +1,30 @@
+package service;
+
+import flightModel.Flight;
+
+import java.util.List;
+
+// One page of search results in flight_id order. Pass getLastFlightId() back to get the next page.
+public class SearchPage {
+
+    private final List<Flight> flights;
+    private final boolean hasMore;
+
+    public SearchPage(List<Flight> flights, boolean hasMore) {
+        this.flights = flights;
+        this.hasMore = hasMore;
+    }
+
+    public List<Flight> getFlights() {
+        return flights;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    // 0 for an empty page.
+    public int getLastFlightId() {
+        return flights.isEmpty() ? 0 : flights.get(flights.size() - 1).getFlightId();
+    }
+}
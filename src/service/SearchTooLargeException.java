@@ -0,0 +1,28 @@
+package service;
+
+import java.sql.SQLException;
+
+// Thrown instead of loading a search result bigger than the service's row limit.
+// The caller can narrow the search or fetch it a page at a time with searchFlightsPage.
+public class SearchTooLargeException extends SQLException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long matchCount;
+    private final long limit;
+
+    public SearchTooLargeException(long matchCount, long limit) {
+        super(String.format("Search matches %,d flights, more than the limit of %,d. " +
+                "Narrow the search or load it a page at a time.", matchCount, limit));
+        this.matchCount = matchCount;
+        this.limit = limit;
+    }
+
+    public long getMatchCount() {
+        return matchCount;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+}
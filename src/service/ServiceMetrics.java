@@ -0,0 +1,169 @@
+package service;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Per-method metrics for FlightDataService. Each method gets its MethodMetrics the first time it's
+// recorded, and once the registry is registered with JMX every method shows up as its own MBean
+// under flights:type=ServiceMetrics. A text report of the same figures can be dumped on a timer.
+public class ServiceMetrics implements ServiceMetricsMBean {
+
+    private static final String JMX_DOMAIN = "flights";
+
+    private final Map<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+    private final long startMillis = System.currentTimeMillis();
+    private MBeanServer mbeanServer;
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+    private ScheduledExecutorService dumper;
+
+    public MethodMetrics get(String method) {
+        MethodMetrics metrics = methods.get(method);
+        if (metrics == null) {
+            MethodMetrics created = new MethodMetrics(method);
+            metrics = methods.putIfAbsent(method, created);
+            if (metrics == null) {
+                metrics = created;
+                registerMethod(created);
+            }
+        }
+        return metrics;
+    }
+
+    public void recordSuccess(String method, long nanos, long rows, long bytes) {
+        get(method).recordSuccess(nanos, rows, bytes);
+    }
+
+    public void recordError(String method, long nanos) {
+        get(method).recordError(nanos);
+    }
+
+    public void recordCancelled(String method, long nanos) {
+        get(method).recordCancelled(nanos);
+    }
+
+    public void recordTimeout(String method) {
+        get(method).recordTimeout();
+    }
+
+    public void recordQueueWait(String method, long nanos) {
+        get(method).recordQueueWait(nanos);
+    }
+
+    public void recordRejected(String method) {
+        get(method).recordRejected();
+    }
+
+    @Override
+    public String[] getMethodNames() {
+        return new TreeMap<>(methods).keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Service metrics after %d s%n", (System.currentTimeMillis() - startMillis) / 1000));
+        report.append(String.format("%-34s %8s %9s %9s %9s %9s %9s %9s %9s %6s %6s %6s %6s %10s %9s%n",
+                "method", "calls", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms", "wait p50", "wait p99",
+                "errors", "cancel", "t/out", "reject", "rows", "KB"));
+        for (MethodMetrics m : new TreeMap<>(methods).values()) {
+            report.append(String.format("%-34s %8d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f " +
+                            "%6d %6d %6d %6d %10d %9d%n",
+                    m.getName(), m.getCalls(), m.getMeanMillis(), m.getP50Millis(), m.getP90Millis(),
+                    m.getP99Millis(), m.getMaxMillis(), m.getQueueP50Millis(), m.getQueueP99Millis(),
+                    m.getErrors(), m.getCancelled(), m.getTimeouts(), m.getRejected(), m.getRows(),
+                    m.getBytes() / 1024));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (MethodMetrics m : methods.values()) {
+            m.reset();
+        }
+    }
+
+    // Registers the registry and every method seen so far (later ones register as they appear).
+    // A registry left over from an earlier service in the same JVM is replaced.
+    public synchronized void registerMBeans() {
+        if (mbeanServer != null) {
+            return;
+        }
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(this, new ObjectName(JMX_DOMAIN + ":type=ServiceMetrics"));
+        } catch (JMException e) {
+            System.err.println("Could not register service metrics with JMX: " + e.getMessage());
+        }
+        for (MethodMetrics metrics : methods.values()) {
+            registerMethod(metrics);
+        }
+    }
+
+    public synchronized void unregisterMBeans() {
+        if (mbeanServer == null) {
+            return;
+        }
+        for (ObjectName name : registeredNames) {
+            try {
+                if (mbeanServer.isRegistered(name)) {
+                    mbeanServer.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                System.err.println("Could not unregister " + name + ": " + e.getMessage());
+            }
+        }
+        registeredNames.clear();
+        mbeanServer = null;
+    }
+
+    private synchronized void registerMethod(MethodMetrics metrics) {
+        if (mbeanServer == null) {
+            return;
+        }
+        try {
+            register(metrics, new ObjectName(JMX_DOMAIN + ":type=ServiceMetrics,method=" +
+                    ObjectName.quote(metrics.getName())));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics for " + metrics.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void register(Object mbean, ObjectName name) throws JMException {
+        if (mbeanServer.isRegistered(name)) {
+            mbeanServer.unregisterMBean(name);
+        }
+        mbeanServer.registerMBean(mbean, name);
+        registeredNames.add(name);
+    }
+
+    // Prints the report every period seconds on a daemon thread, until stopDump.
+    public synchronized void startDump(long periodSeconds) {
+        if (dumper != null || periodSeconds <= 0) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "flight-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> System.out.println(getReport()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+}
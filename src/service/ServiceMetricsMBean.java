@@ -0,0 +1,11 @@
+package service;
+
+// JMX view of the whole registry, registered as flights:type=ServiceMetrics.
+public interface ServiceMetricsMBean {
+
+    String[] getMethodNames();
+
+    String getReport();
+
+    void reset();
+}
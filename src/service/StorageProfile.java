@@ -0,0 +1,97 @@
+package service;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Named SQLite settings applied to every connection the service opens, picked with
+// -Dflights.storageProfile=default|interactive|analytics. Connections get driver defaults unless a tuned
+// profile is asked for. The service never writes to flights.db (the importer has its own connection), so
+// both tuned profiles open it query_only. Page cache sizes are per connection, so the pool size multiplies
+// them; the mmap window maps the same file pages for every connection. No profile uses SQLite's shared
+// cache mode: SQLite discourages it, and it brings table-level SQLITE_LOCKED between pooled connections.
+// BenchmarkMain storage runs the same queries under each profile to compare.
+public final class StorageProfile {
+
+    // Driver defaults, nothing set.
+    public static final String DEFAULT = "default";
+
+    // The desktop app and HTTP server: modest caches so a pool of connections stays small.
+    public static final String INTERACTIVE = "interactive";
+
+    // Long scans over the whole table: a large mapped window, which the pool's connections share through
+    // the OS page cache, and a bigger page cache of their own.
+    public static final String ANALYTICS = "analytics";
+
+    private final String name;
+    private final Map<String, String> pragmas;
+
+    private StorageProfile(String name, Map<String, String> pragmas) {
+        this.name = name;
+        this.pragmas = Collections.unmodifiableMap(pragmas);
+    }
+
+    public static StorageProfile forName(String name) {
+        Map<String, String> pragmas = new LinkedHashMap<>();
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case DEFAULT:
+                return new StorageProfile(DEFAULT, pragmas);
+            case INTERACTIVE:
+                pragmas.put("query_only", "1");
+                pragmas.put("cache_size", "-16384"); // 16 MB
+                pragmas.put("mmap_size", String.valueOf(64L * 1024 * 1024));
+                pragmas.put("temp_store", "MEMORY");
+                return new StorageProfile(INTERACTIVE, pragmas);
+            case ANALYTICS:
+                pragmas.put("query_only", "1");
+                pragmas.put("cache_size", "-65536"); // 64 MB
+                pragmas.put("mmap_size", String.valueOf(1024L * 1024 * 1024));
+                pragmas.put("temp_store", "MEMORY");
+                pragmas.put("threads", "4"); // helper threads for large sorts
+                return new StorageProfile(ANALYTICS, pragmas);
+            default:
+                throw new IllegalArgumentException("Unknown storage profile: " + name);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getPragmas() {
+        return pragmas;
+    }
+
+    // Opens a connection with the profile applied, PRAGMA statements run straight after opening.
+    public Connection open(String url) throws SQLException {
+        Connection c = DriverManager.getConnection(url);
+        try (Statement stmt = c.createStatement()) {
+            for (Map.Entry<String, String> pragma : pragmas.entrySet()) {
+                stmt.execute("PRAGMA " + pragma.getKey() + " = " + pragma.getValue());
+            }
+        } catch (SQLException e) {
+            c.close();
+            throw e;
+        }
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        if (pragmas.isEmpty()) {
+            return name + " (driver defaults)";
+        }
+        StringBuilder sb = new StringBuilder(name).append(" (");
+        int i = 0;
+        for (Map.Entry<String, String> pragma : pragmas.entrySet()) {
+            if (i++ > 0) sb.append(", ");
+            sb.append(pragma.getKey()).append('=').append(pragma.getValue());
+        }
+        return sb.append(')').toString();
+    }
+}
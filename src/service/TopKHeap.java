@@ -0,0 +1,61 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Keeps the k best items seen so far, best by the comparator's order (greatest first). A min-heap of
+// size k: the root is the weakest item kept, so each offer is one comparison against it and, if the new
+// item wins, a log k swap. Memory stays at k items however many are offered.
+public class TopKHeap<T> {
+
+    // The queue grows past this as items come in, so a large k costs nothing until it's filled.
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int k;
+    private final Comparator<T> order;
+    private final PriorityQueue<T> heap;
+
+    public TopKHeap(int k, Comparator<T> order) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.order = order;
+        this.heap = new PriorityQueue<>(Math.min(k, INITIAL_CAPACITY), order);
+    }
+
+    // True if the item was kept.
+    public boolean offer(T item) {
+        if (heap.size() < k) {
+            heap.add(item);
+            return true;
+        }
+        if (order.compare(item, heap.peek()) <= 0) {
+            return false;
+        }
+        heap.poll();
+        heap.add(item);
+        return true;
+    }
+
+    // Folds another heap in, e.g. one per scan partition.
+    public void merge(TopKHeap<T> other) {
+        for (T item : other.heap) {
+            offer(item);
+        }
+    }
+
+    public int size() {
+        return heap.size();
+    }
+
+    // Best first.
+    public List<T> toList() {
+        List<T> items = new ArrayList<>(heap);
+        items.sort(Collections.reverseOrder(order));
+        return items;
+    }
+}
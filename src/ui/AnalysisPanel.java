@@ -15,6 +15,9 @@ import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.data.time.Month;
 import org.jfree.data.time.TimeSeries;
 import org.jfree.data.time.TimeSeriesCollection;
+import service.DelayDistribution;
+import service.Estimate;
+import service.MonthlyDelaySeries;
 
 import javax.swing.*;
 import javax.swing.border.CompoundBorder;
@@ -22,8 +25,10 @@ import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -128,7 +133,8 @@ public class AnalysisPanel extends JPanel {
                 "Use the Analysis menu or toolbar buttons to generate reports:\n\n" +
                         "• Airline Delays by Year - Compare which airlines have the most delays\n" +
                         "• Airport Delays by Year - See which airports experience the most delays\n" +
-                        "• Airport Delays Over Time - Track how delays change throughout the year\n\n"
+                        "• Airport Delays Over Time - Track how delays change throughout the year\n" +
+                        "• Delay Percentiles - See the p50 to p99 delays, not just the average\n\n"
         );
         instructionText.setEditable(false);
         instructionText.setLineWrap(true);
@@ -251,6 +257,22 @@ public class AnalysisPanel extends JPanel {
     }
 
 
+    // Labels the chart on screen as a sample estimate and lists the confidence intervals above the summary.
+    public void markApproximate(Map<String, Estimate> estimates, int samplePercent) {
+        chartTitleLabel.setText("Approximate: " + chartTitleLabel.getText());
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("Estimated from a ").append(samplePercent)
+                .append("% sample, exact figures are still loading.\n95% confidence intervals:\n");
+        for (Map.Entry<String, Estimate> entry : new TreeMap<>(estimates).entrySet()) {
+            summary.append("• ").append(entry.getKey()).append(": ")
+                    .append(entry.getValue()).append(" minutes\n");
+        }
+        summary.append("\n").append(summaryTextArea.getText());
+        summaryTextArea.setText(summary.toString());
+        summaryTextArea.setCaretPosition(0);
+    }
+
     public void showAirportDelayChart(Map<String, Double> data, int year) {
         currentChart = "airport";
 
@@ -486,4 +508,146 @@ public class AnalysisPanel extends JPanel {
         revalidate();
         repaint();
     }
-}
\ No newline at end of file
+
+
+    // Time series with an airport picker above it. Every airport's series is already in memory,
+    // so switching just redraws.
+    public void showAirportTimeSeries(MonthlyDelaySeries series, List<String> airportOptions, String selectedAirport) {
+        JComboBox<String> picker = new JComboBox<>(airportOptions.toArray(new String[0]));
+        picker.setSelectedItem(selectedAirport);
+        picker.setFont(normalFont);
+        picker.addActionListener(e -> showSelectedSeries(series, picker));
+        showSelectedSeries(series, picker);
+    }
+
+    private void showSelectedSeries(MonthlyDelaySeries series, JComboBox<String> picker) {
+        String selected = (String) picker.getSelectedItem();
+        if (selected == null || !selected.contains(" - ")) {
+            return;
+        }
+        String airportCode = selected.substring(0, selected.indexOf(" - "));
+        String airportName = selected.substring(selected.indexOf(" - ") + 3);
+
+        showTimeSeriesChart(series.getSeries(airportCode), airportName);
+
+        // Swap the plain title for title plus picker.
+        JPanel header = new JPanel(new BorderLayout(10, 0));
+        header.setBackground(bgColour);
+        chartPanel.remove(chartTitleLabel);
+        header.add(chartTitleLabel, BorderLayout.CENTER);
+        header.add(picker, BorderLayout.EAST);
+        chartPanel.add(header, BorderLayout.NORTH);
+        revalidate();
+        repaint();
+    }
+
+    // Grouped bars of p50/p90/p95/p99 for the groups with the worst p95 (or every month, in order),
+    // with the delay histogram for the whole year in the summary.
+    public void showDelayPercentileChart(Map<String, DelayDistribution> data, String groupLabel, int year) {
+        currentChart = "percentiles";
+
+        double[] percentiles = {50, 90, 95, 99};
+        boolean byMonth = "Month".equals(groupLabel);
+
+        // Months in calendar order, everything else worst p95 first.
+        List<Map.Entry<String, DelayDistribution>> groups = new ArrayList<>(data.entrySet());
+        if (byMonth) {
+            groups.sort(Map.Entry.comparingByKey());
+        } else {
+            groups.sort((a, b) -> Double.compare(b.getValue().getPercentile(95), a.getValue().getPercentile(95)));
+        }
+        int shown = byMonth ? groups.size() : Math.min(10, groups.size());
+
+        DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+        for (int i = 0; i < shown; i++) {
+            double[] values = groups.get(i).getValue().getPercentiles(percentiles);
+            for (int j = 0; j < percentiles.length; j++) {
+                dataset.addValue(values[j], "p" + (int) percentiles[j], groups.get(i).getKey());
+            }
+        }
+
+        JFreeChart chart = ChartFactory.createBarChart(
+                null,
+                groupLabel,
+                "Delay (minutes)",
+                dataset,
+                byMonth ? PlotOrientation.VERTICAL : PlotOrientation.HORIZONTAL,
+                true,
+                true,
+                false
+        );
+
+        // Style the chart.
+        chart.setBackgroundPaint(bgColour);
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setRangeGridlinePaint(new Color(230, 230, 230));
+
+        // Blue for the median through to red for p99.
+        BarRenderer renderer = (BarRenderer) plot.getRenderer();
+        renderer.setBarPainter(new StandardBarPainter());
+        renderer.setShadowVisible(false);
+        renderer.setSeriesPaint(0, blueColour);
+        renderer.setSeriesPaint(1, new Color(243, 156, 18));
+        renderer.setSeriesPaint(2, new Color(230, 126, 34));
+        renderer.setSeriesPaint(3, redColour);
+
+        CategoryAxis xAxis = plot.getDomainAxis();
+        xAxis.setTickLabelFont(normalFont);
+        xAxis.setLabelFont(headerFont);
+        plot.getRangeAxis().setTickLabelFont(normalFont);
+        plot.getRangeAxis().setLabelFont(headerFont);
+
+        ChartPanel chartComponent = new ChartPanel(chart);
+        chartComponent.setPreferredSize(new Dimension(600, 400));
+        chartComponent.setBackground(bgColour);
+
+        // Update UI.
+        chartPanel.removeAll();
+        chartTitleLabel.setText("Delay Percentiles by " + groupLabel + " in " + year);
+        chartPanel.add(chartTitleLabel, BorderLayout.NORTH);
+        chartPanel.add(chartComponent, BorderLayout.CENTER);
+
+        // Create summary.
+        StringBuilder summary = new StringBuilder();
+        summary.append("Delay Percentiles by ").append(groupLabel).append(" in ").append(year).append("\n\n");
+
+        if (data.isEmpty()) {
+            summary.append("No delay data available for ").append(year).append(".");
+        } else {
+            summary.append("p95 means 95% of delays were shorter than this. Percentiles are estimated ")
+                    .append("and may be off by a minute or two on large groups.\n\n");
+
+            summary.append(byMonth ? "Months:\n" : "Worst p95 delays:\n");
+            for (int i = 0; i < Math.min(byMonth ? groups.size() : 5, groups.size()); i++) {
+                DelayDistribution d = groups.get(i).getValue();
+                double[] values = d.getPercentiles(percentiles);
+                summary.append("• ").append(groups.get(i).getKey())
+                        .append(String.format(": avg %.1f, p50 %.0f, p90 %.0f, p95 %.0f, p99 %.0f mins (%d delays)",
+                                d.getAverage(), values[0], values[1], values[2], values[3], d.getCount()))
+                        .append("\n");
+            }
+
+            // Histogram over every group.
+            DelayDistribution overall = new DelayDistribution();
+            for (DelayDistribution d : data.values()) {
+                overall.merge(d);
+            }
+            String[] labels = DelayDistribution.getBucketLabels();
+            long[] counts = overall.getBucketCounts();
+
+            summary.append("\nAll delays (minutes):\n");
+            for (int i = 0; i < counts.length; i++) {
+                double share = counts[i] * 100.0 / overall.getCount();
+                summary.append(String.format("%-8s %6.1f%%  ", labels[i], share))
+                        .append("#".repeat((int) Math.round(share / 2)))
+                        .append("\n");
+            }
+        }
+
+        summaryTextArea.setText(summary.toString());
+        revalidate();
+        repaint();
+    }
+}
@@ -356,6 +356,12 @@ public class FlightDetailPanel extends JPanel {
             divertedLabel.setForeground(divertedColor);
             divertedLabel.setBorder(new EmptyBorder(5, 5, 5, 5));
             delayReasonList.add(divertedLabel);
+        } else if (!flight.hasDelayBreakdown()) {
+            // Reasons are still being fetched, FlightApp shows the flight again once they arrive.
+            JLabel loadingLabel = new JLabel("Loading delay reasons...");
+            loadingLabel.setFont(valueFont);
+            loadingLabel.setBorder(new EmptyBorder(5, 5, 5, 5));
+            delayReasonList.add(loadingLabel);
         } else if (flight.getDelays().isEmpty()) {
             // No specific reasons.
             if (flight.getDelayMinutes() > 15) {
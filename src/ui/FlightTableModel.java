@@ -5,6 +5,7 @@ import flightModel.Flight;
 import javax.swing.table.AbstractTableModel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 
 public class FlightTableModel extends AbstractTableModel {
@@ -29,6 +30,19 @@ public class FlightTableModel extends AbstractTableModel {
     }
 
 
+    // Swaps in copies of the listed flights carrying their delay reasons. No column shows them, so
+    // the table doesn't need repainting.
+    public void addDelayBreakdowns(Map<Integer, List<Flight.Delay>> delays) {
+        for (int i = 0; i < flights.size(); i++) {
+            Flight flight = flights.get(i);
+            List<Flight.Delay> flightDelays = delays.get(flight.getFlightId());
+            if (flightDelays != null && !flight.hasDelayBreakdown()) {
+                flights.set(i, flight.withDelays(flightDelays));
+            }
+        }
+    }
+
+
     public Flight getFlightAt(int rowIndex) {
         if (rowIndex >= 0 && rowIndex < flights.size()) {
             return flights.get(rowIndex);
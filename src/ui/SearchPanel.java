@@ -1,5 +1,7 @@
 package ui;
 
+import service.FlightQuery;
+
 import javax.swing.*;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
@@ -399,4 +401,19 @@ public class SearchPanel extends JPanel {
     public boolean includeDiverted() {
         return includeDivertedCheckbox.isSelected();
     }
-}
\ No newline at end of file
+
+    // Everything on the form as one query, including the cancelled/diverted checkboxes.
+    public FlightQuery buildQuery() {
+        return FlightQuery.builder()
+                .airline(getAirline())
+                .flightNumber(getFlightNumber())
+                .origin(getOrigin())
+                .destination(getDestination())
+                .dateRange(getStartDate(), getEndDate())
+                .delayBetween(getMinDelay(), getMaxDelay())
+                .delayReason(getDelayReason())
+                .includeCancelled(includeCancelled())
+                .includeDiverted(includeDiverted())
+                .build();
+    }
+}
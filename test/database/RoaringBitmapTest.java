@@ -0,0 +1,198 @@
+package database;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoaringBitmapTest {
+
+    @Test
+    void containsOnlyWhatWasAdded() {
+        RoaringBitmap bitmap = of(0, 65535, 65536, 1_000_000, Integer.MAX_VALUE);
+        assertTrue(bitmap.contains(0));
+        assertTrue(bitmap.contains(65535));
+        assertTrue(bitmap.contains(65536));
+        assertTrue(bitmap.contains(Integer.MAX_VALUE));
+        assertFalse(bitmap.contains(1));
+        assertFalse(bitmap.contains(65537));
+        assertFalse(bitmap.contains(Integer.MAX_VALUE - 1));
+        assertEquals(5, bitmap.getCardinality());
+    }
+
+    @Test
+    void emptyBitmap() {
+        RoaringBitmap empty = new RoaringBitmap();
+        assertTrue(empty.isEmpty());
+        assertEquals(0, empty.getCardinality());
+        assertArrayEquals(new int[0], empty.toArray());
+        assertFalse(empty.contains(0));
+        assertTrue(empty.and(of(1, 2)).isEmpty());
+        assertArrayEquals(new int[]{1, 2}, empty.or(of(1, 2)).toArray());
+    }
+
+    @Test
+    void duplicatesCountOnce() {
+        RoaringBitmap bitmap = of(7, 7, 3, 7, 3);
+        assertEquals(2, bitmap.getCardinality());
+        assertArrayEquals(new int[]{3, 7}, bitmap.toArray());
+    }
+
+    @Test
+    void toArrayIsAscendingWhateverTheInsertOrder() {
+        RoaringBitmap bitmap = of(200_000, 5, 70_000, 1, 65536, 3);
+        assertArrayEquals(new int[]{1, 3, 5, 65536, 70_000, 200_000}, bitmap.toArray());
+    }
+
+    // A chunk stays a sorted array up to 4096 values and turns into a bitmap on the next one. The
+    // serialized form shows which: an array is 2 bytes a value, a bitmap always 8 KB plus a count.
+    @Test
+    void switchesToBitmapContainerAfter4096Values() throws IOException {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int i = 0; i < 4096; i++) {
+            bitmap.add(i * 16);
+        }
+        int header = 4 + 2 + 1; // container count, key, container type
+        assertEquals(header + 2 + 4096 * 2, serialize(bitmap).length);
+
+        bitmap.add(1);
+        assertEquals(header + 1024 * 8 + 4, serialize(bitmap).length);
+        assertEquals(4097, bitmap.getCardinality());
+        assertTrue(bitmap.contains(1));
+        assertTrue(bitmap.contains(4095 * 16));
+        assertFalse(bitmap.contains(2));
+    }
+
+    @Test
+    void addingAnExistingValueToAFullArrayKeepsIt() throws IOException {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int i = 0; i < 4096; i++) {
+            bitmap.add(i * 2);
+        }
+        bitmap.add(0);
+        bitmap.add(4094 * 2);
+        assertEquals(4096, bitmap.getCardinality());
+        assertEquals(4 + 2 + 1 + 2 + 4096 * 2, serialize(bitmap).length);
+    }
+
+    // Intersecting two dense chunks down to a few values gives an array container again.
+    @Test
+    void andOfBitmapContainersShrinksBackToAnArray() throws IOException {
+        RoaringBitmap evens = new RoaringBitmap();
+        RoaringBitmap multiplesOfThree = new RoaringBitmap();
+        for (int i = 0; i < 65536; i++) {
+            if (i % 2 == 0) evens.add(i);
+            if (i % 3 == 0) multiplesOfThree.add(i);
+        }
+        RoaringBitmap small = evens.and(of(4, 6, 7, 100_000));
+        assertArrayEquals(new int[]{4, 6}, small.toArray());
+        assertEquals(4 + 2 + 1 + 2 + 2 * 2, serialize(small).length);
+
+        RoaringBitmap sixes = evens.and(multiplesOfThree);
+        assertEquals(65536 / 6 + 1, sixes.getCardinality());
+        assertTrue(sixes.contains(65532));
+        assertFalse(sixes.contains(65534));
+    }
+
+    @Test
+    void andNotThatEmptiesAChunkDropsIt() {
+        RoaringBitmap bitmap = of(1, 2, 70_000);
+        RoaringBitmap rest = bitmap.andNot(of(1, 2));
+        assertArrayEquals(new int[]{70_000}, rest.toArray());
+        assertTrue(bitmap.andNot(bitmap).isEmpty());
+    }
+
+    @Test
+    void operationsMatchASortedSet() {
+        Random random = new Random(29);
+        for (int round = 0; round < 20; round++) {
+            TreeSet<Integer> a = new TreeSet<>();
+            TreeSet<Integer> b = new TreeSet<>();
+            RoaringBitmap bitmapA = randomBitmap(random, a);
+            RoaringBitmap bitmapB = randomBitmap(random, b);
+
+            TreeSet<Integer> and = new TreeSet<>(a);
+            and.retainAll(b);
+            TreeSet<Integer> or = new TreeSet<>(a);
+            or.addAll(b);
+            TreeSet<Integer> andNot = new TreeSet<>(a);
+            andNot.removeAll(b);
+
+            assertArrayEquals(toArray(a), bitmapA.toArray());
+            assertArrayEquals(toArray(and), bitmapA.and(bitmapB).toArray());
+            assertArrayEquals(toArray(or), bitmapA.or(bitmapB).toArray());
+            assertArrayEquals(toArray(andNot), bitmapA.andNot(bitmapB).toArray());
+            assertEquals(and.size(), bitmapA.and(bitmapB).getCardinality());
+        }
+    }
+
+    @Test
+    void operationsLeaveTheirInputsAlone() {
+        RoaringBitmap a = of(1, 2, 3, 70_000);
+        RoaringBitmap b = of(2, 3, 4);
+        a.and(b);
+        a.or(b);
+        a.andNot(b);
+        RoaringBitmap union = a.or(b);
+        union.add(5);
+        assertArrayEquals(new int[]{1, 2, 3, 70_000}, a.toArray());
+        assertArrayEquals(new int[]{2, 3, 4}, b.toArray());
+    }
+
+    @Test
+    void serializeRoundTripsSparseAndDenseChunks() throws IOException {
+        TreeSet<Integer> expected = new TreeSet<>();
+        RoaringBitmap bitmap = randomBitmap(new Random(7), expected);
+        RoaringBitmap copy = RoaringBitmap.deserialize(
+                new DataInputStream(new ByteArrayInputStream(serialize(bitmap))));
+        assertArrayEquals(toArray(expected), copy.toArray());
+        assertEquals(bitmap.getCardinality(), copy.getCardinality());
+
+        // The copy still takes adds in either container type.
+        copy.add(3);
+        copy.add(65536 + 3);
+        assertTrue(copy.contains(3));
+        assertTrue(copy.contains(65536 + 3));
+    }
+
+    // A few chunks, some sparse and some dense enough to be bitmaps.
+    private static RoaringBitmap randomBitmap(Random random, TreeSet<Integer> values) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int chunk = 0; chunk < 4; chunk++) {
+            int n = random.nextBoolean() ? random.nextInt(100) : 3000 + random.nextInt(20_000);
+            for (int i = 0; i < n; i++) {
+                int value = chunk * 65536 + random.nextInt(65536);
+                values.add(value);
+                bitmap.add(value);
+            }
+        }
+        return bitmap;
+    }
+
+    private static RoaringBitmap of(int... values) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int value : values) {
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    private static int[] toArray(TreeSet<Integer> values) {
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static byte[] serialize(RoaringBitmap bitmap) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            bitmap.serialize(out);
+        }
+        return bytes.toByteArray();
+    }
+}
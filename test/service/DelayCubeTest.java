@@ -0,0 +1,210 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DelayCubeTest {
+
+    private static final Map<String, String> NO_NAMES = Collections.emptyMap();
+
+    @Test
+    void rollsUpCountSumAndSquares() {
+        DelayCube.Builder builder = new DelayCube.Builder();
+        builder.add("01062023", "AA", "JFK", "LAX", "WEATHER", DelayCube.STATUS_DELAYED, 30);
+        builder.add("02062023", "AA", "JFK", "SFO", "CARRIER", DelayCube.STATUS_DELAYED, 50);
+        builder.add("03062023", "AA", "JFK", "LAX", null, DelayCube.STATUS_ON_TIME, 0);
+        builder.add("03062023", "UA", "ORD", "LAX", "NAS", DelayCube.STATUS_DELAYED, 20);
+        DelayCube cube = builder.build("v1", NO_NAMES, NO_NAMES);
+
+        Map<String, DelayCube.Cell> byAirline = cube.query().groupBy(DelayCube.DIM_AIRLINE).run();
+        DelayCube.Cell aa = byAirline.get("AA");
+        assertEquals(3, aa.getCount());
+        assertEquals(80, aa.getSum());
+        assertEquals(30 * 30 + 50 * 50, aa.getSumOfSquares());
+        assertEquals(80 / 3.0, aa.getAverage(), 1e-9);
+        assertEquals(Math.sqrt(3400 / 3.0 - (80 / 3.0) * (80 / 3.0)), aa.getStdDev(), 1e-9);
+        assertEquals(1, byAirline.get("UA").getCount());
+
+        // A missing reason is stored as NO_DELAY, and the empty grouping is one total.
+        assertEquals(1, cube.query().where(DelayCube.DIM_REASON, DelayCube.NO_DELAY).run().get("").getCount());
+        assertEquals(4, cube.query().run().get("").getCount());
+    }
+
+    @Test
+    void yearStopsAtTheYearEdges() {
+        DelayCube cube = monthsAroundNewYear();
+        assertEquals(months("01/2022", 1, "12/2022", 2), byMonth(cube.query().year(2022)));
+        assertEquals(months("12/2021", 4), byMonth(cube.query().year(2021)));
+        assertEquals(months("01/2023", 8), byMonth(cube.query().year(2023)));
+        assertTrue(cube.query().year(2024).run().isEmpty());
+    }
+
+    @Test
+    void monthRangeAcrossNewYear() {
+        DelayCube cube = monthsAroundNewYear();
+        assertEquals(months("12/2021", 4, "01/2022", 1),
+                byMonth(cube.query().months(2021, 12, 2022, 1)));
+        assertEquals(months("12/2022", 2, "01/2023", 8),
+                byMonth(cube.query().months(2022, 12, 2023, 1)));
+
+        // Single-month ranges at both ends of a year.
+        assertEquals(months("12/2022", 2), byMonth(cube.query().months(2022, 12, 2022, 12)));
+        assertEquals(months("01/2022", 1), byMonth(cube.query().months(2022, 1, 2022, 1)));
+    }
+
+    @Test
+    void emptyAndInvertedRanges() {
+        DelayCube cube = monthsAroundNewYear();
+        assertTrue(cube.query().months(2023, 1, 2022, 12).run().isEmpty());
+        assertTrue(cube.query().year(2022).year(2023).run().isEmpty(), "ranges intersect");
+        assertEquals(15, cube.query().months(1900, 1, 3000, 12).run().get("").getCount());
+    }
+
+    @Test
+    void whereAndWhereNotCombine() {
+        DelayCube.Builder builder = new DelayCube.Builder();
+        builder.add("01012023", "AA", "JFK", "LAX", "WEATHER", DelayCube.STATUS_DELAYED, 10);
+        builder.add("01012023", "AA", "LGA", "LAX", "CARRIER", DelayCube.STATUS_DELAYED, 20);
+        builder.add("01012023", "DL", "JFK", "ATL", "WEATHER", DelayCube.STATUS_DELAYED, 40);
+        DelayCube cube = builder.build("v1", NO_NAMES, NO_NAMES);
+
+        Map<String, DelayCube.Cell> result = cube.query()
+                .where(DelayCube.DIM_ORIGIN, "JFK", "LGA")
+                .whereNot(DelayCube.DIM_REASON, "CARRIER")
+                .groupBy(DelayCube.DIM_AIRLINE, DelayCube.DIM_ORIGIN)
+                .run();
+        assertEquals(2, result.size());
+        assertEquals(10, result.get("AA|JFK").getSum());
+        assertEquals(40, result.get("DL|JFK").getSum());
+
+        // Two wheres on one dimension intersect, and a value the cube never saw matches nothing.
+        assertTrue(cube.query().where(DelayCube.DIM_AIRLINE, "AA").where(DelayCube.DIM_AIRLINE, "DL").run().isEmpty());
+        assertTrue(cube.query().where(DelayCube.DIM_AIRLINE, "ZZ").run().isEmpty());
+        assertEquals(3, cube.query().whereNot(DelayCube.DIM_AIRLINE, "ZZ").run().get("").getCount());
+    }
+
+    @Test
+    void badDatesAreSkipped() {
+        DelayCube.Builder builder = new DelayCube.Builder();
+        builder.add(null, "AA", "JFK", "LAX", null, DelayCube.STATUS_ON_TIME, 0);
+        builder.add("2023-01-01", "AA", "JFK", "LAX", null, DelayCube.STATUS_ON_TIME, 0);
+        builder.add("01xx2023", "AA", "JFK", "LAX", null, DelayCube.STATUS_ON_TIME, 0);
+        builder.add("01012023", "AA", "JFK", "LAX", null, DelayCube.STATUS_ON_TIME, 0);
+        assertEquals(1, builder.build("v1", NO_NAMES, NO_NAMES).getCellCount());
+    }
+
+    // The largest ids each field holds (1023 airlines, 16383 airports) must not spill into the
+    // neighbouring fields of the packed key.
+    @Test
+    void fieldsAtTheirLargestIdsStayApart() {
+        DelayCube.Builder builder = new DelayCube.Builder();
+        for (int i = 0; i < 1024; i++) {
+            builder.add("15032022", String.format("A%04d", i), "P0", "P0", null, DelayCube.STATUS_ON_TIME, 1);
+        }
+        for (int i = 1; i < 16384; i++) {
+            builder.add("15032022", "A0000", "P" + i, "P" + (16384 - i), null, DelayCube.STATUS_ON_TIME, 1);
+        }
+        builder.add("31122022", "A1023", "P16383", "P16383", "LATE_AIRCRAFT", DelayCube.STATUS_DIVERTED, 7);
+        DelayCube cube = builder.build("v1", NO_NAMES, NO_NAMES);
+
+        Map<String, DelayCube.Cell> cell = cube.query()
+                .where(DelayCube.DIM_AIRLINE, "A1023")
+                .where(DelayCube.DIM_ORIGIN, "P16383")
+                .groupBy(DelayCube.DIM_MONTH, DelayCube.DIM_AIRLINE, DelayCube.DIM_ORIGIN,
+                        DelayCube.DIM_DESTINATION, DelayCube.DIM_REASON, DelayCube.DIM_STATUS)
+                .run();
+        assertEquals(1, cell.size());
+        DelayCube.Cell last = cell.get("12/2022|A1023|P16383|P16383|LATE_AIRCRAFT|" + DelayCube.STATUS_DIVERTED);
+        assertNotNull(last, cell.keySet().toString());
+        assertEquals(7, last.getSum());
+
+        assertEquals(1024, cube.query().groupBy(DelayCube.DIM_AIRLINE).run().size());
+        assertEquals(16384, cube.query().groupBy(DelayCube.DIM_DESTINATION).run().size());
+
+        assertThrows(IllegalStateException.class, () ->
+                builder.add("15032022", "A1024", "P0", "P0", null, DelayCube.STATUS_ON_TIME, 1));
+    }
+
+    @Test
+    void partitionsMergeIntoTheSameCube() {
+        DelayCube.Builder whole = new DelayCube.Builder();
+        DelayCube.Builder merged = new DelayCube.Builder();
+        DelayCube.Builder[] parts = {merged.newPartition(), merged.newPartition()};
+        String[] airlines = {"AA", "UA", "DL"};
+        for (int i = 0; i < 300; i++) {
+            String date = String.format("%02d%02d%d", i % 28 + 1, i % 12 + 1, 2020 + i % 3);
+            String airline = airlines[i % 3];
+            String reason = i % 4 == 0 ? null : "WEATHER";
+            whole.add(date, airline, "JFK", "LAX", reason, DelayCube.STATUS_DELAYED, i);
+            parts[i % 2].add(date, airline, "JFK", "LAX", reason, DelayCube.STATUS_DELAYED, i);
+        }
+        for (DelayCube.Builder part : parts) {
+            merged.merge(part);
+        }
+
+        Map<String, DelayCube.Cell> expected = whole.build("v1", NO_NAMES, NO_NAMES).query()
+                .groupBy(DelayCube.DIM_AIRLINE, DelayCube.DIM_MONTH).run();
+        Map<String, DelayCube.Cell> actual = merged.build("v1", NO_NAMES, NO_NAMES).query()
+                .groupBy(DelayCube.DIM_AIRLINE, DelayCube.DIM_MONTH).run();
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            assertEquals(expected.get(key).getCount(), actual.get(key).getCount(), key);
+            assertEquals(expected.get(key).getSum(), actual.get(key).getSum(), key);
+            assertEquals(expected.get(key).getSumOfSquares(), actual.get(key).getSumOfSquares(), key);
+        }
+    }
+
+    @Test
+    void savedCubeLoadsOnlyForItsVersion(@TempDir Path dir) throws IOException {
+        DelayCube cube = monthsAroundNewYear();
+        String file = dir.resolve("flights.db.cube").toString();
+        cube.save(file);
+
+        DelayCube loaded = DelayCube.load(file, "v1");
+        assertNotNull(loaded);
+        assertEquals(cube.getCellCount(), loaded.getCellCount());
+        assertEquals("American", loaded.getAirlineName("AA"));
+        assertEquals(byMonth(cube.query().months(2022, 12, 2023, 1)),
+                byMonth(loaded.query().months(2022, 12, 2023, 1)));
+
+        assertNull(DelayCube.load(file, "v2"));
+        assertNull(DelayCube.load(dir.resolve("missing").toString(), "v1"));
+    }
+
+    // Dec 2021: 4 rows, Jan 2022: 1, Dec 2022: 2, Jan 2023: 8.
+    private static DelayCube monthsAroundNewYear() {
+        DelayCube.Builder builder = new DelayCube.Builder();
+        String[] dates = {"31122021", "01122021", "15122021", "20122021", "01012022", "31122022", "01122022"};
+        for (String date : dates) {
+            builder.add(date, "AA", "JFK", "LAX", null, DelayCube.STATUS_ON_TIME, 0);
+        }
+        for (int day = 1; day <= 8; day++) {
+            builder.add(String.format("%02d012023", day), "AA", "JFK", "LAX", null, DelayCube.STATUS_ON_TIME, 0);
+        }
+        return builder.build("v1", Collections.singletonMap("AA", "American"), NO_NAMES);
+    }
+
+    private static Map<String, Long> byMonth(DelayCube.Query query) {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, DelayCube.Cell> entry : query.groupBy(DelayCube.DIM_MONTH).run().entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return counts;
+    }
+
+    private static Map<String, Long> months(Object... monthsAndCounts) {
+        Map<String, Long> counts = new TreeMap<>();
+        for (int i = 0; i < monthsAndCounts.length; i += 2) {
+            counts.put((String) monthsAndCounts[i], ((Integer) monthsAndCounts[i + 1]).longValue());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,171 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KllSketchTest {
+
+    // The class comment promises quantiles within about 1.5% of the true rank at the default k.
+    private static final double RANK_ERROR = 0.015;
+
+    @Test
+    void emptySketchHasNoQuantiles() {
+        KllSketch sketch = new KllSketch();
+        assertTrue(sketch.isEmpty());
+        assertEquals(0, sketch.getCount());
+        assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+        assertTrue(Double.isNaN(sketch.getMin()));
+    }
+
+    @Test
+    void singleValueIsEveryQuantile() {
+        KllSketch sketch = new KllSketch();
+        sketch.update(42);
+        assertArrayEquals(new double[]{42, 42, 42}, sketch.getQuantiles(0, 0.5, 1));
+    }
+
+    @Test
+    void exactBelowCapacity() {
+        KllSketch sketch = new KllSketch();
+        for (int i = 101; i >= 1; i--) {
+            sketch.update(i);
+        }
+        assertEquals(101, sketch.getRetainedItems());
+        assertEquals(51, sketch.getQuantile(0.5));
+        assertEquals(11, sketch.getQuantile(0.1));
+        assertEquals(100, sketch.getQuantile(0.99));
+    }
+
+    @Test
+    void endsAreTheExactMinAndMax() {
+        KllSketch sketch = new KllSketch();
+        Random random = new Random(33);
+        for (int i = 0; i < 100_000; i++) {
+            sketch.update(random.nextGaussian());
+        }
+        sketch.update(-1000);
+        sketch.update(1000);
+        assertEquals(-1000, sketch.getQuantile(0));
+        assertEquals(1000, sketch.getQuantile(1));
+        assertEquals(-1000, sketch.getMin());
+        assertEquals(1000, sketch.getMax());
+    }
+
+    @Test
+    void nanIsIgnored() {
+        KllSketch sketch = new KllSketch();
+        sketch.update(Double.NaN);
+        sketch.update(5);
+        assertEquals(1, sketch.getCount());
+        assertEquals(5, sketch.getQuantile(0.5));
+    }
+
+    @Test
+    void rejectsTinyK() {
+        assertThrows(IllegalArgumentException.class, () -> new KllSketch(7));
+    }
+
+    @Test
+    void rankErrorWithinBoundForAnyInputOrder() {
+        int n = 200_000;
+        assertRankError(fill(new KllSketch(), shuffled(n, 1)), n);
+        assertRankError(fill(new KllSketch(), ascending(n)), n);
+        int[] descending = ascending(n);
+        for (int i = 0; i < n / 2; i++) {
+            int t = descending[i];
+            descending[i] = descending[n - 1 - i];
+            descending[n - 1 - i] = t;
+        }
+        assertRankError(fill(new KllSketch(), descending), n);
+    }
+
+    // Around 3 * k items, plus the 8-item floor on the deepest levels, which is all ten times the input adds.
+    @Test
+    void memoryStaysBoundedByK() {
+        KllSketch sketch = new KllSketch();
+        for (int i = 0; i < 100_000; i++) {
+            sketch.update(i);
+        }
+        int retained = sketch.getRetainedItems();
+        for (int i = 100_000; i < 1_000_000; i++) {
+            sketch.update(i);
+        }
+        assertEquals(1_000_000, sketch.getCount());
+        assertTrue(sketch.getRetainedItems() <= 3.5 * KllSketch.DEFAULT_K, "retained " + sketch.getRetainedItems());
+        assertTrue(sketch.getRetainedItems() - retained <= 8 * 4,
+                "retained " + retained + " -> " + sketch.getRetainedItems());
+    }
+
+    @Test
+    void mergedPartitionsKeepCountEndsAndRankError() {
+        int n = 200_000;
+        int[] values = shuffled(n, 2);
+        KllSketch[] parts = {new KllSketch(), new KllSketch(), new KllSketch(), new KllSketch()};
+        for (int i = 0; i < n; i++) {
+            parts[i % parts.length].update(values[i]);
+        }
+        KllSketch merged = new KllSketch();
+        for (KllSketch part : parts) {
+            merged.merge(part);
+        }
+        assertEquals(n, merged.getCount());
+        assertEquals(0, merged.getMin());
+        assertEquals(n - 1, merged.getMax());
+        assertRankError(merged, n);
+        assertEquals(n / 4, parts[0].getCount(), "merge leaves the other sketch alone");
+    }
+
+    @Test
+    void mergingIntoAnEmptySketchOrFromOneIsANoOp() {
+        KllSketch sketch = fill(new KllSketch(), ascending(1000));
+        double median = sketch.getQuantile(0.5);
+        sketch.merge(new KllSketch());
+        assertEquals(1000, sketch.getCount());
+        assertEquals(median, sketch.getQuantile(0.5));
+
+        KllSketch empty = new KllSketch();
+        empty.merge(sketch);
+        assertEquals(1000, empty.getCount());
+        assertEquals(0, empty.getMin());
+        assertEquals(999, empty.getMax());
+    }
+
+    // Values are 0..n-1, so the true rank of v is v / n.
+    private static void assertRankError(KllSketch sketch, int n) {
+        for (int percent = 1; percent < 100; percent++) {
+            double q = percent / 100.0;
+            double rank = sketch.getQuantile(q) / n;
+            assertEquals(q, rank, RANK_ERROR, "quantile " + q);
+        }
+    }
+
+    private static KllSketch fill(KllSketch sketch, int[] values) {
+        for (int value : values) {
+            sketch.update(value);
+        }
+        return sketch;
+    }
+
+    private static int[] ascending(int n) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i;
+        }
+        return values;
+    }
+
+    private static int[] shuffled(int n, long seed) {
+        int[] values = ascending(n);
+        Random random = new Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,147 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    // 128 exact buckets, then 31 power-of-two ranges of 64 sub-buckets.
+    private static final int LAST_BUCKET = 128 + 31 * 64 - 1;
+
+    @Test
+    void linearBelow128Micros() {
+        for (int micros = 0; micros < 128; micros++) {
+            assertEquals(micros, LatencyHistogram.bucketIndex(micros));
+            assertEquals(micros, LatencyHistogram.bucketMidpoint(micros));
+        }
+    }
+
+    @Test
+    void firstLogarithmicRanges() {
+        // [128, 256) splits into 64 buckets two microseconds wide, [256, 512) into 64 four wide.
+        assertEquals(128, LatencyHistogram.bucketIndex(128));
+        assertEquals(128, LatencyHistogram.bucketIndex(129));
+        assertEquals(129, LatencyHistogram.bucketIndex(130));
+        assertEquals(191, LatencyHistogram.bucketIndex(255));
+        assertEquals(192, LatencyHistogram.bucketIndex(256));
+        assertEquals(192, LatencyHistogram.bucketIndex(259));
+        assertEquals(193, LatencyHistogram.bucketIndex(260));
+        assertEquals(128.5, LatencyHistogram.bucketMidpoint(128));
+        assertEquals(257.5, LatencyHistogram.bucketMidpoint(192));
+    }
+
+    // Every value up to 2^20 us, then each power of two up to the last range: indices never go down and
+    // never skip a bucket.
+    @Test
+    void bucketsAreContiguousAndMonotonic() {
+        int previous = LatencyHistogram.bucketIndex(127);
+        for (long micros = 128; micros < 1L << 20; micros++) {
+            int index = LatencyHistogram.bucketIndex(micros);
+            assertTrue(index == previous || index == previous + 1, "gap at " + micros);
+            previous = index;
+        }
+        for (int shift = 20; shift < 38; shift++) {
+            long low = 1L << shift;
+            int below = LatencyHistogram.bucketIndex(low - 1);
+            assertEquals(below + 1, LatencyHistogram.bucketIndex(low), "gap at 2^" + shift);
+        }
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketIndex((1L << 38) - 1));
+    }
+
+    @Test
+    void midpointWithinOnePercent() {
+        for (int shift = 7; shift < 38; shift++) {
+            for (long micros : new long[]{1L << shift, (1L << shift) + 1, (3L << shift) / 2, (2L << shift) - 1}) {
+                double midpoint = LatencyHistogram.bucketMidpoint(LatencyHistogram.bucketIndex(micros));
+                assertEquals(micros, midpoint, micros * 0.01, "value " + micros);
+            }
+        }
+    }
+
+    @Test
+    void overflowGoesToTheLastBucket() {
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketIndex(1L << 38));
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketIndex(Long.MAX_VALUE / 1000));
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getCount());
+        assertEquals(Long.MAX_VALUE / 1e6, histogram.getMaxMillis());
+        // The percentile can only say "the last bucket", the max keeps the exact value.
+        assertEquals(LatencyHistogram.bucketMidpoint(LAST_BUCKET) / 1000.0, histogram.getPercentileMillis(100));
+    }
+
+    @Test
+    void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMillis());
+        assertEquals(0, histogram.getMaxMillis());
+        assertEquals(0, histogram.getPercentileMillis(50));
+        assertEquals(0, histogram.getPercentileMillis(99));
+    }
+
+    @Test
+    void percentilesOfAKnownSpread() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.record(ms * 1_000_000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMeanMillis(), 1e-9);
+        assertEquals(1000, histogram.getMaxMillis());
+        assertEquals(1, histogram.getPercentileMillis(0), 0.01);
+        assertEquals(500, histogram.getPercentileMillis(50), 5);
+        assertEquals(990, histogram.getPercentileMillis(99), 9.9);
+        assertEquals(1000, histogram.getPercentileMillis(100), 10);
+        assertTrue(histogram.getPercentileMillis(100) <= histogram.getMaxMillis(), "capped at the max");
+    }
+
+    @Test
+    void negativeDurationsCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5_000_000);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMeanMillis());
+        assertEquals(0, histogram.getPercentileMillis(100));
+    }
+
+    @Test
+    void resetClearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3_000_000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMillis());
+        assertEquals(0, histogram.getPercentileMillis(50));
+        histogram.record(2_000_000);
+        assertEquals(2, histogram.getPercentileMillis(50), 0.02);
+    }
+
+    @Test
+    void concurrentRecordsAreAllCounted() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            long nanos = (t + 1) * 1_000_000L;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(nanos);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80_000, histogram.getCount());
+        assertEquals(8, histogram.getMaxMillis());
+        assertEquals(4.5, histogram.getMeanMillis(), 1e-9);
+        assertEquals(8, histogram.getPercentileMillis(100), 0.08);
+    }
+}
@@ -0,0 +1,282 @@
+package service;
+
+import database.BitmapIndex;
+import database.DatabaseManager;
+import database.StatisticsBuilder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryPlannerTest {
+
+    // AA flies 21000 flights (more than the IN list takes), UA 3000 and DL 1000. AA and UA leave
+    // from JFK, LAX or ORD for ATL, DL only flies ATL to JFK. Every 50th flight is cancelled, every
+    // 100th (offset by one) diverted and every 10th has a WEATHER delay.
+    private static final int FLIGHTS = 25_000;
+    private static final int AA_FLIGHTS = 21_000;
+    private static final int UA_FLIGHTS = 3_000;
+    private static final int DL_FLIGHTS = 1_000;
+
+    @TempDir
+    static Path dir;
+
+    private static DatabaseManager db;
+    private static NameIndex names;
+    private static BitmapIndex bitmaps;
+    private static DatasetStatistics stats;
+
+    @BeforeAll
+    static void createDatabase() throws SQLException {
+        db = new DatabaseManager("jdbc:sqlite:" + dir.resolve("flights.db"));
+        db.connect();
+        db.createSchema();
+        Connection conn = db.getConnection();
+        insertDimensions(conn);
+        insertFlights(conn);
+        conn.commit();
+
+        names = NameIndex.build(DimensionRegistry.load(conn));
+        bitmaps = BitmapIndex.build(conn, "test");
+        new StatisticsBuilder(conn).build();
+        stats = DatasetStatistics.load(conn);
+    }
+
+    @AfterAll
+    static void closeDatabase() throws SQLException {
+        db.disconnect();
+    }
+
+    @Test
+    void candidatesOverTheLimitStayOutOfTheSql() {
+        assertTrue(AA_FLIGHTS > QueryPlanner.MAX_BITMAP_ID_LIST);
+        QueryPlanner.SqlPlan plan = planner().compile(FlightQuery.builder().airline("AA").build());
+        assertNull(plan.noMatches);
+        assertEquals(AA_FLIGHTS, plan.candidates.getCardinality());
+        assertFalse(plan.where.contains("flight_id IN ("), plan.where);
+        assertTrue(plan.where.contains("f.airline_code IN (?)"), plan.where);
+        assertEquals(Arrays.asList("AA"), plan.params);
+        assertTrue(plan.bitmapOnly);
+    }
+
+    @Test
+    void smallCandidateSetBecomesAnIdList() {
+        QueryPlanner.SqlPlan plan = planner().compile(FlightQuery.builder().airline("DL").build());
+        assertEquals(DL_FLIGHTS, plan.candidates.getCardinality());
+        assertTrue(plan.where.startsWith("AND f.flight_id IN (24000,24001,"), plan.where);
+        String ids = plan.where.substring("AND f.flight_id IN (".length(), plan.where.indexOf(')'));
+        assertEquals(DL_FLIGHTS, ids.split(",").length);
+        assertTrue(plan.where.contains("f.airline_code IN (?)"), "the bitmap narrows, the filter still runs");
+    }
+
+    @Test
+    void excludedFlagsComeOffTheCandidates() {
+        QueryPlanner.SqlPlan plan = planner().compile(FlightQuery.builder().airline("DL")
+                .includeCancelled(false).includeDiverted(false).build());
+        assertEquals(DL_FLIGHTS - DL_FLIGHTS / 50 - DL_FLIGHTS / 100, plan.candidates.getCardinality());
+        assertTrue(plan.where.contains("AND f.cancelled = 0 AND f.diverted = 0 "), plan.where);
+    }
+
+    @Test
+    void unknownNamesMatchNothing() {
+        QueryPlanner.SqlPlan plan = planner().compile(FlightQuery.builder().airline("Pan Am").build());
+        assertEquals("no matching names", plan.noMatches);
+        assertEquals("no matching names",
+                planner().compile(FlightQuery.builder().destination("XXX").build()).noMatches);
+    }
+
+    @Test
+    void disjointBitmapsMatchNothing() {
+        QueryPlanner.SqlPlan plan = planner().compile(FlightQuery.builder().airline("DL").origin("JFK").build());
+        assertEquals("bitmap", plan.noMatches);
+
+        // Without bitmaps the same query goes to SQLite.
+        assertNull(plannerWithoutBitmaps().compile(FlightQuery.builder().airline("DL").origin("JFK").build()).noMatches);
+    }
+
+    @Test
+    void badFlightNumberMatchesNothing() {
+        assertEquals("bad flight number",
+                plannerWithoutBitmaps().compile(FlightQuery.builder().flightNumber("AA12x").build()).noMatches);
+        assertEquals("bad flight number",
+                plannerWithoutBitmaps().compile(FlightQuery.builder().flightNumber("12x").build()).noMatches);
+    }
+
+    @Test
+    void flightNumberSplitsIntoAirlineAndNumber() {
+        QueryPlanner.SqlPlan plan = plannerWithoutBitmaps().compile(FlightQuery.builder().flightNumber("AA123").build());
+        assertEquals("AND f.airline_code = ? AND f.flight_number = ? ", plan.where);
+        assertEquals(Arrays.asList("AA", 123), plan.params);
+
+        plan = plannerWithoutBitmaps().compile(FlightQuery.builder().flightNumber("123").build());
+        assertEquals("AND f.flight_number = ? ", plan.where);
+        assertEquals(Arrays.asList(123), plan.params);
+    }
+
+    @Test
+    void datesUseDateKeyWhenThereIsOne() {
+        FlightQuery march = FlightQuery.builder()
+                .dateRange(LocalDate.of(2023, 3, 1), LocalDate.of(2023, 3, 31)).build();
+
+        QueryPlanner.SqlPlan plan = plannerWithoutBitmaps().compile(march);
+        assertEquals("AND f.date_key >= ? AND f.date_key <= ? ", plan.where);
+        assertEquals(Arrays.asList(20230301, 20230331), plan.params);
+
+        plan = new QueryPlanner(names, null, false).compile(march);
+        assertFalse(plan.where.contains("date_key"), plan.where);
+        assertTrue(plan.where.contains("CAST(substr(f.date, 5, 4) AS INTEGER) * 10000"), plan.where);
+        assertEquals(Arrays.asList(20230301, 20230331), plan.params);
+    }
+
+    @Test
+    void delayConditionsShareOneSubquery() {
+        QueryPlanner.SqlPlan plan = planner().compile(FlightQuery.builder()
+                .delayReason("WEATHER").delayBetween(10, 60).build());
+        assertTrue(plan.where.endsWith("AND f.flight_id IN (SELECT DISTINCT flight_id FROM Delay_Reason WHERE 1=1 " +
+                "AND reason IN (?) AND delay_length >= ? AND delay_length <= ? ) "), plan.where);
+        assertEquals(Arrays.asList("WEATHER", 10, 60), plan.params);
+        assertEquals(FLIGHTS / 10, plan.candidates.getCardinality());
+        assertFalse(plan.bitmapOnly, "the bitmaps don't know delay lengths");
+    }
+
+    @Test
+    void bitmapOnlyWhenTheBitmapsAnswerEveryFilter() {
+        assertTrue(planner().compile(FlightQuery.builder().airline("UA").origin("JFK")
+                .delayReason("WEATHER").includeCancelled(false).build()).bitmapOnly);
+        assertFalse(planner().compile(FlightQuery.builder().airline("UA").flightNumber("7").build()).bitmapOnly);
+        assertFalse(planner().compile(FlightQuery.builder().airline("UA")
+                .dateRange(LocalDate.of(2023, 1, 1), null).build()).bitmapOnly);
+
+        // Nothing for the bitmaps to do: no candidates, so the table answers.
+        QueryPlanner.SqlPlan all = planner().compile(FlightQuery.builder().build());
+        assertNull(all.candidates);
+        assertFalse(all.bitmapOnly);
+        assertEquals("", all.where);
+        assertFalse(plannerWithoutBitmaps().compile(FlightQuery.builder().airline("UA").build()).bitmapOnly);
+    }
+
+    @Test
+    void nothingToEstimateWithoutStatistics() {
+        FlightQuery ua = FlightQuery.builder().airline("UA").build();
+        assertEquals(-1, plannerWithoutBitmaps().estimateRows(ua));
+        assertEquals(-1, plannerWithoutBitmaps().compile(ua).estimatedRows);
+        assertEquals(UA_FLIGHTS, planner().compile(ua).estimatedRows, "the bitmaps count exactly");
+    }
+
+    @Test
+    void valueFiltersEstimateTheirRowCounts() {
+        QueryPlanner planner = plannerWithStatistics(null);
+        assertEquals(UA_FLIGHTS, planner.estimateRows(FlightQuery.builder().airline("UA").build()));
+        assertEquals(AA_FLIGHTS + DL_FLIGHTS, planner.estimateRows(FlightQuery.builder().airline("AA").airline("DL").build()));
+        assertEquals(DL_FLIGHTS, planner.estimateRows(FlightQuery.builder().origin("ATL").build()));
+        assertEquals(FLIGHTS / 10, planner.estimateRows(FlightQuery.builder().delayReason("WEATHER").build()));
+        assertEquals(FLIGHTS - FLIGHTS / 50, planner.estimateRows(FlightQuery.builder().includeCancelled(false).build()));
+        assertEquals(0, planner.estimateRows(FlightQuery.builder().airline("Pan Am").build()));
+        assertEquals(FLIGHTS, planner.estimateRows(FlightQuery.builder().build()));
+    }
+
+    @Test
+    void bitmapCountIsScaledByTheOtherFilters() {
+        FlightQuery march = FlightQuery.builder().airline("UA")
+                .dateRange(LocalDate.of(2023, 3, 1), LocalDate.of(2023, 3, 31)).build();
+        long expected = Math.round(UA_FLIGHTS * stats.dateFraction(20230301, 20230331));
+        assertEquals(expected, plannerWithStatistics(bitmaps).compile(march).estimatedRows);
+        assertTrue(expected > 0 && expected < UA_FLIGHTS / 6, "about a twelfth, was " + expected);
+    }
+
+    // cancelled = 0 keeps 98% of the flights and AA 84%, both past FULL_SCAN_FRACTION; UA keeps 12%
+    // and a month about 8%, so those keep their indexes.
+    @Test
+    void broadFiltersSkipTheirIndex() {
+        QueryPlanner planner = plannerWithStatistics(null);
+        QueryPlanner.SqlPlan plan = planner.compile(FlightQuery.builder().airline("UA").includeCancelled(false)
+                .dateRange(LocalDate.of(2023, 3, 1), LocalDate.of(2023, 3, 31)).build());
+        assertTrue(plan.where.contains("AND +f.cancelled = 0 "), plan.where);
+        assertTrue(plan.where.contains("AND f.airline_code IN (?) "), plan.where);
+        assertTrue(plan.where.contains("AND f.date_key >= ? "), plan.where);
+
+        plan = planner.compile(FlightQuery.builder().airline("AA")
+                .dateRange(LocalDate.of(2023, 1, 1), LocalDate.of(2023, 12, 31)).build());
+        assertTrue(plan.where.contains("AND +f.airline_code IN (?) "), plan.where);
+        assertTrue(plan.where.contains("AND +f.date_key >= ? AND +f.date_key <= ? "), plan.where);
+
+        // Without statistics every index stays in play.
+        plan = plannerWithoutBitmaps().compile(FlightQuery.builder().airline("AA").includeCancelled(false).build());
+        assertFalse(plan.where.contains("+"), plan.where);
+    }
+
+    private static QueryPlanner planner() {
+        return new QueryPlanner(names, bitmaps, true);
+    }
+
+    private static QueryPlanner plannerWithoutBitmaps() {
+        return new QueryPlanner(names, null, true);
+    }
+
+    private static QueryPlanner plannerWithStatistics(BitmapIndex bitmapIndex) {
+        return new QueryPlanner(names, bitmapIndex, true, stats);
+    }
+
+    private static void insertDimensions(Connection conn) throws SQLException {
+        String[][] airlines = {{"AA", "American Airlines"}, {"UA", "United Airlines"}, {"DL", "Delta Air Lines"}};
+        String[][] airports = {{"JFK", "John F Kennedy International"}, {"LAX", "Los Angeles International"},
+                {"ORD", "Chicago O'Hare International"}, {"ATL", "Hartsfield-Jackson Atlanta International"}};
+        try (PreparedStatement airline = conn.prepareStatement("INSERT INTO Airline (iata_code, name) VALUES (?, ?)");
+             PreparedStatement airport = conn.prepareStatement("INSERT INTO Airport (iata_code, name) VALUES (?, ?)")) {
+            for (String[] row : airlines) {
+                airline.setString(1, row[0]);
+                airline.setString(2, row[1]);
+                airline.executeUpdate();
+            }
+            for (String[] row : airports) {
+                airport.setString(1, row[0]);
+                airport.setString(2, row[1]);
+                airport.executeUpdate();
+            }
+        }
+    }
+
+    // flight_id i runs from 0, so DL's flights are ids 24000 to 24999.
+    private static void insertFlights(Connection conn) throws SQLException {
+        String[] origins = {"JFK", "LAX", "ORD"};
+        try (PreparedStatement flight = conn.prepareStatement("INSERT INTO Flight (flight_id, date, date_key, " +
+                "airline_code, flight_number, flight_origin, flight_destination, scheduled_departure, " +
+                "actual_departure, scheduled_arrival, actual_arrival, cancelled, diverted) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, 900, 905, 1100, ?, ?, ?)");
+             PreparedStatement delay = conn.prepareStatement(
+                     "INSERT INTO Delay_Reason (flight_id, reason, delay_length) VALUES (?, 'WEATHER', ?)")) {
+            for (int i = 0; i < FLIGHTS; i++) {
+                boolean dl = i >= AA_FLIGHTS + UA_FLIGHTS;
+                int month = i % 12 + 1;
+                int day = i % 28 + 1;
+                flight.setInt(1, i);
+                flight.setString(2, String.format("%02d%02d2023", day, month));
+                flight.setInt(3, 20230000 + month * 100 + day);
+                flight.setString(4, i < AA_FLIGHTS ? "AA" : dl ? "DL" : "UA");
+                flight.setInt(5, i % 1000 + 1);
+                flight.setString(6, dl ? "ATL" : origins[i % 3]);
+                flight.setString(7, dl ? "JFK" : "ATL");
+                flight.setInt(8, 1100 + i % 60);
+                flight.setBoolean(9, i % 50 == 0);
+                flight.setBoolean(10, i % 100 == 1);
+                flight.addBatch();
+                if (i % 10 == 0) {
+                    delay.setInt(1, i);
+                    delay.setInt(2, i % 120);
+                    delay.addBatch();
+                }
+            }
+            flight.executeBatch();
+            delay.executeBatch();
+        }
+    }
+}
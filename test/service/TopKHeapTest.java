@@ -0,0 +1,134 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TopKHeapTest {
+
+    private static final Comparator<Integer> ASCENDING = Comparator.naturalOrder();
+
+    @Test
+    void kOfOneKeepsTheBest() {
+        TopKHeap<Integer> heap = new TopKHeap<>(1, ASCENDING);
+        assertTrue(heap.offer(3));
+        assertFalse(heap.offer(1));
+        assertTrue(heap.offer(9));
+        assertFalse(heap.offer(9), "a tie with the weakest kept item stays out");
+        assertEquals(1, heap.size());
+        assertEquals(Arrays.asList(9), heap.toList());
+    }
+
+    @Test
+    void kLargerThanNKeepsEverythingBestFirst() {
+        TopKHeap<Integer> heap = new TopKHeap<>(10, ASCENDING);
+        for (int value : new int[]{4, 1, 5, 2, 3}) {
+            assertTrue(heap.offer(value));
+        }
+        assertEquals(5, heap.size());
+        assertEquals(Arrays.asList(5, 4, 3, 2, 1), heap.toList());
+    }
+
+    // Past the initial capacity the queue grows on demand; a huge k never allocates k slots up front.
+    @Test
+    void hugeKWithFewItems() {
+        TopKHeap<Integer> heap = new TopKHeap<>(Integer.MAX_VALUE, ASCENDING);
+        for (int i = 0; i < 100; i++) {
+            heap.offer(i);
+        }
+        assertEquals(100, heap.size());
+        assertEquals(99, heap.toList().get(0));
+        assertEquals(0, heap.toList().get(99));
+    }
+
+    @Test
+    void emptyHeap() {
+        TopKHeap<Integer> heap = new TopKHeap<>(3, ASCENDING);
+        assertEquals(0, heap.size());
+        assertTrue(heap.toList().isEmpty());
+    }
+
+    @Test
+    void rejectsKBelowOne() {
+        assertThrows(IllegalArgumentException.class, () -> new TopKHeap<Integer>(0, ASCENDING));
+        assertThrows(IllegalArgumentException.class, () -> new TopKHeap<Integer>(-1, ASCENDING));
+    }
+
+    // Equal items fill free slots, but once full only a strictly better item displaces the weakest.
+    @Test
+    void tiesWithTheWeakestItemStayOut() {
+        TopKHeap<String> heap = new TopKHeap<>(2, Comparator.comparingInt(String::length));
+        assertTrue(heap.offer("aa"));
+        assertTrue(heap.offer("bb"));
+        assertFalse(heap.offer("cc"));
+        assertTrue(heap.offer("ddd"));
+        List<String> kept = heap.toList();
+        assertEquals("ddd", kept.get(0));
+        assertTrue(kept.get(1).equals("aa") || kept.get(1).equals("bb"), kept.toString());
+    }
+
+    @Test
+    void comparatorOrderDecidesWhatIsBest() {
+        TopKHeap<Integer> smallest = new TopKHeap<>(3, ASCENDING.reversed());
+        for (int value : new int[]{5, 9, 1, 7, 3, 8}) {
+            smallest.offer(value);
+        }
+        assertEquals(Arrays.asList(1, 3, 5), smallest.toList());
+    }
+
+    @Test
+    void matchesASortedReference() {
+        Random random = new Random(50);
+        for (int round = 0; round < 20; round++) {
+            int k = 1 + random.nextInt(50);
+            List<Integer> values = randomValues(random, random.nextInt(500));
+            TopKHeap<Integer> heap = new TopKHeap<>(k, ASCENDING);
+            for (int value : values) {
+                heap.offer(value);
+            }
+            assertEquals(topK(values, k), heap.toList(), "k " + k + ", n " + values.size());
+        }
+    }
+
+    @Test
+    void mergedPartitionsMatchOneHeap() {
+        Random random = new Random(51);
+        List<Integer> values = randomValues(random, 10_000);
+        int k = 25;
+        List<TopKHeap<Integer>> partitions = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            partitions.add(new TopKHeap<>(k, ASCENDING));
+        }
+        for (int i = 0; i < values.size(); i++) {
+            partitions.get(i % partitions.size()).offer(values.get(i));
+        }
+
+        TopKHeap<Integer> merged = new TopKHeap<>(k, ASCENDING);
+        for (TopKHeap<Integer> partition : partitions) {
+            merged.merge(partition);
+        }
+        assertEquals(topK(values, k), merged.toList());
+        assertEquals(k, partitions.get(0).size(), "merge leaves the other heap alone");
+    }
+
+    private static List<Integer> randomValues(Random random, int n) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            values.add(random.nextInt(1000));
+        }
+        return values;
+    }
+
+    private static List<Integer> topK(List<Integer> values, int k) {
+        List<Integer> sorted = new ArrayList<>(values);
+        sorted.sort(Collections.reverseOrder());
+        return sorted.subList(0, Math.min(k, sorted.size()));
+    }
+}